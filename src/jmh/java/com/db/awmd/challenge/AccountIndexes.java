@@ -0,0 +1,81 @@
+package com.db.awmd.challenge;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks account indexes in [0, population) following the configured skew
+ *
+ * The Zipfian distribution uses the constant time method by Gray et al. ("Quickly generating billion-record synthetic
+ * databases"), as YCSB does: index 0 is the hottest account and the popularity of the others decays as 1 / rank^theta.
+ */
+public final class AccountIndexes {
+
+    public static final String UNIFORM = "uniform";
+
+    public static final String ZIPFIAN = "zipfian";
+
+    private static final double ZIPFIAN_THETA = 0.99;
+
+    private final int population;
+
+    private final boolean zipfian;
+
+    private final SplittableRandom random;
+
+    private final double zetaN;
+
+    private final double alpha;
+
+    private final double eta;
+
+    private final double halfPowTheta;
+
+    public AccountIndexes(int population, String skew, long seed) {
+        if (!UNIFORM.equals(skew) && !ZIPFIAN.equals(skew)) {
+            throw new IllegalArgumentException("Unknown skew " + skew);
+        }
+        this.population = population;
+        this.zipfian = ZIPFIAN.equals(skew);
+        this.random = new SplittableRandom(seed);
+
+        // Only the Zipfian distribution needs the constants, zeta(population) is linear in the population
+        this.zetaN = this.zipfian ? zeta(population) : 1;
+        this.alpha = 1.0 / (1.0 - ZIPFIAN_THETA);
+        this.eta = this.zipfian ? (1 - Math.pow(2.0 / population, 1 - ZIPFIAN_THETA)) / (1 - zeta(2) / zetaN) : 0;
+        this.halfPowTheta = Math.pow(0.5, ZIPFIAN_THETA);
+    }
+
+    public int next() {
+        if (!zipfian) {
+            return random.nextInt(population);
+        }
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + halfPowTheta) {
+            return 1;
+        }
+        return (int) Math.min(population - 1, (long) (population * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    /**
+     * Index of an account other than the given one, following the same skew
+     *
+     * @param other
+     * @return Index in [0, population)
+     */
+    public int nextOtherThan(int other) {
+        int index = next();
+        return index != other ? index : (index + 1) % population;
+    }
+
+    private static double zeta(int n) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, ZIPFIAN_THETA);
+        }
+        return sum;
+    }
+}
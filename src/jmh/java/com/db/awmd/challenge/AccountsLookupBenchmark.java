@@ -0,0 +1,76 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of reading a set of accounts with one getAccounts call, against one getAccount call per id
+ *
+ * Repositories without a batched read use the default getAccounts, which is the same loop as getAccountOneByOne.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class AccountsLookupBenchmark {
+
+    private static final int POPULATION = 1_000_000;
+
+    @Param({"in-memory", "striped", "primitive"})
+    public String type;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private AccountsRepository repository;
+
+    private List<String> accountIds;
+
+    @Setup(Level.Trial)
+    public void populate() {
+        repository = BenchmarkRepositories.create(type);
+        BenchmarkRepositories.populate(repository, POPULATION);
+        AccountIndexes indexes = new AccountIndexes(POPULATION, AccountIndexes.UNIFORM, 0);
+        accountIds = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            accountIds.add(BenchmarkRepositories.accountId(indexes.next()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        BenchmarkRepositories.close(repository);
+    }
+
+    @Benchmark
+    public List<Account> getAccounts() {
+        return repository.getAccounts(accountIds);
+    }
+
+    @Benchmark
+    public void getAccountOneByOne(Blackhole blackhole) {
+        for (String accountId : accountIds) {
+            blackhole.consume(repository.getAccount(accountId));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the repository operations on a populated repository
+ *
+ * Account ids and transfers are prepared before the measurement, so the allocation reported by the GC profiler
+ * (gc.alloc.rate.norm) is the one of the repository itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AccountsRepositoryBenchmark {
+
+    /**
+     * Operations prepared per thread, cycled through during the run
+     */
+    private static final int OPERATIONS = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class Repository {
+
+        @Param({"in-memory", "striped", "optimistic", "primitive", "sharded"})
+        public String type;
+
+        @Param({"1000", "1000000"})
+        public int population;
+
+        @Param({AccountIndexes.UNIFORM, AccountIndexes.ZIPFIAN})
+        public String skew;
+
+        AccountsRepository repository;
+
+        @Setup(Level.Trial)
+        public void populate() {
+            repository = BenchmarkRepositories.create(type);
+            BenchmarkRepositories.populate(repository, population);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            BenchmarkRepositories.close(repository);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Operations {
+
+        String[] accountIds;
+
+        Transfer[] transfers;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void prepare(Repository repository, ThreadParams threadParams) {
+            AccountIndexes indexes = new AccountIndexes(repository.population, repository.skew,
+                    threadParams.getThreadIndex());
+            accountIds = new String[OPERATIONS];
+            transfers = new Transfer[OPERATIONS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                int source = indexes.next();
+                accountIds[i] = BenchmarkRepositories.accountId(source);
+                transfers[i] = Transfer.builder()
+                        .sourceAccountId(accountIds[i])
+                        .destinationAccountId(BenchmarkRepositories.accountId(indexes.nextOtherThan(source)))
+                        .amount(BigDecimal.ONE)
+                        .build();
+            }
+        }
+
+        int next() {
+            return next++ & (OPERATIONS - 1);
+        }
+    }
+
+    /**
+     * Accounts created during one iteration, so the repository does not keep growing across the run
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyRepository {
+
+        @Param({"in-memory", "striped", "optimistic", "primitive", "sharded"})
+        public String type;
+
+        AccountsRepository repository;
+
+        @Setup(Level.Iteration)
+        public void create() {
+            repository = BenchmarkRepositories.create(type);
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws Exception {
+            BenchmarkRepositories.close(repository);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NewAccounts {
+
+        String prefix;
+
+        long next;
+
+        @Setup(Level.Trial)
+        public void prepare(ThreadParams threadParams) {
+            prefix = "New-" + threadParams.getThreadIndex() + "-";
+        }
+    }
+
+    /**
+     * Includes building the new account id, there is no way to prepare an unbounded number of them
+     */
+    @Benchmark
+    public void createAccount(EmptyRepository repository, NewAccounts accounts) {
+        repository.repository.createAccount(new Account(accounts.prefix + accounts.next++, BigDecimal.ONE));
+    }
+
+    @Benchmark
+    public Account getAccount(Repository repository, Operations operations) {
+        return repository.repository.getAccount(operations.accountIds[operations.next()]);
+    }
+
+    @Benchmark
+    public void transfer(Repository repository, Operations operations) {
+        repository.repository.transfer(operations.transfers[operations.next()]);
+    }
+}
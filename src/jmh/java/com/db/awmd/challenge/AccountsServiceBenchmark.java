@@ -0,0 +1,104 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.ledger.TransferLedger;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.service.AccountsService;
+import com.db.awmd.challenge.service.NotificationDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a transfer through the service: validation, repository transfer, notification and stage metrics
+ *
+ * Notifications go through the dispatcher queue to a notification service that discards them (the email service only
+ * logs, which would measure the console instead).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AccountsServiceBenchmark {
+
+    private static final int OPERATIONS = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class Service {
+
+        @Param({"in-memory", "striped", "primitive", "sharded"})
+        public String type;
+
+        @Param({"1000", "1000000"})
+        public int population;
+
+        @Param({AccountIndexes.UNIFORM, AccountIndexes.ZIPFIAN})
+        public String skew;
+
+        AccountsRepository repository;
+
+        NotificationDispatcher notificationDispatcher;
+
+        AccountsService accountsService;
+
+        @Setup(Level.Trial)
+        public void populate() {
+            repository = BenchmarkRepositories.create(type);
+            BenchmarkRepositories.populate(repository, population);
+            notificationDispatcher = new NotificationDispatcher((account, transferDescription) -> { }, repository,
+                    10000, 2, 100, 0, "block", "notifications");
+            accountsService = new AccountsService(repository, notificationDispatcher, new TransferMetrics(),
+                    new TransferLedger(1_000_000));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            notificationDispatcher.close();
+            BenchmarkRepositories.close(repository);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Transfers {
+
+        Transfer[] transfers;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void prepare(Service service, ThreadParams threadParams) {
+            AccountIndexes indexes = new AccountIndexes(service.population, service.skew,
+                    threadParams.getThreadIndex());
+            transfers = new Transfer[OPERATIONS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                int source = indexes.next();
+                transfers[i] = Transfer.builder()
+                        .sourceAccountId(BenchmarkRepositories.accountId(source))
+                        .destinationAccountId(BenchmarkRepositories.accountId(indexes.nextOtherThan(source)))
+                        .amount(BigDecimal.ONE)
+                        .build();
+            }
+        }
+    }
+
+    @Benchmark
+    public void transfer(Service service, Transfers transfers) {
+        service.accountsService.transfer(transfers.transfers[transfers.next++ & (OPERATIONS - 1)]);
+    }
+}
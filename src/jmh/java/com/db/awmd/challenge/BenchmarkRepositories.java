@@ -0,0 +1,58 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.repository.AccountsRepositoryOptimistic;
+import com.db.awmd.challenge.repository.AccountsRepositoryPrimitive;
+import com.db.awmd.challenge.repository.AccountsRepositorySharded;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+
+import java.math.BigDecimal;
+
+/**
+ * Repositories under benchmark, created with the defaults of application.yml
+ */
+public final class BenchmarkRepositories {
+
+    /**
+     * Large enough for random transfers of 1 never to run out of balance during a run
+     */
+    public static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000");
+
+    private BenchmarkRepositories() {
+    }
+
+    public static AccountsRepository create(String type) {
+        switch (type) {
+            case "in-memory":
+                return new AccountsRepositoryInMemory();
+            case "striped":
+                return new AccountsRepositoryStriped(1024);
+            case "primitive":
+                return new AccountsRepositoryPrimitive(2, 1024);
+            case "optimistic":
+                return new AccountsRepositoryOptimistic();
+            case "sharded":
+                return new AccountsRepositorySharded(0, 1024);
+            default:
+                throw new IllegalArgumentException("Unknown repository type " + type);
+        }
+    }
+
+    public static String accountId(int index) {
+        return "Id-" + index;
+    }
+
+    public static void populate(AccountsRepository repository, int population) {
+        for (int i = 0; i < population; i++) {
+            repository.createAccount(new Account(accountId(i), INITIAL_BALANCE));
+        }
+    }
+
+    public static void close(AccountsRepository repository) throws Exception {
+        if (repository instanceof AutoCloseable) {
+            ((AutoCloseable) repository).close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.db.awmd.challenge;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once per thread count, with the GC profiler so allocation per operation is reported
+ *
+ * Thread counts come from the jmh.threads system property (comma separated) and results are written as JSON to the
+ * jmh.results directory. Any other JMH command line option (benchmark regex, -p type=striped, -f, -wi...) is passed
+ * through.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        File results = new File(System.getProperty("jmh.results", "build/reports/jmh"));
+        results.mkdirs();
+
+        for (String threads : System.getProperty("jmh.threads", "1,4,16").split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(results, "threads-" + threads.trim() + ".json").getPath());
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.db.awmd.challenge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the aggregate transfer throughput of clusters of 1 to cluster.maxNodes nodes, each node in its own JVM
+ * on localhost
+ *
+ * For every cluster size the nodes are started with the classpath of this JVM, cluster.accounts accounts are created
+ * and cluster.clients client threads send transfers between random accounts to random nodes over HTTP keep-alive
+ * connections for cluster.seconds, after a warm up of the same length. Node logs are written to cluster.logs.
+ */
+public class ClusterBenchmark {
+
+    private static final String JSON = "application/json";
+
+    public static void main(String[] args) throws Exception {
+        int maxNodes = Integer.getInteger("cluster.maxNodes", 4);
+        int accounts = Integer.getInteger("cluster.accounts", 10_000);
+        int clients = Integer.getInteger("cluster.clients", 32);
+        int seconds = Integer.getInteger("cluster.seconds", 20);
+        File logs = new File(System.getProperty("cluster.logs", "build/reports/cluster"));
+        logs.mkdirs();
+
+        for (int size = 1; size <= maxNodes; size++) {
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                urls.add("http://localhost:" + freePort());
+            }
+            List<Process> nodes = new ArrayList<>();
+            try {
+                for (String url : urls) {
+                    nodes.add(startNode(url, urls, logs));
+                }
+                for (String url : urls) {
+                    awaitNode(url);
+                }
+                for (int i = 0; i < accounts; i++) {
+                    post(urls.get(i % size) + "/v1/accounts",
+                            "{\"accountId\":\"Id-" + i + "\",\"balance\":1000000}");
+                }
+                run(urls, accounts, clients, seconds);
+                double perSecond = run(urls, accounts, clients, seconds);
+                System.out.printf("%d node(s): %.0f transfers/s%n", size, perSecond);
+            } finally {
+                for (Process node : nodes) {
+                    node.destroy();
+                }
+                for (Process node : nodes) {
+                    node.waitFor(30, TimeUnit.SECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Transfers answered per second, whatever their status
+     */
+    private static double run(List<String> urls, int accounts, int clients, int seconds) throws Exception {
+        LongAdder transfers = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                futures.add(executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() - end < 0) {
+                        int source = random.nextInt(accounts);
+                        int destination = (source + 1 + random.nextInt(accounts - 1)) % accounts;
+                        post(urls.get(random.nextInt(urls.size())) + "/v1/accounts/transfer",
+                                "{\"sourceAccountId\":\"Id-" + source + "\",\"destinationAccountId\":\"Id-"
+                                        + destination + "\",\"amount\":1}");
+                        transfers.increment();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return transfers.sum() / (double) seconds;
+    }
+
+    private static Process startNode(String url, List<String> urls, File logs) throws IOException {
+        String port = url.substring(url.lastIndexOf(':') + 1);
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DevChallengeApplication.class.getName());
+        command.add("--server.port=" + port);
+        command.add("--accounts.cluster.enabled=true");
+        command.add("--accounts.cluster.nodes=" + String.join(",", urls));
+        command.add("--accounts.cluster.self=" + url);
+        command.add("--accounts.notifications.overflow=drop");
+        command.add("--logging.level.com.db.awmd=WARN");
+        File log = new File(logs, "node-" + port + ".log");
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(log))
+                .start();
+    }
+
+    private static void awaitNode(String url) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        while (System.nanoTime() - deadline < 0) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url + "/v1/metrics/transfers")
+                        .openConnection();
+                if (connection.getResponseCode() == 200) {
+                    drain(connection.getInputStream());
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("Node " + url + " did not start");
+    }
+
+    private static int post(String url, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", JSON);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            // Reading the whole response lets the connection go back to the keep-alive pool
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            return status;
+        } catch (IOException e) {
+            throw new IllegalStateException("Request to " + url + " failed", e);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        try (InputStream stream = in) {
+            while (stream.read(buffer) >= 0) {
+                // Discard
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.db.awmd.challenge;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the blocking and the asynchronous transfer endpoints of one node, started in its own JVM on localhost with
+ * the journal enabled so that every transfer waits for an fsync
+ *
+ * For every count of connections.counts, that many keep-alive connections each keep one transfer in flight for
+ * connections.seconds, all driven by one selector thread, and the transfers per second, their latency, and the
+ * threads and resident memory of the node are printed. The node runs with a heap of connections.heap, at most
+ * connections.threads Tomcat threads and an admission limit fixed at connections.limit transfers, the ones refused
+ * are counted as non-2xx. The threads and memory are read from /proc and only printed on Linux.
+ */
+public class ConnectionsBenchmark {
+
+    private static final String[] PATHS = {"/v1/accounts/transfer", "/v1/async/accounts/transfer"};
+
+    public static void main(String[] args) throws Exception {
+        int accounts = Integer.getInteger("connections.accounts", 10_000);
+        int seconds = Integer.getInteger("connections.seconds", 20);
+        int threads = Integer.getInteger("connections.threads", 200);
+        int limit = Integer.getInteger("connections.limit", 1000);
+        String heap = System.getProperty("connections.heap", "512m");
+        File logs = new File(System.getProperty("connections.logs", "build/reports/connections"));
+        logs.mkdirs();
+        List<Integer> counts = new ArrayList<>();
+        for (String count : System.getProperty("connections.counts", "1000,10000").split(",")) {
+            counts.add(Integer.parseInt(count.trim()));
+        }
+
+        int port = freePort();
+        Path journal = Files.createTempDirectory("connections-journal");
+        Process node = startNode(port, threads, limit, heap, journal, logs);
+        try {
+            awaitNode(port);
+            for (int i = 0; i < accounts; i++) {
+                post("http://localhost:" + port + "/v1/accounts",
+                        "{\"accountId\":\"Id-" + i + "\",\"balance\":1000000000}");
+            }
+            String pid = findPid(port);
+            for (int count : counts) {
+                for (String path : PATHS) {
+                    run(port, path, accounts, count, Math.min(seconds, 5), null);
+                    run(port, path, accounts, count, seconds, pid);
+                }
+            }
+        } finally {
+            node.destroy();
+            if (!node.waitFor(30, TimeUnit.SECONDS)) {
+                // A node out of memory may not get to shut down
+                node.destroyForcibly().waitFor();
+            }
+            try (Stream<Path> files = Files.walk(journal)) {
+                files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Keeps count connections busy on the path and prints the results when pid is set
+     */
+    private static void run(int port, String path, int accounts, int count, int seconds, String pid)
+            throws IOException {
+        Histogram latencies = new Histogram(TimeUnit.MINUTES.toNanos(1), 2);
+        long[] statuses = new long[6];
+        long reconnects = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        String[] threadsAndMemory = null;
+        try (Selector selector = Selector.open()) {
+            int opened = 0;
+            int connecting = 0;
+            Set<Client> clients = new HashSet<>(count * 2);
+            while (System.nanoTime() - end < 0) {
+                // Connections are opened a few hundred at a time, not to overflow the accept queue
+                while (opened < count && connecting < 256) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.connect(new InetSocketAddress("localhost", port));
+                    Client client = new Client(channel, path, accounts);
+                    clients.add(client);
+                    channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    opened++;
+                    connecting++;
+                }
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            client.channel.finishConnect();
+                            client.connected = true;
+                            connecting--;
+                            client.send(key);
+                        } else if (key.isWritable()) {
+                            client.send(key);
+                        } else if (key.isReadable()) {
+                            int status = client.receive();
+                            if (status < 0) {
+                                throw new IOException("Connection closed by the node");
+                            }
+                            if (status > 0) {
+                                statuses[status / 100]++;
+                                latencies.recordValue(Math.min(System.nanoTime() - client.sentAt,
+                                        latencies.getHighestTrackableValue()));
+                                client.send(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Tomcat closes keep-alive connections after 100 requests, a new one takes its place
+                        key.cancel();
+                        client.channel.close();
+                        clients.remove(client);
+                        opened--;
+                        if (!client.connected) {
+                            connecting--;
+                        }
+                        reconnects++;
+                    }
+                }
+                if (pid != null && threadsAndMemory == null && System.nanoTime() - start
+                        > TimeUnit.SECONDS.toNanos(seconds) / 2) {
+                    threadsAndMemory = readThreadsAndMemory(pid);
+                }
+            }
+            for (Client client : clients) {
+                client.channel.close();
+            }
+        }
+        if (pid != null) {
+            System.out.printf("%-28s %6d connections: %7.0f transfers/s, p50 %6.1f ms, p99 %7.1f ms, non-2xx %d,"
+                            + " reconnects %d, node threads %s, RSS %s%n", path, count, statuses[2] / (double) seconds,
+                    latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6,
+                    statuses[3] + statuses[4] + statuses[5], reconnects,
+                    threadsAndMemory == null ? "?" : threadsAndMemory[0],
+                    threadsAndMemory == null ? "?" : threadsAndMemory[1]);
+        }
+    }
+
+    /**
+     * Keep-alive HTTP/1.1 connection sending one transfer at a time
+     */
+    private static final class Client {
+
+        private final SocketChannel channel;
+
+        private final String path;
+
+        private final int accounts;
+
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+
+        private ByteBuffer out;
+
+        private long sentAt;
+
+        private boolean connected;
+
+        Client(SocketChannel channel, String path, int accounts) {
+            this.channel = channel;
+            this.path = path;
+            this.accounts = accounts;
+        }
+
+        void send(SelectionKey key) throws IOException {
+            if (out == null || !out.hasRemaining()) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int source = random.nextInt(accounts);
+                int destination = (source + 1 + random.nextInt(accounts - 1)) % accounts;
+                String body = "{\"sourceAccountId\":\"Id-" + source + "\",\"destinationAccountId\":\"Id-"
+                        + destination + "\",\"amount\":1}";
+                out = ByteBuffer.wrap(("POST " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Content-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+                        .getBytes(StandardCharsets.US_ASCII));
+                sentAt = System.nanoTime();
+            }
+            channel.write(out);
+            key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * @return Status of the response once it has been read whole, 0 until then, -1 if the node closed the
+         *         connection
+         */
+        int receive() throws IOException {
+            if (channel.read(in) < 0) {
+                return -1;
+            }
+            String received = new String(in.array(), 0, in.position(), StandardCharsets.US_ASCII);
+            int headersEnd = received.indexOf("\r\n\r\n");
+            if (headersEnd < 0) {
+                return 0;
+            }
+            int length = 0;
+            for (String header : received.substring(0, headersEnd).split("\r\n")) {
+                if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Integer.parseInt(header.substring(15).trim());
+                } else if (header.regionMatches(true, 0, "Transfer-Encoding:", 0, 18)) {
+                    throw new IOException("Chunked responses are not supported");
+                }
+            }
+            int size = headersEnd + 4 + length;
+            if (in.position() < size) {
+                return 0;
+            }
+            int status = Integer.parseInt(received.substring(9, 12));
+            in.flip();
+            in.position(size);
+            in.compact();
+            return status;
+        }
+    }
+
+    /**
+     * @return Threads and resident memory of the process listening on the port, from /proc
+     */
+    private static String[] readThreadsAndMemory(String pid) throws IOException {
+        if (pid == null) {
+            return null;
+        }
+        String threads = "?";
+        String rss = "?";
+        for (String line : Files.readAllLines(Paths.get("/proc", pid, "status"))) {
+            if (line.startsWith("Threads:")) {
+                threads = line.substring(8).trim();
+            } else if (line.startsWith("VmRSS:")) {
+                rss = line.substring(6).trim();
+            }
+        }
+        return new String[]{threads, rss};
+    }
+
+    /**
+     * Finds the node by its command line, Java 8 does not give the pid of a child process
+     */
+    private static String findPid(int port) throws IOException {
+        Path proc = Paths.get("/proc");
+        if (!Files.isDirectory(proc)) {
+            return null;
+        }
+        String argument = "--server.port=" + port;
+        try (Stream<Path> processes = Files.list(proc)) {
+            return processes
+                    .filter(process -> process.getFileName().toString().matches("\\d+"))
+                    .filter(process -> {
+                        try {
+                            return new String(Files.readAllBytes(process.resolve("cmdline")),
+                                    StandardCharsets.UTF_8).contains(argument);
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    })
+                    .map(process -> process.getFileName().toString())
+                    .findFirst()
+                    .orElse(null);
+        }
+    }
+
+    private static Process startNode(int port, int threads, int limit, String heap, Path journal,
+                                     File logs) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-Xmx" + heap);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DevChallengeApplication.class.getName());
+        command.add("--server.port=" + port);
+        command.add("--server.tomcat.max-threads=" + threads);
+        command.add("--accounts.journal.enabled=true");
+        command.add("--accounts.journal.directory=" + journal);
+        command.add("--accounts.admission.initial-limit=" + limit);
+        command.add("--accounts.admission.min-limit=" + limit);
+        command.add("--accounts.admission.max-limit=" + limit);
+        command.add("--accounts.notifications.overflow=drop");
+        command.add("--logging.level.com.db.awmd=WARN");
+        File log = new File(logs, "node-" + port + ".log");
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(log))
+                .start();
+    }
+
+    private static void awaitNode(int port) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        while (System.nanoTime() - deadline < 0) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+                        + "/v1/metrics/transfers").openConnection();
+                if (connection.getResponseCode() == 200) {
+                    drain(connection.getInputStream());
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("Node on port " + port + " did not start");
+    }
+
+    private static void post(String url, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        } catch (IOException e) {
+            throw new IllegalStateException("Request to " + url + " failed", e);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        try (InputStream stream = in) {
+            while (stream.read(buffer) >= 0) {
+                // Discarded
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.ingress.TransferFrames;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator comparing the transfers per second of the REST endpoint and of the binary ingress of one node
+ * started in its own JVM on localhost
+ *
+ * ingress.clients threads send transfers between random accounts over HTTP with keep-alive for ingress.seconds, then
+ * the same number of connections send them to the binary ingress, each writing ingress.window transfers at once and
+ * then reading their acks. Both runs follow a warm up run of the same length. Transfers answered with an error
+ * (not enough balance, refused by admission control) are counted apart. The node log is written to ingress.logs.
+ */
+public class IngressBenchmark {
+
+    private static final String JSON = "application/json";
+
+    public static void main(String[] args) throws Exception {
+        int accounts = Integer.getInteger("ingress.accounts", 10_000);
+        int clients = Integer.getInteger("ingress.clients", 16);
+        int window = Integer.getInteger("ingress.window", 256);
+        int seconds = Integer.getInteger("ingress.seconds", 20);
+        File logs = new File(System.getProperty("ingress.logs", "build/reports/ingress"));
+        logs.mkdirs();
+
+        int ingressPort = freePort();
+        String url = "http://localhost:" + freePort();
+        Process node = startNode(url, ingressPort, logs);
+        try {
+            awaitNode(url);
+            for (int i = 0; i < accounts; i++) {
+                post(url + "/v1/accounts", "{\"accountId\":\"Id-" + i + "\",\"balance\":1000000000}");
+            }
+            rest(url, accounts, clients, seconds);
+            long[] rest = rest(url, accounts, clients, seconds);
+            print("REST", rest, seconds);
+            binary(ingressPort, accounts, clients, window, seconds);
+            long[] binary = binary(ingressPort, accounts, clients, window, seconds);
+            print("binary", binary, seconds);
+            System.out.printf("binary/REST: %.1fx%n", binary[0] / (double) Math.max(1, rest[0]));
+        } finally {
+            node.destroy();
+            node.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void print(String path, long[] counts, int seconds) {
+        System.out.printf("%s: %.0f transfers/s, %.0f errors/s%n", path, counts[0] / (double) seconds,
+                counts[1] / (double) seconds);
+    }
+
+    /**
+     * @return Transfers applied and transfers answered with an error
+     */
+    private static long[] rest(String url, int accounts, int clients, int seconds) throws Exception {
+        LongAdder applied = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        run(clients, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() - end < 0) {
+                int source = random.nextInt(accounts);
+                int destination = (source + 1 + random.nextInt(accounts - 1)) % accounts;
+                int status = post(url + "/v1/accounts/transfer", "{\"sourceAccountId\":\"Id-" + source
+                        + "\",\"destinationAccountId\":\"Id-" + destination + "\",\"amount\":1}");
+                (status == 200 ? applied : errors).increment();
+            }
+            return null;
+        });
+        return new long[]{applied.sum(), errors.sum()};
+    }
+
+    /**
+     * @return Transfers applied and transfers answered with an error
+     */
+    private static long[] binary(int port, int accounts, int connections, int window, int seconds)
+            throws Exception {
+        LongAdder applied = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        run(connections, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            ByteBuffer frames = ByteBuffer.allocate(window * 64);
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                long correlationId = 0;
+                while (System.nanoTime() - end < 0) {
+                    frames.clear();
+                    for (int i = 0; i < window; i++) {
+                        int source = random.nextInt(accounts);
+                        int destination = (source + 1 + random.nextInt(accounts - 1)) % accounts;
+                        TransferFrames.putTransfer(frames, correlationId++, "Id-" + source, "Id-" + destination,
+                                BigDecimal.ONE);
+                    }
+                    out.write(frames.array(), 0, frames.position());
+                    for (int i = 0; i < window; i++) {
+                        in.readLong();
+                        (in.readByte() == TransferFrames.TRANSFERRED ? applied : errors).increment();
+                    }
+                }
+            }
+            return null;
+        });
+        return new long[]{applied.sum(), errors.sum()};
+    }
+
+    private static void run(int threads, Callable<Void> client) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(client));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Process startNode(String url, int ingressPort, File logs) throws IOException {
+        String port = url.substring(url.lastIndexOf(':') + 1);
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DevChallengeApplication.class.getName());
+        command.add("--server.port=" + port);
+        command.add("--accounts.ingress.enabled=true");
+        command.add("--accounts.ingress.port=" + ingressPort);
+        command.add("--accounts.notifications.overflow=drop");
+        command.add("--logging.level.com.db.awmd=WARN");
+        File log = new File(logs, "node-" + port + ".log");
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(log))
+                .start();
+    }
+
+    private static void awaitNode(String url) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        while (System.nanoTime() - deadline < 0) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url + "/v1/metrics/transfers")
+                        .openConnection();
+                if (connection.getResponseCode() == 200) {
+                    drain(connection.getInputStream());
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("Node " + url + " did not start");
+    }
+
+    private static int post(String url, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", JSON);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            // Reading the whole response lets the connection go back to the keep-alive pool
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            return status;
+        } catch (IOException e) {
+            throw new IllegalStateException("Request to " + url + " failed", e);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        try (InputStream stream = in) {
+            while (stream.read(buffer) >= 0) {
+                // Discarded
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
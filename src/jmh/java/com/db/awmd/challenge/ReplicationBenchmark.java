@@ -0,0 +1,236 @@
+package com.db.awmd.challenge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Demonstrates read scaling and failover of a primary with replication.followers followers, each node in its own JVM
+ * on localhost
+ *
+ * For every number of followers from 0 up, replication.writers client threads send transfers to the primary while
+ * replication.readers client threads read random accounts from the followers (from the primary when there are none)
+ * for replication.seconds, and the reads and transfers per second are printed with the lag of the followers. The
+ * primary is then killed, the first follower promoted, and the time until it accepts a transfer is printed. Node
+ * logs are written to replication.logs.
+ */
+public class ReplicationBenchmark {
+
+    private static final String JSON = "application/json";
+
+    public static void main(String[] args) throws Exception {
+        int maxFollowers = Integer.getInteger("replication.followers", 2);
+        int accounts = Integer.getInteger("replication.accounts", 10_000);
+        int writers = Integer.getInteger("replication.writers", 4);
+        int readers = Integer.getInteger("replication.readers", 32);
+        int seconds = Integer.getInteger("replication.seconds", 20);
+        File logs = new File(System.getProperty("replication.logs", "build/reports/replication"));
+        logs.mkdirs();
+
+        for (int followers = 0; followers <= maxFollowers; followers++) {
+            int replicationPort = freePort();
+            String primary = "http://localhost:" + freePort();
+            List<String> followerUrls = new ArrayList<>();
+            List<Process> nodes = new ArrayList<>();
+            try {
+                nodes.add(startNode(primary, "primary", replicationPort, logs));
+                awaitNode(primary);
+                for (int i = 0; i < accounts; i++) {
+                    post(primary + "/v1/accounts", "{\"accountId\":\"Id-" + i + "\",\"balance\":1000000}");
+                }
+                for (int i = 0; i < followers; i++) {
+                    String url = "http://localhost:" + freePort();
+                    nodes.add(startNode(url, "follower", replicationPort, logs));
+                    followerUrls.add(url);
+                }
+                for (String url : followerUrls) {
+                    awaitNode(url);
+                }
+                List<String> readUrls = followerUrls.isEmpty() ? Collections.singletonList(primary)
+                        : followerUrls;
+                run(primary, readUrls, accounts, writers, readers, seconds);
+                double[] perSecond = run(primary, readUrls, accounts, writers, readers, seconds);
+                System.out.printf("%d follower(s): %.0f reads/s, %.0f transfers/s%n", followers, perSecond[0],
+                        perSecond[1]);
+                for (String url : followerUrls) {
+                    System.out.printf("  %s: %s%n", url, get(url + "/v1/metrics/replication"));
+                }
+                if (followers > 0) {
+                    System.out.printf("  primary: %s%n", get(primary + "/v1/metrics/replication"));
+                    failover(nodes.get(0), followerUrls.get(0));
+                }
+            } finally {
+                for (Process node : nodes) {
+                    node.destroy();
+                }
+                for (Process node : nodes) {
+                    node.waitFor(30, TimeUnit.SECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Kills the primary, promotes the follower and waits until it accepts a transfer
+     */
+    private static void failover(Process primary, String follower) throws Exception {
+        long start = System.nanoTime();
+        primary.destroyForcibly().waitFor();
+        long killed = System.nanoTime();
+        post(follower + "/v1/replication/promote", "");
+        while (post(follower + "/v1/accounts/transfer",
+                "{\"sourceAccountId\":\"Id-0\",\"destinationAccountId\":\"Id-1\",\"amount\":1}") != 200) {
+            Thread.sleep(1);
+        }
+        long end = System.nanoTime();
+        System.out.printf("  failover: primary killed in %d ms, follower accepting transfers %d ms later%n",
+                TimeUnit.NANOSECONDS.toMillis(killed - start), TimeUnit.NANOSECONDS.toMillis(end - killed));
+    }
+
+    /**
+     * @return Reads and transfers answered per second, whatever their status
+     */
+    private static double[] run(String primary, List<String> readUrls, int accounts, int writers, int readers,
+                                int seconds) throws Exception {
+        LongAdder reads = new LongAdder();
+        LongAdder transfers = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < writers; c++) {
+                futures.add(executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() - end < 0) {
+                        int source = random.nextInt(accounts);
+                        int destination = (source + 1 + random.nextInt(accounts - 1)) % accounts;
+                        post(primary + "/v1/accounts/transfer", "{\"sourceAccountId\":\"Id-" + source
+                                + "\",\"destinationAccountId\":\"Id-" + destination + "\",\"amount\":1}");
+                        transfers.increment();
+                    }
+                    return null;
+                }));
+            }
+            for (int c = 0; c < readers; c++) {
+                futures.add(executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() - end < 0) {
+                        get(readUrls.get(random.nextInt(readUrls.size())) + "/v1/accounts/Id-"
+                                + random.nextInt(accounts));
+                        reads.increment();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return new double[]{reads.sum() / (double) seconds, transfers.sum() / (double) seconds};
+    }
+
+    private static Process startNode(String url, String role, int replicationPort, File logs) throws IOException {
+        String port = url.substring(url.lastIndexOf(':') + 1);
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DevChallengeApplication.class.getName());
+        command.add("--server.port=" + port);
+        command.add("--accounts.replication.enabled=true");
+        command.add("--accounts.replication.role=" + role);
+        command.add("--accounts.replication.primary=localhost:" + replicationPort);
+        // Followers listen on a free port once promoted
+        command.add("--accounts.replication.port=" + ("primary".equals(role) ? replicationPort : 0));
+        command.add("--accounts.notifications.overflow=drop");
+        command.add("--logging.level.com.db.awmd=WARN");
+        File log = new File(logs, role + "-" + port + ".log");
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(log))
+                .start();
+    }
+
+    private static void awaitNode(String url) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        while (System.nanoTime() - deadline < 0) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url + "/v1/metrics/transfers")
+                        .openConnection();
+                if (connection.getResponseCode() == 200) {
+                    drain(connection.getInputStream());
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("Node " + url + " did not start");
+    }
+
+    private static String get(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            int status = connection.getResponseCode();
+            return drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        } catch (IOException e) {
+            throw new IllegalStateException("Request to " + url + " failed", e);
+        }
+    }
+
+    private static int post(String url, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", JSON);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            // Reading the whole response lets the connection go back to the keep-alive pool
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            return status;
+        } catch (IOException e) {
+            throw new IllegalStateException("Request to " + url + " failed", e);
+        }
+    }
+
+    private static String drain(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try (InputStream stream = in) {
+            for (int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
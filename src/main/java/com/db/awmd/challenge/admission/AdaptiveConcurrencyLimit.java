@@ -0,0 +1,103 @@
+package com.db.awmd.challenge.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit on the requests running at once that adapts to their latency with additive increase, multiplicative decrease
+ *
+ * Every request that completes is a sample. A sample slower than the latency threshold means the requests already
+ * queue for something (CPU, locks, partition threads) and the limit is multiplied by the backoff ratio. A fast sample
+ * while at least half of the limit was in use means the limit may be what holds the throughput back, and the limit
+ * grows by one. The limit stays between minLimit and maxLimit.
+ *
+ * Requests beyond the limit are refused at once instead of waiting, so the ones admitted keep a latency close to
+ * the threshold however much load is offered.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long latencyThresholdNanos;
+
+    private final double backoffRatio;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Current limit, only written under this
+     */
+    private volatile double limit;
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     * @param latencyThresholdMicros Latency above which a sample decreases the limit
+     * @param backoffRatio Factor applied to the limit by a slow sample, between 0 and 1
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMicros,
+                                    double backoffRatio) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must be 0 < min <= initial <= max");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Concurrency limit backoff ratio must be between 0 and 1");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = TimeUnit.MICROSECONDS.toNanos(latencyThresholdMicros);
+        this.backoffRatio = backoffRatio;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Takes a slot if fewer requests than the limit are running
+     *
+     * @return true if the request may run, it must then call release once it completes
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int running = inFlight.get();
+            if (running >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(running, running + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives the slot back and adapts the limit to the latency of the request
+     *
+     * @param latencyNanos Time the request ran
+     */
+    public void release(long latencyNanos) {
+        int running = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (latencyNanos > latencyThresholdNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (running * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1);
+            }
+        }
+    }
+
+    /**
+     * Gives a slot back without a latency sample, for a request refused after it was admitted
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,109 @@
+package com.db.awmd.challenge.admission;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limit per key: each key may take ratePerSecond tokens a second on average and up to burst at once
+ *
+ * Buckets are created full on the first request of their key. A bucket that has refilled to burst is the same as a
+ * bucket that does not exist, so once there are more than maxBuckets of them the full ones are dropped without
+ * changing any limit. Only keys that took a token within burst / ratePerSecond seconds are kept. The sweep runs on
+ * the requests creating buckets, and not again until the number of buckets has doubled, so its cost is amortized.
+ */
+public class TokenBuckets {
+
+    private final double ratePerNano;
+
+    private final double burst;
+
+    private final int maxBuckets;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Number of buckets above which the next bucket created sweeps the full ones, guarded by this
+     */
+    private int sweepAbove;
+
+    /**
+     * @param ratePerSecond
+     * @param burst Tokens of a full bucket, at least 1
+     * @param maxBuckets
+     */
+    public TokenBuckets(double ratePerSecond, double burst, int maxBuckets) {
+        if (ratePerSecond <= 0 || burst < 1 || maxBuckets <= 0) {
+            throw new IllegalArgumentException("Token bucket rate must be greater than 0, burst at least 1 and max"
+                    + " buckets greater than 0");
+        }
+        this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.maxBuckets = maxBuckets;
+        this.sweepAbove = maxBuckets;
+    }
+
+    /**
+     * Takes a token from the bucket of the key
+     *
+     * @param key
+     * @return 0 if a token was taken, otherwise the nanoseconds until the bucket has one
+     */
+    public long tryTake(String key) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            this.sweep(now);
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+        }
+        synchronized (bucket) {
+            bucket.refill(now);
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - bucket.tokens) / ratePerNano));
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Drops the full buckets if there are too many, before a new one is added so that it is not dropped at once
+     */
+    private void sweep(long now) {
+        synchronized (this) {
+            if (buckets.size() < sweepAbove) {
+                return;
+            }
+            buckets.values().removeIf(bucket -> {
+                synchronized (bucket) {
+                    bucket.refill(now);
+                    return bucket.tokens >= burst;
+                }
+            });
+            sweepAbove = Math.max(maxBuckets, 2 * buckets.size());
+        }
+    }
+
+    private final class Bucket {
+
+        private double tokens;
+
+        private long refilledAt;
+
+        Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+
+        void refill(long now) {
+            if (now - refilledAt > 0) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+                refilledAt = now;
+            }
+        }
+    }
+}
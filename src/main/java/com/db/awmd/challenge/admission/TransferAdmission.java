@@ -0,0 +1,185 @@
+package com.db.awmd.challenge.admission;
+
+import com.db.awmd.challenge.exception.TooManyRequestsException;
+import com.db.awmd.challenge.metrics.AdmissionReport;
+import com.db.awmd.challenge.metrics.StageLatency;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of the transfer endpoint: a token bucket per source account and an adaptive limit on the
+ * transfers running at once
+ *
+ * Transfers are refused with TooManyRequestsException as soon as they arrive instead of waiting for a thread, a lock
+ * or a slot, so under overload the ones admitted keep their latency and the others get a fast answer telling them
+ * when to retry. The limit is taken by TransferAdmissionFilter before the body is parsed, most of the cost of a
+ * request, so refusing one is far cheaper than serving it. The bucket needs the source account and is checked by the
+ * controller, a transfer it refuses gives its slot back at once with closeRefused, which leaves the limit and the
+ * latencies alone: a refusal takes next to no time and would otherwise read as a fast transfer.
+ */
+@Component
+public class TransferAdmission {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * Null when admission control is disabled
+     */
+    private final AdaptiveConcurrencyLimit limit;
+
+    /**
+     * Null when the rate of source accounts is not limited
+     */
+    private final TokenBuckets buckets;
+
+    private final Recorder latencies = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+    /**
+     * Total since startup, guarded by this
+     */
+    private final Histogram totalLatencies = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+    /**
+     * Interval histogram handed back to the recorder, guarded by this
+     */
+    private Histogram intervalLatencies;
+
+    private final LongAdder admitted = new LongAdder();
+
+    private final LongAdder shedByLimit = new LongAdder();
+
+    private final LongAdder shedByRate = new LongAdder();
+
+    public TransferAdmission(@Value("${accounts.admission.enabled:true}") boolean enabled,
+                             @Value("${accounts.admission.initial-limit:64}") int initialLimit,
+                             @Value("${accounts.admission.min-limit:4}") int minLimit,
+                             @Value("${accounts.admission.max-limit:1000}") int maxLimit,
+                             @Value("${accounts.admission.latency-threshold-micros:10000}") long latencyThresholdMicros,
+                             @Value("${accounts.admission.backoff-ratio:0.9}") double backoffRatio,
+                             @Value("${accounts.admission.per-account-rate:0}") double perAccountRate,
+                             @Value("${accounts.admission.per-account-burst:10}") double perAccountBurst,
+                             @Value("${accounts.admission.max-buckets:100000}") int maxBuckets) {
+        this.limit = enabled
+                ? new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, latencyThresholdMicros, backoffRatio)
+                : null;
+        this.buckets = enabled && perAccountRate > 0
+                ? new TokenBuckets(perAccountRate, perAccountBurst, maxBuckets)
+                : null;
+    }
+
+    /**
+     * Admits a transfer in the limit or refuses it at once, before its body is read
+     *
+     * @return Permit to close once the transfer has completed
+     * @throws TooManyRequestsException if the limit is reached
+     */
+    public Permit acquire() {
+        if (limit == null) {
+            return new Permit(System.nanoTime(), false);
+        }
+        if (!limit.tryAcquire()) {
+            shedByLimit.increment();
+            throw new TooManyRequestsException("Too many transfers in progress", 1);
+        }
+        admitted.increment();
+        return new Permit(System.nanoTime(), true);
+    }
+
+    /**
+     * Takes a token from the bucket of the source account of an admitted transfer
+     *
+     * @param sourceAccountId
+     * @throws TooManyRequestsException if the source account has no token left
+     */
+    public void checkRate(String sourceAccountId) {
+        if (buckets == null || sourceAccountId == null) {
+            return;
+        }
+        long waitNanos = buckets.tryTake(sourceAccountId);
+        if (waitNanos > 0) {
+            shedByRate.increment();
+            throw new TooManyRequestsException("Too many transfers from account " + sourceAccountId,
+                    toRetryAfterSeconds(waitNanos));
+        }
+    }
+
+    /**
+     * @return Current limit and counters and latency since startup
+     */
+    public synchronized AdmissionReport report() {
+        intervalLatencies = latencies.getIntervalHistogram(intervalLatencies);
+        totalLatencies.add(intervalLatencies);
+        StageLatency latency = new StageLatency(
+                totalLatencies.getTotalCount(),
+                toMicros(totalLatencies.getValueAtPercentile(50)),
+                toMicros(totalLatencies.getValueAtPercentile(99)),
+                toMicros(totalLatencies.getValueAtPercentile(99.9)),
+                toMicros(totalLatencies.getMaxValue()));
+        return new AdmissionReport(
+                limit == null ? 0 : limit.getLimit(),
+                limit == null ? 0 : limit.getInFlight(),
+                admitted.sum(), shedByLimit.sum(), shedByRate.sum(),
+                buckets == null ? 0 : buckets.size(),
+                latency);
+    }
+
+    /**
+     * Retry-After is in whole seconds, rounded up so that the token is there when the client comes back
+     */
+    private static long toRetryAfterSeconds(long nanos) {
+        return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     * Slot of an admitted transfer, closing it gives the slot back with the latency of the transfer
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final long startNanos;
+
+        private final boolean limited;
+
+        /**
+         * Set by the first close, which may come from another thread than the one that acquired the permit
+         */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(long startNanos, boolean limited) {
+            this.startNanos = startNanos;
+            this.limited = limited;
+        }
+
+        /**
+         * Gives the slot back for a transfer refused by checkRate, without a latency sample
+         */
+        public void closeRefused() {
+            if (closed.compareAndSet(false, true) && limited) {
+                limit.cancel();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            long nanos = System.nanoTime() - startNanos;
+            if (limited) {
+                limit.release(nanos);
+            }
+            latencies.recordValue(Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_NANOS));
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.db.awmd.challenge.cluster;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NodeUnavailableException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Repository of one node of a cluster: it holds the accounts of its partition in the local repository and reaches
+ * the other partitions through their nodes
+ *
+ * Accounts are assigned to nodes by a ConsistentHashRing on their id. Operations on the accounts of this node run on
+ * the local repository and the others are forwarded to their owner, so every node can serve any request. A transfer
+ * between two accounts of the same node runs entirely on that node. A transfer between two nodes is an escrow: the
+ * amount is withdrawn from the source on its node, then deposited to the destination on its node, or deposited back
+ * to the source if the destination refuses it. While it is in escrow the amount is in neither account.
+ *
+ * Both steps carry an escrow id the nodes use as idempotency key, so a step is retried when its node does not answer
+ * without being applied twice. If a step still has no answer after the retries its outcome is unknown: the transfer
+ * fails with NodeUnavailableException and the escrow is left in doubt, in memory, for the resolver. Every resolve
+ * interval it sends the step again with the same escrow id, which applies it if it was not: a deposit goes on until
+ * the destination answers, and is refunded to the source if the destination refuses it, while a withdrawal is
+ * refunded once it is known, as its transfer already failed. Escrows in doubt when the node stops are only logged.
+ */
+@Slf4j
+public class ClusterAccountsRepository implements AccountsRepository, AutoCloseable {
+
+    private final AccountsRepository local;
+
+    private final ConsistentHashRing ring;
+
+    private final String self;
+
+    private final ClusterClient client;
+
+    private final int attempts;
+
+    private final LongAdder forwarded = new LongAdder();
+
+    private final LongAdder escrows = new LongAdder();
+
+    private final Queue<InDoubtEscrow> inDoubt = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService resolver;
+
+    /**
+     * @param local Repository of the accounts of this node, it must support withdraw and deposit
+     * @param ring
+     * @param self Name of this node in the ring
+     * @param client
+     * @param attempts Calls of every escrow step before giving up on a node that does not answer
+     * @param resolveIntervalMs Time between two attempts to resolve the escrows in doubt, 0 to only resolve them
+     *                          on resolveEscrows calls
+     */
+    public ClusterAccountsRepository(AccountsRepository local, ConsistentHashRing ring, String self,
+                                     ClusterClient client, int attempts, long resolveIntervalMs) {
+        if (!ring.getNodes().contains(self)) {
+            throw new IllegalArgumentException("Node " + self + " is not one of the cluster nodes " + ring.getNodes());
+        }
+        if (attempts <= 0) {
+            throw new IllegalArgumentException("Escrow step attempts must be greater than 0");
+        }
+        this.local = local;
+        this.ring = ring;
+        this.self = self;
+        this.client = client;
+        this.attempts = attempts;
+
+        if (resolveIntervalMs > 0) {
+            this.resolver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cluster-escrow-resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.resolver.scheduleWithFixedDelay(() -> {
+                try {
+                    this.resolveEscrows();
+                } catch (RuntimeException e) {
+                    log.error("Cannot resolve escrows in doubt", e);
+                }
+            }, resolveIntervalMs, resolveIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.resolver = null;
+        }
+    }
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        String owner = ring.ownerOf(account.getAccountId());
+        if (owner.equals(self)) {
+            local.createAccount(account);
+        } else {
+            forwarded.increment();
+            client.createAccount(owner, account);
+        }
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        String owner = ring.ownerOf(accountId);
+        if (owner.equals(self)) {
+            return local.getAccount(accountId);
+        }
+        forwarded.increment();
+        return client.getAccount(owner, accountId);
+    }
+
+    /**
+     * Removes the accounts of every node
+     */
+    @Override
+    public void clearAccounts() {
+        local.clearAccounts();
+        for (String node : ring.getNodes()) {
+            if (!node.equals(self)) {
+                client.clearAccounts(node);
+            }
+        }
+    }
+
+    /**
+     * Runs the transfer on the node owning both accounts, or as an escrow between the nodes owning each of them
+     *
+     * @param transfer
+     * @throws NotEnoughBalanceException
+     * @throws NodeUnavailableException if a node did not answer, see the class documentation
+     */
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        String sourceNode = ring.ownerOf(transfer.getSourceAccountId());
+        String destinationNode = ring.ownerOf(transfer.getDestinationAccountId());
+        if (sourceNode.equals(destinationNode)) {
+            if (sourceNode.equals(self)) {
+                local.transfer(transfer);
+            } else {
+                forwarded.increment();
+                client.transfer(sourceNode, transfer);
+            }
+            return;
+        }
+
+        escrows.increment();
+        InDoubtEscrow escrow = new InDoubtEscrow(UUID.randomUUID().toString(), transfer, sourceNode, destinationNode);
+        try {
+            this.withdraw(escrow);
+        } catch (NodeUnavailableException e) {
+            this.leaveInDoubt(escrow, Step.WITHDRAW);
+            throw e;
+        }
+        try {
+            this.deposit(escrow);
+        } catch (NodeUnavailableException e) {
+            this.leaveInDoubt(escrow, Step.DEPOSIT);
+            throw e;
+        } catch (RuntimeException e) {
+            // The destination refused the amount, give it back to the source
+            try {
+                this.refund(escrow);
+            } catch (NodeUnavailableException refundUnavailable) {
+                this.leaveInDoubt(escrow, Step.REFUND);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a batch of transfers between accounts of this node on the local repository
+     *
+     * Escrows cannot be undone whatever the balance of their destination, so an all-or-nothing batch is only
+     * supported when this node owns all its accounts; best effort batches run one transfer at a time.
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     * @throws UnsupportedOperationException if an all-or-nothing batch has accounts of other nodes
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        boolean allLocal = true;
+        for (Transfer transfer : transfers) {
+            allLocal &= ring.ownerOf(transfer.getSourceAccountId()).equals(self)
+                    && ring.ownerOf(transfer.getDestinationAccountId()).equals(self);
+        }
+        if (allLocal) {
+            return local.transferBatch(transfers, allOrNothing);
+        }
+        if (allOrNothing) {
+            throw new UnsupportedOperationException("All-or-nothing batches with accounts of other nodes are not"
+                    + " supported");
+        }
+        return AccountsRepository.super.transferBatch(transfers, false);
+    }
+
+    /**
+     * Handles of the accounts of this node, accounts of other nodes are UNRESOLVED and their existence is checked
+     * by their node when the transfer runs, saving a call per account
+     *
+     * @param accountId
+     * @return Handle of the local repository, NO_ACCOUNT or UNRESOLVED
+     */
+    @Override
+    public int resolve(String accountId) {
+        return ring.ownerOf(accountId).equals(self) ? local.resolve(accountId) : UNRESOLVED;
+    }
+
+    @Override
+    public CompletableFuture<Integer> resolveAsync(String accountId) {
+        return ring.ownerOf(accountId).equals(self)
+                ? local.resolveAsync(accountId)
+                : CompletableFuture.completedFuture(UNRESOLVED);
+    }
+
+    @Override
+    public void transfer(int source, int destination, Transfer transfer) throws NotEnoughBalanceException {
+        if (source >= 0 && destination >= 0) {
+            // Only accounts of this node have handles
+            local.transfer(source, destination, transfer);
+        } else {
+            this.transfer(transfer);
+        }
+    }
+
+    @Override
+    public long getVersionEpoch() {
+        return local.getVersionEpoch();
+    }
+
+    @Override
+    public long getContentionCount() {
+        return local.getContentionCount();
+    }
+
+    /**
+     * @return Repository of the accounts of this node
+     */
+    public AccountsRepository getLocal() {
+        return local;
+    }
+
+    /**
+     * @return Node owning an account
+     */
+    public String ownerOf(String accountId) {
+        return ring.ownerOf(accountId);
+    }
+
+    /**
+     * @return Operations forwarded to the node owning their accounts since startup
+     */
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    /**
+     * @return Transfers between two nodes since startup
+     */
+    public long getEscrowCount() {
+        return escrows.sum();
+    }
+
+    /**
+     * @return Escrows with a step of unknown outcome, waiting for the resolver
+     */
+    public long getUnresolvedEscrowCount() {
+        return inDoubt.size();
+    }
+
+    /**
+     * Sends the step in doubt of every escrow again, and the steps following it, leaving in doubt the escrows whose
+     * node still does not answer
+     */
+    public synchronized void resolveEscrows() {
+        for (int pending = inDoubt.size(); pending > 0; pending--) {
+            InDoubtEscrow escrow = inDoubt.poll();
+            if (escrow == null) {
+                return;
+            }
+            try {
+                this.resolve(escrow);
+                log.info("Escrow {} of {} is resolved", escrow.id, escrow.transfer);
+            } catch (NodeUnavailableException e) {
+                inDoubt.add(escrow);
+            } catch (RuntimeException e) {
+                log.error("Escrow {} of {} cannot be refunded, {} is lost", escrow.id, escrow.transfer,
+                        escrow.transfer.getAmount(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (resolver != null) {
+            resolver.shutdown();
+        }
+        if (!inDoubt.isEmpty()) {
+            log.error("Stopping with {} escrows in doubt: {}", inDoubt.size(), inDoubt);
+        }
+        if (local instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) local).close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot close " + local.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private void resolve(InDoubtEscrow escrow) {
+        if (escrow.step == Step.WITHDRAW) {
+            try {
+                this.withdraw(escrow);
+            } catch (NodeUnavailableException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                // Refused again, so it was never applied
+                return;
+            }
+            escrow.step = Step.REFUND;
+        } else if (escrow.step == Step.DEPOSIT) {
+            try {
+                this.deposit(escrow);
+                return;
+            } catch (NodeUnavailableException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                escrow.step = Step.REFUND;
+            }
+        }
+        this.refund(escrow);
+    }
+
+    private void withdraw(InDoubtEscrow escrow) {
+        String accountId = escrow.transfer.getSourceAccountId();
+        BigDecimal amount = escrow.transfer.getAmount();
+        this.step(escrow.sourceNode, node -> client.withdraw(node, accountId, amount, escrow.id),
+                () -> local.withdraw(accountId, amount));
+    }
+
+    private void deposit(InDoubtEscrow escrow) {
+        String accountId = escrow.transfer.getDestinationAccountId();
+        BigDecimal amount = escrow.transfer.getAmount();
+        this.step(escrow.destinationNode, node -> client.deposit(node, accountId, amount, escrow.id),
+                () -> local.deposit(accountId, amount));
+    }
+
+    private void refund(InDoubtEscrow escrow) {
+        String accountId = escrow.transfer.getSourceAccountId();
+        BigDecimal amount = escrow.transfer.getAmount();
+        String refundId = escrow.id + ":refund";
+        this.step(escrow.sourceNode, node -> client.deposit(node, accountId, amount, refundId),
+                () -> local.deposit(accountId, amount));
+    }
+
+    private void leaveInDoubt(InDoubtEscrow escrow, Step step) {
+        escrow.step = step;
+        inDoubt.add(escrow);
+        log.error("Escrow {} of {} is in doubt, the {} step had no answer after {} attempts", escrow.id,
+                escrow.transfer, step, attempts);
+    }
+
+    /**
+     * Runs an escrow step on this node, or calls the node owning its account until it answers
+     */
+    private void step(String node, Consumer<String> remote, Runnable onSelf) {
+        if (node.equals(self)) {
+            onSelf.run();
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                remote.accept(node);
+                return;
+            } catch (NodeUnavailableException e) {
+                if (attempt == attempts) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private enum Step {
+        WITHDRAW, DEPOSIT, REFUND
+    }
+
+    @ToString
+    private static final class InDoubtEscrow {
+
+        private final String id;
+
+        private final Transfer transfer;
+
+        private final String sourceNode;
+
+        private final String destinationNode;
+
+        /**
+         * Step of unknown outcome, only changed by the resolver once the escrow is in doubt
+         */
+        private volatile Step step;
+
+        InDoubtEscrow(String id, Transfer transfer, String sourceNode, String destinationNode) {
+            this.id = id;
+            this.transfer = transfer;
+            this.sourceNode = sourceNode;
+            this.destinationNode = destinationNode;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.db.awmd.challenge.cluster;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NodeUnavailableException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.math.BigDecimal;
+import java.util.function.Supplier;
+
+/**
+ * Calls the internal cluster endpoints of the other nodes
+ *
+ * Errors of the accounts come back as 400 responses whose Cluster-Error header names the exception, which is thrown
+ * again here with the same message, so callers handle the accounts of other nodes as they handle their own. Anything
+ * else, from refused connections to timeouts and unexpected statuses, is thrown as NodeUnavailableException.
+ */
+public class ClusterClient {
+
+    public static final String PATH = "/internal/v1/cluster";
+
+    /**
+     * Response header naming the exception thrown by the node
+     */
+    public static final String ERROR_HEADER = "Cluster-Error";
+
+    /**
+     * Request header identifying the escrow a withdrawal or deposit belongs to, used as its idempotency key
+     */
+    public static final String ESCROW_HEADER = "Escrow-Id";
+
+    private final RestTemplate restTemplate;
+
+    /**
+     * @param timeoutMs Connect and read timeout of every call
+     */
+    public ClusterClient(int timeoutMs) {
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setConnectTimeout(timeoutMs);
+        factory.setReadTimeout(timeoutMs);
+        this.restTemplate = new RestTemplate(factory);
+    }
+
+    /**
+     * @return Account or null if the node does not have it
+     */
+    public Account getAccount(String node, String accountId) {
+        return this.call(node, () -> {
+            try {
+                return restTemplate.getForObject(node + PATH + "/accounts/{accountId}", Account.class, accountId);
+            } catch (HttpStatusCodeException e) {
+                if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                    return null;
+                }
+                throw e;
+            }
+        });
+    }
+
+    public void createAccount(String node, Account account) {
+        this.call(node, () -> restTemplate.postForObject(node + PATH + "/accounts", account, Void.class));
+    }
+
+    /**
+     * Transfers between two accounts of the node
+     */
+    public void transfer(String node, Transfer transfer) {
+        this.call(node, () -> restTemplate.postForObject(node + PATH + "/transfers", transfer, Void.class));
+    }
+
+    public void withdraw(String node, String accountId, BigDecimal amount, String escrowId) {
+        this.call(node, () -> restTemplate.postForObject(node + PATH + "/accounts/{accountId}/withdraw",
+                this.escrowRequest(amount, escrowId), Void.class, accountId));
+    }
+
+    public void deposit(String node, String accountId, BigDecimal amount, String escrowId) {
+        this.call(node, () -> restTemplate.postForObject(node + PATH + "/accounts/{accountId}/deposit",
+                this.escrowRequest(amount, escrowId), Void.class, accountId));
+    }
+
+    /**
+     * Removes the accounts of the node
+     */
+    public void clearAccounts(String node) {
+        this.call(node, () -> restTemplate.exchange(node + PATH + "/accounts", HttpMethod.DELETE, null, Void.class));
+    }
+
+    private HttpEntity<BigDecimal> escrowRequest(BigDecimal amount, String escrowId) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(ESCROW_HEADER, escrowId);
+        return new HttpEntity<>(amount, headers);
+    }
+
+    private <T> T call(String node, Supplier<T> request) {
+        try {
+            return request.get();
+        } catch (HttpStatusCodeException e) {
+            String error = e.getResponseHeaders() == null ? null : e.getResponseHeaders().getFirst(ERROR_HEADER);
+            if (e.getStatusCode() != HttpStatus.BAD_REQUEST || error == null) {
+                throw new NodeUnavailableException("Node " + node + " answered " + e.getStatusCode());
+            }
+            throw rebuild(error, e.getResponseBodyAsString());
+        } catch (ResourceAccessException e) {
+            throw new NodeUnavailableException("Node " + node + " is not reachable: " + e.getMessage());
+        }
+    }
+
+    private static RuntimeException rebuild(String error, String message) {
+        switch (error) {
+            case "NotEnoughBalanceException":
+                return new NotEnoughBalanceException(message);
+            case "BalanceOverflowException":
+                return new BalanceOverflowException(message);
+            case "DuplicateAccountIdException":
+                return new DuplicateAccountIdException(message);
+            case "UnsupportedOperationException":
+                return new UnsupportedOperationException(message);
+            default:
+                return new IllegalArgumentException(message);
+        }
+    }
+}
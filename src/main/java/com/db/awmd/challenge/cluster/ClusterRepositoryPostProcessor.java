@@ -0,0 +1,61 @@
+package com.db.awmd.challenge.cluster;
+
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Makes the configured AccountsRepository the partition of this node when accounts.cluster.enabled is set
+ *
+ * Every node must be started with the same accounts.cluster.nodes, the base URLs of all the nodes, and its own URL
+ * in accounts.cluster.self.
+ */
+@Component
+@ConditionalOnProperty(prefix = "accounts.cluster", name = "enabled", havingValue = "true")
+@Slf4j
+public class ClusterRepositoryPostProcessor implements BeanPostProcessor, EnvironmentAware {
+
+    private Environment environment;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof AccountsRepository) || bean instanceof ClusterAccountsRepository) {
+            return bean;
+        }
+        if (environment.getProperty("accounts.journal.enabled", Boolean.class, false)) {
+            throw new IllegalStateException("The journal cannot be enabled on cluster nodes, escrow steps are not"
+                    + " journaled");
+        }
+        List<String> nodes = Arrays.stream(environment.getRequiredProperty("accounts.cluster.nodes").split(","))
+                .map(String::trim)
+                .filter(node -> !node.isEmpty())
+                .collect(Collectors.toList());
+        String self = environment.getRequiredProperty("accounts.cluster.self").trim();
+        int virtualNodes = environment.getProperty("accounts.cluster.virtual-nodes", Integer.class, 128);
+        int timeoutMs = environment.getProperty("accounts.cluster.timeout-ms", Integer.class, 2000);
+        int attempts = environment.getProperty("accounts.cluster.attempts", Integer.class, 3);
+        long resolveIntervalMs = environment.getProperty("accounts.cluster.resolve-interval-ms", Long.class, 1000L);
+
+        log.info("Node {} of cluster {}", self, nodes);
+        return new ClusterAccountsRepository((AccountsRepository) bean, new ConsistentHashRing(nodes, virtualNodes),
+                self, new ClusterClient(timeoutMs), attempts, resolveIntervalMs);
+    }
+}
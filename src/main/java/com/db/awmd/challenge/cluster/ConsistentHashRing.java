@@ -0,0 +1,83 @@
+package com.db.awmd.challenge.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps account ids to the node owning them with consistent hashing
+ *
+ * Every node is placed on a ring of 64 bit hashes at virtualNodes points, and an account is owned by the node of the
+ * first point at or after the hash of its id, wrapping around. Adding or removing a node only moves the accounts
+ * between its points and the previous ones, about 1/n of them, and the virtual nodes even out the share of every
+ * node. Points are kept sorted in a long array searched with a binary search, the ring never changes once built.
+ */
+public final class ConsistentHashRing {
+
+    private final List<String> nodes;
+
+    private final long[] points;
+
+    private final String[] owners;
+
+    /**
+     * @param nodes Node names, every node must see the same names to agree on the owners
+     * @param virtualNodes Points of every node on the ring
+     */
+    public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("A ring needs at least one node and one virtual node per node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        int size = nodes.size() * virtualNodes;
+        long[][] placed = new long[size][];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int point = 0; point < virtualNodes; point++) {
+                placed[node * virtualNodes + point] = new long[]{hash(nodes.get(node) + "#" + point), node};
+            }
+        }
+        // Ties, as unlikely as they are, are broken by node order so every node builds the same ring
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int i = 0; i < size; i++) {
+            this.points[i] = placed[i][0];
+            this.owners[i] = nodes.get((int) placed[i][1]);
+        }
+    }
+
+    /**
+     * @param accountId
+     * @return Node owning the account
+     */
+    public String ownerOf(String accountId) {
+        int index = Arrays.binarySearch(points, hash(accountId));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * 64 bit FNV-1a of the UTF-8 bytes with the MurmurHash3 finalizer, so that close ids spread over the ring
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,6 +1,7 @@
 package com.db.awmd.challenge.domain;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.math.BigDecimal;
@@ -8,9 +9,11 @@ import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import org.hibernate.validator.constraints.NotEmpty;
 
 @Data
+@EqualsAndHashCode(exclude = "version")
 public class Account {
 
     @NotNull
@@ -21,6 +24,13 @@ public class Account {
     @Min(value = 0, message = "Initial balance must be positive.")
     private BigDecimal balance;
 
+    /**
+     * Number that grows every time the balance changes, 0 if the repository does not track it. Not part of the
+     * JSON representation, it is sent as the ETag of the account
+     */
+    @JsonIgnore
+    private long version;
+
     public Account(String accountId) {
         this.accountId = accountId;
         this.balance = BigDecimal.ZERO;
@@ -32,4 +42,10 @@ public class Account {
         this.accountId = accountId;
         this.balance = balance;
     }
+
+    public Account(String accountId, BigDecimal balance, long version) {
+        this.accountId = accountId;
+        this.balance = balance;
+        this.version = version;
+    }
 }
@@ -0,0 +1,24 @@
+package com.db.awmd.challenge.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Value;
+
+/**
+ * Line of an account import that was rejected
+ */
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AccountImportResult {
+
+    /**
+     * Line number in the import, starting at 1
+     */
+    long line;
+
+    /**
+     * Null when the line could not be parsed
+     */
+    String accountId;
+
+    String error;
+}
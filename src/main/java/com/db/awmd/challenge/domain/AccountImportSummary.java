@@ -0,0 +1,14 @@
+package com.db.awmd.challenge.domain;
+
+import lombok.Value;
+
+/**
+ * Totals of an account import, sent after the rejected lines
+ */
+@Value
+public class AccountImportSummary {
+
+    long created;
+
+    long rejected;
+}
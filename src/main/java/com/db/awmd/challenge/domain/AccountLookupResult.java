@@ -0,0 +1,16 @@
+package com.db.awmd.challenge.domain;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Accounts read by a lookup, in request order, and the requested ids that do not exist
+ */
+@Value
+public class AccountLookupResult {
+
+    List<Account> accounts;
+
+    List<String> missing;
+}
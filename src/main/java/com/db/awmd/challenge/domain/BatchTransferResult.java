@@ -0,0 +1,28 @@
+package com.db.awmd.challenge.domain;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Outcome of a transfer batch, with one result per transfer in request order
+ */
+@Value
+public class BatchTransferResult {
+
+    int applied;
+
+    int rejected;
+
+    List<TransferResult> results;
+
+    public static BatchTransferResult of(List<TransferResult> results) {
+        int applied = 0;
+        for (TransferResult result : results) {
+            if (result.isApplied()) {
+                applied++;
+            }
+        }
+        return new BatchTransferResult(applied, results.size() - applied, results);
+    }
+}
@@ -0,0 +1,58 @@
+package com.db.awmd.challenge.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Value;
+
+/**
+ * Outcome of one transfer of a batch
+ */
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TransferResult {
+
+    public enum Status {
+        APPLIED,
+        /**
+         * Rejected by validation before reaching the accounts
+         */
+        INVALID,
+        NOT_ENOUGH_BALANCE,
+        /**
+         * Rejected by the repository: account not found, amount or balance it cannot store
+         */
+        REJECTED,
+        /**
+         * Valid on its own but not applied because another transfer of an all-or-nothing batch failed
+         */
+        ABORTED
+    }
+
+    private static final TransferResult APPLIED = new TransferResult(Status.APPLIED, null);
+
+    private static final TransferResult ABORTED = new TransferResult(Status.ABORTED, null);
+
+    Status status;
+
+    /**
+     * Reason of the failure, null when applied or aborted
+     */
+    String message;
+
+    public static TransferResult applied() {
+        return APPLIED;
+    }
+
+    public static TransferResult aborted() {
+        return ABORTED;
+    }
+
+    public static TransferResult failed(Status status, String message) {
+        return new TransferResult(status, message);
+    }
+
+    @JsonIgnore
+    public boolean isApplied() {
+        return status == Status.APPLIED;
+    }
+}
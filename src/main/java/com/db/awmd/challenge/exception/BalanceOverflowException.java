@@ -0,0 +1,10 @@
+package com.db.awmd.challenge.exception;
+
+public class BalanceOverflowException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BalanceOverflowException(String message) {
+        super(message);
+    }
+}
@@ -2,6 +2,8 @@ package com.db.awmd.challenge.exception;
 
 public class DuplicateAccountIdException extends RuntimeException {
 
+    private static final long serialVersionUID = 1L;
+
     public DuplicateAccountIdException(String message) {
         super(message);
     }
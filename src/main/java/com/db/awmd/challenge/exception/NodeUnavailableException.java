@@ -0,0 +1,10 @@
+package com.db.awmd.challenge.exception;
+
+public class NodeUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NodeUnavailableException(String message) {
+        super(message);
+    }
+}
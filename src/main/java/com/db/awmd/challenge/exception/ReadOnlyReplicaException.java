@@ -0,0 +1,17 @@
+package com.db.awmd.challenge.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Change sent to a follower, which only serves reads until it is promoted
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class ReadOnlyReplicaException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReadOnlyReplicaException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,482 @@
+package com.db.awmd.challenge.ingress;
+
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.NodeUnavailableException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.ReadOnlyReplicaException;
+import com.db.awmd.challenge.exception.TooManyRequestsException;
+import com.db.awmd.challenge.service.AccountsService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Binary TCP listener for transfers, for high volume callers the HTTP and JSON cost of the REST endpoint is too high
+ * for, enabled with accounts.ingress.enabled
+ *
+ * Connections are spread over accounts.ingress.threads event loops, each a thread with its own selector. A loop reads
+ * whatever its connections sent and starts every complete transfer frame with AccountsService.transferAsync, the
+ * transfers of a connection in the order they were sent, so a loop never waits for a journal sync or a partition
+ * thread. Each transfer first takes a token from the bucket of its source account like the REST endpoint, the
+ * concurrency limit of TransferAdmissionFilter is replaced by the bound on the transfers in flight per connection.
+ * Completed transfers wake their loop, which writes the acks of a connection in the order its transfers were sent,
+ * as many as are completed in one write. Clients can so pipeline many transfers on a connection and a busy connection
+ * costs a couple of system calls per buffer of transfers rather than per transfer. Transfers are not logged one by
+ * one, they are counted in the transfer metrics like the ones of the REST endpoint.
+ *
+ * A connection has at most one buffer of acks in flight: past that, and while its acks are not read by the client,
+ * it is not read, so a client sending faster than it is served is held back by TCP flow control instead of being
+ * queued here. A connection sending a malformed frame is not read any more and is closed once the transfers before
+ * it have been acknowledged.
+ */
+@Component
+@ConditionalOnProperty(prefix = "accounts.ingress", name = "enabled", havingValue = "true")
+@Slf4j
+public class BinaryTransferServer implements AutoCloseable {
+
+    private final AccountsService accountsService;
+
+    private final TransferAdmission transferAdmission;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final int bufferBytes;
+
+    /**
+     * Transfers a connection may have in flight, as many as there is room for their acks
+     */
+    private final int maxInFlight;
+
+    private final EventLoop[] loops;
+
+    private final Thread acceptor;
+
+    /**
+     * @param accountsService
+     * @param transferAdmission
+     * @param port TCP port, 0 picks a free one
+     * @param threads Event loops, 0 for one per available processor
+     * @param bufferBytes Size of the read and write buffers of every connection
+     */
+    public BinaryTransferServer(AccountsService accountsService,
+                                TransferAdmission transferAdmission,
+                                @Value("${accounts.ingress.port:18100}") int port,
+                                @Value("${accounts.ingress.threads:0}") int threads,
+                                @Value("${accounts.ingress.buffer-bytes:65536}") int bufferBytes) {
+        if (bufferBytes < TransferFrames.MAX_REQUEST_SIZE) {
+            throw new IllegalArgumentException("Ingress buffers must hold at least "
+                    + TransferFrames.MAX_REQUEST_SIZE + " bytes");
+        }
+        this.accountsService = accountsService;
+        this.transferAdmission = transferAdmission;
+        this.bufferBytes = bufferBytes;
+        this.maxInFlight = bufferBytes / TransferFrames.ACK_SIZE;
+        int loopCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        try {
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            this.serverChannel.bind(new InetSocketAddress(port));
+            this.loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                this.loops[i] = new EventLoop("ingress-loop-" + i);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for transfers on port " + port, e);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        this.acceptor = new Thread(this::accept, "ingress-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+        log.info("Accepting binary transfers on port {} with {} event loops", this.getPort(), loopCount);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.warn("Error closing ingress port {}", serverChannel.socket().getLocalPort(), e);
+        }
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+        try {
+            acceptor.join();
+            for (EventLoop loop : loops) {
+                loop.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    log.error("Cannot accept transfer connections on port {}", getPort(), e);
+                }
+                return;
+            }
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                log.warn("Cannot set up transfer connection {}", channel, e);
+                closeQuietly(channel);
+                continue;
+            }
+            loops[next].add(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Starts a transfer, refusing it at once if its source account is over its rate
+     *
+     * @return Future completed once the transfer has been applied, or exceptionally with the reason it was not
+     */
+    private CompletableFuture<Void> start(Transfer transfer) {
+        try {
+            transferAdmission.checkRate(transfer.getSourceAccountId());
+            return accountsService.transferAsync(transfer);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> refused = new CompletableFuture<>();
+            refused.completeExceptionally(e);
+            return refused;
+        }
+    }
+
+    /**
+     * @return Status of the ack of a completed transfer
+     */
+    private static byte statusOf(InFlight inFlight) {
+        try {
+            inFlight.done.join();
+            return TransferFrames.TRANSFERRED;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NotEnoughBalanceException) {
+                return TransferFrames.NOT_ENOUGH_BALANCE;
+            }
+            if (cause instanceof IllegalArgumentException || cause instanceof BalanceOverflowException) {
+                return TransferFrames.INVALID;
+            }
+            if (cause instanceof ReadOnlyReplicaException || cause instanceof NodeUnavailableException) {
+                return TransferFrames.UNAVAILABLE;
+            }
+            if (cause instanceof TooManyRequestsException) {
+                return TransferFrames.TOO_MANY_REQUESTS;
+            }
+            log.error("Binary transfer {} failed", inFlight.transfer, cause);
+            return TransferFrames.FAILED;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Selector thread serving the connections handed to it by the acceptor
+     */
+    private final class EventLoop {
+
+        private final Selector selector;
+
+        private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Connections with completed transfers to acknowledge
+         */
+        private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+
+        private final Thread thread;
+
+        private volatile boolean closed;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run, name);
+            this.thread.setDaemon(true);
+        }
+
+        void add(SocketChannel channel) {
+            added.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Schedules a connection to acknowledge its completed transfers, from the thread that completed one
+         */
+        void complete(Connection connection) {
+            completed.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        private void run() {
+            try {
+                while (!closed) {
+                    if (completed.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    for (SocketChannel channel = added.poll(); channel != null; channel = added.poll()) {
+                        Connection connection = new Connection(this, channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    for (Connection connection = completed.poll(); connection != null;
+                         connection = completed.poll()) {
+                        connection.scheduled.set(false);
+                        if (connection.key.isValid()) {
+                            connection.serve();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection) key.attachment()).ready(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                log.error("Ingress event loop {} stopped", thread.getName(), e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly((SocketChannel) key.channel());
+                }
+                for (SocketChannel channel = added.poll(); channel != null; channel = added.poll()) {
+                    closeQuietly(channel);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.warn("Error closing ingress selector", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transfer started for a connection and not acknowledged yet
+     */
+    private static final class InFlight {
+
+        private final long correlationId;
+
+        private final Transfer transfer;
+
+        private final CompletableFuture<Void> done;
+
+        InFlight(long correlationId, Transfer transfer, CompletableFuture<Void> done) {
+            this.correlationId = correlationId;
+            this.transfer = transfer;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Buffers and transfers in flight of one client connection, only used by its event loop
+     */
+    private final class Connection {
+
+        private final EventLoop loop;
+
+        private final SocketChannel channel;
+
+        /**
+         * Bytes received and not processed yet, in write mode
+         */
+        private final ByteBuffer in = ByteBuffer.allocate(bufferBytes);
+
+        /**
+         * Acks not written yet, in write mode
+         */
+        private final ByteBuffer out = ByteBuffer.allocate(bufferBytes);
+
+        /**
+         * Transfers started and not acknowledged, in the order they were sent
+         */
+        private final Queue<InFlight> inFlight = new ArrayDeque<>();
+
+        /**
+         * Whether the connection is already queued to its loop for completed transfers, set by any thread
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private SelectionKey key;
+
+        private boolean malformed;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (key.isReadable() && channel.read(in) < 0) {
+                    this.close(null);
+                    return;
+                }
+            } catch (IOException e) {
+                this.close(e);
+                return;
+            }
+            this.serve();
+        }
+
+        /**
+         * Starts the complete frames received and writes the acks of the completed transfers, until neither makes
+         * progress or the client stops reading
+         */
+        void serve() {
+            try {
+                boolean progress;
+                do {
+                    int started = this.process();
+                    int acknowledged = this.acknowledge();
+                    progress = started + acknowledged > 0;
+                } while (this.flush() && progress);
+                if (malformed && inFlight.isEmpty() && out.position() == 0) {
+                    this.close(null);
+                    return;
+                }
+                int interest = 0;
+                if (out.position() > 0) {
+                    interest = SelectionKey.OP_WRITE;
+                } else if (!malformed && inFlight.size() < maxInFlight) {
+                    interest = SelectionKey.OP_READ;
+                }
+                key.interestOps(interest);
+            } catch (IOException e) {
+                this.close(e);
+            }
+        }
+
+        /**
+         * Starts the complete frames received for as long as the connection has room for more transfers in flight
+         *
+         * @return Number of transfers started
+         */
+        private int process() {
+            int started = 0;
+            in.flip();
+            try {
+                while (!malformed && inFlight.size() < maxInFlight) {
+                    long correlationId;
+                    Transfer transfer;
+                    try {
+                        int size = TransferFrames.frameSize(in);
+                        if (size == 0 || in.remaining() < size) {
+                            break;
+                        }
+                        correlationId = TransferFrames.correlationId(in);
+                        transfer = TransferFrames.readTransfer(in);
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Closing transfer connection {}: {}", channel, e.getMessage());
+                        malformed = true;
+                        break;
+                    }
+                    InFlight transferInFlight = new InFlight(correlationId, transfer, start(transfer));
+                    inFlight.add(transferInFlight);
+                    if (!transferInFlight.done.isDone()) {
+                        transferInFlight.done.whenComplete((applied, error) -> {
+                            if (scheduled.compareAndSet(false, true)) {
+                                loop.complete(this);
+                            }
+                        });
+                    }
+                    started++;
+                }
+            } finally {
+                in.compact();
+            }
+            return started;
+        }
+
+        /**
+         * Puts the acks of the oldest transfers in flight as long as they are completed and there is room for them
+         *
+         * @return Number of acks put
+         */
+        private int acknowledge() {
+            int acknowledged = 0;
+            InFlight oldest;
+            while ((oldest = inFlight.peek()) != null && oldest.done.isDone()
+                    && out.remaining() >= TransferFrames.ACK_SIZE) {
+                inFlight.poll();
+                TransferFrames.putAck(out, oldest.correlationId, statusOf(oldest));
+                acknowledged++;
+            }
+            return acknowledged;
+        }
+
+        /**
+         * Writes the acks put so far
+         *
+         * @return true if all of them were written
+         */
+        private boolean flush() throws IOException {
+            out.flip();
+            if (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.compact();
+            return out.position() == 0;
+        }
+
+        private void close(IOException cause) {
+            if (cause != null) {
+                log.debug("Transfer connection {} failed", channel, cause);
+            }
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
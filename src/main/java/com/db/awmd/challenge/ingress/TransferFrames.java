@@ -0,0 +1,150 @@
+package com.db.awmd.challenge.ingress;
+
+import com.db.awmd.challenge.domain.Transfer;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing of transfers on the binary ingress
+ *
+ * A transfer request is [int length][long correlation id][short length][source account id][short length]
+ * [destination account id][long unscaled amount][byte scale], the account ids in UTF-8 and the amount being
+ * unscaled * 10^-scale. The first length counts everything after it. The server answers every request with an ack
+ * of [long correlation id][byte status], in the order the requests were sent, so clients may send many requests
+ * without waiting and match the acks by position or by correlation id.
+ */
+public final class TransferFrames {
+
+    public static final int ACK_SIZE = 9;
+
+    /**
+     * Largest request frame accepted, length prefix included
+     */
+    public static final int MAX_REQUEST_SIZE = 4 + 8 + 2 + 1024 + 2 + 1024 + 8 + 1;
+
+    public static final byte TRANSFERRED = 0;
+
+    /**
+     * The transfer is not valid: unknown account, same account on both sides or amount not greater than 0
+     */
+    public static final byte INVALID = 1;
+
+    public static final byte NOT_ENOUGH_BALANCE = 2;
+
+    /**
+     * The node cannot take transfers right now, e.g. a read-only follower or a cluster node that is down
+     */
+    public static final byte UNAVAILABLE = 3;
+
+    public static final byte FAILED = 4;
+
+    /**
+     * The source account is over its rate (accounts.admission.per-account-rate), the transfer can be sent again later
+     */
+    public static final byte TOO_MANY_REQUESTS = 5;
+
+    private TransferFrames() {
+    }
+
+    /**
+     * Writes a transfer request
+     *
+     * @param buffer Buffer with room for the frame
+     * @param correlationId
+     * @param sourceAccountId
+     * @param destinationAccountId
+     * @param amount Amount with at most 127 decimals whose unscaled value fits in a long
+     * @throws IllegalArgumentException if an account id is longer than 1024 bytes or the amount does not fit
+     */
+    public static void putTransfer(ByteBuffer buffer, long correlationId, String sourceAccountId,
+                                   String destinationAccountId, BigDecimal amount) {
+        if (amount.scale() < 0 || amount.scale() > Byte.MAX_VALUE || amount.unscaledValue().bitLength() > 63) {
+            throw new IllegalArgumentException("Amount " + amount.toPlainString() + " cannot be framed");
+        }
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putLong(correlationId);
+        putId(buffer, sourceAccountId);
+        putId(buffer, destinationAccountId);
+        buffer.putLong(amount.unscaledValue().longValue());
+        buffer.put((byte) amount.scale());
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    /**
+     * @param buffer Buffer positioned at the start of a frame
+     * @return Size of the whole frame, or 0 if the buffer does not hold its length yet
+     * @throws IllegalArgumentException if the length is not the one of a valid request
+     */
+    static int frameSize(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return 0;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 8 + 2 + 2 + 8 + 1 || length > MAX_REQUEST_SIZE - 4) {
+            throw new IllegalArgumentException("Invalid transfer frame length " + length);
+        }
+        return length + 4;
+    }
+
+    /**
+     * Reads the correlation id of a complete frame, leaving the buffer where it was
+     */
+    static long correlationId(ByteBuffer buffer) {
+        return buffer.getLong(buffer.position() + 4);
+    }
+
+    /**
+     * Reads a complete frame
+     *
+     * @param buffer Heap buffer positioned at the start of the frame, left after it
+     * @return Transfer of the frame
+     * @throws IllegalArgumentException if the frame is not valid
+     */
+    static Transfer readTransfer(ByteBuffer buffer) {
+        int end = buffer.position() + frameSize(buffer);
+        buffer.position(buffer.position() + 4 + 8);
+        String source = readId(buffer, end);
+        String destination = readId(buffer, end);
+        if (end - buffer.position() != 8 + 1) {
+            throw new IllegalArgumentException("Invalid transfer frame");
+        }
+        long unscaled = buffer.getLong();
+        int scale = buffer.get();
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(BigDecimal.valueOf(unscaled, scale))
+                .build();
+    }
+
+    static void putAck(ByteBuffer buffer, long correlationId, byte status) {
+        buffer.putLong(correlationId);
+        buffer.put(status);
+    }
+
+    private static void putId(ByteBuffer buffer, String accountId) {
+        byte[] bytes = accountId.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 1024) {
+            throw new IllegalArgumentException("Account id " + accountId + " is longer than 1024 bytes");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readId(ByteBuffer buffer, int end) {
+        if (buffer.position() + 2 > end) {
+            throw new IllegalArgumentException("Invalid transfer frame");
+        }
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > 1024 || buffer.position() + length > end) {
+            throw new IllegalArgumentException("Invalid account id length " + length);
+        }
+        String id = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return id;
+    }
+}
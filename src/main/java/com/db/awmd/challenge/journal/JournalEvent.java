@@ -0,0 +1,144 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Change applied to the accounts that is written to the journal
+ *
+ * Binary layout of the body: type byte followed by the fields of the type. Strings are written as a short length and
+ * UTF-8 bytes, amounts as an int scale, a byte length and the two's complement unscaled value.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class JournalEvent {
+
+    public enum Type {
+        CREATE_ACCOUNT, TRANSFER, CLEAR_ACCOUNTS
+    }
+
+    private static final JournalEvent CLEAR = new JournalEvent(Type.CLEAR_ACCOUNTS, null, null, null);
+
+    Type type;
+
+    /**
+     * Created account or source account of a transfer
+     */
+    String accountId;
+
+    String destinationAccountId;
+
+    /**
+     * Initial balance of a created account or amount of a transfer
+     */
+    BigDecimal amount;
+
+    public static JournalEvent createAccount(Account account) {
+        return new JournalEvent(Type.CREATE_ACCOUNT, account.getAccountId(), null, account.getBalance());
+    }
+
+    public static JournalEvent transfer(Transfer transfer) {
+        return new JournalEvent(Type.TRANSFER, transfer.getSourceAccountId(), transfer.getDestinationAccountId(),
+                transfer.getAmount());
+    }
+
+    public static JournalEvent clearAccounts() {
+        return CLEAR;
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.put((byte) type.ordinal());
+        switch (type) {
+            case CREATE_ACCOUNT:
+                putString(buffer, accountId);
+                putAmount(buffer, amount);
+                break;
+            case TRANSFER:
+                putString(buffer, accountId);
+                putString(buffer, destinationAccountId);
+                putAmount(buffer, amount);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Upper bound of the encoded size, used to make room in the write buffer
+     */
+    public int maxEncodedSize() {
+        int size = 1;
+        if (accountId != null) {
+            size += 2 + accountId.length() * 3;
+        }
+        if (destinationAccountId != null) {
+            size += 2 + destinationAccountId.length() * 3;
+        }
+        if (amount != null) {
+            size += 5 + amount.unscaledValue().bitLength() / 8 + 1;
+        }
+        return size;
+    }
+
+    /**
+     * @param buffer Buffer positioned at the start of an event body
+     * @return Decoded event
+     * @throws IllegalArgumentException if the body is not a valid event
+     */
+    public static JournalEvent decode(ByteBuffer buffer) {
+        try {
+            int ordinal = buffer.get();
+            if (ordinal < 0 || ordinal >= Type.values().length) {
+                throw new IllegalArgumentException("Unknown journal event type " + ordinal);
+            }
+            switch (Type.values()[ordinal]) {
+                case CREATE_ACCOUNT:
+                    return new JournalEvent(Type.CREATE_ACCOUNT, getString(buffer), null, getAmount(buffer));
+                case TRANSFER:
+                    return new JournalEvent(Type.TRANSFER, getString(buffer), getString(buffer), getAmount(buffer));
+                default:
+                    return CLEAR;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated journal event", e);
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putAmount(ByteBuffer buffer, BigDecimal value) {
+        byte[] unscaled = value.unscaledValue().toByteArray();
+        if (unscaled.length > 0xFF) {
+            throw new IllegalArgumentException("Amount " + value + " is too large for the journal");
+        }
+        buffer.putInt(value.scale());
+        buffer.put((byte) unscaled.length);
+        buffer.put(unscaled);
+    }
+
+    private static BigDecimal getAmount(ByteBuffer buffer) {
+        int scale = buffer.getInt();
+        byte[] unscaled = new byte[buffer.get() & 0xFF];
+        buffer.get(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+}
@@ -0,0 +1,99 @@
+package com.db.awmd.challenge.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Framing of journal events in files: [int body length][body][int CRC32 of the body]
+ *
+ * Used by the journal segments and by the snapshots, which are a compacted journal holding one account creation per
+ * account.
+ */
+public final class JournalRecords {
+
+    public static final int FRAME_OVERHEAD = 8;
+
+    private static final int MAX_BODY_LENGTH = 1 << 20;
+
+    private JournalRecords() {
+    }
+
+    /**
+     * Appends a framed event to the buffer, growing it when needed
+     *
+     * @param buffer
+     * @param event
+     * @param crc Checksum instance to reuse
+     * @return Buffer holding the record, a new one if it had to grow
+     */
+    public static ByteBuffer write(ByteBuffer buffer, JournalEvent event, CRC32 crc) {
+        int size = event.maxEncodedSize() + FRAME_OVERHEAD;
+        if (buffer.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + size));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        int start = buffer.position();
+        try {
+            buffer.position(start + 4);
+            event.encode(buffer);
+        } catch (RuntimeException e) {
+            buffer.position(start);
+            throw e;
+        }
+        int end = buffer.position();
+        buffer.putInt(start, end - start - 4);
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + 4).limit(end);
+        crc.reset();
+        crc.update(body);
+        buffer.putInt((int) crc.getValue());
+        return buffer;
+    }
+
+    /**
+     * Reads framed events from the beginning of a file until its end or the first invalid record
+     *
+     * @param channel
+     * @param consumer
+     * @return Position after the last valid record
+     */
+    public static long read(FileChannel channel, Consumer<JournalEvent> consumer) throws IOException {
+        channel.position(0);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        CRC32 checksum = new CRC32();
+        long position = 0;
+        while (true) {
+            JournalEvent event;
+            int length;
+            try {
+                length = input.readInt();
+                if (length <= 0 || length > MAX_BODY_LENGTH) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                input.readFully(body);
+                int expectedCrc = input.readInt();
+                checksum.reset();
+                checksum.update(body, 0, length);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    break;
+                }
+                event = JournalEvent.decode(ByteBuffer.wrap(body));
+            } catch (EOFException | IllegalArgumentException e) {
+                break;
+            }
+            consumer.accept(event);
+            position += length + FRAME_OVERHEAD;
+        }
+        return position;
+    }
+}
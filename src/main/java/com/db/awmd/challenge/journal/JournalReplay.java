@@ -0,0 +1,85 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Rebuilds account balances from journal events
+ *
+ * Events are folded into initial balances plus transfer deltas instead of being replayed one by one, the sum of the
+ * changes does not depend on the order of unrelated events. JournalingAccountsRepository journals the changes of
+ * every account in the order they were applied, so a transfer always comes after the creation of its accounts. A
+ * transfer of an account that was never created means the journal is not the one that was written, and is refused
+ * instead of leaving the amount on the other side only.
+ */
+@Slf4j
+public class JournalReplay implements Consumer<JournalEvent> {
+
+    private final Map<String, BigDecimal> initialBalances = new LinkedHashMap<>();
+
+    private final Map<String, BigDecimal> deltas = new HashMap<>();
+
+    @Override
+    public void accept(JournalEvent event) {
+        switch (event.getType()) {
+            case CREATE_ACCOUNT:
+                initialBalances.putIfAbsent(event.getAccountId(), event.getAmount());
+                break;
+            case TRANSFER:
+                deltas.merge(event.getAccountId(), event.getAmount().negate(), BigDecimal::add);
+                deltas.merge(event.getDestinationAccountId(), event.getAmount(), BigDecimal::add);
+                break;
+            case CLEAR_ACCOUNTS:
+                initialBalances.clear();
+                deltas.clear();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal event type " + event.getType());
+        }
+    }
+
+    public int size() {
+        return initialBalances.size();
+    }
+
+    /**
+     * Current balance of every account, in creation order
+     *
+     * @param consumer
+     */
+    public void forEachAccount(Consumer<Account> consumer) {
+        for (String accountId : deltas.keySet()) {
+            if (!initialBalances.containsKey(accountId)) {
+                throw new IllegalStateException("Journal has transfers of account " + accountId
+                        + " but not its creation");
+            }
+        }
+        initialBalances.forEach((accountId, balance) ->
+                consumer.accept(new Account(accountId, balance.add(deltas.getOrDefault(accountId, BigDecimal.ZERO)))));
+    }
+
+    /**
+     * Creates every recovered account in the repository
+     *
+     * Accounts already in the repository (e.g. persistent ones) are kept as they are.
+     *
+     * @param repository
+     */
+    public void applyTo(AccountsRepository repository) {
+        forEachAccount(account -> {
+            try {
+                repository.createAccount(account);
+            } catch (DuplicateAccountIdException e) {
+                log.warn("Account {} already exists, keeping its current balance", account.getAccountId());
+            }
+        });
+    }
+}
@@ -0,0 +1,337 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.repository.StripedLocks;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Repository decorator that writes every applied change to the journal and returns once it is synced
+ *
+ * Changes are applied to the delegate first and journaled only if they succeed, so the journal holds nothing but
+ * valid changes. A change that is applied but not yet synced when the process dies has not been acknowledged.
+ *
+ * Every change is applied and queued to the journal while holding the lock stripes of its accounts, so the changes of
+ * one account are journaled in the order they were applied. A transfer is therefore never synced before the creation
+ * of its accounts or before a transfer it depends on, and whatever prefix of the journal survives a crash replays
+ * without overdrafts. Only the wait for the sync happens outside of the locks, so changes are still committed in
+ * groups. Transfers are applied synchronously even when the delegate could apply them on its own threads, as their
+ * journal record has to be queued in the same step.
+ */
+@Slf4j
+public class JournalingAccountsRepository implements AccountsRepository, AutoCloseable {
+
+    private static final int DEFAULT_STRIPES = 1024;
+
+    @Getter
+    private final AccountsRepository delegate;
+
+    @Getter
+    private final TransferJournal journal;
+
+    private final StripedLocks locks;
+
+    public JournalingAccountsRepository(AccountsRepository delegate, TransferJournal journal) {
+        this(delegate, journal, DEFAULT_STRIPES);
+    }
+
+    public JournalingAccountsRepository(AccountsRepository delegate, TransferJournal journal, int stripes) {
+        this.delegate = delegate;
+        this.journal = journal;
+        this.locks = new StripedLocks(stripes);
+        journal.setSnapshotExport(this::exportForSnapshot);
+    }
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        int stripe = locks.stripeFor(account.getAccountId());
+        CompletableFuture<Void> synced;
+        locks.lock(stripe);
+        try {
+            delegate.createAccount(account);
+            synced = journal.append(JournalEvent.createAccount(account));
+        } finally {
+            locks.unlock(stripe);
+        }
+        join(synced);
+    }
+
+    /**
+     * Journals the accounts created and waits for all of them to be synced at once
+     *
+     * @param accounts
+     * @return Error of every account in the same order, null for the ones created
+     */
+    @Override
+    public List<String> createAccounts(List<Account> accounts) {
+        List<String> accountIds = new ArrayList<>(accounts.size());
+        for (Account account : accounts) {
+            accountIds.add(account.getAccountId());
+        }
+        int[] stripes = stripesOf(accountIds);
+        List<CompletableFuture<Void>> synced = new ArrayList<>(accounts.size());
+        List<String> errors;
+        locks.lockAll(stripes);
+        try {
+            errors = delegate.createAccounts(accounts);
+            for (int i = 0; i < accounts.size(); i++) {
+                if (errors.get(i) == null) {
+                    synced.add(journal.append(JournalEvent.createAccount(accounts.get(i))));
+                }
+            }
+        } finally {
+            locks.unlockAll(stripes);
+        }
+        join(CompletableFuture.allOf(synced.toArray(new CompletableFuture<?>[0])));
+        return errors;
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        return delegate.getAccount(accountId);
+    }
+
+    @Override
+    public CompletableFuture<Account> getAccountAsync(String accountId) {
+        return delegate.getAccountAsync(accountId);
+    }
+
+    @Override
+    public List<Account> getAccounts(List<String> accountIds) {
+        return delegate.getAccounts(accountIds);
+    }
+
+    @Override
+    public void clearAccounts() {
+        int[] stripes = this.allStripes();
+        CompletableFuture<Void> synced;
+        locks.lockAll(stripes);
+        try {
+            delegate.clearAccounts();
+            synced = journal.append(JournalEvent.clearAccounts());
+        } finally {
+            locks.unlockAll(stripes);
+        }
+        join(synced);
+    }
+
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        join(this.applyAndAppend(transfer, () -> delegate.transfer(transfer)));
+    }
+
+    @Override
+    public int resolve(String accountId) {
+        return delegate.resolve(accountId);
+    }
+
+    @Override
+    public CompletableFuture<Integer> resolveAsync(String accountId) {
+        return delegate.resolveAsync(accountId);
+    }
+
+    @Override
+    public void transfer(int source, int destination, Transfer transfer) throws NotEnoughBalanceException {
+        join(this.applyAndAppend(transfer, () -> delegate.transfer(source, destination, transfer)));
+    }
+
+    /**
+     * Applies the transfer on the calling thread and returns a future completed once it is synced
+     *
+     * @param transfer
+     * @return Future completed exceptionally with the exception of the delegate if the transfer was not applied
+     */
+    @Override
+    public CompletableFuture<Void> transferAsync(Transfer transfer) {
+        try {
+            return this.applyAndAppend(transfer, () -> delegate.transfer(transfer));
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Applies a transfer and queues its record while holding the stripes of both accounts
+     *
+     * @return Future completed once the record is synced
+     */
+    private CompletableFuture<Void> applyAndAppend(Transfer transfer, Runnable apply) {
+        int source = locks.stripeFor(transfer.getSourceAccountId());
+        int destination = locks.stripeFor(transfer.getDestinationAccountId());
+        locks.lockPair(source, destination);
+        try {
+            apply.run();
+            return journal.append(JournalEvent.transfer(transfer));
+        } finally {
+            locks.unlockPair(source, destination);
+        }
+    }
+
+    /**
+     * Journals the net amount moved between each pair of accounts by the applied transfers of the batch
+     *
+     * Replay only needs the balance deltas, so opposing transfers between the same accounts take one record.
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        List<String> accountIds = new ArrayList<>(transfers.size() * 2);
+        for (Transfer transfer : transfers) {
+            accountIds.add(transfer.getSourceAccountId());
+            accountIds.add(transfer.getDestinationAccountId());
+        }
+        int[] stripes = stripesOf(accountIds);
+        List<CompletableFuture<Void>> synced = new ArrayList<>();
+        List<TransferResult> results;
+        locks.lockAll(stripes);
+        try {
+            results = delegate.transferBatch(transfers, allOrNothing);
+            this.appendNetted(transfers, results, synced);
+        } finally {
+            locks.unlockAll(stripes);
+        }
+        join(CompletableFuture.allOf(synced.toArray(new CompletableFuture<?>[0])));
+        return results;
+    }
+
+    private void appendNetted(List<Transfer> transfers, List<TransferResult> results,
+                              List<CompletableFuture<Void>> synced) {
+        Map<Map.Entry<String, String>, BigDecimal> netted = new LinkedHashMap<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            if (results.get(i).isApplied()) {
+                Transfer transfer = transfers.get(i);
+                boolean ordered = transfer.getSourceAccountId().compareTo(transfer.getDestinationAccountId()) < 0;
+                Map.Entry<String, String> pair = ordered
+                        ? new AbstractMap.SimpleImmutableEntry<>(transfer.getSourceAccountId(),
+                        transfer.getDestinationAccountId())
+                        : new AbstractMap.SimpleImmutableEntry<>(transfer.getDestinationAccountId(),
+                        transfer.getSourceAccountId());
+                netted.merge(pair, ordered ? transfer.getAmount() : transfer.getAmount().negate(), BigDecimal::add);
+            }
+        }
+        netted.forEach((pair, amount) -> {
+            if (amount.signum() != 0) {
+                boolean forward = amount.signum() > 0;
+                synced.add(journal.append(JournalEvent.transfer(Transfer.builder()
+                        .sourceAccountId(forward ? pair.getKey() : pair.getValue())
+                        .destinationAccountId(forward ? pair.getValue() : pair.getKey())
+                        .amount(amount.abs())
+                        .build())));
+            }
+        });
+    }
+
+    /**
+     * @return Distinct stripes of the accounts in ascending order, as lockAll takes them
+     */
+    private int[] stripesOf(List<String> accountIds) {
+        int[] stripes = new int[accountIds.size()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = locks.stripeFor(accountIds.get(i));
+        }
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                stripes[distinct++] = stripes[i];
+            }
+        }
+        return Arrays.copyOf(stripes, distinct);
+    }
+
+    @Override
+    public long getVersionEpoch() {
+        return delegate.getVersionEpoch();
+    }
+
+    @Override
+    public long getContentionCount() {
+        return delegate.getContentionCount();
+    }
+
+    @Override
+    public void exportAccounts(AccountVisitor visitor) throws IOException {
+        delegate.exportAccounts(visitor);
+    }
+
+    @Override
+    public void exportAccounts(AccountVisitor visitor, Runnable started) throws IOException {
+        delegate.exportAccounts(visitor, started);
+    }
+
+    /**
+     * Exports the accounts of the delegate for a snapshot, rolling the journal at the point in time of the export
+     *
+     * Every stripe is held from before the export fixes its point in time until the roll is queued, so no change is
+     * between being applied and being queued meanwhile. The changes queued before the roll are then exactly the ones
+     * the export sees. Changes only wait for the export to start, not for the accounts to be written.
+     */
+    private void exportForSnapshot(Runnable roll, AccountVisitor visitor) throws IOException {
+        int[] stripes = this.allStripes();
+        boolean[] held = {true};
+        locks.lockAll(stripes);
+        try {
+            delegate.exportAccounts(visitor, () -> {
+                roll.run();
+                locks.unlockAll(stripes);
+                held[0] = false;
+            });
+        } finally {
+            if (held[0]) {
+                locks.unlockAll(stripes);
+            }
+        }
+    }
+
+    private int[] allStripes() {
+        int[] stripes = new int[locks.size()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = i;
+        }
+        return stripes;
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+        if (delegate instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) delegate).close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot close " + delegate.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private static void join(CompletableFuture<Void> synced) {
+        try {
+            synced.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Paths;
+
+/**
+ * Wraps the configured AccountsRepository with the journal when accounts.journal.enabled is set
+ *
+ * The repository is rebuilt from the journal before it is exposed to the rest of the application.
+ */
+@Component
+@ConditionalOnProperty(prefix = "accounts.journal", name = "enabled", havingValue = "true")
+@Slf4j
+public class JournalingRepositoryPostProcessor implements BeanPostProcessor, EnvironmentAware {
+
+    private Environment environment;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof AccountsRepository) || bean instanceof JournalingAccountsRepository) {
+            return bean;
+        }
+        String directory = environment.getProperty("accounts.journal.directory", "journal");
+        int maxBatchSize = environment.getProperty("accounts.journal.max-batch-size", Integer.class, 1024);
+        long maxWaitMicros = environment.getProperty("accounts.journal.max-wait-micros", Long.class, 200L);
+        long snapshotIntervalMs = environment.getProperty("accounts.journal.snapshot-interval-ms", Long.class, 0L);
+
+        long start = System.nanoTime();
+        JournalReplay replay = new JournalReplay();
+        TransferJournal journal = new TransferJournal(Paths.get(directory), maxBatchSize, maxWaitMicros,
+                snapshotIntervalMs, replay);
+        AccountsRepository repository = (AccountsRepository) bean;
+        replay.applyTo(repository);
+        log.info("Rebuilt {} accounts from journal {} in {} ms", replay.size(), directory,
+                (System.nanoTime() - start) / 1_000_000);
+
+        return new JournalingAccountsRepository(repository, journal);
+    }
+}
@@ -0,0 +1,540 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of account events with group commit and periodic snapshots
+ *
+ * The journal is a directory of numbered segment files framed by JournalRecords. Appends are queued and a single
+ * writer thread collects them into batches of up to maxBatchSize events, waiting at most maxWait for a batch to fill.
+ * A batch is written and synced with one fsync and only then are the futures of its events completed, so callers
+ * can acknowledge a change once it is durable without paying one fsync each.
+ *
+ * A snapshot is one account creation per account, consistent with the roll to a new segment it replaces the older
+ * files with. When a SnapshotExport is set it streams the accounts from the repository's consistent export, which
+ * rolls the journal at the point in time of its balances, so nothing but the file buffer is held in memory. Without
+ * one the previous snapshot and the sealed segments are compacted in memory, failing on transfers of accounts the
+ * journal never created. Either way transfers keep running while it is written. Startup loads the latest snapshot
+ * and only replays the segments written after it.
+ */
+@Slf4j
+public class TransferJournal implements AutoCloseable {
+
+    private static final Pattern SEGMENT = Pattern.compile("journal-(\\d+)\\.log");
+
+    private static final Pattern SNAPSHOT = Pattern.compile("snapshot-(\\d+)\\.snap");
+
+    private final Path directory;
+
+    private final int maxBatchSize;
+
+    private final long maxWaitNanos;
+
+    private final BlockingQueue<PendingEvent> pending = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    private final ScheduledExecutorService snapshotScheduler;
+
+    /**
+     * Segment being written and its sequence number, only used by the writer thread once started
+     */
+    private FileChannel segment;
+
+    private long segmentSequence;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Write buffer, only used by the writer thread
+     */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private volatile boolean running = true;
+
+    private volatile SnapshotExport snapshotExport;
+
+    private volatile IOException failure;
+
+    public TransferJournal(Path directory, int maxBatchSize, long maxWaitMicros, Consumer<JournalEvent> recovery) {
+        this(directory, maxBatchSize, maxWaitMicros, 0, recovery);
+    }
+
+    /**
+     * Opens (or creates) the journal and passes every event in it to recovery before accepting appends
+     *
+     * Recovery receives the accounts of the latest snapshot first and then the events of the segments written after
+     * it. A torn record at the end of the last segment, left by a crash in the middle of a write, is truncated.
+     *
+     * @param directory
+     * @param maxBatchSize Maximum number of events synced together
+     * @param maxWaitMicros Maximum time the writer waits for more events before syncing a batch
+     * @param snapshotIntervalMs Interval between snapshots, 0 disables them
+     * @param recovery Consumer of the events already in the journal
+     */
+    public TransferJournal(Path directory, int maxBatchSize, long maxWaitMicros, long snapshotIntervalMs,
+                           Consumer<JournalEvent> recovery) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Journal batch size must be greater than 0");
+        }
+        this.directory = directory;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        try {
+            Files.createDirectories(directory);
+            long next = this.recover(recovery);
+            this.openSegment(next);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open journal " + directory, e);
+        }
+        this.writer = new Thread(this::writeLoop, "transfer-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        if (snapshotIntervalMs > 0) {
+            this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "transfer-journal-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.snapshotScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    this.snapshot();
+                } catch (RuntimeException e) {
+                    log.error("Cannot take snapshot of journal {}", directory, e);
+                }
+            }, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.snapshotScheduler = null;
+        }
+    }
+
+    /**
+     * Queues an event to be written in the next batch
+     *
+     * @param event
+     * @return Future completed once the event is synced to disk
+     */
+    public CompletableFuture<Void> append(JournalEvent event) {
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        enqueue(new PendingEvent(event, synced));
+        return synced;
+    }
+
+    /**
+     * Seals the current segment once every event queued before has been written and starts a new one
+     *
+     * @return Future with the sequence number of the new segment
+     */
+    public CompletableFuture<Long> roll() {
+        CompletableFuture<Long> rolled = new CompletableFuture<>();
+        enqueue(new PendingEvent(null, rolled));
+        return rolled;
+    }
+
+    /**
+     * Takes the snapshots from the given export from now on
+     *
+     * @param snapshotExport
+     */
+    public void setSnapshotExport(SnapshotExport snapshotExport) {
+        this.snapshotExport = snapshotExport;
+    }
+
+    /**
+     * Writes a snapshot of every account as of now and removes the journal files it replaces
+     *
+     * @return Number of accounts in the snapshot
+     */
+    public synchronized int snapshot() {
+        SnapshotExport export = snapshotExport;
+        if (export != null) {
+            try {
+                return this.snapshotFromExport(export);
+            } catch (UnsupportedOperationException e) {
+                log.info("Snapshots of journal {} are compacted from the journal: {}", directory, e.getMessage());
+                snapshotExport = null;
+            }
+        }
+        return this.snapshotFromJournal();
+    }
+
+    private int snapshotFromExport(SnapshotExport export) {
+        long start = System.nanoTime();
+        Path temporary = directory.resolve("snapshot-export.tmp");
+        AtomicReference<CompletableFuture<Long>> rolled = new AtomicReference<>();
+        try {
+            int accounts;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                SnapshotWriter snapshotWriter = new SnapshotWriter(channel);
+                export.export(() -> rolled.set(this.roll()),
+                        (accountId, balance) -> snapshotWriter.accept(new Account(accountId, balance)));
+                if (rolled.get() == null) {
+                    throw new IllegalStateException("Export did not roll journal " + directory);
+                }
+                snapshotWriter.flush();
+                channel.force(true);
+                accounts = snapshotWriter.accounts;
+            }
+            long sequence = rolled.get().join();
+            Files.move(temporary, directory.resolve(snapshotName(sequence)), StandardCopyOption.ATOMIC_MOVE);
+
+            this.deleteBefore(sequence);
+            log.info("Snapshot of {} accounts up to segment {} exported in {} ms", accounts, sequence,
+                    (System.nanoTime() - start) / 1_000_000);
+            return accounts;
+        } catch (IOException | UncheckedIOException e) {
+            throw new IllegalStateException("Cannot write snapshot of journal " + directory, e);
+        } finally {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                log.warn("Cannot delete {}", temporary, e);
+            }
+        }
+    }
+
+    private int snapshotFromJournal() {
+        long start = System.nanoTime();
+        long sequence = roll().join();
+        JournalReplay replay = new JournalReplay();
+        try {
+            long previous = this.readFrom(replay, sequence);
+
+            Path temporary = directory.resolve(snapshotName(sequence) + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                SnapshotWriter snapshotWriter = new SnapshotWriter(channel);
+                replay.forEachAccount(snapshotWriter);
+                snapshotWriter.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve(snapshotName(sequence)), StandardCopyOption.ATOMIC_MOVE);
+
+            this.deleteBefore(sequence);
+            log.info("Snapshot of {} accounts up to segment {} written in {} ms (previous snapshot {})",
+                    replay.size(), sequence, (System.nanoTime() - start) / 1_000_000, previous);
+        } catch (IOException | UncheckedIOException e) {
+            throw new IllegalStateException("Cannot write snapshot of journal " + directory, e);
+        }
+        return replay.size();
+    }
+
+    @Override
+    public void close() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+        }
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingEvent event = pending.poll(); event != null; event = pending.poll()) {
+            event.done.completeExceptionally(new IllegalStateException("Journal " + directory + " is closed"));
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            log.warn("Error closing journal {}", directory, e);
+        }
+    }
+
+    private void enqueue(PendingEvent event) {
+        if (failure != null) {
+            event.done.completeExceptionally(new UncheckedIOException("Journal " + directory + " is not writable",
+                    failure));
+        } else if (!running) {
+            event.done.completeExceptionally(new IllegalStateException("Journal " + directory + " is closed"));
+        } else {
+            pending.add(event);
+        }
+    }
+
+    /**
+     * Reads the latest snapshot and the segments after it
+     *
+     * @return Sequence number for the next segment
+     */
+    private long recover(Consumer<JournalEvent> recovery) throws IOException {
+        long start = System.nanoTime();
+        long snapshot = this.readFrom(recovery, Long.MAX_VALUE);
+        List<Long> segments = sequences(SEGMENT);
+        long next = segments.isEmpty() ? snapshot : segments.get(segments.size() - 1) + 1;
+        log.info("Recovered journal {} from snapshot {} and {} segments in {} ms", directory, snapshot,
+                segments.size(), (System.nanoTime() - start) / 1_000_000);
+        return Math.max(next, snapshot);
+    }
+
+    /**
+     * Passes the latest snapshot and the segments after it, up to the given segment, to the consumer
+     *
+     * @return Sequence of the snapshot read, 0 if there is none
+     */
+    private long readFrom(Consumer<JournalEvent> consumer, long untilSegment) throws IOException {
+        List<Long> snapshots = sequences(SNAPSHOT);
+        long snapshot = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        if (snapshot > 0) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(snapshotName(snapshot)),
+                    StandardOpenOption.READ)) {
+                JournalRecords.read(channel, consumer);
+            }
+        }
+        List<Long> segments = sequences(SEGMENT);
+        for (int i = 0; i < segments.size(); i++) {
+            long sequence = segments.get(i);
+            if (sequence < snapshot || sequence >= untilSegment) {
+                continue;
+            }
+            boolean last = i == segments.size() - 1;
+            try (FileChannel channel = FileChannel.open(directory.resolve(segmentName(sequence)),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = JournalRecords.read(channel, consumer);
+                if (end < channel.size()) {
+                    if (!last || untilSegment != Long.MAX_VALUE) {
+                        throw new IOException("Journal segment " + segmentName(sequence) + " is corrupt at " + end);
+                    }
+                    log.warn("Truncating torn journal tail of {} at {} bytes", segmentName(sequence), end);
+                    channel.truncate(end);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void deleteBefore(long sequence) throws IOException {
+        for (long snapshot : sequences(SNAPSHOT)) {
+            if (snapshot < sequence) {
+                Files.deleteIfExists(directory.resolve(snapshotName(snapshot)));
+            }
+        }
+        for (long segment : sequences(SEGMENT)) {
+            if (segment < sequence) {
+                Files.deleteIfExists(directory.resolve(segmentName(segment)));
+            }
+        }
+    }
+
+    private List<Long> sequences(Pattern pattern) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = pattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    sequences.add(Long.parseLong(matcher.group(1)));
+                }
+            });
+        }
+        sequences.sort(Long::compare);
+        return sequences;
+    }
+
+    private void openSegment(long sequence) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(segmentName(sequence)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        segment = channel;
+        segmentSequence = sequence;
+    }
+
+    private static String segmentName(long sequence) {
+        return String.format("journal-%020d.log", sequence);
+    }
+
+    private static String snapshotName(long sequence) {
+        return String.format("snapshot-%020d.snap", sequence);
+    }
+
+    private void writeLoop() {
+        List<PendingEvent> batch = new ArrayList<>(maxBatchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingEvent first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, maxBatchSize - 1);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingEvent next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    pending.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the events of a batch in order, rolling the segment where a roll request was queued
+     */
+    @SuppressWarnings("unchecked")
+    private void writeBatch(List<PendingEvent> batch) {
+        List<PendingEvent> written = new ArrayList<>(batch.size());
+        buffer.clear();
+        for (PendingEvent event : batch) {
+            if (failure != null) {
+                event.done.completeExceptionally(new UncheckedIOException("Journal " + directory
+                        + " is not writable", failure));
+            } else if (event.event == null) {
+                sync(written);
+                written.clear();
+                try {
+                    openSegment(segmentSequence + 1);
+                    ((CompletableFuture<Long>) event.done).complete(segmentSequence);
+                } catch (IOException e) {
+                    fail(e, written);
+                    event.done.completeExceptionally(new UncheckedIOException("Cannot roll journal", e));
+                }
+            } else {
+                try {
+                    buffer = JournalRecords.write(buffer, event.event, crc);
+                    written.add(event);
+                } catch (RuntimeException e) {
+                    event.done.completeExceptionally(e);
+                }
+            }
+        }
+        sync(written);
+    }
+
+    private void sync(List<PendingEvent> written) {
+        if (failure != null || (written.isEmpty() && buffer.position() == 0)) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                segment.write(buffer);
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            fail(e, written);
+            return;
+        } finally {
+            buffer.clear();
+        }
+        written.forEach(event -> event.done.complete(null));
+    }
+
+    private void fail(IOException e, List<PendingEvent> written) {
+        log.error("Cannot write journal {}, failing all further changes", directory, e);
+        failure = e;
+        written.forEach(event -> event.done.completeExceptionally(
+                new UncheckedIOException("Journal " + directory + " is not writable", e)));
+    }
+
+    /**
+     * Writes accounts as framed account creations through a buffer
+     */
+    private static final class SnapshotWriter implements Consumer<Account> {
+
+        private final FileChannel channel;
+
+        private final CRC32 checksum = new CRC32();
+
+        private ByteBuffer output = ByteBuffer.allocateDirect(1 << 20);
+
+        private int accounts;
+
+        SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void accept(Account account) {
+            accounts++;
+            output = JournalRecords.write(output, JournalEvent.createAccount(account), checksum);
+            if (output.position() > output.capacity() / 2) {
+                flush();
+            }
+        }
+
+        void flush() {
+            output.flip();
+            try {
+                while (output.hasRemaining()) {
+                    channel.write(output);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            output.clear();
+        }
+    }
+
+    /**
+     * Consistent export of the accounts of the journaled repository
+     */
+    public interface SnapshotExport {
+
+        /**
+         * Visits every account as of one point in time, calling roll at that point
+         *
+         * Every change queued to the journal before roll is called must be in the balances visited and none queued
+         * after it, so the snapshot replaces exactly the segments sealed by the roll.
+         *
+         * @param roll Queues the roll of the journal, to be called once before the first account is visited
+         * @param visitor
+         * @throws UnsupportedOperationException if the repository has no consistent export, before calling roll
+         * @throws IOException thrown by the visitor
+         */
+        void export(Runnable roll, AccountsRepository.AccountVisitor visitor) throws IOException;
+    }
+
+    /**
+     * Event waiting to be written, or a segment roll request when event is null
+     */
+    private static final class PendingEvent {
+
+        private final JournalEvent event;
+
+        private final CompletableFuture<?> done;
+
+        PendingEvent(JournalEvent event, CompletableFuture<?> done) {
+            this.event = event;
+            this.done = done;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.db.awmd.challenge.ledger;
+
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.repository.AccountIdDictionary;
+import com.db.awmd.challenge.repository.StripedLocks;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only in-memory history of the transfers applied, queried per account from the newest entry backwards
+ *
+ * Entries are stored by column in fixed size chunks of primitive arrays: timestamp, amount as an unscaled long and
+ * its scale, and both accounts as dense ints from an AccountIdDictionary. Every entry also keeps, for each of its
+ * two accounts, the sequence of the previous entry of that account, so the history of an account is a chain walked
+ * from its newest entry and a page costs the same whatever the number of entries of the account or of the ledger.
+ *
+ * Appends do not share a lock: each one reserves its sequence with a CAS on the size and writes its columns, then
+ * links itself at the head of both accounts while holding their lock stripes. Readers take the stripe of an account
+ * to find its newest entry and walk the chain without locking, as every entry reached from a head was written and
+ * linked under that stripe before. Chains follow the order entries were linked in, which for two transfers of one
+ * account recorded at the same time may not be the order of their sequences. The only monitor is taken to install a
+ * new chunk, once every CHUNK_SIZE entries. Once the ledger holds more than maxEntries the oldest chunk is released
+ * and chains end there.
+ */
+@Component
+public class TransferLedger {
+
+    /**
+     * Receives the entries of a query, newest first
+     */
+    public interface EntryVisitor {
+
+        void visit(long sequence, long timestamp, String sourceAccountId, String destinationAccountId,
+                   BigDecimal amount) throws IOException;
+    }
+
+    private static final int CHUNK_SHIFT = 16;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Scale marking amounts whose unscaled value does not fit in a long, kept in largeAmounts instead
+     */
+    private static final byte LARGE_AMOUNT = Byte.MIN_VALUE;
+
+    private static final long NONE = -1;
+
+    private final int maxChunks;
+
+    private final AccountIdDictionary accountIndexes = new AccountIdDictionary();
+
+    private final Map<Long, BigDecimal> largeAmounts = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the heads of the accounts by index
+     */
+    private final StripedLocks locks = new StripedLocks(1024);
+
+    /**
+     * Newest entry of every account by index, in pages of CHUNK_SIZE allocated before the index is added
+     */
+    private volatile long[][] headPages = new long[0][];
+
+    /**
+     * Chunks by sequence >>> CHUNK_SHIFT, replaced when it grows. Released chunks are null
+     */
+    private volatile Chunk[] chunks = new Chunk[16];
+
+    /**
+     * Number of sequences reserved, the entries below it may still be being written
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    private volatile long firstRetained;
+
+    /**
+     * Only the node serving a request sees its transfer, so the history of an account would be spread over every node
+     * that served one of its transfers. Cluster nodes therefore keep no ledger
+     */
+    private final boolean enabled;
+
+    public TransferLedger(long maxEntries) {
+        this(maxEntries, false);
+    }
+
+    /**
+     * @param maxEntries
+     * @param clusterNode Whether the accounts are partitioned over a cluster, which disables the ledger
+     */
+    @Autowired
+    public TransferLedger(@Value("${accounts.ledger.max-entries:10000000}") long maxEntries,
+                          @Value("${accounts.cluster.enabled:false}") boolean clusterNode) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The ledger max entries must be greater than 0");
+        }
+        // Keep at least maxEntries, rounded up to whole chunks, plus the chunk being filled
+        this.maxChunks = (int) ((maxEntries + CHUNK_MASK) >>> CHUNK_SHIFT) + 1;
+        this.enabled = !clusterNode;
+    }
+
+    /**
+     * Appends an applied transfer to the history of both of its accounts, nothing on cluster nodes
+     *
+     * @param transfer
+     */
+    public void record(Transfer transfer) {
+        if (!enabled) {
+            return;
+        }
+        long sequence = size.getAndIncrement();
+        Chunk chunk = this.chunkForAppend(sequence);
+        if (chunk == null) {
+            // Released while the other appends filled the chunks after it
+            return;
+        }
+        int index = (int) (sequence & CHUNK_MASK);
+        int source = this.indexOf(transfer.getSourceAccountId());
+        int destination = this.indexOf(transfer.getDestinationAccountId());
+
+        chunk.timestamps[index] = System.currentTimeMillis();
+        BigDecimal amount = transfer.getAmount();
+        if (amount.unscaledValue().bitLength() < Long.SIZE && amount.scale() > LARGE_AMOUNT
+                && amount.scale() <= Byte.MAX_VALUE) {
+            chunk.amounts[index] = amount.unscaledValue().longValue();
+            chunk.scales[index] = (byte) amount.scale();
+        } else {
+            largeAmounts.put(sequence, amount);
+            chunk.scales[index] = LARGE_AMOUNT;
+        }
+        chunk.sources[index] = source;
+        chunk.destinations[index] = destination;
+
+        long[][] heads = headPages;
+        int sourceStripe = locks.stripeForSlot(source);
+        int destinationStripe = locks.stripeForSlot(destination);
+        locks.lockPair(sourceStripe, destinationStripe);
+        try {
+            chunk.previousOfSource[index] = heads[source >>> CHUNK_SHIFT][source & CHUNK_MASK];
+            chunk.previousOfDestination[index] = heads[destination >>> CHUNK_SHIFT][destination & CHUNK_MASK];
+            heads[source >>> CHUNK_SHIFT][source & CHUNK_MASK] = sequence;
+            heads[destination >>> CHUNK_SHIFT][destination & CHUNK_MASK] = sequence;
+        } finally {
+            locks.unlockPair(sourceStripe, destinationStripe);
+        }
+    }
+
+    /**
+     * Visits the entries of an account from the newest one, or from a cursor returned by a previous call
+     *
+     * @param accountId
+     * @param cursor Sequence of the first entry to visit, or -1 to start from the newest one
+     * @param limit Maximum number of entries to visit
+     * @param visitor
+     * @return Cursor of the next page, or -1 if there are no more entries
+     * @throws IllegalArgumentException if the cursor is not an entry of the account
+     * @throws UnsupportedOperationException on cluster nodes
+     * @throws IOException thrown by the visitor
+     */
+    public long visit(String accountId, long cursor, int limit, EntryVisitor visitor) throws IOException {
+        this.checkEnabled();
+        int account = accountIndexes.find(accountId);
+        if (cursor == NONE && account == AccountIdDictionary.NONE) {
+            return NONE;
+        }
+        this.checkCursor(accountId, cursor);
+        // Taking the stripe also makes every entry linked to the account so far visible to the walk
+        long sequence;
+        int stripe = locks.stripeForSlot(account);
+        locks.lock(stripe);
+        try {
+            sequence = cursor == NONE ? headPages[account >>> CHUNK_SHIFT][account & CHUNK_MASK] : cursor;
+        } finally {
+            locks.unlock(stripe);
+        }
+
+        for (int visited = 0; visited < limit; visited++) {
+            Chunk chunk = sequence == NONE ? null : this.chunkOf(sequence);
+            if (chunk == null) {
+                return NONE;
+            }
+            int index = (int) (sequence & CHUNK_MASK);
+            byte scale = chunk.scales[index];
+            BigDecimal amount = scale == LARGE_AMOUNT ? largeAmounts.get(sequence)
+                    : BigDecimal.valueOf(chunk.amounts[index], scale);
+            visitor.visit(sequence, chunk.timestamps[index], accountIndexes.idOf(chunk.sources[index]),
+                    accountIndexes.idOf(chunk.destinations[index]), amount);
+            sequence = chunk.sources[index] == account ? chunk.previousOfSource[index]
+                    : chunk.previousOfDestination[index];
+        }
+        return sequence == NONE || this.chunkOf(sequence) == null ? NONE : sequence;
+    }
+
+    /**
+     * @param accountId
+     * @param cursor
+     * @throws IllegalArgumentException if the cursor is not -1 nor an entry of the account
+     * @throws UnsupportedOperationException on cluster nodes
+     */
+    public void checkCursor(String accountId, long cursor) {
+        this.checkEnabled();
+        if (cursor == NONE) {
+            return;
+        }
+        int account = accountIndexes.find(accountId);
+        long reserved = size.get();
+        Chunk chunk = cursor < 0 || cursor >= reserved ? null : this.chunkOf(cursor);
+        // Cursors into released chunks are accepted, their page is empty
+        if (account == AccountIdDictionary.NONE || cursor < 0 || cursor >= reserved
+                || chunk != null && !this.involves(chunk, (int) (cursor & CHUNK_MASK), account)) {
+            throw new IllegalArgumentException("Cursor " + cursor + " is not a transfer of account " + accountId);
+        }
+    }
+
+    /**
+     * @return Number of entries recorded, including the released ones
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * @return Number of entries that can still be queried
+     */
+    public long retained() {
+        return size.get() - firstRetained;
+    }
+
+    /**
+     * Removes every entry, must not run while transfers are being recorded
+     */
+    public synchronized void clear() {
+        synchronized (accountIndexes) {
+            accountIndexes.clear();
+            headPages = new long[0][];
+        }
+        largeAmounts.clear();
+        chunks = new Chunk[16];
+        firstRetained = 0;
+        size.set(0);
+    }
+
+    private void checkEnabled() {
+        if (!enabled) {
+            throw new UnsupportedOperationException("The transfer history is not kept on cluster nodes");
+        }
+    }
+
+    private boolean involves(Chunk chunk, int index, int account) {
+        return chunk.sources[index] == account || chunk.destinations[index] == account;
+    }
+
+    /**
+     * @return Chunk holding a published sequence or null if it has been released
+     */
+    private Chunk chunkOf(long sequence) {
+        if (sequence < firstRetained) {
+            return null;
+        }
+        Chunk[] directory = chunks;
+        int chunk = (int) (sequence >>> CHUNK_SHIFT);
+        return chunk < directory.length ? directory[chunk] : null;
+    }
+
+    /**
+     * @return Chunk of a reserved sequence, installing it if it is the first one, or null if it has been released
+     */
+    private Chunk chunkForAppend(long sequence) {
+        int index = (int) (sequence >>> CHUNK_SHIFT);
+        Chunk[] directory = chunks;
+        if (index < directory.length && directory[index] != null) {
+            return directory[index];
+        }
+        return this.installChunk(index);
+    }
+
+    private synchronized Chunk installChunk(int index) {
+        Chunk[] directory = chunks;
+        if (index < directory.length && directory[index] != null) {
+            return directory[index];
+        }
+        if ((long) index << CHUNK_SHIFT < firstRetained) {
+            return null;
+        }
+        if (index >= directory.length) {
+            directory = Arrays.copyOf(directory, Math.max(directory.length * 2, index + 1));
+        }
+        Chunk chunk = new Chunk();
+        directory[index] = chunk;
+        int oldest = index - maxChunks + 1;
+        if (oldest > 0 && directory[oldest - 1] != null) {
+            // Chains into the released chunk end as soon as firstRetained is visible
+            firstRetained = (long) oldest << CHUNK_SHIFT;
+            for (int i = oldest - 1; i >= 0 && directory[i] != null; i--) {
+                directory[i] = null;
+            }
+            if (!largeAmounts.isEmpty()) {
+                long retained = firstRetained;
+                largeAmounts.keySet().removeIf(released -> released < retained);
+            }
+        }
+        chunks = directory;
+        return chunk;
+    }
+
+    private int indexOf(String accountId) {
+        int index = accountIndexes.find(accountId);
+        if (index != AccountIdDictionary.NONE) {
+            return index;
+        }
+        synchronized (accountIndexes) {
+            index = accountIndexes.find(accountId);
+            if (index != AccountIdDictionary.NONE) {
+                return index;
+            }
+            // Indexes are only added here, holding the dictionary monitor, so the next one is the size of the
+            // dictionary. Its head page is published before the index, so whoever finds the index finds the page
+            int account = accountIndexes.size();
+            if (account >>> CHUNK_SHIFT == headPages.length) {
+                long[][] pages = Arrays.copyOf(headPages, headPages.length + 1);
+                pages[pages.length - 1] = new long[CHUNK_SIZE];
+                Arrays.fill(pages[pages.length - 1], NONE);
+                headPages = pages;
+            }
+            return accountIndexes.add(accountId);
+        }
+    }
+
+    /**
+     * Columns of CHUNK_SIZE entries
+     */
+    private static final class Chunk {
+
+        private final long[] timestamps = new long[CHUNK_SIZE];
+
+        private final long[] amounts = new long[CHUNK_SIZE];
+
+        private final byte[] scales = new byte[CHUNK_SIZE];
+
+        private final int[] sources = new int[CHUNK_SIZE];
+
+        private final int[] destinations = new int[CHUNK_SIZE];
+
+        private final long[] previousOfSource = new long[CHUNK_SIZE];
+
+        private final long[] previousOfDestination = new long[CHUNK_SIZE];
+    }
+}
@@ -0,0 +1,96 @@
+package com.db.awmd.challenge.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the accounts kept in memory by the tiered repository and latency of the ones it loads from disk
+ *
+ * Only the tiered repository records into it, with the other repositories every counter stays at 0. Loads are
+ * recorded into an HdrHistogram Recorder, the same way as the transfer stages.
+ */
+@Component
+public class AccountCacheMetrics {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final Recorder loads = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+    /**
+     * Total since startup, guarded by this
+     */
+    private final Histogram totalLoads = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+    /**
+     * Interval histogram handed back to the recorder, guarded by this
+     */
+    private Histogram intervalLoads;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder writeBacks = new LongAdder();
+
+    /**
+     * An account was found in memory
+     */
+    public void hit() {
+        hits.increment();
+    }
+
+    /**
+     * An account was not in memory and was looked up on disk, whether it was found or not
+     *
+     * @param loadNanos Time taken by the lookup
+     */
+    public void miss(long loadNanos) {
+        misses.increment();
+        loads.recordValue(Math.min(Math.max(loadNanos, 0), HIGHEST_TRACKABLE_NANOS));
+    }
+
+    /**
+     * An account was removed from memory to make room for another one
+     */
+    public void eviction() {
+        evictions.increment();
+    }
+
+    /**
+     * The balance of an evicted account was written to disk
+     */
+    public void writeBack() {
+        writeBacks.increment();
+    }
+
+    /**
+     * @return Counters and load latency since startup
+     */
+    public synchronized AccountCacheReport report() {
+        intervalLoads = loads.getIntervalHistogram(intervalLoads);
+        totalLoads.add(intervalLoads);
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        StageLatency load = new StageLatency(
+                totalLoads.getTotalCount(),
+                toMicros(totalLoads.getValueAtPercentile(50)),
+                toMicros(totalLoads.getValueAtPercentile(99)),
+                toMicros(totalLoads.getValueAtPercentile(99.9)),
+                toMicros(totalLoads.getMaxValue()));
+        return new AccountCacheReport(hitCount, missCount,
+                hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount),
+                evictions.sum(), writeBacks.sum(), load);
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,40 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Value;
+
+/**
+ * Account cache metrics since startup as exposed by the metrics endpoint
+ */
+@Value
+public class AccountCacheReport {
+
+    /**
+     * Accounts found in memory
+     */
+    long hits;
+
+    /**
+     * Accounts looked up on disk
+     */
+    long misses;
+
+    /**
+     * Hits over hits and misses, 0 before the first lookup
+     */
+    double hitRate;
+
+    /**
+     * Accounts removed from memory to make room for others
+     */
+    long evictions;
+
+    /**
+     * Balances of changed accounts written to disk after their eviction
+     */
+    long writeBacks;
+
+    /**
+     * Latency of the lookups on disk
+     */
+    StageLatency load;
+}
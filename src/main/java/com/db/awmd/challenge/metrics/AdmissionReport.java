@@ -0,0 +1,39 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Value;
+
+/**
+ * State of the admission control of the transfer endpoint as exposed by the metrics endpoint
+ */
+@Value
+public class AdmissionReport {
+
+    /**
+     * Transfers allowed to run at once now, adapted to their latency
+     */
+    int limit;
+
+    int inFlight;
+
+    long admitted;
+
+    /**
+     * Transfers refused because the limit was reached
+     */
+    long shedByLimit;
+
+    /**
+     * Transfers refused because their source account had no token left
+     */
+    long shedByRate;
+
+    /**
+     * Source accounts with a token bucket in memory
+     */
+    int buckets;
+
+    /**
+     * Latency of the transfers admitted, from admission to completion
+     */
+    StageLatency latency;
+}
@@ -0,0 +1,48 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Value;
+
+/**
+ * State of the notification dispatcher queue as exposed by the metrics endpoint
+ */
+@Value
+public class NotificationQueueReport {
+
+    int capacity;
+
+    /**
+     * Transfers waiting to be notified now
+     */
+    int depth;
+
+    /**
+     * Highest depth seen by the workers since startup
+     */
+    int maxDepth;
+
+    /**
+     * Transfers dispatched asynchronously and waiting for room in the queue (block policy)
+     */
+    int waiting;
+
+    /**
+     * Notifications sent, a digest counts as one
+     */
+    long sent;
+
+    /**
+     * Notifications that threw an exception in the notification service
+     */
+    long failed;
+
+    /**
+     * Transfers not notified because the queue was full (drop policy), too many were waiting for room or they could
+     * not be spilled
+     */
+    long dropped;
+
+    /**
+     * Transfers written to the spill file because the queue was full (spill policy)
+     */
+    long spilled;
+}
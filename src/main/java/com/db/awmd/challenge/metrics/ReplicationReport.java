@@ -0,0 +1,68 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Replication state of a node as exposed by the metrics endpoint
+ */
+@Value
+public class ReplicationReport {
+
+    /**
+     * primary or follower
+     */
+    String role;
+
+    /**
+     * Last change streamed by a primary or applied by a follower
+     */
+    long sequence;
+
+    /**
+     * Followers streamed by a primary, empty on followers
+     */
+    List<FollowerLag> followers;
+
+    /**
+     * Address of the primary a follower streams from, null on primaries
+     */
+    String primary;
+
+    /**
+     * Whether a follower is connected to its primary
+     */
+    boolean connected;
+
+    /**
+     * Milliseconds between the primary applying the last change a follower applied and the follower applying it
+     */
+    long lagMillis;
+
+    /**
+     * Stream reconnections of a follower since startup, each one resends every account
+     */
+    long resyncs;
+
+    /**
+     * Lag of one follower as acknowledged to its primary
+     */
+    @Value
+    public static class FollowerLag {
+
+        String address;
+
+        /**
+         * Last change applied by the follower
+         */
+        long sequence;
+
+        /**
+         * Bytes of the stream sent or queued for the follower and not applied yet
+         */
+        long lagBytes;
+
+        long lagMillis;
+    }
+}
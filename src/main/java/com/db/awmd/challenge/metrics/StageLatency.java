@@ -0,0 +1,20 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Value;
+
+/**
+ * Latency percentiles of one transfer stage or of the account cache loads, in microseconds
+ */
+@Value
+public class StageLatency {
+
+    long count;
+
+    double p50;
+
+    double p99;
+
+    double p999;
+
+    double max;
+}
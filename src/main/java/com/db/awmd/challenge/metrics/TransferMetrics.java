@@ -0,0 +1,128 @@
+package com.db.awmd.challenge.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms of the stages of a transfer and counters of rejected transfers
+ *
+ * Stages are recorded into HdrHistogram Recorders: recording is wait-free and does not allocate, so it stays enabled
+ * in production. Reading swaps the recorder's interval histogram and adds it to the totals since startup, without
+ * blocking the threads recording.
+ */
+@Component
+public class TransferMetrics {
+
+    public enum Stage {
+        /**
+         * Reading and deserializing the request body
+         */
+        PARSE,
+        /**
+         * Business validation in the service
+         */
+        VALIDATE,
+        /**
+         * Transfer in the repository, including waiting for locks or partition threads
+         */
+        REPOSITORY,
+        /**
+         * Notification of both account holders
+         */
+        NOTIFY
+    }
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * 1% precision is enough for percentiles and keeps the histograms small
+     */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final Recorder[] recorders = new Recorder[Stage.values().length];
+
+    /**
+     * Totals since startup, guarded by this
+     */
+    private final Histogram[] totals = new Histogram[Stage.values().length];
+
+    /**
+     * Interval histograms handed back to the recorder they came from, guarded by this
+     */
+    private final Histogram[] intervals = new Histogram[Stage.values().length];
+
+    private final LongAdder notEnoughBalance = new LongAdder();
+
+    private final LongAdder validationFailures = new LongAdder();
+
+    public TransferMetrics() {
+        for (Stage stage : Stage.values()) {
+            recorders[stage.ordinal()] = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+            totals[stage.ordinal()] = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+        }
+    }
+
+    /**
+     * Records the time elapsed since the start of a stage
+     *
+     * @param stage
+     * @param startNanos System.nanoTime() when the stage started
+     * @return System.nanoTime() now, to be used as start of the next stage
+     */
+    public long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        recordNanos(stage, now - startNanos);
+        return now;
+    }
+
+    /**
+     * Records the duration of a stage measured by the caller
+     *
+     * @param stage
+     * @param nanos
+     */
+    public void recordNanos(Stage stage, long nanos) {
+        recorders[stage.ordinal()].recordValue(Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_NANOS));
+    }
+
+    public void notEnoughBalance() {
+        notEnoughBalance.increment();
+    }
+
+    public void validationFailure() {
+        validationFailures.increment();
+    }
+
+    /**
+     * Percentiles of every stage and counters since startup
+     *
+     * @param contention Contention count reported by the repository
+     * @return
+     */
+    public synchronized TransferMetricsReport report(long contention) {
+        Map<Stage, StageLatency> stages = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            Histogram total = totals[stage.ordinal()];
+            Histogram interval = recorders[stage.ordinal()].getIntervalHistogram(intervals[stage.ordinal()]);
+            intervals[stage.ordinal()] = interval;
+            total.add(interval);
+            stages.put(stage, new StageLatency(
+                    total.getTotalCount(),
+                    toMicros(total.getValueAtPercentile(50)),
+                    toMicros(total.getValueAtPercentile(99)),
+                    toMicros(total.getValueAtPercentile(99.9)),
+                    toMicros(total.getMaxValue())));
+        }
+        return new TransferMetricsReport(stages, notEnoughBalance.sum(), validationFailures.sum(), contention);
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,29 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Transfer metrics since startup as exposed by the metrics endpoint
+ */
+@Value
+public class TransferMetricsReport {
+
+    Map<TransferMetrics.Stage, StageLatency> stages;
+
+    /**
+     * Transfers rejected because the source account had not enough balance
+     */
+    long notEnoughBalance;
+
+    /**
+     * Transfers rejected by the service validation
+     */
+    long validationFailures;
+
+    /**
+     * Lock acquisitions (or queue insertions) that had to wait for another thread in the repository
+     */
+    long contention;
+}
@@ -0,0 +1,414 @@
+package com.db.awmd.challenge.replication;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.ReadOnlyReplicaException;
+import com.db.awmd.challenge.journal.JournalEvent;
+import com.db.awmd.challenge.metrics.ReplicationReport;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.repository.StripedLocks;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Repository decorator of a node taking part in primary-backup replication
+ *
+ * On the primary every change is applied to the delegate and then published to the ReplicationServer, both under
+ * the stripes of its accounts, so changes to the same account are published in the order they were applied. A
+ * follower applying the stream in order takes every account through the same balances as the primary and cannot
+ * fail a balance check that passed there. Batches are settled on net positions and their transfers are not all
+ * possible one at a time, so a batch is published as the net movements of its accounts: transfers from the accounts
+ * losing money to the ones gaining it, in which no account pays more than it loses. Changes also hold the read side of a lock whose write side is taken while
+ * the accounts are copied for a follower connecting, so the copy falls exactly between two published changes.
+ *
+ * On a follower changes are rejected with ReadOnlyReplicaException and reads go to the delegate, which the
+ * ReplicationFollower keeps up to date. Promoting a follower stops following and makes it a primary listening for
+ * followers of its own.
+ *
+ * The ids of the accounts are kept here to copy them for new followers: accounts a persistent delegate already holds
+ * when the node starts are not known and not replicated.
+ */
+@Slf4j
+public class ReplicatedAccountsRepository implements AccountsRepository, AutoCloseable {
+
+    private final AccountsRepository delegate;
+
+    private final StripedLocks locks;
+
+    private final ReadWriteLock copyLock = new ReentrantReadWriteLock();
+
+    private final Set<String> accountIds = ConcurrentHashMap.newKeySet();
+
+    private final int port;
+
+    private final int bufferFrames;
+
+    /**
+     * Set on primaries only
+     */
+    private volatile ReplicationServer server;
+
+    /**
+     * Set on followers only
+     */
+    private volatile ReplicationFollower follower;
+
+    private ReplicatedAccountsRepository(AccountsRepository delegate, int stripes, int port, int bufferFrames) {
+        this.delegate = delegate;
+        this.locks = new StripedLocks(stripes);
+        this.port = port;
+        this.bufferFrames = bufferFrames;
+    }
+
+    /**
+     * @param delegate
+     * @param stripes Locks ordering the changes to the same accounts
+     * @param port Port followers connect to, 0 picks a free one
+     * @param bufferFrames Frames queued for a follower before it is disconnected
+     * @return Primary streaming to the followers that connect to its port
+     */
+    public static ReplicatedAccountsRepository primary(AccountsRepository delegate, int stripes, int port,
+                                                       int bufferFrames) {
+        ReplicatedAccountsRepository repository = new ReplicatedAccountsRepository(delegate, stripes, port,
+                bufferFrames);
+        repository.server = new ReplicationServer(port, bufferFrames, repository::attach);
+        return repository;
+    }
+
+    /**
+     * @param delegate
+     * @param stripes Locks ordering the changes to the same accounts once promoted
+     * @param port Port followers connect to once promoted
+     * @param bufferFrames Frames queued for a follower once promoted
+     * @param primaryHost
+     * @param primaryPort Replication port of the primary
+     * @param retryMillis Wait before connecting again when the primary cannot be reached
+     * @return Follower applying the changes of the primary, the delegate is cleared first
+     */
+    public static ReplicatedAccountsRepository follower(AccountsRepository delegate, int stripes, int port,
+                                                        int bufferFrames, String primaryHost, int primaryPort,
+                                                        long retryMillis) {
+        ReplicatedAccountsRepository repository = new ReplicatedAccountsRepository(delegate, stripes, port,
+                bufferFrames);
+        repository.follower = new ReplicationFollower(primaryHost, primaryPort, retryMillis, repository::apply);
+        return repository;
+    }
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        int stripe = locks.stripeFor(account.getAccountId());
+        copyLock.readLock().lock();
+        locks.lock(stripe);
+        try {
+            ReplicationServer primary = this.primary();
+            delegate.createAccount(account);
+            accountIds.add(account.getAccountId());
+            primary.publish(JournalEvent.createAccount(account));
+        } finally {
+            locks.unlock(stripe);
+            copyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        return delegate.getAccount(accountId);
+    }
+
+    @Override
+    public CompletableFuture<Account> getAccountAsync(String accountId) {
+        return delegate.getAccountAsync(accountId);
+    }
+
+    @Override
+    public List<Account> getAccounts(List<String> accountIds) {
+        return delegate.getAccounts(accountIds);
+    }
+
+    @Override
+    public void clearAccounts() {
+        copyLock.writeLock().lock();
+        try {
+            ReplicationServer primary = this.primary();
+            delegate.clearAccounts();
+            accountIds.clear();
+            primary.publish(JournalEvent.clearAccounts());
+        } finally {
+            copyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        this.transfer(transfer, () -> delegate.transfer(transfer));
+    }
+
+    @Override
+    public int resolve(String accountId) {
+        return delegate.resolve(accountId);
+    }
+
+    @Override
+    public CompletableFuture<Integer> resolveAsync(String accountId) {
+        return delegate.resolveAsync(accountId);
+    }
+
+    @Override
+    public void transfer(int source, int destination, Transfer transfer) throws NotEnoughBalanceException {
+        this.transfer(transfer, () -> delegate.transfer(source, destination, transfer));
+    }
+
+    /**
+     * Applies the batch to the delegate holding the stripes of all its accounts and publishes the net movements of the
+     * transfers applied, the ones of an all-or-nothing batch that failed were undone and are left out
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        Set<Integer> sorted = new TreeSet<>();
+        for (Transfer transfer : transfers) {
+            sorted.add(locks.stripeFor(transfer.getSourceAccountId()));
+            sorted.add(locks.stripeFor(transfer.getDestinationAccountId()));
+        }
+        int[] stripes = sorted.stream().mapToInt(Integer::intValue).toArray();
+        copyLock.readLock().lock();
+        locks.lockAll(stripes);
+        try {
+            ReplicationServer primary = this.primary();
+            List<TransferResult> results = delegate.transferBatch(transfers, allOrNothing);
+            for (Transfer movement : netMovements(transfers, results)) {
+                primary.publish(JournalEvent.transfer(movement));
+            }
+            return results;
+        } finally {
+            locks.unlockAll(stripes);
+            copyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getVersionEpoch() {
+        return delegate.getVersionEpoch();
+    }
+
+    @Override
+    public long getContentionCount() {
+        return delegate.getContentionCount() + locks.getContentionCount();
+    }
+
+    @Override
+    public void exportAccounts(AccountVisitor visitor) throws IOException {
+        delegate.exportAccounts(visitor);
+    }
+
+    @Override
+    public void exportAccounts(AccountVisitor visitor, Runnable started) throws IOException {
+        delegate.exportAccounts(visitor, started);
+    }
+
+    public boolean isPrimary() {
+        return server != null;
+    }
+
+    /**
+     * Stops following the primary and starts streaming to followers of this node
+     *
+     * @throws IllegalStateException if this node is a primary already
+     */
+    public synchronized void promote() {
+        ReplicationFollower current = follower;
+        if (current == null) {
+            throw new IllegalStateException("This node is a primary already");
+        }
+        current.close();
+        long sequence = current.getSequence();
+        copyLock.writeLock().lock();
+        try {
+            server = new ReplicationServer(port, bufferFrames, this::attach);
+            follower = null;
+        } finally {
+            copyLock.writeLock().unlock();
+        }
+        log.warn("Promoted to primary after applying change {} of {}, {} accounts", sequence, current.getPrimary(),
+                accountIds.size());
+    }
+
+    /**
+     * @return Port followers connect to, the configured one on followers not promoted yet
+     */
+    public int getReplicationPort() {
+        ReplicationServer primary = server;
+        return primary != null ? primary.getPort() : port;
+    }
+
+    public ReplicationReport report() {
+        ReplicationFollower currentFollower = follower;
+        if (currentFollower != null) {
+            return new ReplicationReport("follower", currentFollower.getSequence(), Collections.emptyList(),
+                    currentFollower.getPrimary(), currentFollower.isConnected(), currentFollower.getLagMillis(),
+                    currentFollower.getResyncCount());
+        }
+        ReplicationServer primary = server;
+        return new ReplicationReport("primary", primary.getSequence(), primary.followers(), null, false, 0, 0);
+    }
+
+    public AccountsRepository getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (follower != null) {
+            follower.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (delegate instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) delegate).close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot close " + delegate.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private void transfer(Transfer transfer, Runnable operation) {
+        int source = locks.stripeFor(transfer.getSourceAccountId());
+        int destination = locks.stripeFor(transfer.getDestinationAccountId());
+        copyLock.readLock().lock();
+        locks.lockPair(source, destination);
+        try {
+            ReplicationServer primary = this.primary();
+            operation.run();
+            primary.publish(JournalEvent.transfer(transfer));
+        } finally {
+            locks.unlockPair(source, destination);
+            copyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Transfers moving the same net amounts as the applied transfers of a batch, each from an account losing money
+     * to one gaining it
+     *
+     * An account pays at most what it loses in the batch, which is at most its balance before the batch as the
+     * batch left it with a balance of 0 or more, so every movement passes its balance check in any order.
+     */
+    private static List<Transfer> netMovements(List<Transfer> transfers, List<TransferResult> results) {
+        Map<String, BigDecimal> net = new LinkedHashMap<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            if (results.get(i).isApplied()) {
+                Transfer transfer = transfers.get(i);
+                net.merge(transfer.getSourceAccountId(), transfer.getAmount().negate(), BigDecimal::add);
+                net.merge(transfer.getDestinationAccountId(), transfer.getAmount(), BigDecimal::add);
+            }
+        }
+        Deque<Map.Entry<String, BigDecimal>> losing = new ArrayDeque<>();
+        Deque<Map.Entry<String, BigDecimal>> gaining = new ArrayDeque<>();
+        net.forEach((accountId, amount) -> {
+            if (amount.signum() < 0) {
+                losing.add(new AbstractMap.SimpleEntry<>(accountId, amount.negate()));
+            } else if (amount.signum() > 0) {
+                gaining.add(new AbstractMap.SimpleEntry<>(accountId, amount));
+            }
+        });
+        List<Transfer> movements = new ArrayList<>();
+        while (!losing.isEmpty() && !gaining.isEmpty()) {
+            Map.Entry<String, BigDecimal> source = losing.peek();
+            Map.Entry<String, BigDecimal> destination = gaining.peek();
+            BigDecimal amount = source.getValue().min(destination.getValue());
+            movements.add(Transfer.builder()
+                    .sourceAccountId(source.getKey())
+                    .destinationAccountId(destination.getKey())
+                    .amount(amount)
+                    .build());
+            source.setValue(source.getValue().subtract(amount));
+            destination.setValue(destination.getValue().subtract(amount));
+            if (source.getValue().signum() == 0) {
+                losing.poll();
+            }
+            if (destination.getValue().signum() == 0) {
+                gaining.poll();
+            }
+        }
+        return movements;
+    }
+
+    private ReplicationServer primary() {
+        ReplicationServer primary = server;
+        if (primary == null) {
+            throw new ReadOnlyReplicaException("This node is a follower of " + follower.getPrimary()
+                    + " and only serves reads");
+        }
+        return primary;
+    }
+
+    /**
+     * Sends the accounts to a follower that connected, with no change running
+     */
+    private void attach(Socket socket) {
+        copyLock.writeLock().lock();
+        try {
+            List<JournalEvent> accounts = new ArrayList<>(accountIds.size() + 1);
+            accounts.add(JournalEvent.clearAccounts());
+            for (String accountId : accountIds) {
+                Account account = delegate.getAccount(accountId);
+                if (account != null) {
+                    accounts.add(JournalEvent.createAccount(account));
+                }
+            }
+            server.attach(socket, accounts);
+        } finally {
+            copyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a change of the primary, only called by the follower thread
+     */
+    private void apply(JournalEvent event) {
+        switch (event.getType()) {
+            case CREATE_ACCOUNT:
+                delegate.createAccount(new Account(event.getAccountId(), event.getAmount()));
+                accountIds.add(event.getAccountId());
+                break;
+            case TRANSFER:
+                delegate.transfer(Transfer.builder()
+                        .sourceAccountId(event.getAccountId())
+                        .destinationAccountId(event.getDestinationAccountId())
+                        .amount(event.getAmount())
+                        .build());
+                break;
+            case CLEAR_ACCOUNTS:
+                delegate.clearAccounts();
+                accountIds.clear();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown replication event type " + event.getType());
+        }
+    }
+}
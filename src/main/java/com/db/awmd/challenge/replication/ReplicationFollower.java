@@ -0,0 +1,172 @@
+package com.db.awmd.challenge.replication;
+
+import com.db.awmd.challenge.journal.JournalEvent;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.function.Consumer;
+
+/**
+ * Reads the replication stream of a primary and passes every change, in stream order, to the applier
+ *
+ * A single thread connects, applies and acknowledges, so changes are applied one at a time in the order the primary
+ * published them. It acknowledges after every 1024 changes and whenever it has caught up with the bytes received.
+ * When the primary cannot be reached it retries every retryMillis; every connection starts with a clear and all the
+ * accounts of the primary, so nothing applied before is trusted again. A change the applier rejects means this node
+ * diverged from the primary and is handled the same way, by reconnecting.
+ */
+@Slf4j
+public class ReplicationFollower implements AutoCloseable {
+
+    private static final int ACK_INTERVAL = 1024;
+
+    private final InetSocketAddress primary;
+
+    private final long retryMillis;
+
+    private final Consumer<JournalEvent> applier;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private volatile Socket socket;
+
+    private volatile boolean connected;
+
+    private volatile long sequence = -1;
+
+    private volatile long lagMillis;
+
+    private volatile long connections;
+
+    /**
+     * Starts following
+     *
+     * @param host
+     * @param port Replication port of the primary
+     * @param retryMillis Wait before connecting again after the connection failed
+     * @param applier Applies the changes to this node
+     */
+    public ReplicationFollower(String host, int port, long retryMillis, Consumer<JournalEvent> applier) {
+        this.primary = InetSocketAddress.createUnresolved(host, port);
+        this.retryMillis = retryMillis;
+        this.applier = applier;
+        this.thread = new Thread(this::follow, "replication-follower");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public String getPrimary() {
+        return primary.getHostString() + ":" + primary.getPort();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return Last change applied, -1 before the first one
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Milliseconds between the primary applying the last change applied here and this node applying it
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * @return Connections after the first one, each of them resent every account
+     */
+    public long getResyncCount() {
+        return Math.max(0, connections - 1);
+    }
+
+    /**
+     * Stops following, once this returns no change is applied anymore
+     */
+    @Override
+    public void close() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void follow() {
+        boolean warned = false;
+        while (running) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                if (!running) {
+                    return;
+                }
+                connection.connect(new InetSocketAddress(primary.getHostString(), primary.getPort()));
+                connection.setTcpNoDelay(true);
+                connected = true;
+                connections++;
+                warned = false;
+                log.info("Following primary {}", this.getPrimary());
+                this.stream(connection);
+            } catch (IOException e) {
+                if (running && !warned) {
+                    log.warn("Lost primary {}, retrying every {} ms: {}", this.getPrimary(), retryMillis, e.toString());
+                    warned = true;
+                }
+            } catch (RuntimeException e) {
+                log.error("Cannot apply change {} from primary {}, following it again from scratch", sequence + 1,
+                        this.getPrimary(), e);
+            } finally {
+                connected = false;
+                socket = null;
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void stream(Socket connection) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64));
+        long bytes = 0;
+        int unacknowledged = 0;
+        while (running) {
+            ReplicationFrames.Frame frame = ReplicationFrames.read(input);
+            applier.accept(frame.event);
+            bytes += frame.size;
+            sequence = frame.sequence;
+            lagMillis = Math.max(0, System.currentTimeMillis() - frame.timestamp);
+            if (++unacknowledged >= ACK_INTERVAL || input.available() == 0) {
+                output.writeLong(sequence);
+                output.writeLong(bytes);
+                output.writeLong(lagMillis);
+                output.flush();
+                unacknowledged = 0;
+            }
+        }
+    }
+}
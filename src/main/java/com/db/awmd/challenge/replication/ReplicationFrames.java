@@ -0,0 +1,120 @@
+package com.db.awmd.challenge.replication;
+
+import com.db.awmd.challenge.journal.JournalEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of journal events on the replication stream: [int length][long sequence][long timestamp][event body]
+ *
+ * The length counts the sequence, the timestamp and the body. The timestamp is the wall clock time in milliseconds
+ * at which the primary applied the event, followers subtract it from their own clock to measure their lag, which is
+ * only meaningful between processes sharing a clock. TCP already checks the integrity of the stream, so frames have
+ * no checksum unlike the journal records.
+ *
+ * Followers answer with acknowledgements of three longs: sequence applied, stream bytes applied and lag in
+ * milliseconds of the last event applied.
+ */
+final class ReplicationFrames {
+
+    static final int HEADER_SIZE = 20;
+
+    private static final int MAX_LENGTH = 1 << 20;
+
+    private ReplicationFrames() {
+    }
+
+    /**
+     * @param sequence
+     * @param timestamp
+     * @param event
+     * @return Frame of the event
+     */
+    static byte[] encode(long sequence, long timestamp, JournalEvent event) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + event.maxEncodedSize());
+        put(buffer, sequence, timestamp, event);
+        byte[] frame = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(frame);
+        return frame;
+    }
+
+    /**
+     * Frames several events with the same sequence and timestamp into one array
+     *
+     * @param sequence
+     * @param timestamp
+     * @param events
+     * @return Frames of the events, one after the other
+     */
+    static byte[] encodeAll(long sequence, long timestamp, Iterable<JournalEvent> events) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 16);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 10);
+        for (JournalEvent event : events) {
+            int size = HEADER_SIZE + event.maxEncodedSize();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+            buffer.clear();
+            put(buffer, sequence, timestamp, event);
+            output.write(buffer.array(), 0, buffer.position());
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Reads the next frame of the stream
+     *
+     * @param input
+     * @return Frame read
+     * @throws IOException if the stream ends or the frame is not valid
+     */
+    static Frame read(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < HEADER_SIZE - 4 || length > MAX_LENGTH) {
+            throw new IOException("Invalid replication frame length " + length);
+        }
+        long sequence = input.readLong();
+        long timestamp = input.readLong();
+        byte[] body = new byte[length - (HEADER_SIZE - 4)];
+        input.readFully(body);
+        try {
+            return new Frame(sequence, timestamp, JournalEvent.decode(ByteBuffer.wrap(body)), length + 4);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid replication frame " + sequence, e);
+        }
+    }
+
+    private static void put(ByteBuffer buffer, long sequence, long timestamp, JournalEvent event) {
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putLong(sequence);
+        buffer.putLong(timestamp);
+        event.encode(buffer);
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    /**
+     * Event read from the stream with its sequence, timestamp and size on the stream
+     */
+    static final class Frame {
+
+        final long sequence;
+
+        final long timestamp;
+
+        final JournalEvent event;
+
+        final int size;
+
+        Frame(long sequence, long timestamp, JournalEvent event, int size) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.event = event;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.db.awmd.challenge.replication;
+
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Makes the configured AccountsRepository a primary or a follower when accounts.replication.enabled is set
+ *
+ * The primary listens for followers on accounts.replication.port. Followers connect to accounts.replication.primary,
+ * given as host:port, and listen on their own port once promoted.
+ */
+@Component
+@ConditionalOnProperty(prefix = "accounts.replication", name = "enabled", havingValue = "true")
+@Slf4j
+public class ReplicationRepositoryPostProcessor implements BeanPostProcessor, EnvironmentAware {
+
+    private Environment environment;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof AccountsRepository) || bean instanceof ReplicatedAccountsRepository) {
+            return bean;
+        }
+        if (environment.getProperty("accounts.journal.enabled", Boolean.class, false)
+                || environment.getProperty("accounts.cluster.enabled", Boolean.class, false)) {
+            throw new IllegalStateException("Replication cannot be enabled together with the journal or the cluster");
+        }
+        String role = environment.getProperty("accounts.replication.role", "primary");
+        int stripes = environment.getProperty("accounts.repository.striped.stripes", Integer.class, 1024);
+        int port = environment.getProperty("accounts.replication.port", Integer.class, 18090);
+        int bufferFrames = environment.getProperty("accounts.replication.buffer-frames", Integer.class, 65536);
+        AccountsRepository repository = (AccountsRepository) bean;
+
+        if ("primary".equals(role)) {
+            return ReplicatedAccountsRepository.primary(repository, stripes, port, bufferFrames);
+        }
+        if ("follower".equals(role)) {
+            String primary = environment.getRequiredProperty("accounts.replication.primary").trim();
+            int separator = primary.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalStateException("Replication primary " + primary + " is not host:port");
+            }
+            long retryMs = environment.getProperty("accounts.replication.retry-ms", Long.class, 1000L);
+            log.info("Following primary {}, changes are rejected until this node is promoted", primary);
+            return ReplicatedAccountsRepository.follower(repository, stripes, port, bufferFrames,
+                    primary.substring(0, separator), Integer.parseInt(primary.substring(separator + 1)), retryMs);
+        }
+        throw new IllegalStateException("Unknown replication role " + role + ", expected primary or follower");
+    }
+}
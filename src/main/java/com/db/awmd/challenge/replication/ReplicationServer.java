@@ -0,0 +1,285 @@
+package com.db.awmd.challenge.replication;
+
+import com.db.awmd.challenge.journal.JournalEvent;
+import com.db.awmd.challenge.metrics.ReplicationReport;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Streams the changes published by a primary to the followers connected to its TCP port
+ *
+ * Every follower gets a session that starts with the accounts as of the moment it connected, sent by the caller
+ * through attach, followed by every change published after that in publication order. Frames wait in a bounded queue
+ * of the session and a sender thread writes them to the socket, flushing whenever the queue is empty so that a burst
+ * of changes goes out in few packets. A follower whose queue is full is disconnected instead of slowing the primary
+ * down: it reconnects and is sent every account again. A second thread of the session reads its acknowledgements.
+ */
+@Slf4j
+public class ReplicationServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+
+    private final int bufferFrames;
+
+    private final Consumer<Socket> onConnect;
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+
+    private final Thread acceptor;
+
+    /**
+     * Last sequence published, guarded by this
+     */
+    private long sequence;
+
+    /**
+     * Listens for followers
+     *
+     * @param port TCP port, 0 picks a free one
+     * @param bufferFrames Frames queued for a follower before it is disconnected
+     * @param onConnect Receives the socket of every follower connecting, it must call attach with the accounts
+     */
+    public ReplicationServer(int port, int bufferFrames, Consumer<Socket> onConnect) {
+        if (bufferFrames <= 0) {
+            throw new IllegalArgumentException("Replication buffer must hold at least one frame");
+        }
+        this.bufferFrames = bufferFrames;
+        this.onConnect = onConnect;
+        try {
+            this.serverSocket = new ServerSocket();
+            this.serverSocket.setReuseAddress(true);
+            this.serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for followers on port " + port, e);
+        }
+        this.acceptor = new Thread(this::accept, "replication-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+        log.info("Streaming changes to followers on port {}", this.getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Assigns the next sequence to a change and queues it for every follower
+     *
+     * Callers must publish changes to the same account in the order they applied them.
+     *
+     * @param event
+     */
+    public void publish(JournalEvent event) {
+        if (sessions.isEmpty()) {
+            synchronized (this) {
+                sequence++;
+            }
+            return;
+        }
+        byte[] frame = ReplicationFrames.encode(0, System.currentTimeMillis(), event);
+        synchronized (this) {
+            ByteBuffer.wrap(frame).putLong(4, ++sequence);
+            for (Session session : sessions) {
+                session.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * Starts streaming to a follower, the accounts first
+     *
+     * Nothing may be published while it runs, or the change would be both in the accounts sent and in the stream.
+     *
+     * @param socket
+     * @param accounts Clear followed by the creation of every account
+     */
+    public synchronized void attach(Socket socket, List<JournalEvent> accounts) {
+        Session session = new Session(socket, ReplicationFrames.encodeAll(sequence, System.currentTimeMillis(),
+                accounts));
+        sessions.add(session);
+        session.start();
+        log.info("Follower {} connected, sending {} accounts up to change {}", session.address, accounts.size() - 1,
+                sequence);
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public List<ReplicationReport.FollowerLag> followers() {
+        return sessions.stream()
+                .map(session -> new ReplicationReport.FollowerLag(session.address, session.ackedSequence,
+                        session.queuedBytes - session.ackedBytes, session.lagMillis))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.warn("Error closing replication port {}", serverSocket.getLocalPort(), e);
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Session session : sessions) {
+            session.close("the primary is closing");
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error("Cannot accept followers on port {}", serverSocket.getLocalPort(), e);
+                }
+                return;
+            }
+            try {
+                socket.setTcpNoDelay(true);
+                onConnect.accept(socket);
+            } catch (IOException | RuntimeException e) {
+                log.error("Cannot attach follower {}", socket.getRemoteSocketAddress(), e);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Stream to one follower
+     */
+    private final class Session {
+
+        private final Socket socket;
+
+        private final String address;
+
+        private final BlockingQueue<byte[]> queue;
+
+        private final Thread sender;
+
+        private final Thread acknowledgements;
+
+        private volatile boolean closed;
+
+        /**
+         * Bytes queued since the session started, only written under the server lock
+         */
+        private volatile long queuedBytes;
+
+        private volatile long ackedBytes;
+
+        private volatile long ackedSequence;
+
+        private volatile long lagMillis;
+
+        Session(Socket socket, byte[] accounts) {
+            this.socket = socket;
+            this.address = socket.getRemoteSocketAddress().toString();
+            this.queue = new ArrayBlockingQueue<>(bufferFrames + 1);
+            this.queue.add(accounts);
+            this.queuedBytes = accounts.length;
+            this.ackedSequence = -1;
+            this.sender = new Thread(this::send, "replication-sender-" + socket.getPort());
+            this.sender.setDaemon(true);
+            this.acknowledgements = new Thread(this::readAcknowledgements, "replication-acks-" + socket.getPort());
+            this.acknowledgements.setDaemon(true);
+        }
+
+        void start() {
+            sender.start();
+            acknowledgements.start();
+        }
+
+        void offer(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            if (queue.offer(frame)) {
+                queuedBytes += frame.length;
+            } else {
+                this.close("its buffer of " + bufferFrames + " frames is full");
+            }
+        }
+
+        private void send() {
+            try {
+                OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+                while (!closed) {
+                    byte[] frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (frame != null) {
+                        output.write(frame);
+                    }
+                    if (queue.isEmpty()) {
+                        output.flush();
+                    }
+                }
+            } catch (IOException e) {
+                this.close(e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.close("the sender was interrupted");
+            }
+        }
+
+        private void readAcknowledgements() {
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256));
+                while (!closed) {
+                    long sequence = input.readLong();
+                    long bytes = input.readLong();
+                    long lag = input.readLong();
+                    ackedSequence = sequence;
+                    ackedBytes = bytes;
+                    lagMillis = lag;
+                }
+            } catch (IOException e) {
+                this.close("it disconnected");
+            }
+        }
+
+        void close(String reason) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            sessions.remove(this);
+            queue.clear();
+            closeQuietly(socket);
+            log.warn("Follower {} dropped, {}", address, reason);
+        }
+    }
+}
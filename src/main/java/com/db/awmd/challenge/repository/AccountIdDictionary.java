@@ -0,0 +1,175 @@
+package com.db.awmd.challenge.repository;
+
+import java.util.Arrays;
+
+/**
+ * Maps account ids to dense int handles, 0 for the first id added, 1 for the next one and so on
+ *
+ * Handles are kept in an open addressing table of ints, each slot holding the hash of the id next to its handle
+ * plus 1 (0 marks a free slot), so a lookup probes one int array and only compares the strings whose hash matches.
+ * Ids are kept by handle in fixed size pages, which also gives the id of a handle back.
+ *
+ * Additions are serialized on the dictionary monitor and lookups do not lock. The table, the id pages and the size
+ * are published together in one State, which lookups read once, so clear cannot swap the table under a lookup still
+ * reading the size it had before. Every addition writes its id and slot before publishing a State with the new size,
+ * and lookups ignore handles at or above the size of their State, so they never see an id half added. The table is
+ * replaced by a bigger one when it is half full, never resized in place.
+ */
+public final class AccountIdDictionary {
+
+    /**
+     * Handle of ids that have not been added
+     */
+    public static final int NONE = -1;
+
+    private static final int PAGE_SHIFT = 16;
+
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile State state = State.empty();
+
+    /**
+     * @param accountId
+     * @return Handle of the id or NONE if it has not been added
+     */
+    public int find(String accountId) {
+        State current = state;
+        int[] slots = current.table;
+        int hash = hash(accountId);
+        int mask = (slots.length >>> 1) - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int handle = slots[slot * 2 + 1] - 1;
+            if (handle == NONE) {
+                return NONE;
+            }
+            if (slots[slot * 2] == hash && handle < current.size && accountId.equals(current.idOf(handle))) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * Adds an id with the next handle
+     *
+     * @param accountId
+     * @return Handle given to the id or NONE if it had already been added
+     */
+    public synchronized int add(String accountId) {
+        if (this.find(accountId) != NONE) {
+            return NONE;
+        }
+        State current = state;
+        int handle = current.size;
+        int page = handle >>> PAGE_SHIFT;
+        String[][] pages = current.idPages;
+        if (page == pages.length) {
+            pages = Arrays.copyOf(pages, page + 1);
+            pages[page] = new String[PAGE_SIZE];
+        }
+        pages[page][handle & PAGE_MASK] = accountId;
+
+        int[] slots = current.table;
+        if ((handle + 1) * 2 > slots.length >>> 1) {
+            slots = this.grow(slots);
+        }
+        insert(slots, hash(accountId), handle);
+        state = new State(slots, pages, handle + 1);
+        return handle;
+    }
+
+    /**
+     * @param handle
+     * @return Id of a handle returned by add, null if the dictionary was cleared since
+     */
+    public String idOf(int handle) {
+        State current = state;
+        return handle >= 0 && handle < current.size ? current.idOf(handle) : null;
+    }
+
+    /**
+     * Whether a handle, possibly returned before the dictionary was cleared, is still the handle of an id
+     *
+     * @param handle
+     * @param accountId
+     * @return true if the id was added with that handle since the last clear
+     */
+    public boolean holds(int handle, String accountId) {
+        return accountId.equals(this.idOf(handle));
+    }
+
+    /**
+     * @return Number of ids added, which is also the next handle
+     */
+    public int size() {
+        return state.size;
+    }
+
+    public synchronized void clear() {
+        state = State.empty();
+    }
+
+    private int[] grow(int[] slots) {
+        int[] grown = new int[slots.length * 2];
+        for (int slot = 0; slot < slots.length; slot += 2) {
+            if (slots[slot + 1] != 0) {
+                insert(grown, slots[slot], slots[slot + 1] - 1);
+            }
+        }
+        return grown;
+    }
+
+    private static void insert(int[] slots, int hash, int handle) {
+        int mask = (slots.length >>> 1) - 1;
+        int slot = hash & mask;
+        while (slots[slot * 2 + 1] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot * 2] = hash;
+        slots[slot * 2 + 1] = handle + 1;
+    }
+
+    /**
+     * Table, id pages and size published together. The arrays are shared with the next State and filled in place
+     * past its size, which lookups of this one ignore
+     */
+    private static final class State {
+
+        /**
+         * Pairs of hash and handle plus 1, the capacity is a power of two
+         */
+        private final int[] table;
+
+        private final String[][] idPages;
+
+        private final int size;
+
+        State(int[] table, String[][] idPages, int size) {
+            this.table = table;
+            this.idPages = idPages;
+            this.size = size;
+        }
+
+        /**
+         * A new one every time, as additions fill its table in place
+         */
+        static State empty() {
+            return new State(new int[INITIAL_CAPACITY * 2], new String[0][], 0);
+        }
+
+        String idOf(int handle) {
+            return idPages[handle >>> PAGE_SHIFT][handle & PAGE_MASK];
+        }
+    }
+
+    /**
+     * Spreads the hash bits the same way HashMap does
+     */
+    private static int hash(String accountId) {
+        int h = accountId.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
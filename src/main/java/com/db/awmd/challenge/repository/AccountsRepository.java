@@ -2,16 +2,297 @@ package com.db.awmd.challenge.repository;
 
 import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface AccountsRepository {
 
+    /**
+     * Result of resolve for accounts that do not exist
+     */
+    int NO_ACCOUNT = -1;
+
+    /**
+     * Result of resolve for accounts that exist in repositories without handles
+     */
+    int UNRESOLVED = -2;
+
+    /**
+     * Receives the accounts of an export
+     */
+    interface AccountVisitor {
+
+        void visit(String accountId, BigDecimal balance) throws IOException;
+    }
+
     void createAccount(Account account) throws DuplicateAccountIdException;
 
     Account getAccount(String accountId);
 
+    /**
+     * Creates several accounts, each one independently of the others
+     *
+     * By default they are created one at a time. Implementations override it when a group of accounts can be
+     * created for less than the sum of each creation.
+     *
+     * @param accounts
+     * @return Error of every account in the same order, null for the ones created
+     */
+    default List<String> createAccounts(List<Account> accounts) {
+        List<String> errors = new ArrayList<>(accounts.size());
+        for (Account account : accounts) {
+            try {
+                this.createAccount(account);
+                errors.add(null);
+            } catch (RuntimeException e) {
+                errors.add(e.getMessage());
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Reads several accounts at once
+     *
+     * By default they are read one at a time, so a transfer between two of them can be seen on one side only.
+     * Repositories that can lock every account of the set override it to read all of them from one consistent view.
+     *
+     * @param accountIds
+     * @return Account of every id in the same order, null for the ones that do not exist
+     */
+    default List<Account> getAccounts(List<String> accountIds) {
+        List<Account> accounts = new ArrayList<>(accountIds.size());
+        for (String accountId : accountIds) {
+            accounts.add(this.getAccount(accountId));
+        }
+        return accounts;
+    }
+
     void clearAccounts();
 
     void transfer(Transfer transfer) throws NotEnoughBalanceException;
+
+    /**
+     * Takes an amount out of one account, the first half of a transfer whose destination is held elsewhere
+     *
+     * @param accountId
+     * @param amount
+     * @throws NotEnoughBalanceException if the balance is lower than the amount
+     * @throws IllegalArgumentException if the account does not exist
+     * @throws UnsupportedOperationException by default
+     */
+    default void withdraw(String accountId, BigDecimal amount) throws NotEnoughBalanceException {
+        throw new UnsupportedOperationException("Single account withdrawals are not supported by "
+                + this.getClass().getSimpleName());
+    }
+
+    /**
+     * Adds an amount to one account, the second half of a transfer whose source is held elsewhere
+     *
+     * @param accountId
+     * @param amount
+     * @throws IllegalArgumentException if the account does not exist
+     * @throws UnsupportedOperationException by default
+     */
+    default void deposit(String accountId, BigDecimal amount) {
+        throw new UnsupportedOperationException("Single account deposits are not supported by "
+                + this.getClass().getSimpleName());
+    }
+
+    /**
+     * Looks an account up once, so that it can then be passed to transfer by handle instead of by id
+     *
+     * Handles are dense ints that stay valid until the accounts are cleared. Repositories with handles check that a
+     * handle passed to transfer still holds the account of the transfer, and look the account up again by id when it
+     * was resolved before a clear. By default repositories have no handles: the account is read to know whether it
+     * exists and UNRESOLVED is returned for it.
+     *
+     * @param accountId
+     * @return Handle of the account, NO_ACCOUNT if it does not exist or UNRESOLVED
+     */
+    default int resolve(String accountId) {
+        return this.getAccount(accountId) == null ? NO_ACCOUNT : UNRESOLVED;
+    }
+
+    /**
+     * Looks an account up like resolve and returns a future completed with its handle
+     *
+     * Implementations that read accounts on other threads override it, by default the account is resolved on the
+     * calling thread and a completed future is returned.
+     *
+     * @param accountId
+     * @return Future completed with the handle of the account, NO_ACCOUNT or UNRESOLVED
+     */
+    default CompletableFuture<Integer> resolveAsync(String accountId) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        try {
+            result.complete(this.resolve(accountId));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Performs the transfer between accounts already resolved, by default looking them up again by id
+     *
+     * @param source Handle returned by resolve for the source account
+     * @param destination Handle returned by resolve for the destination account
+     * @param transfer
+     * @throws NotEnoughBalanceException
+     */
+    default void transfer(int source, int destination, Transfer transfer) throws NotEnoughBalanceException {
+        this.transfer(transfer);
+    }
+
+    /**
+     * Performs the transfer and returns a future completed when it has been applied
+     *
+     * Implementations that run the transfer on other threads override it, by default the transfer is performed on
+     * the calling thread and a completed future is returned.
+     *
+     * @param transfer
+     * @return Future completed exceptionally with the same exceptions thrown by transfer
+     */
+    default CompletableFuture<Void> transferAsync(Transfer transfer) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            this.transfer(transfer);
+            result.complete(null);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Looks an account up and returns a future completed with it, or with null if it does not exist
+     *
+     * Implementations that read accounts on other threads override it, by default the account is read on the
+     * calling thread and a completed future is returned.
+     *
+     * @param accountId
+     * @return Future completed with the account
+     */
+    default CompletableFuture<Account> getAccountAsync(String accountId) {
+        CompletableFuture<Account> result = new CompletableFuture<>();
+        try {
+            result.complete(this.getAccount(accountId));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Applies a batch of transfers and returns one result per transfer, in the same order
+     *
+     * Best effort batches apply every transfer that can be applied. All-or-nothing batches apply all of them or none.
+     * By default the transfers are applied one at a time and an all-or-nothing batch that fails is compensated by
+     * refunding the applied ones, so other requests can see it partially applied. Repositories that can lock every
+     * account of the batch override it to apply it in isolation.
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    default List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            TransferResult result;
+            try {
+                this.transfer(transfer);
+                result = TransferResult.applied();
+            } catch (NotEnoughBalanceException e) {
+                result = TransferResult.failed(TransferResult.Status.NOT_ENOUGH_BALANCE, e.getMessage());
+            } catch (RuntimeException e) {
+                result = TransferResult.failed(TransferResult.Status.REJECTED, e.getMessage());
+            }
+            results.add(result);
+            if (allOrNothing && !result.isApplied()) {
+                for (int i = results.size() - 2; i >= 0; i--) {
+                    this.refund(transfers.get(i));
+                    results.set(i, TransferResult.aborted());
+                }
+                while (results.size() < transfers.size()) {
+                    results.add(TransferResult.aborted());
+                }
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Moves the amount of an applied transfer back to its source whatever the balance of its destination
+     *
+     * Compensates the transfers of an all-or-nothing batch that failed, which must not fail themselves: a transfer
+     * running between the batch and its compensation may have taken the amount out of the destination, which is then
+     * left below zero rather than the batch half applied. Repositories using the default transferBatch implement it.
+     *
+     * @param applied Transfer applied by this repository
+     * @throws UnsupportedOperationException by default
+     */
+    default void refund(Transfer applied) {
+        throw new UnsupportedOperationException("Refunds are not supported by " + this.getClass().getSimpleName());
+    }
+
+    /**
+     * Identifies the sequence the account versions belong to: it changes whenever versions may start again, when the
+     * repository is created and when its accounts are cleared, so a version is only meaningful with its epoch
+     *
+     * @return 0 for implementations that do not track versions
+     */
+    default long getVersionEpoch() {
+        return 0;
+    }
+
+    /**
+     * Number of times an operation had to wait for another thread (lock held, full queue...) since the repository
+     * was created
+     *
+     * @return 0 for implementations that do not track it
+     */
+    default long getContentionCount() {
+        return 0;
+    }
+
+    /**
+     * Visits every account with its balance as of one point in time, while transfers keep running
+     *
+     * Accounts created after that point are left out, so the balances visited add up to the total held by the
+     * repository at that point. Visiting may take as long as the visitor needs, writes are not stopped meanwhile.
+     *
+     * @param visitor
+     * @throws UnsupportedOperationException if the repository cannot take a consistent view without stopping writes
+     * @throws IOException thrown by the visitor
+     */
+    default void exportAccounts(AccountVisitor visitor) throws IOException {
+        this.exportAccounts(visitor, () -> { });
+    }
+
+    /**
+     * Visits every account like exportAccounts, running started once the point in time of the export is fixed
+     *
+     * Started runs on the calling thread before the first account is visited. Changes made before it are in the
+     * balances visited, changes made after it are not, which lets a caller that stops its own writes until started
+     * runs tell exactly which changes the export holds.
+     *
+     * @param visitor
+     * @param started
+     * @throws UnsupportedOperationException if the repository cannot take a consistent view without stopping writes,
+     *                                       before started runs
+     * @throws IOException thrown by the visitor
+     */
+    default void exportAccounts(AccountVisitor visitor, Runnable started) throws IOException {
+        throw new UnsupportedOperationException("Consistent exports are not supported by " + this.getClass()
+                .getSimpleName());
+    }
 }
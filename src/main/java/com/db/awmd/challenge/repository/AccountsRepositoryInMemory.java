@@ -4,12 +4,15 @@ import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.Transfer;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "in-memory", matchIfMissing = true)
 public class AccountsRepositoryInMemory implements AccountsRepository {
 
     private final Map<String, Account> accounts = new ConcurrentHashMap<>();
@@ -61,4 +64,40 @@ public class AccountsRepositoryInMemory implements AccountsRepository {
         });
     }
 
+    @Override
+    public void refund(Transfer applied) {
+        accounts.computeIfPresent(applied.getDestinationAccountId(), (destinationAccountId, destinationAccount) -> {
+            destinationAccount.setBalance(destinationAccount.getBalance().subtract(applied.getAmount()));
+            return destinationAccount;
+        });
+        accounts.computeIfPresent(applied.getSourceAccountId(), (sourceAccountId, sourceAccount) -> {
+            sourceAccount.setBalance(sourceAccount.getBalance().add(applied.getAmount()));
+            return sourceAccount;
+        });
+    }
+
+    @Override
+    public void withdraw(String accountId, BigDecimal amount) throws NotEnoughBalanceException {
+        Account account = accounts.computeIfPresent(accountId, (id, source) -> {
+            if (source.getBalance().compareTo(amount) < 0) {
+                throw new NotEnoughBalanceException("The source account " + id + " has not enough balance!");
+            }
+            source.setBalance(source.getBalance().subtract(amount));
+            return source;
+        });
+        if (account == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+    }
+
+    @Override
+    public void deposit(String accountId, BigDecimal amount) {
+        Account account = accounts.computeIfPresent(accountId, (id, destination) -> {
+            destination.setBalance(destination.getBalance().add(amount));
+            return destination;
+        });
+        if (account == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+    }
 }
@@ -0,0 +1,373 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent repository storing fixed width account records in a memory-mapped file
+ *
+ * The file starts with a header (magic, version, scale and number of records) followed by one record per account:
+ * balance in minor units, id length and UTF-8 id bytes. Records are mapped in segments, so reads and transfers are
+ * plain memory accesses under the striped locks and the OS page cache writes them back. Changes are only guaranteed
+ * to be on disk after force(), which runs periodically when configured and when the repository is closed.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "mapped")
+@Slf4j
+public class AccountsRepositoryMapped implements AccountsRepository, AutoCloseable {
+
+    private static final int MAGIC = 0x41434354;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int COUNT_OFFSET = 16;
+
+    public static final int RECORD_SIZE = 128;
+
+    private static final int BALANCE_OFFSET = 0;
+
+    private static final int ID_LENGTH_OFFSET = 8;
+
+    private static final int ID_OFFSET = 10;
+
+    public static final int MAX_ID_BYTES = RECORD_SIZE - ID_OFFSET;
+
+    private static final int SEGMENT_SHIFT = 16;
+
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+
+    private static final int SEGMENT_MASK = SEGMENT_RECORDS - 1;
+
+    private static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_SIZE;
+
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+
+    private final StripedLocks locks;
+
+    private final int scale;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer header;
+
+    /**
+     * Segment directory, replaced (never changed in place) when it needs to grow
+     */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * Number of records in use, guarded by the repository monitor
+     */
+    private int count;
+
+    private final ScheduledExecutorService forceScheduler;
+
+    @Autowired
+    public AccountsRepositoryMapped(@Value("${accounts.repository.mapped.path:accounts.dat}") String path,
+                                    @Value("${accounts.repository.mapped.force-interval-ms:1000}") long forceIntervalMs,
+                                    @Value("${accounts.repository.primitive.scale:2}") int scale,
+                                    @Value("${accounts.repository.striped.stripes:1024}") int stripes) {
+        this(Paths.get(path), forceIntervalMs, scale, stripes);
+    }
+
+    public AccountsRepositoryMapped(Path path, long forceIntervalMs, int scale, int stripes) {
+        this.scale = scale;
+        this.locks = new StripedLocks(stripes);
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open accounts file " + path, e);
+        }
+        try {
+            boolean created = this.channel.size() == 0;
+            this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (created) {
+                this.header.putInt(0, MAGIC);
+                this.header.putInt(4, VERSION);
+                this.header.putInt(8, scale);
+                this.header.putInt(12, RECORD_SIZE);
+                this.header.putLong(COUNT_OFFSET, 0);
+            } else {
+                this.validateHeader(path);
+                this.load();
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                this.channel.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            if (e instanceof IOException) {
+                throw new UncheckedIOException("Cannot read accounts file " + path, (IOException) e);
+            }
+            throw (RuntimeException) e;
+        }
+
+        if (forceIntervalMs > 0) {
+            this.forceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "accounts-mapped-force");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.forceScheduler.scheduleWithFixedDelay(this::force, forceIntervalMs, forceIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.forceScheduler = null;
+        }
+        log.info("Opened accounts file {} with {} accounts", path, count);
+    }
+
+    @Override
+    public synchronized void createAccount(Account account) throws DuplicateAccountIdException {
+        if (slots.containsKey(account.getAccountId())) {
+            throw new DuplicateAccountIdException(
+                    "Account id " + account.getAccountId() + " already exists!");
+        }
+        byte[] id = account.getAccountId().getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Account id " + account.getAccountId() + " is longer than "
+                    + MAX_ID_BYTES + " bytes");
+        }
+        long balance = MinorUnits.toMinorUnits(account.getBalance(), scale);
+
+        int slot = count;
+        if ((slot >>> SEGMENT_SHIFT) == segments.length) {
+            addSegment();
+        }
+        MappedByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+        int offset = (slot & SEGMENT_MASK) * RECORD_SIZE;
+        segment.putLong(offset + BALANCE_OFFSET, balance);
+        segment.putShort(offset + ID_LENGTH_OFFSET, (short) id.length);
+        for (int i = 0; i < id.length; i++) {
+            segment.put(offset + ID_OFFSET + i, id[i]);
+        }
+        // The record is complete before it is counted, a crash in between leaves it unused
+        count++;
+        header.putLong(COUNT_OFFSET, count);
+        slots.put(account.getAccountId(), slot);
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        Integer slot = slots.get(accountId);
+        if (slot == null) {
+            return null;
+        }
+        MappedByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+        int offset = (slot & SEGMENT_MASK) * RECORD_SIZE;
+        int stripe = locks.stripeForSlot(slot);
+        long balance;
+        locks.lock(stripe);
+        try {
+            balance = segment.getLong(offset + BALANCE_OFFSET);
+        } finally {
+            locks.unlock(stripe);
+        }
+        return new Account(accountId, MinorUnits.toBigDecimal(balance, scale));
+    }
+
+    @Override
+    public synchronized void clearAccounts() {
+        slots.clear();
+        count = 0;
+        header.putLong(COUNT_OFFSET, 0);
+    }
+
+    @Override
+    public long getContentionCount() {
+        return locks.getContentionCount();
+    }
+
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        int sourceSlot = this.findSlot(transfer.getSourceAccountId());
+        int destinationSlot = this.findSlot(transfer.getDestinationAccountId());
+        long amount = MinorUnits.toMinorUnits(transfer.getAmount(), scale);
+
+        MappedByteBuffer[] current = segments;
+        MappedByteBuffer sourceSegment = current[sourceSlot >>> SEGMENT_SHIFT];
+        MappedByteBuffer destinationSegment = current[destinationSlot >>> SEGMENT_SHIFT];
+        int sourceOffset = (sourceSlot & SEGMENT_MASK) * RECORD_SIZE + BALANCE_OFFSET;
+        int destinationOffset = (destinationSlot & SEGMENT_MASK) * RECORD_SIZE + BALANCE_OFFSET;
+
+        int sourceStripe = locks.stripeForSlot(sourceSlot);
+        int destinationStripe = locks.stripeForSlot(destinationSlot);
+
+        locks.lockPair(sourceStripe, destinationStripe);
+        try {
+            long sourceBalance = sourceSegment.getLong(sourceOffset);
+            if (sourceBalance < amount) {
+                throw new NotEnoughBalanceException("The source account " + transfer.getSourceAccountId()
+                        + " has not enough balance!");
+            }
+            long destinationBalance = destinationSegment.getLong(destinationOffset);
+            if (destinationBalance > Long.MAX_VALUE - amount) {
+                throw new BalanceOverflowException("The destination account " + transfer.getDestinationAccountId()
+                        + " balance would overflow");
+            }
+            sourceSegment.putLong(sourceOffset, sourceBalance - amount);
+            destinationSegment.putLong(destinationOffset, destinationBalance + amount);
+        } finally {
+            locks.unlockPair(sourceStripe, destinationStripe);
+        }
+    }
+
+    /**
+     * Applies the batch holding the stripes of all its accounts at once
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        return StripedBatch.apply(locks, new StripedBatch.Balances<Integer>() {
+
+            @Override
+            public Integer find(String accountId) {
+                return slots.get(accountId);
+            }
+
+            @Override
+            public int stripeOf(Integer slot) {
+                return locks.stripeForSlot(slot);
+            }
+
+            @Override
+            public BigDecimal getBalance(Integer slot) {
+                return MinorUnits.toBigDecimal(segments[slot >>> SEGMENT_SHIFT].getLong(balanceOffset(slot)), scale);
+            }
+
+            @Override
+            public void setBalance(Integer slot, BigDecimal balance) {
+                segments[slot >>> SEGMENT_SHIFT].putLong(balanceOffset(slot), MinorUnits.toMinorUnits(balance, scale));
+            }
+
+            @Override
+            public void checkAmount(BigDecimal amount) {
+                MinorUnits.toMinorUnits(amount, scale);
+            }
+
+            @Override
+            public void checkBalance(BigDecimal balance) {
+                try {
+                    MinorUnits.toMinorUnits(balance, scale);
+                } catch (IllegalArgumentException e) {
+                    throw new BalanceOverflowException("Balance " + balance.toPlainString() + " is too large");
+                }
+            }
+        }, transfers, allOrNothing);
+    }
+
+    /**
+     * Flushes every mapped segment and the header to the storage device
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        if (forceScheduler != null) {
+            forceScheduler.shutdown();
+        }
+        force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing accounts file", e);
+        }
+    }
+
+    private void validateHeader(Path path) {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(12) != RECORD_SIZE) {
+            throw new IllegalStateException(path + " is not an accounts file of version " + VERSION);
+        }
+        if (header.getInt(8) != scale) {
+            throw new IllegalStateException(path + " stores balances with scale " + header.getInt(8)
+                    + " instead of " + scale);
+        }
+    }
+
+    /**
+     * Maps the existing records and rebuilds the id index
+     */
+    private void load() {
+        long records = header.getLong(COUNT_OFFSET);
+        if (records > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Accounts file holds too many records: " + records);
+        }
+        byte[] id = new byte[MAX_ID_BYTES];
+        for (int slot = 0; slot < records; slot++) {
+            if ((slot >>> SEGMENT_SHIFT) == segments.length) {
+                addSegment();
+            }
+            MappedByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & SEGMENT_MASK) * RECORD_SIZE;
+            int length = segment.getShort(offset + ID_LENGTH_OFFSET);
+            for (int i = 0; i < length; i++) {
+                id[i] = segment.get(offset + ID_OFFSET + i);
+            }
+            slots.put(new String(id, 0, length, StandardCharsets.UTF_8), slot);
+        }
+        count = (int) records;
+    }
+
+    private void addSegment() {
+        MappedByteBuffer[] current = segments;
+        MappedByteBuffer[] grown = new MappedByteBuffer[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        try {
+            grown[current.length] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + current.length * SEGMENT_BYTES, SEGMENT_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot grow accounts file", e);
+        }
+        segments = grown;
+    }
+
+    private static int balanceOffset(int slot) {
+        return (slot & SEGMENT_MASK) * RECORD_SIZE + BALANCE_OFFSET;
+    }
+
+    private int findSlot(String accountId) {
+        Integer slot = slots.get(accountId);
+        if (slot == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,273 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import lombok.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free repository where every account is an immutable versioned snapshot held in an atomic reference
+ *
+ * A transfer reads the snapshots of both accounts, works out their next versions and commits both with a two word
+ * compare-and-swap: a descriptor of the operation is installed in each account, in global order, and the operation
+ * succeeds if both still held the snapshots it read. Threads that find a descriptor in their way help it finish
+ * instead of waiting for its owner, so a stalled thread cannot block the others. A transfer that lost a race is
+ * retried on fresh snapshots.
+ *
+ * Readers never lock nor help: a descriptor reads as the snapshot before the operation until it has succeeded, so
+ * every read returns a committed snapshot.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "optimistic")
+public class AccountsRepositoryOptimistic implements AccountsRepository {
+
+    private final Map<String, Cell> accounts = new ConcurrentHashMap<>();
+
+    /**
+     * Gives every account its position in the order descriptors are installed in
+     */
+    private final AtomicLong nextOrdinal = new AtomicLong();
+
+    private final LongAdder conflicts = new LongAdder();
+
+    private volatile long versionEpoch = ThreadLocalRandom.current().nextLong();
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        Cell previousCell = accounts.putIfAbsent(account.getAccountId(), new Cell(account.getAccountId(),
+                nextOrdinal.getAndIncrement(), new Snapshot(account.getBalance(), 0)));
+        if (previousCell != null) {
+            throw new DuplicateAccountIdException(
+                    "Account id " + account.getAccountId() + " already exists!");
+        }
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        Snapshot snapshot = this.getSnapshot(accountId);
+        // Versions of accounts start at 1, 0 means they are not tracked
+        return snapshot == null ? null : new Account(accountId, snapshot.getBalance(), snapshot.getVersion() + 1);
+    }
+
+    /**
+     * @param accountId
+     * @return Last committed snapshot of the account or null if it does not exist
+     */
+    public Snapshot getSnapshot(String accountId) {
+        Cell cell = accounts.get(accountId);
+        return cell == null ? null : cell.read();
+    }
+
+    @Override
+    public void clearAccounts() {
+        versionEpoch = ThreadLocalRandom.current().nextLong();
+        accounts.clear();
+    }
+
+    @Override
+    public long getVersionEpoch() {
+        return versionEpoch;
+    }
+
+    /**
+     * @return Number of transfers that had to be retried because another one changed their accounts first
+     */
+    @Override
+    public long getContentionCount() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Performs the amount transfer between accounts, retrying on new snapshots until it commits
+     *
+     * @param transfer
+     * @throws NotEnoughBalanceException
+     */
+    @Override
+    public void transfer(final Transfer transfer) throws NotEnoughBalanceException {
+        Cell source = this.findCell(transfer.getSourceAccountId());
+        Cell destination = this.findCell(transfer.getDestinationAccountId());
+        if (source == destination) {
+            throw new IllegalArgumentException("Origin and destination account cannot be equal");
+        }
+        this.move(source, destination, transfer.getAmount(), true);
+    }
+
+    @Override
+    public void refund(Transfer applied) {
+        this.move(this.findCell(applied.getDestinationAccountId()), this.findCell(applied.getSourceAccountId()),
+                applied.getAmount(), false);
+    }
+
+    /**
+     * Commits the amount moved between both accounts, retrying on fresh snapshots until no other operation interferes
+     *
+     * @param checkBalance Whether the source must hold the amount, refunds move it whatever the balance
+     */
+    private void move(Cell source, Cell destination, BigDecimal amount, boolean checkBalance) {
+        while (true) {
+            Snapshot sourceSnapshot = source.read();
+            Snapshot destinationSnapshot = destination.read();
+            if (checkBalance && sourceSnapshot.getBalance().compareTo(amount) < 0) {
+                throw new NotEnoughBalanceException("The source account " + source.accountId
+                        + " has not enough balance!");
+            }
+            Snapshot sourceUpdate = new Snapshot(sourceSnapshot.getBalance().subtract(amount),
+                    sourceSnapshot.getVersion() + 1);
+            Snapshot destinationUpdate = new Snapshot(destinationSnapshot.getBalance().add(amount),
+                    destinationSnapshot.getVersion() + 1);
+
+            TwoWordCas cas = source.ordinal < destination.ordinal
+                    ? new TwoWordCas(source, sourceSnapshot, sourceUpdate, destination, destinationSnapshot,
+                    destinationUpdate)
+                    : new TwoWordCas(destination, destinationSnapshot, destinationUpdate, source, sourceSnapshot,
+                    sourceUpdate);
+            if (cas.commit()) {
+                return;
+            }
+            conflicts.increment();
+        }
+    }
+
+    private Cell findCell(String accountId) {
+        Cell cell = accounts.get(accountId);
+        if (cell == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+        return cell;
+    }
+
+    /**
+     * Committed state of an account, never changed once created
+     */
+    @Value
+    public static class Snapshot {
+
+        BigDecimal balance;
+
+        /**
+         * Number of transfers committed on the account
+         */
+        long version;
+    }
+
+    /**
+     * Account slot holding either its current snapshot or the descriptor of the operation changing it
+     */
+    private static final class Cell {
+
+        private final String accountId;
+
+        private final long ordinal;
+
+        private final AtomicReference<Object> state;
+
+        private Cell(String accountId, long ordinal, Snapshot snapshot) {
+            this.accountId = accountId;
+            this.ordinal = ordinal;
+            this.state = new AtomicReference<>(snapshot);
+        }
+
+        private Snapshot read() {
+            Object current = state.get();
+            return current instanceof TwoWordCas ? ((TwoWordCas) current).valueFor(this) : (Snapshot) current;
+        }
+    }
+
+    private enum Status {UNDECIDED, SUCCEEDED, FAILED}
+
+    /**
+     * Descriptor of a compare-and-swap of two cells, the first one with the lower ordinal
+     *
+     * Its outcome is decided once, by whichever thread gets there first, and every thread running commit on it
+     * releases the cells with the same values. A descriptor left in a cell after the operation was decided, by a
+     * helper that was late, reads as that outcome and is replaced by the next thread that finds it.
+     */
+    private static final class TwoWordCas {
+
+        private final Cell first;
+
+        private final Snapshot firstExpected;
+
+        private final Snapshot firstUpdate;
+
+        private final Cell second;
+
+        private final Snapshot secondExpected;
+
+        private final Snapshot secondUpdate;
+
+        private final AtomicReference<Status> status = new AtomicReference<>(Status.UNDECIDED);
+
+        private TwoWordCas(Cell first, Snapshot firstExpected, Snapshot firstUpdate,
+                           Cell second, Snapshot secondExpected, Snapshot secondUpdate) {
+            this.first = first;
+            this.firstExpected = firstExpected;
+            this.firstUpdate = firstUpdate;
+            this.second = second;
+            this.secondExpected = secondExpected;
+            this.secondUpdate = secondUpdate;
+        }
+
+        /**
+         * Runs the operation to completion, from the thread that created it or from one that has to help it
+         *
+         * @return true if both cells held the expected snapshots and now hold the updates
+         */
+        private boolean commit() {
+            if (status.get() == Status.UNDECIDED) {
+                Status decision = this.acquire(first, firstExpected) && this.acquire(second, secondExpected)
+                        ? Status.SUCCEEDED : Status.FAILED;
+                status.compareAndSet(Status.UNDECIDED, decision);
+            }
+            boolean succeeded = status.get() == Status.SUCCEEDED;
+            first.state.compareAndSet(this, succeeded ? firstUpdate : firstExpected);
+            second.state.compareAndSet(this, succeeded ? secondUpdate : secondExpected);
+            return succeeded;
+        }
+
+        /**
+         * Installs the descriptor in the cell if it holds the expected snapshot, helping any operation in the way
+         *
+         * Cells are acquired in ordinal order and an operation only waits for cells after the ones it holds, so
+         * helping never runs into a cycle.
+         */
+        private boolean acquire(Cell cell, Snapshot expected) {
+            while (true) {
+                Object current = cell.state.get();
+                if (current == this) {
+                    return true;
+                }
+                if (current instanceof TwoWordCas) {
+                    ((TwoWordCas) current).commit();
+                } else if (current != expected) {
+                    return false;
+                } else if (cell.state.compareAndSet(expected, this)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Snapshot a reader of the cell sees, the update only once the operation has succeeded
+         */
+        private Snapshot valueFor(Cell cell) {
+            boolean succeeded = status.get() == Status.SUCCEEDED;
+            if (cell == first) {
+                return succeeded ? firstUpdate : firstExpected;
+            }
+            return succeeded ? secondUpdate : secondExpected;
+        }
+    }
+}
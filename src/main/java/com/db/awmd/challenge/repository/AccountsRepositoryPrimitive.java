@@ -0,0 +1,301 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Repository keeping balances as long minor units in primitive arrays instead of one Account object per account
+ *
+ * Every account gets a dense int slot when it is created, its handle in an AccountIdDictionary. Balances live in
+ * fixed size pages indexed by slot, and are only converted to BigDecimal and Account when they leave the repository.
+ * Balances are read and written under the stripe of their slot and a transfer locks both stripes in global order, as
+ * the striped repository does. Once amounts are in minor units the transfer itself does not allocate.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "primitive")
+public class AccountsRepositoryPrimitive implements AccountsRepository {
+
+    private static final int PAGE_SHIFT = 16;
+
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final AccountIdDictionary slots = new AccountIdDictionary();
+
+    private final StripedLocks locks;
+
+    private final int scale;
+
+    private final StripedBatch.Balances<Integer> batchBalances = new StripedBatch.Balances<Integer>() {
+
+        @Override
+        public Integer find(String accountId) {
+            int slot = slots.find(accountId);
+            return slot == AccountIdDictionary.NONE ? null : slot;
+        }
+
+        @Override
+        public int stripeOf(Integer slot) {
+            return locks.stripeForSlot(slot);
+        }
+
+        @Override
+        public BigDecimal getBalance(Integer slot) {
+            return MinorUnits.toBigDecimal(balancePages[slot >>> PAGE_SHIFT][slot & PAGE_MASK], scale);
+        }
+
+        @Override
+        public void setBalance(Integer slot, BigDecimal balance) {
+            balancePages[slot >>> PAGE_SHIFT][slot & PAGE_MASK] = MinorUnits.toMinorUnits(balance, scale);
+        }
+
+        @Override
+        public void checkAmount(BigDecimal amount) {
+            MinorUnits.toMinorUnits(amount, scale);
+        }
+
+        @Override
+        public void checkBalance(BigDecimal balance) {
+            try {
+                MinorUnits.toMinorUnits(balance, scale);
+            } catch (IllegalArgumentException e) {
+                throw new BalanceOverflowException("Balance " + balance.toPlainString() + " is too large");
+            }
+        }
+    };
+
+    /**
+     * Page directory, replaced (never changed in place) when it needs to grow
+     */
+    private volatile long[][] balancePages = new long[0][];
+
+    public AccountsRepositoryPrimitive(@Value("${accounts.repository.primitive.scale:2}") int scale,
+                                       @Value("${accounts.repository.striped.stripes:1024}") int stripes) {
+        this.scale = scale;
+        this.locks = new StripedLocks(stripes);
+    }
+
+    @Override
+    public synchronized void createAccount(Account account) throws DuplicateAccountIdException {
+        if (slots.find(account.getAccountId()) != AccountIdDictionary.NONE) {
+            throw new DuplicateAccountIdException(
+                    "Account id " + account.getAccountId() + " already exists!");
+        }
+        long balance = MinorUnits.toMinorUnits(account.getBalance(), scale);
+
+        // Slots are only added here, holding the repository monitor, so the next one is the size of the dictionary
+        int slot = slots.size();
+        int page = slot >>> PAGE_SHIFT;
+        if (page == balancePages.length) {
+            addPage();
+        }
+        balancePages[page][slot & PAGE_MASK] = balance;
+        // Publishing the slot makes the balance written above visible to readers that find it
+        slots.add(account.getAccountId());
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        int slot = slotOf(accountId);
+        if (slot < 0) {
+            return null;
+        }
+        return new Account(accountId, MinorUnits.toBigDecimal(getBalance(slot), scale));
+    }
+
+    @Override
+    public synchronized void clearAccounts() {
+        slots.clear();
+        balancePages = new long[0][];
+    }
+
+    @Override
+    public long getContentionCount() {
+        return locks.getContentionCount();
+    }
+
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        int sourceSlot = this.findSlot(transfer.getSourceAccountId());
+        int destinationSlot = this.findSlot(transfer.getDestinationAccountId());
+
+        this.transfer(sourceSlot, destinationSlot, MinorUnits.toMinorUnits(transfer.getAmount(), scale));
+    }
+
+    /**
+     * @param accountId
+     * @return Slot of the account, -1 if it does not exist
+     */
+    @Override
+    public int resolve(String accountId) {
+        return this.slotOf(accountId);
+    }
+
+    @Override
+    public void transfer(int source, int destination, Transfer transfer) throws NotEnoughBalanceException {
+        if (!slots.holds(source, transfer.getSourceAccountId())
+                || !slots.holds(destination, transfer.getDestinationAccountId())) {
+            // Slots resolved before the accounts were cleared may now hold other accounts, look them up again
+            this.transfer(transfer);
+            return;
+        }
+        this.transfer(source, destination, MinorUnits.toMinorUnits(transfer.getAmount(), scale));
+    }
+
+    /**
+     * Transfers an amount in minor units between two slots
+     *
+     * @param sourceSlot
+     * @param destinationSlot
+     * @param amount Amount in minor units
+     * @throws NotEnoughBalanceException if the source balance is lower than the amount
+     * @throws BalanceOverflowException if the destination balance would not fit in a long
+     */
+    public void transfer(int sourceSlot, int destinationSlot, long amount) {
+        long[] sourcePage = balancePages[sourceSlot >>> PAGE_SHIFT];
+        long[] destinationPage = balancePages[destinationSlot >>> PAGE_SHIFT];
+        int sourceIndex = sourceSlot & PAGE_MASK;
+        int destinationIndex = destinationSlot & PAGE_MASK;
+
+        int sourceStripe = locks.stripeForSlot(sourceSlot);
+        int destinationStripe = locks.stripeForSlot(destinationSlot);
+
+        locks.lockPair(sourceStripe, destinationStripe);
+        try {
+            long sourceBalance = sourcePage[sourceIndex];
+            if (sourceBalance < amount) {
+                throw new NotEnoughBalanceException("The source account " + accountIdOf(sourceSlot)
+                        + " has not enough balance!");
+            }
+            long destinationBalance = destinationPage[destinationIndex];
+            if (destinationBalance > Long.MAX_VALUE - amount) {
+                throw new BalanceOverflowException("The destination account " + accountIdOf(destinationSlot)
+                        + " balance would overflow");
+            }
+            sourcePage[sourceIndex] = sourceBalance - amount;
+            destinationPage[destinationIndex] = destinationBalance + amount;
+        } finally {
+            locks.unlockPair(sourceStripe, destinationStripe);
+        }
+    }
+
+    @Override
+    public void withdraw(String accountId, BigDecimal amount) throws NotEnoughBalanceException {
+        this.add(this.findSlot(accountId), -MinorUnits.toMinorUnits(amount, scale));
+    }
+
+    @Override
+    public void deposit(String accountId, BigDecimal amount) {
+        this.add(this.findSlot(accountId), MinorUnits.toMinorUnits(amount, scale));
+    }
+
+    /**
+     * Reads the accounts holding the stripes of all of them at once
+     *
+     * @param accountIds
+     * @return Account of every id in the same order, null for the ones that do not exist
+     */
+    @Override
+    public List<Account> getAccounts(List<String> accountIds) {
+        List<BigDecimal> balances = StripedBatch.read(locks, batchBalances, accountIds);
+        List<Account> found = new ArrayList<>(balances.size());
+        for (int i = 0; i < balances.size(); i++) {
+            found.add(balances.get(i) == null ? null : new Account(accountIds.get(i), balances.get(i)));
+        }
+        return found;
+    }
+
+    /**
+     * Applies the batch holding the stripes of all its accounts at once
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        return StripedBatch.apply(locks, batchBalances, transfers, allOrNothing);
+    }
+
+    /**
+     * @param accountId
+     * @return Slot of the account or -1 if it does not exist
+     */
+    public int slotOf(String accountId) {
+        return slots.find(accountId);
+    }
+
+    /**
+     * @param slot
+     * @return Balance in minor units read under the stripe of the slot
+     */
+    public long getBalance(int slot) {
+        long[] page = balancePages[slot >>> PAGE_SHIFT];
+        int stripe = locks.stripeForSlot(slot);
+        locks.lock(stripe);
+        try {
+            return page[slot & PAGE_MASK];
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Adds an amount in minor units to the balance of a slot, or takes it out when negative
+     */
+    private void add(int slot, long amount) {
+        long[] page = balancePages[slot >>> PAGE_SHIFT];
+        int index = slot & PAGE_MASK;
+        int stripe = locks.stripeForSlot(slot);
+        locks.lock(stripe);
+        try {
+            long balance = page[index];
+            if (balance + amount < 0) {
+                throw new NotEnoughBalanceException("The source account " + accountIdOf(slot)
+                        + " has not enough balance!");
+            }
+            if (amount > 0 && balance > Long.MAX_VALUE - amount) {
+                throw new BalanceOverflowException("The destination account " + accountIdOf(slot)
+                        + " balance would overflow");
+            }
+            page[index] = balance + amount;
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    private String accountIdOf(int slot) {
+        return slots.idOf(slot);
+    }
+
+    private int findSlot(String accountId) {
+        int slot = slotOf(accountId);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+        return slot;
+    }
+
+    private void addPage() {
+        long[][] balances = new long[balancePages.length + 1][];
+        System.arraycopy(balancePages, 0, balances, 0, balancePages.length);
+        balances[balances.length - 1] = new long[PAGE_SIZE];
+        balancePages = balances;
+    }
+}
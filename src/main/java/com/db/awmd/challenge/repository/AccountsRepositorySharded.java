@@ -0,0 +1,512 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Repository where accounts are partitioned by id hash and each partition is owned by a single writer thread
+ *
+ * Requests are handed to the owner thread through a lock-free ring buffer and the thread mutates its accounts
+ * without any locking. A transfer between accounts of the same partition is one task. A transfer across partitions
+ * is one rendezvous: the owner thread of the lower partition runs it while the owner of the other partition waits
+ * in a task handed to it, so both sides are applied in one step and no read can see the amount in neither account.
+ * Reads of several accounts use the same rendezvous over all of their partitions. A rendezvous first reserves its
+ * partitions in increasing index order, running the hand-offs of its coordinator while it waits, so a partition is in
+ * at most one rendezvous at a time and rendezvous never wait for each other in a cycle.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "sharded")
+@Slf4j
+public class AccountsRepositorySharded implements AccountsRepository, AutoCloseable {
+
+    private final Partition[] partitions;
+
+    public AccountsRepositorySharded(@Value("${accounts.repository.sharded.partitions:0}") int partitions,
+                                     @Value("${accounts.repository.sharded.ring-size:1024}") int ringSize) {
+        int count = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+        this.partitions = new Partition[count];
+        for (int i = 0; i < count; i++) {
+            this.partitions[i] = new Partition(i, ringSize);
+            this.partitions[i].start();
+        }
+    }
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        Account copy = new Account(account.getAccountId(), account.getBalance());
+        join(partitionFor(account.getAccountId()).submit(accounts -> {
+            if (accounts.putIfAbsent(copy.getAccountId(), copy) != null) {
+                throw new DuplicateAccountIdException("Account id " + copy.getAccountId() + " already exists!");
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Reads the account on its owner thread
+     *
+     * @param accountId
+     * @return Copy of the account or null if it does not exist
+     */
+    @Override
+    public Account getAccount(String accountId) {
+        return join(this.getAccountAsync(accountId));
+    }
+
+    @Override
+    public CompletableFuture<Account> getAccountAsync(String accountId) {
+        return partitionFor(accountId).submit(accounts -> {
+            Account account = accounts.get(accountId);
+            return account == null ? null : new Account(account.getAccountId(), account.getBalance());
+        });
+    }
+
+    /**
+     * Checks on its owner thread that the account exists, without waiting for it
+     *
+     * @param accountId
+     * @return Future completed with NO_ACCOUNT or UNRESOLVED, accounts have no handles
+     */
+    @Override
+    public CompletableFuture<Integer> resolveAsync(String accountId) {
+        return partitionFor(accountId).submit(accounts -> accounts.containsKey(accountId) ? UNRESOLVED : NO_ACCOUNT);
+    }
+
+    /**
+     * Reads the accounts in one rendezvous of their partitions, so a transfer between two of them is seen on both
+     * sides or on none
+     *
+     * @param accountIds
+     * @return Copy of every account in the same order, null for the ones that do not exist
+     */
+    @Override
+    public List<Account> getAccounts(List<String> accountIds) {
+        TreeMap<Integer, Partition> involved = new TreeMap<>();
+        for (String accountId : accountIds) {
+            Partition partition = partitionFor(accountId);
+            involved.put(partition.index, partition);
+        }
+        return join(atomically(new ArrayList<>(involved.values()), () -> {
+            List<Account> accounts = new ArrayList<>(accountIds.size());
+            for (String accountId : accountIds) {
+                Account account = partitionFor(accountId).accounts.get(accountId);
+                accounts.add(account == null ? null : new Account(account.getAccountId(), account.getBalance()));
+            }
+            return accounts;
+        }));
+    }
+
+    @Override
+    public void clearAccounts() {
+        CompletableFuture<?>[] cleared = new CompletableFuture<?>[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            cleared[i] = partitions[i].submit(accounts -> {
+                accounts.clear();
+                return null;
+            });
+        }
+        join(CompletableFuture.allOf(cleared));
+    }
+
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        join(this.transferAsync(transfer));
+    }
+
+    @Override
+    public CompletableFuture<Void> transferAsync(Transfer transfer) {
+        Partition source = partitionFor(transfer.getSourceAccountId());
+        Partition destination = partitionFor(transfer.getDestinationAccountId());
+
+        if (source == destination) {
+            return source.submit(accounts -> {
+                Account sourceAccount = findAccount(accounts, transfer.getSourceAccountId());
+                Account destinationAccount = findAccount(accounts, transfer.getDestinationAccountId());
+                debit(sourceAccount, transfer.getAmount());
+                credit(destinationAccount, transfer.getAmount());
+                return null;
+            });
+        }
+
+        List<Partition> involved = new ArrayList<>(2);
+        involved.add(source.index < destination.index ? source : destination);
+        involved.add(source.index < destination.index ? destination : source);
+        return atomically(involved, () -> {
+            Account sourceAccount = findAccount(source.accounts, transfer.getSourceAccountId());
+            Account destinationAccount = findAccount(destination.accounts, transfer.getDestinationAccountId());
+            debit(sourceAccount, transfer.getAmount());
+            credit(destinationAccount, transfer.getAmount());
+            return null;
+        });
+    }
+
+    /**
+     * Applies an all-or-nothing batch in one rendezvous of the partitions of its accounts, so no other operation runs
+     * between its transfers and their undo; best effort batches are applied one transfer at a time
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        if (!allOrNothing) {
+            return AccountsRepository.super.transferBatch(transfers, false);
+        }
+        TreeMap<Integer, Partition> involved = new TreeMap<>();
+        for (Transfer transfer : transfers) {
+            Partition source = partitionFor(transfer.getSourceAccountId());
+            Partition destination = partitionFor(transfer.getDestinationAccountId());
+            involved.put(source.index, source);
+            involved.put(destination.index, destination);
+        }
+        return join(atomically(new ArrayList<>(involved.values()), () -> {
+            List<TransferResult> results = new ArrayList<>(transfers.size());
+            for (Transfer transfer : transfers) {
+                TransferResult result;
+                try {
+                    Account source = findAccount(partitionFor(transfer.getSourceAccountId()).accounts,
+                            transfer.getSourceAccountId());
+                    Account destination = findAccount(partitionFor(transfer.getDestinationAccountId()).accounts,
+                            transfer.getDestinationAccountId());
+                    debit(source, transfer.getAmount());
+                    credit(destination, transfer.getAmount());
+                    result = TransferResult.applied();
+                } catch (NotEnoughBalanceException e) {
+                    result = TransferResult.failed(TransferResult.Status.NOT_ENOUGH_BALANCE, e.getMessage());
+                } catch (RuntimeException e) {
+                    result = TransferResult.failed(TransferResult.Status.REJECTED, e.getMessage());
+                }
+                results.add(result);
+                if (!result.isApplied()) {
+                    // Nothing ran since the transfers applied, so undoing them in reverse order cannot fail
+                    for (int i = results.size() - 2; i >= 0; i--) {
+                        Transfer applied = transfers.get(i);
+                        Account destination = partitionFor(applied.getDestinationAccountId()).accounts
+                                .get(applied.getDestinationAccountId());
+                        Account source = partitionFor(applied.getSourceAccountId()).accounts
+                                .get(applied.getSourceAccountId());
+                        destination.setBalance(destination.getBalance().subtract(applied.getAmount()));
+                        credit(source, applied.getAmount());
+                        results.set(i, TransferResult.aborted());
+                    }
+                    while (results.size() < transfers.size()) {
+                        results.add(TransferResult.aborted());
+                    }
+                    break;
+                }
+            }
+            return results;
+        }));
+    }
+
+    /**
+     * Runs an operation on the accounts of several partitions while none of their owner threads runs anything else
+     *
+     * The first partition coordinates: its owner thread reserves every partition involved, in increasing index
+     * order, then hands a task to every other partition, waits for all of their owner threads to be in it and runs the
+     * operation, then lets them go. Hand-offs are run before the requests of the ring, and by coordinators waiting for
+     * a reservation, so the wait is at most the task each of them is running. Without the reservations a partition
+     * that joined one rendezvous could be the one another coordinator waits for, while that coordinator is needed by
+     * the first one.
+     *
+     * @param involved Distinct partitions in increasing index order
+     * @param operation Reads and writes the accounts of the partitions involved only
+     * @return Future completed with the result of the operation
+     */
+    private static <T> CompletableFuture<T> atomically(List<Partition> involved, Supplier<T> operation) {
+        Partition coordinator = involved.get(0);
+        if (involved.size() == 1) {
+            return coordinator.submit(accounts -> operation.get());
+        }
+        Rendezvous rendezvous = new Rendezvous(involved.size() - 1);
+        return coordinator.submit(accounts -> {
+            int reserved = 0;
+            try {
+                for (Partition partition : involved) {
+                    partition.reserve(coordinator);
+                    reserved++;
+                }
+                for (int i = 1; i < involved.size(); i++) {
+                    involved.get(i).handOff(rendezvous::join);
+                }
+                try {
+                    rendezvous.awaitArrivals(involved);
+                    return operation.get();
+                } finally {
+                    rendezvous.release();
+                }
+            } finally {
+                for (int i = 0; i < reserved; i++) {
+                    involved.get(i).reservation.set(false);
+                }
+            }
+        });
+    }
+
+    @Override
+    public long getContentionCount() {
+        long count = 0;
+        for (Partition partition : partitions) {
+            count += partition.fullRing.sum();
+        }
+        return count;
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        for (Partition partition : partitions) {
+            partition.running = false;
+            LockSupport.unpark(partition.thread);
+        }
+    }
+
+    private Partition partitionFor(String accountId) {
+        int h = accountId.hashCode();
+        return partitions[Math.floorMod(h ^ (h >>> 16), partitions.length)];
+    }
+
+    private static Account findAccount(Map<String, Account> accounts, String accountId) {
+        Account account = accounts.get(accountId);
+        if (account == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+        return account;
+    }
+
+    private static void debit(Account account, BigDecimal amount) {
+        if (account.getBalance().compareTo(amount) < 0) {
+            throw new NotEnoughBalanceException("The source account " + account.getAccountId()
+                    + " has not enough balance!");
+        }
+        account.setBalance(account.getBalance().subtract(amount));
+    }
+
+    private static void credit(Account account, BigDecimal amount) {
+        account.setBalance(account.getBalance().add(amount));
+    }
+
+    /**
+     * Waits for a repository operation and rethrows its exception as it would have been thrown synchronously
+     *
+     * Partition threads must never wait, a callback chained to a future of this repository that calls it back
+     * would otherwise wait for its own thread forever.
+     */
+    private <T> T join(CompletableFuture<T> future) {
+        for (Partition partition : partitions) {
+            if (partition.thread == Thread.currentThread()) {
+                throw new IllegalStateException("Blocking repository call from partition thread "
+                        + partition.thread.getName());
+            }
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Meeting point of the owner threads of the partitions of one operation
+     *
+     * The counter and the flag are volatile, so the accounts written by each owner thread before it joins are seen by
+     * the coordinator and the ones the coordinator writes are seen by the owners once released.
+     */
+    private static final class Rendezvous {
+
+        private final int parties;
+
+        private final AtomicInteger arrived = new AtomicInteger();
+
+        private volatile boolean released;
+
+        Rendezvous(int parties) {
+            this.parties = parties;
+        }
+
+        /**
+         * Runs on the owner thread of a partition other than the coordinator
+         */
+        void join() {
+            arrived.incrementAndGet();
+            while (!released) {
+                Thread.yield();
+            }
+        }
+
+        void awaitArrivals(List<Partition> involved) {
+            while (arrived.get() < parties) {
+                for (Partition partition : involved) {
+                    if (!partition.running) {
+                        throw new IllegalStateException("Partition thread " + partition.thread.getName()
+                                + " has been stopped");
+                    }
+                }
+                Thread.yield();
+            }
+        }
+
+        void release() {
+            released = true;
+        }
+    }
+
+    /**
+     * Single writer owning a subset of the accounts
+     */
+    private static final class Partition implements Runnable {
+
+        private static final int IDLE_SPINS = 100;
+
+        private final int index;
+
+        /**
+         * Only read and written by the partition thread
+         */
+        private final Map<String, Account> accounts = new HashMap<>();
+
+        /**
+         * Bounded queue for requests coming from callers
+         */
+        private final MpscRingBuffer<Runnable> requests;
+
+        /**
+         * Unbounded queue for work handed over by other partition threads, so they never block on a full ring
+         */
+        private final Queue<Runnable> handOffs = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Requests that found the ring full and had to wait for the partition thread
+         */
+        private final LongAdder fullRing = new LongAdder();
+
+        private final Thread thread;
+
+        private volatile boolean running = true;
+
+        private volatile boolean waiting;
+
+        /**
+         * Held by the coordinator of the rendezvous the partition is in
+         */
+        private final AtomicBoolean reservation = new AtomicBoolean();
+
+        Partition(int index, int ringSize) {
+            this.index = index;
+            this.requests = new MpscRingBuffer<>(ringSize);
+            this.thread = new Thread(this, "accounts-partition-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        <T> CompletableFuture<T> submit(Function<Map<String, Account>, T> operation) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable task = () -> {
+                try {
+                    result.complete(operation.apply(accounts));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            };
+            if (!requests.offer(task)) {
+                // Back pressure: the partition is saturated
+                fullRing.increment();
+                do {
+                    Thread.yield();
+                } while (!requests.offer(task));
+            }
+            wakeUp();
+            return result;
+        }
+
+        /**
+         * Reserves the partition for a rendezvous, running the hand-offs of the coordinator until it is free
+         *
+         * @param coordinator Partition whose owner thread is the calling one
+         */
+        void reserve(Partition coordinator) {
+            while (!reservation.compareAndSet(false, true)) {
+                if (!running) {
+                    throw new IllegalStateException("Partition thread " + thread.getName() + " has been stopped");
+                }
+                Runnable task = coordinator.handOffs.poll();
+                if (task != null) {
+                    task.run();
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+
+        void handOff(Runnable task) {
+            handOffs.offer(task);
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running) {
+                Runnable task = handOffs.poll();
+                if (task == null) {
+                    task = requests.poll();
+                }
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Unexpected error in {}", thread.getName(), e);
+                    }
+                    idle = 0;
+                } else if (++idle < IDLE_SPINS) {
+                    Thread.yield();
+                } else {
+                    waiting = true;
+                    if (requests.isEmpty() && handOffs.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    idle = 0;
+                }
+            }
+        }
+    }
+}
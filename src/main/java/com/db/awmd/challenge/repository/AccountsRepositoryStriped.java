@@ -0,0 +1,519 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory repository where both sides of a transfer are updated atomically under striped locks
+ *
+ * Accounts are kept in pages by their handle in an AccountIdDictionary, which is only used as an index from account
+ * id to account: balances are always read and written while holding the stripe of the account. A transfer locks the
+ * stripes of both accounts in global order, so the debit and the credit are seen together and transfers between
+ * unrelated accounts run in parallel.
+ *
+ * An account that keeps receiving credits while its stripe is held by another thread becomes hot: from then on
+ * credits to it go to one of the cells of a HotBalance under the stripe of the source only, so they no longer queue
+ * behind each other. Whoever reads or debits the account folds the cells back into its balance while holding its
+ * stripe, so reads see a consistent sum and a debit can never overdraw it.
+ *
+ * Exports see the balances of one point in time without stopping transfers: starting one holds every stripe just
+ * long enough to fold the hot cells and open a new epoch. The first change of each account in that epoch keeps the
+ * balance it replaces, which the export reads instead of the current one. As balances are immutable, keeping the
+ * previous one costs a reference and no copy.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "striped")
+public class AccountsRepositoryStriped implements AccountsRepository {
+
+    private static final int PAGE_SHIFT = 16;
+
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final AccountIdDictionary handles = new AccountIdDictionary();
+
+    /**
+     * Page directory of the accounts by handle, replaced (never changed in place) when it needs to grow. An account
+     * is stored holding its stripe right after its handle is added, so a handle without account is one still being
+     * created
+     */
+    private volatile Entry[][] entryPages = new Entry[0][];
+
+    private final Object pagesLock = new Object();
+
+    private final StripedLocks locks;
+
+    private final int hotThreshold;
+
+    private final int hotCells;
+
+    /**
+     * Every stripe in ascending order, to hold all of them when an export starts
+     */
+    private final int[] allStripes;
+
+    /**
+     * Accounts with hot cells, added before their cells are published
+     */
+    private final Set<Entry> hotEntries = ConcurrentHashMap.newKeySet();
+
+    private final StripedBatch.Balances<Entry> batchBalances = new StripedBatch.Balances<Entry>() {
+
+        @Override
+        public Entry find(String accountId) {
+            return entryOf(accountId);
+        }
+
+        @Override
+        public int stripeOf(Entry entry) {
+            return locks.stripeFor(entry.account.getAccountId());
+        }
+
+        @Override
+        public BigDecimal getBalance(Entry entry) {
+            return entry.balance();
+        }
+
+        @Override
+        public void setBalance(Entry entry, BigDecimal balance) {
+            // Credits received by hot cells since getBalance stay in the cells and are added on the next drain
+            entry.setBalance(balance);
+        }
+    };
+
+    /**
+     * Changed on clearAccounts, as the versions of the accounts created afterwards start again from 1
+     */
+    private volatile long versionEpoch = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * Epoch of the export running or 0 if there is none, only changed holding every stripe when it starts
+     */
+    private volatile long exportEpoch;
+
+    /**
+     * Guarded by the repository monitor, exports run one at a time
+     */
+    private long exports;
+
+    public AccountsRepositoryStriped(int stripes) {
+        this(stripes, 1000, 0);
+    }
+
+    /**
+     * @param stripes
+     * @param hotThreshold Credits that found the stripe of their destination held before it becomes hot, 0 disables
+     *                     hot accounts
+     * @param hotCells Cells of every hot account, 0 means one per available processor
+     */
+    @Autowired
+    public AccountsRepositoryStriped(@Value("${accounts.repository.striped.stripes:1024}") int stripes,
+                                     @Value("${accounts.repository.striped.hot-threshold:1000}") int hotThreshold,
+                                     @Value("${accounts.repository.striped.hot-cells:0}") int hotCells) {
+        this.locks = new StripedLocks(stripes);
+        this.allStripes = IntStream.range(0, locks.size()).toArray();
+        this.hotThreshold = hotThreshold;
+        this.hotCells = hotCells > 0 ? hotCells : Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        // Keep our own copy so callers cannot change the balance without holding the stripe, which also orders the
+        // creation before or after the start of an export
+        int stripe = locks.stripeFor(account.getAccountId());
+        int handle;
+        locks.lock(stripe);
+        try {
+            handle = handles.add(account.getAccountId());
+            if (handle != AccountIdDictionary.NONE) {
+                this.store(handle, new Entry(new Account(account.getAccountId(), account.getBalance(), 1),
+                        exportEpoch));
+            }
+        } finally {
+            locks.unlock(stripe);
+        }
+        if (handle == AccountIdDictionary.NONE) {
+            throw new DuplicateAccountIdException(
+                    "Account id " + account.getAccountId() + " already exists!");
+        }
+    }
+
+    /**
+     * Returns a copy of the account taken while holding its stripe
+     *
+     * @param accountId
+     * @return Account snapshot or null if it does not exist
+     */
+    @Override
+    public Account getAccount(String accountId) {
+        Entry entry = this.entryOf(accountId);
+        if (entry == null) {
+            return null;
+        }
+        int stripe = locks.stripeFor(accountId);
+        locks.lock(stripe);
+        try {
+            BigDecimal balance = entry.balance();
+            return new Account(accountId, balance, entry.account.getVersion());
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    @Override
+    public void clearAccounts() {
+        versionEpoch = ThreadLocalRandom.current().nextLong();
+        handles.clear();
+        entryPages = new Entry[0][];
+        hotEntries.clear();
+    }
+
+    @Override
+    public long getVersionEpoch() {
+        return versionEpoch;
+    }
+
+    /**
+     * Visits the balances every account had when the export started, reading each one under its stripe
+     *
+     * @param visitor
+     * @param started Runs once the new epoch is open, after every stripe has been released
+     * @throws IOException thrown by the visitor
+     */
+    @Override
+    public synchronized void exportAccounts(AccountVisitor visitor, Runnable started) throws IOException {
+        long epoch = ++exports;
+        locks.lockAll(allStripes);
+        try {
+            // Credits still in hot cells belong to the balances the export has to see
+            for (Entry entry : hotEntries) {
+                entry.balance();
+            }
+            exportEpoch = epoch;
+        } finally {
+            locks.unlockAll(allStripes);
+        }
+
+        try {
+            started.run();
+            int created = handles.size();
+            for (int handle = 0; handle < created; handle++) {
+                Entry entry = this.entryAt(handle);
+                if (entry == null || entry.createdEpoch == epoch) {
+                    continue;
+                }
+                BigDecimal balance;
+                int stripe = locks.stripeFor(entry.account.getAccountId());
+                locks.lock(stripe);
+                try {
+                    balance = entry.savedEpoch == epoch ? entry.saved : entry.account.getBalance();
+                } finally {
+                    locks.unlock(stripe);
+                }
+                visitor.visit(entry.account.getAccountId(), balance);
+            }
+        } finally {
+            exportEpoch = 0;
+        }
+    }
+
+    @Override
+    public long getContentionCount() {
+        return locks.getContentionCount();
+    }
+
+    /**
+     * @param accountId
+     * @return true if credits to the account are spread over cells
+     */
+    public boolean isHot(String accountId) {
+        Entry entry = this.entryOf(accountId);
+        return entry != null && entry.hot != null;
+    }
+
+    /**
+     * Spreads the credits of an account over cells right away, for accounts known to receive most transfers
+     *
+     * @param accountId
+     */
+    public void makeHot(String accountId) {
+        this.promote(this.findEntry(accountId));
+    }
+
+    /**
+     * Performs the amount transfer between accounts holding the stripes of both of them, or only the stripe of the
+     * source when the destination is hot
+     *
+     * @param transfer
+     * @throws NotEnoughBalanceException
+     */
+    @Override
+    public void transfer(final Transfer transfer) throws NotEnoughBalanceException {
+        this.transfer(this.findEntry(transfer.getSourceAccountId()),
+                this.findEntry(transfer.getDestinationAccountId()), transfer);
+    }
+
+    /**
+     * @param accountId
+     * @return Handle of the account, NO_ACCOUNT if it does not exist
+     */
+    @Override
+    public int resolve(String accountId) {
+        int handle = handles.find(accountId);
+        return handle == AccountIdDictionary.NONE || this.entryAt(handle) == null ? NO_ACCOUNT : handle;
+    }
+
+    @Override
+    public void transfer(int source, int destination, Transfer transfer) throws NotEnoughBalanceException {
+        Entry sourceEntry = this.entryAt(source);
+        Entry destinationEntry = this.entryAt(destination);
+        if (sourceEntry == null || destinationEntry == null
+                || !sourceEntry.account.getAccountId().equals(transfer.getSourceAccountId())
+                || !destinationEntry.account.getAccountId().equals(transfer.getDestinationAccountId())) {
+            // Handles resolved before the accounts were cleared may now hold other accounts, look them up again
+            this.transfer(transfer);
+            return;
+        }
+        this.transfer(sourceEntry, destinationEntry, transfer);
+    }
+
+    private void transfer(Entry source, Entry destination, Transfer transfer) {
+        int sourceStripe = locks.stripeFor(source.account.getAccountId());
+        HotBalance hot = destination.hot;
+        if (hot != null) {
+            locks.lock(sourceStripe);
+            try {
+                this.debit(source, transfer.getAmount());
+                hot.credit(transfer.getAmount());
+            } finally {
+                locks.unlock(sourceStripe);
+            }
+            return;
+        }
+
+        int destinationStripe = locks.stripeFor(destination.account.getAccountId());
+        if (locks.isLocked(destinationStripe)) {
+            this.contendedCredit(destination);
+        }
+        locks.lockPair(sourceStripe, destinationStripe);
+        try {
+            this.debit(source, transfer.getAmount());
+            destination.setBalance(destination.account.getBalance().add(transfer.getAmount()));
+        } finally {
+            locks.unlockPair(sourceStripe, destinationStripe);
+        }
+    }
+
+    @Override
+    public void withdraw(String accountId, BigDecimal amount) throws NotEnoughBalanceException {
+        Entry source = this.findEntry(accountId);
+        int stripe = locks.stripeFor(accountId);
+        locks.lock(stripe);
+        try {
+            this.debit(source, amount);
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    @Override
+    public void deposit(String accountId, BigDecimal amount) {
+        Entry destination = this.findEntry(accountId);
+        HotBalance hot = destination.hot;
+        if (hot != null) {
+            hot.credit(amount);
+            return;
+        }
+        int stripe = locks.stripeFor(accountId);
+        locks.lock(stripe);
+        try {
+            destination.setBalance(destination.account.getBalance().add(amount));
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    /**
+     * Reads the accounts holding the stripes of all of them at once
+     *
+     * @param accountIds
+     * @return Account of every id in the same order, null for the ones that do not exist
+     */
+    @Override
+    public List<Account> getAccounts(List<String> accountIds) {
+        List<BigDecimal> balances = StripedBatch.read(locks, batchBalances, accountIds);
+        List<Account> found = new ArrayList<>(balances.size());
+        for (int i = 0; i < balances.size(); i++) {
+            found.add(balances.get(i) == null ? null : new Account(accountIds.get(i), balances.get(i)));
+        }
+        return found;
+    }
+
+    /**
+     * Applies the batch holding the stripes of all its accounts at once
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return Result of every transfer
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, boolean allOrNothing) {
+        return StripedBatch.apply(locks, batchBalances, transfers, allOrNothing);
+    }
+
+    /**
+     * Debits the source, which must have its stripe held
+     */
+    private void debit(Entry source, BigDecimal amount) {
+        BigDecimal balance = source.balance();
+        if (balance.compareTo(amount) < 0) {
+            throw new NotEnoughBalanceException("The source account " + source.account.getAccountId()
+                    + " has not enough balance!");
+        }
+        source.setBalance(balance.subtract(amount));
+    }
+
+    /**
+     * Counts a credit that is about to wait for the stripe of its destination and makes the destination hot once
+     * there have been hotThreshold of them
+     */
+    private void contendedCredit(Entry destination) {
+        if (hotThreshold > 0 && ++destination.contendedCredits >= hotThreshold) {
+            this.promote(destination);
+        }
+    }
+
+    private void promote(Entry entry) {
+        synchronized (entry) {
+            if (entry.hot == null) {
+                hotEntries.add(entry);
+                entry.hot = new HotBalance(hotCells);
+            }
+        }
+    }
+
+    private Entry findEntry(String accountId) {
+        Entry entry = this.entryOf(accountId);
+        if (entry == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+        return entry;
+    }
+
+    /**
+     * @return Account or null if it does not exist
+     */
+    private Entry entryOf(String accountId) {
+        int handle = handles.find(accountId);
+        return handle == AccountIdDictionary.NONE ? null : this.entryAt(handle);
+    }
+
+    /**
+     * @return Account of a handle or null if it is still being created or the accounts have been cleared since
+     */
+    private Entry entryAt(int handle) {
+        Entry[][] pages = entryPages;
+        int page = handle >>> PAGE_SHIFT;
+        return handle >= 0 && page < pages.length ? pages[page][handle & PAGE_MASK] : null;
+    }
+
+    /**
+     * Stores a new account, holding its stripe
+     */
+    private void store(int handle, Entry entry) {
+        int page = handle >>> PAGE_SHIFT;
+        if (page >= entryPages.length) {
+            synchronized (pagesLock) {
+                Entry[][] pages = entryPages;
+                if (page >= pages.length) {
+                    pages = Arrays.copyOf(pages, page + 1);
+                    for (int i = entryPages.length; i <= page; i++) {
+                        pages[i] = new Entry[PAGE_SIZE];
+                    }
+                    entryPages = pages;
+                }
+            }
+        }
+        entryPages[page][handle & PAGE_MASK] = entry;
+    }
+
+    private final class Entry {
+
+        /**
+         * Balance and version guarded by the stripe of the account, without the credits still in the hot cells
+         */
+        private final Account account;
+
+        private volatile HotBalance hot;
+
+        /**
+         * Approximate, lost updates between racing threads only delay the account becoming hot
+         */
+        private int contendedCredits;
+
+        /**
+         * Epoch of the export running when the account was created, which leaves it out
+         */
+        private final long createdEpoch;
+
+        /**
+         * Balance replaced by the first change in savedEpoch, both guarded by the stripe of the account
+         */
+        private BigDecimal saved;
+
+        private long savedEpoch;
+
+        private Entry(Account account, long createdEpoch) {
+            this.account = account;
+            this.createdEpoch = createdEpoch;
+        }
+
+        /**
+         * Changes the balance and moves to the next version, which must be done holding the stripe of the account,
+         * keeping the balance replaced if it is the first change since the running export started
+         */
+        private void setBalance(BigDecimal balance) {
+            long epoch = exportEpoch;
+            if (epoch != 0 && savedEpoch != epoch) {
+                saved = account.getBalance();
+                savedEpoch = epoch;
+            }
+            account.setBalance(balance);
+            account.setVersion(account.getVersion() + 1);
+        }
+
+        /**
+         * Folds the hot cells into the balance, must be called holding the stripe of the account
+         *
+         * @return Whole balance of the account
+         */
+        private BigDecimal balance() {
+            HotBalance cells = this.hot;
+            if (cells != null) {
+                BigDecimal credits = cells.drain();
+                if (credits.signum() != 0) {
+                    this.setBalance(account.getBalance().add(credits));
+                }
+            }
+            return account.getBalance();
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.metrics.AccountCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Repository keeping a bounded working set of accounts in memory and every account in a DiskAccountStore file
+ *
+ * Accounts are loaded from disk on their first use and stay resident until maxResident accounts are in memory,
+ * then the threads adding accounts evict others with the CLOCK approximation of LRU: every access sets a referenced
+ * bit, and a hand sweeping the resident accounts clears the bits it finds set and evicts the first account whose
+ * bit is clear. The resident map of an account is only read and changed under the stripe of the account, so a
+ * transfer never sees it half loaded nor changes an account that is being evicted. Eviction only tries the stripes,
+ * a stripe held by another thread means its accounts are in use.
+ *
+ * Accounts changed since they were loaded are written back by a single writer thread after their eviction, in
+ * eviction order. Until the writer has written an account, its balance stays in a map of pending write backs which
+ * loads read before the disk, so a load never sees an older balance. When the queue of the writer is full, eviction
+ * waits for it. Dirty accounts still in memory are written when the repository is closed.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "accounts.repository", name = "type", havingValue = "tiered")
+@Slf4j
+public class AccountsRepositoryTiered implements AccountsRepository, AutoCloseable {
+
+    public static final int MAX_ID_BYTES = DiskAccountStore.MAX_ID_BYTES;
+
+    /**
+     * Tells the writer to stop once the write backs queued before it are written
+     */
+    private static final WriteBack STOP = new WriteBack(null, 0, -1);
+
+    private final DiskAccountStore store;
+
+    private final StripedLocks locks;
+
+    private final int[] allStripes;
+
+    private final int scale;
+
+    private final int maxResident;
+
+    private final AccountCacheMetrics metrics;
+
+    private final Map<String, Entry> resident = new ConcurrentHashMap<>();
+
+    /**
+     * Write backs queued and not written yet, by account id
+     */
+    private final Map<String, WriteBack> pending = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<WriteBack> writeBacks;
+
+    private final Thread writer;
+
+    private final Object evictionLock = new Object();
+
+    /**
+     * Serializes the writes to the store with clearing it
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Clock hand over the resident accounts, guarded by evictionLock
+     */
+    private Iterator<Entry> hand = Collections.emptyIterator();
+
+    /**
+     * Incremented when the accounts are cleared, write backs queued before are dropped
+     */
+    private volatile long generation;
+
+    /**
+     * Guarded by this
+     */
+    private boolean closed;
+
+    @Autowired
+    public AccountsRepositoryTiered(@Value("${accounts.repository.tiered.path:accounts-tiered.dat}") String path,
+                                    @Value("${accounts.repository.tiered.max-resident:100000}") int maxResident,
+                                    @Value("${accounts.repository.tiered.write-back-capacity:10000}")
+                                            int writeBackCapacity,
+                                    @Value("${accounts.repository.primitive.scale:2}") int scale,
+                                    @Value("${accounts.repository.striped.stripes:1024}") int stripes,
+                                    AccountCacheMetrics metrics) {
+        this(Paths.get(path), maxResident, writeBackCapacity, scale, stripes, metrics);
+    }
+
+    public AccountsRepositoryTiered(Path path, int maxResident, int writeBackCapacity, int scale, int stripes,
+                                    AccountCacheMetrics metrics) {
+        if (maxResident <= 0 || writeBackCapacity <= 0) {
+            throw new IllegalArgumentException("Tiered max resident accounts and write back capacity must be greater"
+                    + " than 0");
+        }
+        this.maxResident = maxResident;
+        this.scale = scale;
+        this.metrics = metrics;
+        this.locks = new StripedLocks(stripes);
+        this.allStripes = IntStream.range(0, locks.size()).toArray();
+        this.writeBacks = new ArrayBlockingQueue<>(writeBackCapacity);
+        // Twice the resident accounts, as the store is rebuilt when half full
+        this.store = new DiskAccountStore(path, scale, maxResident * 2L);
+        this.writer = new Thread(this::writeBackLoop, "accounts-tiered-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.info("Opened account store {} with {} accounts", path, store.size());
+    }
+
+    @Override
+    public void createAccount(Account account) throws DuplicateAccountIdException {
+        String accountId = account.getAccountId();
+        if (accountId.getBytes(StandardCharsets.UTF_8).length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Account id " + accountId + " is longer than " + MAX_ID_BYTES
+                    + " bytes");
+        }
+        long balance = MinorUnits.toMinorUnits(account.getBalance(), scale);
+
+        int stripe = locks.stripeFor(accountId);
+        locks.lock(stripe);
+        try {
+            if (this.residentEntry(accountId) != null) {
+                throw new DuplicateAccountIdException("Account id " + accountId + " already exists!");
+            }
+            Entry entry = new Entry(accountId, balance);
+            entry.dirty = true;
+            resident.put(accountId, entry);
+        } finally {
+            locks.unlock(stripe);
+        }
+        this.evict();
+    }
+
+    @Override
+    public Account getAccount(String accountId) {
+        long balance;
+        int stripe = locks.stripeFor(accountId);
+        locks.lock(stripe);
+        try {
+            Entry entry = this.residentEntry(accountId);
+            if (entry == null) {
+                return null;
+            }
+            balance = entry.balance;
+        } finally {
+            locks.unlock(stripe);
+        }
+        this.evict();
+        return new Account(accountId, MinorUnits.toBigDecimal(balance, scale));
+    }
+
+    @Override
+    public void clearAccounts() {
+        locks.lockAll(allStripes);
+        try {
+            synchronized (writeLock) {
+                generation++;
+                resident.clear();
+                pending.clear();
+                writeBacks.clear();
+                store.clear();
+            }
+        } finally {
+            locks.unlockAll(allStripes);
+        }
+    }
+
+    @Override
+    public long getContentionCount() {
+        return locks.getContentionCount();
+    }
+
+    /**
+     * Performs the transfer holding the stripes of both accounts, loading them first if they are not in memory
+     *
+     * @param transfer
+     * @throws NotEnoughBalanceException if the source balance is lower than the amount
+     * @throws BalanceOverflowException if the destination balance would not fit in a long
+     */
+    @Override
+    public void transfer(Transfer transfer) throws NotEnoughBalanceException {
+        long amount = MinorUnits.toMinorUnits(transfer.getAmount(), scale);
+        int sourceStripe = locks.stripeFor(transfer.getSourceAccountId());
+        int destinationStripe = locks.stripeFor(transfer.getDestinationAccountId());
+
+        locks.lockPair(sourceStripe, destinationStripe);
+        try {
+            Entry source = this.findEntry(transfer.getSourceAccountId());
+            Entry destination = this.findEntry(transfer.getDestinationAccountId());
+            if (source.balance < amount) {
+                throw new NotEnoughBalanceException("The source account " + source.accountId
+                        + " has not enough balance!");
+            }
+            if (destination.balance > Long.MAX_VALUE - amount) {
+                throw new BalanceOverflowException("The destination account " + destination.accountId
+                        + " balance would overflow");
+            }
+            source.balance -= amount;
+            destination.balance += amount;
+            source.dirty = true;
+            destination.dirty = true;
+        } finally {
+            locks.unlockPair(sourceStripe, destinationStripe);
+        }
+        this.evict();
+    }
+
+    @Override
+    public void refund(Transfer applied) {
+        long amount = MinorUnits.toMinorUnits(applied.getAmount(), scale);
+        int sourceStripe = locks.stripeFor(applied.getSourceAccountId());
+        int destinationStripe = locks.stripeFor(applied.getDestinationAccountId());
+
+        locks.lockPair(sourceStripe, destinationStripe);
+        try {
+            Entry source = this.findEntry(applied.getSourceAccountId());
+            Entry destination = this.findEntry(applied.getDestinationAccountId());
+            if (source.balance > Long.MAX_VALUE - amount) {
+                throw new BalanceOverflowException("The source account " + source.accountId
+                        + " balance would overflow");
+            }
+            destination.balance -= amount;
+            source.balance += amount;
+            source.dirty = true;
+            destination.dirty = true;
+        } finally {
+            locks.unlockPair(sourceStripe, destinationStripe);
+        }
+        this.evict();
+    }
+
+    /**
+     * @return Number of accounts in memory
+     */
+    public int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * @return Number of evicted accounts waiting to be written to disk
+     */
+    public int getPendingWriteBackCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the writer once it has written the queued accounts, then writes the changed accounts still in memory and
+     * closes the store. Closing again does nothing
+     */
+    @PreDestroy
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeBacks.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        }
+        locks.lockAll(allStripes);
+        try {
+            synchronized (writeLock) {
+                // Pending write backs first, an account loaded again from one is newer in memory
+                for (WriteBack writeBack : pending.values()) {
+                    store.write(writeBack.accountId, writeBack.balance);
+                }
+                pending.clear();
+                for (Entry entry : resident.values()) {
+                    if (entry.dirty) {
+                        store.write(entry.accountId, entry.balance);
+                        entry.dirty = false;
+                    }
+                }
+            }
+        } finally {
+            locks.unlockAll(allStripes);
+        }
+        store.close();
+    }
+
+    /**
+     * @return Resident entry of an existing account, loaded if needed
+     * @throws IllegalArgumentException if the account does not exist
+     */
+    private Entry findEntry(String accountId) {
+        Entry entry = this.residentEntry(accountId);
+        if (entry == null) {
+            throw new IllegalArgumentException("Account " + accountId + " does not exist");
+        }
+        return entry;
+    }
+
+    /**
+     * Finds the account in memory or loads it, from its pending write back if there is one or else from the store.
+     * The stripe of the account must be held
+     *
+     * @return Resident entry or null if the account does not exist
+     */
+    private Entry residentEntry(String accountId) {
+        Entry entry = resident.get(accountId);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            metrics.hit();
+            return entry;
+        }
+        long start = System.nanoTime();
+        WriteBack writeBack = pending.get(accountId);
+        Long balance = writeBack != null ? Long.valueOf(writeBack.balance) : store.read(accountId);
+        metrics.miss(System.nanoTime() - start);
+        if (balance == null) {
+            return null;
+        }
+        entry = new Entry(accountId, balance);
+        resident.put(accountId, entry);
+        return entry;
+    }
+
+    /**
+     * Evicts accounts until at most maxResident are in memory, giving up after two turns of the clock hand. Must be
+     * called without holding any stripe
+     */
+    private void evict() {
+        if (resident.size() <= maxResident) {
+            return;
+        }
+        synchronized (evictionLock) {
+            for (int budget = 2 * resident.size(); budget > 0 && resident.size() > maxResident; budget--) {
+                if (!hand.hasNext()) {
+                    hand = resident.values().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+                Entry entry = hand.next();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    continue;
+                }
+                int stripe = locks.stripeFor(entry.accountId);
+                if (!locks.tryLock(stripe)) {
+                    continue;
+                }
+                try {
+                    // The iterator may return an entry already evicted, or replaced after being loaded again
+                    if (!resident.remove(entry.accountId, entry)) {
+                        continue;
+                    }
+                    metrics.eviction();
+                    if (entry.dirty) {
+                        this.queueWriteBack(entry);
+                    }
+                } finally {
+                    locks.unlock(stripe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the balance of an evicted account to the writer, waiting while its queue is full. The stripe of the
+     * account must be held
+     */
+    private void queueWriteBack(Entry entry) {
+        WriteBack writeBack = new WriteBack(entry.accountId, entry.balance, generation);
+        pending.put(entry.accountId, writeBack);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writeBacks.put(writeBack);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBackLoop() {
+        while (true) {
+            WriteBack writeBack;
+            try {
+                writeBack = writeBacks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (writeBack == STOP) {
+                return;
+            }
+            synchronized (writeLock) {
+                if (writeBack.generation != generation) {
+                    continue;
+                }
+                try {
+                    store.write(writeBack.accountId, writeBack.balance);
+                } catch (UncheckedIOException e) {
+                    // Left pending, so loads still find the balance and close writes it again
+                    log.error("Cannot write back account {}", writeBack.accountId, e);
+                    continue;
+                }
+            }
+            // A later eviction of the same account has replaced it with its own write back
+            pending.remove(writeBack.accountId, writeBack);
+            metrics.writeBack();
+        }
+    }
+
+    private static final class Entry {
+
+        private final String accountId;
+
+        /**
+         * Balance in minor units, guarded by the stripe of the account
+         */
+        private long balance;
+
+        /**
+         * Changed since it was loaded, guarded by the stripe of the account
+         */
+        private boolean dirty;
+
+        /**
+         * Accessed since the clock hand last passed, a new entry starts referenced
+         */
+        private volatile boolean referenced = true;
+
+        private Entry(String accountId, long balance) {
+            this.accountId = accountId;
+            this.balance = balance;
+        }
+    }
+
+    private static final class WriteBack {
+
+        private final String accountId;
+
+        private final long balance;
+
+        private final long generation;
+
+        private WriteBack(String accountId, long balance, long generation) {
+            this.accountId = accountId;
+            this.balance = balance;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.db.awmd.challenge.repository;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * File of account balances in minor units, kept as an open addressing hash table of fixed width records
+ *
+ * The file starts with a header (magic, version, scale, record size, capacity and number of accounts) followed by
+ * capacity records laid out as in the mapped repository: balance, id length (0 for a free record) and UTF-8 id bytes.
+ * An account lives in the first record from the hash of its id that is free or holds it, so a lookup reads one probe
+ * chain with positional reads and nothing is kept in memory per account. When the table is half full it is rebuilt
+ * into a new file twice as big, which then replaces the old one.
+ *
+ * Lookups share a read lock, writes and rebuilds take the write lock, so a lookup never sees a record half written.
+ */
+final class DiskAccountStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x41435444;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int CAPACITY_OFFSET = 16;
+
+    private static final int COUNT_OFFSET = 24;
+
+    private static final int RECORD_SIZE = 128;
+
+    private static final int BALANCE_OFFSET = 0;
+
+    private static final int ID_LENGTH_OFFSET = 8;
+
+    private static final int ID_OFFSET = 10;
+
+    static final int MAX_ID_BYTES = RECORD_SIZE - ID_OFFSET;
+
+    /**
+     * Records read at once when a rebuild copies the table
+     */
+    private static final int REBUILD_BATCH = 512;
+
+    private final Path path;
+
+    private final int scale;
+
+    private final long initialCapacity;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Guarded by lock, replaced by rebuilds
+     */
+    private FileChannel channel;
+
+    /**
+     * Number of records, a power of two, guarded by lock
+     */
+    private long capacity;
+
+    /**
+     * Number of records in use, guarded by lock
+     */
+    private long count;
+
+    /**
+     * Opens the store, creating the file if it does not exist
+     *
+     * @param path
+     * @param scale Number of decimals of a minor unit, must match the one of an existing file
+     * @param initialCapacity Records of a new file, rounded up to the next power of two
+     */
+    DiskAccountStore(Path path, int scale, long initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("The initial capacity of the account store must be greater than 0");
+        }
+        this.path = path;
+        this.scale = scale;
+        this.initialCapacity = Long.highestOneBit(initialCapacity) < initialCapacity
+                ? Long.highestOneBit(initialCapacity) << 1 : initialCapacity;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open account store " + path, e);
+        }
+        try {
+            if (this.channel.size() == 0) {
+                this.initialize(this.channel, this.initialCapacity);
+                this.capacity = this.initialCapacity;
+            } else {
+                this.readHeader();
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                this.channel.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            if (e instanceof IOException) {
+                throw new UncheckedIOException("Cannot read account store " + path, (IOException) e);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * @param accountId
+     * @return Balance in minor units or null if the account is not in the store
+     */
+    Long read(String accountId) {
+        byte[] id = accountId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        lock.readLock().lock();
+        try {
+            this.find(channel, capacity, id, record);
+            return record.getShort(ID_LENGTH_OFFSET) == 0 ? null : record.getLong(BALANCE_OFFSET);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read account " + accountId + " from " + path, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the balance of an account, adding the account if it is not in the store
+     *
+     * @param accountId
+     * @param balance Balance in minor units
+     */
+    void write(String accountId, long balance) {
+        byte[] id = accountId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Account id " + accountId + " is longer than " + MAX_ID_BYTES
+                    + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        lock.writeLock().lock();
+        try {
+            long slot = this.find(channel, capacity, id, record);
+            if (record.getShort(ID_LENGTH_OFFSET) != 0) {
+                ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+                value.putLong(0, balance);
+                writeFully(channel, value, offsetOf(slot) + BALANCE_OFFSET);
+                return;
+            }
+            if ((count + 1) * 2 > capacity) {
+                this.rebuild();
+                slot = this.find(channel, capacity, id, record);
+            }
+            writeRecord(channel, slot, id, balance);
+            count++;
+            this.writeCount(channel, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write account " + accountId + " to " + path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of accounts in the store
+     */
+    long size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every account, shrinking the file back to its initial capacity
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            channel.truncate(0);
+            this.initialize(channel, initialCapacity);
+            capacity = initialCapacity;
+            count = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot clear account store " + path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the file to the storage device
+     */
+    void force() {
+        lock.readLock().lock();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot force account store " + path, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (!channel.isOpen()) {
+                return;
+            }
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close account store " + path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the probe chain of an id until the record holding it or the first free record
+     *
+     * @param record Left holding the record found
+     * @return Slot of the record found
+     */
+    private long find(FileChannel table, long tableCapacity, byte[] id, ByteBuffer record) throws IOException {
+        long mask = tableCapacity - 1;
+        for (long slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+            record.clear();
+            readFully(table, record, offsetOf(slot));
+            int length = record.getShort(ID_LENGTH_OFFSET);
+            if (length == 0 || length == id.length && sameId(record, id)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Copies every record into a new file of twice the capacity and replaces the current file with it
+     */
+    private void rebuild() throws IOException {
+        Path rebuilt = path.resolveSibling(path.getFileName() + ".rebuild");
+        long grownCapacity = capacity * 2;
+        FileChannel grown = FileChannel.open(rebuilt, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            this.initialize(grown, grownCapacity);
+            ByteBuffer batch = ByteBuffer.allocate(REBUILD_BATCH * RECORD_SIZE);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for (long first = 0; first < capacity; first += REBUILD_BATCH) {
+                int records = (int) Math.min(REBUILD_BATCH, capacity - first);
+                batch.clear();
+                batch.limit(records * RECORD_SIZE);
+                readFully(channel, batch, offsetOf(first));
+                for (int i = 0; i < records; i++) {
+                    int length = batch.getShort(i * RECORD_SIZE + ID_LENGTH_OFFSET);
+                    if (length == 0) {
+                        continue;
+                    }
+                    byte[] id = new byte[length];
+                    for (int b = 0; b < length; b++) {
+                        id[b] = batch.get(i * RECORD_SIZE + ID_OFFSET + b);
+                    }
+                    long slot = this.find(grown, grownCapacity, id, record);
+                    writeRecord(grown, slot, id, batch.getLong(i * RECORD_SIZE + BALANCE_OFFSET));
+                }
+            }
+            this.writeCount(grown, count);
+            grown.force(false);
+            Files.move(rebuilt, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            grown.close();
+            throw e;
+        }
+        channel.close();
+        channel = grown;
+        capacity = grownCapacity;
+    }
+
+    /**
+     * Writes the header of an empty table and extends the file to hold all its records
+     */
+    private void initialize(FileChannel table, long tableCapacity) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, scale);
+        header.putInt(12, RECORD_SIZE);
+        header.putLong(CAPACITY_OFFSET, tableCapacity);
+        header.putLong(COUNT_OFFSET, 0);
+        writeFully(table, header, 0);
+        // Free records are zeros, the file stays sparse until they are written
+        writeFully(table, ByteBuffer.allocate(1), offsetOf(tableCapacity) - 1);
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(12) != RECORD_SIZE) {
+            throw new IllegalStateException(path + " is not an account store of version " + VERSION);
+        }
+        if (header.getInt(8) != scale) {
+            throw new IllegalStateException(path + " stores balances with scale " + header.getInt(8)
+                    + " instead of " + scale);
+        }
+        capacity = header.getLong(CAPACITY_OFFSET);
+        count = header.getLong(COUNT_OFFSET);
+    }
+
+    private void writeCount(FileChannel table, long records) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+        value.putLong(0, records);
+        writeFully(table, value, COUNT_OFFSET);
+    }
+
+    private static void writeRecord(FileChannel table, long slot, byte[] id, long balance) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(ID_OFFSET + id.length);
+        record.putLong(BALANCE_OFFSET, balance);
+        record.putShort(ID_LENGTH_OFFSET, (short) id.length);
+        record.position(ID_OFFSET);
+        record.put(id);
+        record.clear();
+        writeFully(table, record, offsetOf(slot));
+    }
+
+    private static boolean sameId(ByteBuffer record, byte[] id) {
+        for (int i = 0; i < id.length; i++) {
+            if (record.get(ID_OFFSET + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long offsetOf(long slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Hash of the UTF-8 id, stable across restarts as records are placed by it
+     */
+    private static long hash(byte[] id) {
+        int h = 0;
+        for (byte b : id) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static void readFully(FileChannel table, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (table.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Account store is shorter than its capacity");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel table, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            table.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.db.awmd.challenge.repository;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Credits received by a hot account, spread over several cells the way LongAdder spreads a counter
+ *
+ * Each cell has its own lock, so concurrent credits to the same account land on different cells instead of queuing
+ * on its stripe. Cells only ever grow: they are folded back into the account balance with drain, which the account
+ * owner calls holding the stripe of the account before reading or debiting the balance. Cell locks are always taken
+ * after stripe locks and in ascending cell order, and a thread only holds the cells of one account at a time.
+ */
+final class HotBalance {
+
+    private final Cell[] cells;
+
+    HotBalance(int cells) {
+        this.cells = new Cell[cells];
+        for (int i = 0; i < cells; i++) {
+            this.cells[i] = new Cell();
+        }
+    }
+
+    /**
+     * Adds the amount to the first free cell from a random start, waiting on that cell if all of them are held
+     *
+     * @param amount
+     */
+    void credit(BigDecimal amount) {
+        int start = ThreadLocalRandom.current().nextInt(cells.length);
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[(start + i) % cells.length];
+            if (cell.lock.tryLock()) {
+                cell.add(amount);
+                return;
+            }
+        }
+        Cell cell = cells[start];
+        cell.lock.lock();
+        cell.add(amount);
+    }
+
+    /**
+     * Takes the credits of all the cells at once, leaving them empty
+     *
+     * @return Sum of the credits received since the last drain
+     */
+    BigDecimal drain() {
+        for (Cell cell : cells) {
+            cell.lock.lock();
+        }
+        BigDecimal sum = BigDecimal.ZERO;
+        for (int i = cells.length - 1; i >= 0; i--) {
+            Cell cell = cells[i];
+            sum = sum.add(cell.credits);
+            cell.credits = BigDecimal.ZERO;
+            cell.lock.unlock();
+        }
+        return sum;
+    }
+
+    private static final class Cell {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Guarded by lock
+         */
+        private BigDecimal credits = BigDecimal.ZERO;
+
+        /**
+         * Adds to the credits and releases the lock, which must be held
+         */
+        private void add(BigDecimal amount) {
+            try {
+                credits = credits.add(amount);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
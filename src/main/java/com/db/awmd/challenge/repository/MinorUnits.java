@@ -0,0 +1,63 @@
+package com.db.awmd.challenge.repository;
+
+import java.math.BigDecimal;
+
+/**
+ * Conversions between BigDecimal amounts and long amounts in minor units (e.g. cents for a scale of 2)
+ */
+public final class MinorUnits {
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+
+    private MinorUnits() {
+    }
+
+    /**
+     * Converts an amount to minor units
+     *
+     * @param amount
+     * @param scale Number of decimals of a minor unit
+     * @return Amount in minor units
+     * @throws IllegalArgumentException if the amount has more decimals than the scale or does not fit in a long
+     */
+    public static long toMinorUnits(BigDecimal amount, int scale) {
+        int amountScale = amount.scale();
+        if (amountScale >= 0 && amountScale <= scale && scale < POWERS_OF_TEN.length && amount.precision() < 19) {
+            // Whole amounts are read without allocating, longValue does not inflate a compact BigDecimal. Amounts
+            // with decimals only allocate their unscaled BigInteger, then are scaled up from the table
+            long unscaled = amountScale == 0 ? amount.longValue() : amount.unscaledValue().longValueExact();
+            try {
+                return Math.multiplyExact(unscaled, POWERS_OF_TEN[scale - amountScale]);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Amount " + amount.toPlainString() + " is too large");
+            }
+        }
+        BigDecimal scaled = amount.movePointRight(scale);
+        if (scaled.signum() != 0 && scaled.stripTrailingZeros().scale() > 0) {
+            throw new IllegalArgumentException("Amount " + amount.toPlainString() + " has more than "
+                    + scale + " decimals");
+        }
+        try {
+            return scaled.longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Amount " + amount.toPlainString() + " is too large");
+        }
+    }
+
+    /**
+     * Converts minor units back to an amount. Whole amounts are returned without decimals, as they are usually
+     * written by clients
+     *
+     * @param minorUnits
+     * @param scale Number of decimals of a minor unit
+     * @return Amount
+     */
+    public static BigDecimal toBigDecimal(long minorUnits, int scale) {
+        if (scale < POWERS_OF_TEN.length && minorUnits % POWERS_OF_TEN[scale] == 0) {
+            return BigDecimal.valueOf(minorUnits / POWERS_OF_TEN[scale]);
+        }
+        return BigDecimal.valueOf(minorUnits, scale);
+    }
+}
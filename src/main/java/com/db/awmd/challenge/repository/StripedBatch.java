@@ -0,0 +1,222 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies transfer batches on repositories whose balances are protected by StripedLocks
+ *
+ * The stripes of every account in the batch are acquired once, in ascending order, instead of a pair per transfer.
+ * While they are held the transfers are worked out on a copy of the balances involved and each changed account is
+ * written back once, so opposing flows between the same accounts cost nothing more than their net effect.
+ *
+ * Best effort batches apply the transfers in request order and reject the ones the source cannot pay at that point.
+ * All-or-nothing batches are settled on net positions: they are applied when no account ends the batch with a
+ * negative balance, as if every transfer happened at once, and otherwise nothing is written.
+ *
+ * Batches of reads hold the stripes of all their accounts the same way. No transfer between them can be in flight
+ * while they are read, so the balances returned are one consistent view of the set.
+ */
+final class StripedBatch {
+
+    /**
+     * Access to the balances of a repository, by account handle
+     *
+     * @param <H> Handle of an account in the repository
+     */
+    interface Balances<H> {
+
+        /**
+         * @return Handle of the account or null if it does not exist
+         */
+        H find(String accountId);
+
+        int stripeOf(H account);
+
+        /**
+         * Called with the stripe of the account held
+         */
+        BigDecimal getBalance(H account);
+
+        /**
+         * Called with the stripe of the account held
+         */
+        void setBalance(H account, BigDecimal balance);
+
+        /**
+         * @throws IllegalArgumentException if the repository cannot store the amount
+         */
+        default void checkAmount(BigDecimal amount) {
+        }
+
+        /**
+         * @throws BalanceOverflowException if the repository cannot store the balance
+         */
+        default void checkBalance(BigDecimal balance) {
+        }
+    }
+
+    private StripedBatch() {
+    }
+
+    static <H> List<TransferResult> apply(StripedLocks locks, Balances<H> balances, List<Transfer> transfers,
+                                          boolean allOrNothing) {
+        TransferResult[] results = new TransferResult[transfers.size()];
+        Map<String, H> accounts = new HashMap<>();
+        boolean rejected = false;
+        for (int i = 0; i < results.length; i++) {
+            Transfer transfer = transfers.get(i);
+            H source = accounts.computeIfAbsent(transfer.getSourceAccountId(), balances::find);
+            H destination = accounts.computeIfAbsent(transfer.getDestinationAccountId(), balances::find);
+            try {
+                if (source == null || destination == null) {
+                    throw new IllegalArgumentException("Account " + (source == null ? transfer.getSourceAccountId()
+                            : transfer.getDestinationAccountId()) + " does not exist");
+                }
+                balances.checkAmount(transfer.getAmount());
+            } catch (IllegalArgumentException e) {
+                results[i] = TransferResult.failed(TransferResult.Status.REJECTED, e.getMessage());
+                rejected = true;
+            }
+        }
+        if (allOrNothing && rejected) {
+            return abort(results);
+        }
+
+        int[] stripes = accounts.values().stream()
+                .filter(account -> account != null)
+                .mapToInt(balances::stripeOf)
+                .distinct()
+                .sorted()
+                .toArray();
+        locks.lockAll(stripes);
+        try {
+            Map<H, BigDecimal> working = new HashMap<>();
+            if (allOrNothing) {
+                if (!settleNet(balances, transfers, accounts, working, results)) {
+                    return abort(results);
+                }
+            } else {
+                applyInOrder(balances, transfers, accounts, working, results);
+            }
+            working.forEach(balances::setBalance);
+        } finally {
+            locks.unlockAll(stripes);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Reads the balances of several accounts holding the stripes of all of them at once
+     *
+     * @return Balance of every account in the same order, null for the ones that do not exist
+     */
+    static <H> List<BigDecimal> read(StripedLocks locks, Balances<H> balances, List<String> accountIds) {
+        List<H> accounts = new ArrayList<>(accountIds.size());
+        BitSet involved = new BitSet(locks.size());
+        for (String accountId : accountIds) {
+            H account = balances.find(accountId);
+            accounts.add(account);
+            if (account != null) {
+                involved.set(balances.stripeOf(account));
+            }
+        }
+
+        int[] stripes = involved.stream().toArray();
+        List<BigDecimal> read = new ArrayList<>(accounts.size());
+        locks.lockAll(stripes);
+        try {
+            for (H account : accounts) {
+                read.add(account == null ? null : balances.getBalance(account));
+            }
+        } finally {
+            locks.unlockAll(stripes);
+        }
+        return read;
+    }
+
+    private static <H> void applyInOrder(Balances<H> balances, List<Transfer> transfers, Map<String, H> accounts,
+                                         Map<H, BigDecimal> working, TransferResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            Transfer transfer = transfers.get(i);
+            H source = accounts.get(transfer.getSourceAccountId());
+            H destination = accounts.get(transfer.getDestinationAccountId());
+            BigDecimal sourceBalance = working.computeIfAbsent(source, balances::getBalance);
+            if (sourceBalance.compareTo(transfer.getAmount()) < 0) {
+                results[i] = TransferResult.failed(TransferResult.Status.NOT_ENOUGH_BALANCE,
+                        "The source account " + transfer.getSourceAccountId() + " has not enough balance!");
+                continue;
+            }
+            BigDecimal destinationBalance = working.computeIfAbsent(destination, balances::getBalance)
+                    .add(transfer.getAmount());
+            try {
+                balances.checkBalance(destinationBalance);
+            } catch (BalanceOverflowException e) {
+                results[i] = TransferResult.failed(TransferResult.Status.REJECTED, "The destination account "
+                        + transfer.getDestinationAccountId() + " balance would overflow");
+                continue;
+            }
+            working.put(source, sourceBalance.subtract(transfer.getAmount()));
+            working.put(destination, destinationBalance);
+            results[i] = TransferResult.applied();
+        }
+    }
+
+    /**
+     * Works out the net position of every account and marks the transfers out of the accounts that cannot pay it
+     *
+     * @return true when every account can settle its net position
+     */
+    private static <H> boolean settleNet(Balances<H> balances, List<Transfer> transfers, Map<String, H> accounts,
+                                         Map<H, BigDecimal> working, TransferResult[] results) {
+        for (Transfer transfer : transfers) {
+            H source = accounts.get(transfer.getSourceAccountId());
+            H destination = accounts.get(transfer.getDestinationAccountId());
+            working.put(source, working.computeIfAbsent(source, balances::getBalance).subtract(transfer.getAmount()));
+            working.put(destination, working.computeIfAbsent(destination, balances::getBalance)
+                    .add(transfer.getAmount()));
+        }
+        boolean settled = true;
+        for (int i = 0; i < results.length; i++) {
+            Transfer transfer = transfers.get(i);
+            if (working.get(accounts.get(transfer.getSourceAccountId())).signum() < 0) {
+                results[i] = TransferResult.failed(TransferResult.Status.NOT_ENOUGH_BALANCE, "The source account "
+                        + transfer.getSourceAccountId() + " has not enough balance to settle the batch!");
+                settled = false;
+                continue;
+            }
+            try {
+                balances.checkBalance(working.get(accounts.get(transfer.getDestinationAccountId())));
+            } catch (BalanceOverflowException e) {
+                results[i] = TransferResult.failed(TransferResult.Status.REJECTED, "The destination account "
+                        + transfer.getDestinationAccountId() + " balance would overflow");
+                settled = false;
+            }
+        }
+        if (settled) {
+            Arrays.fill(results, TransferResult.applied());
+        }
+        return settled;
+    }
+
+    private static List<TransferResult> abort(TransferResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null || results[i].isApplied()) {
+                results[i] = TransferResult.aborted();
+            }
+        }
+        return Arrays.asList(results);
+    }
+}
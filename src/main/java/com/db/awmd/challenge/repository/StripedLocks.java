@@ -0,0 +1,148 @@
+package com.db.awmd.challenge.repository;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed table of locks where each account id is mapped to one stripe by hash
+ *
+ * Pairs of stripes are always acquired in ascending index order, so two transfers in opposite directions between
+ * the same accounts (or between any accounts sharing stripes) cannot deadlock. The number of stripes is rounded up
+ * to the next power of two so the stripe can be computed with a mask.
+ *
+ * Acquisitions first try the lock without waiting, so the ones that found it held by another thread can be counted.
+ */
+public class StripedLocks {
+
+    private final ReentrantLock[] locks;
+
+    private final int mask;
+
+    private final LongAdder contended = new LongAdder();
+
+    public StripedLocks(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("The number of lock stripes must be greater than 0");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public int size() {
+        return this.locks.length;
+    }
+
+    /**
+     * Number of acquisitions that had to wait for another thread holding the stripe
+     *
+     * @return Count since the locks were created
+     */
+    public long getContentionCount() {
+        return this.contended.sum();
+    }
+
+    /**
+     * Maps a key to its stripe, spreading the hash bits the same way HashMap does
+     *
+     * @param key
+     * @return Stripe index
+     */
+    public int stripeFor(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    /**
+     * Maps a dense integer slot to its stripe, consecutive slots fall on different stripes
+     *
+     * @param slot
+     * @return Stripe index
+     */
+    public int stripeForSlot(int slot) {
+        return slot & this.mask;
+    }
+
+    /**
+     * Whether another thread holds the stripe right now, a hint that acquiring it would have to wait
+     *
+     * @param stripe
+     * @return true if the stripe is locked
+     */
+    public boolean isLocked(int stripe) {
+        return this.locks[stripe].isLocked();
+    }
+
+    public void lock(int stripe) {
+        this.acquire(this.locks[stripe]);
+    }
+
+    /**
+     * Acquires the stripe only if no other thread holds it, without counting contention
+     *
+     * @param stripe
+     * @return true if the stripe was acquired
+     */
+    public boolean tryLock(int stripe) {
+        return this.locks[stripe].tryLock();
+    }
+
+    public void unlock(int stripe) {
+        this.locks[stripe].unlock();
+    }
+
+    /**
+     * Acquires both stripes in global (ascending) order. Acquires only once when both are the same stripe
+     *
+     * @param first
+     * @param second
+     */
+    public void lockPair(int first, int second) {
+        if (first == second) {
+            this.acquire(this.locks[first]);
+        } else if (first < second) {
+            this.acquire(this.locks[first]);
+            this.acquire(this.locks[second]);
+        } else {
+            this.acquire(this.locks[second]);
+            this.acquire(this.locks[first]);
+        }
+    }
+
+    /**
+     * Acquires several stripes, which must be sorted in ascending order and distinct
+     *
+     * @param stripes
+     */
+    public void lockAll(int[] stripes) {
+        for (int stripe : stripes) {
+            this.acquire(this.locks[stripe]);
+        }
+    }
+
+    public void unlockAll(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            this.locks[stripes[i]].unlock();
+        }
+    }
+
+    public void unlockPair(int first, int second) {
+        this.locks[first].unlock();
+        if (first != second) {
+            this.locks[second].unlock();
+        }
+    }
+
+    private void acquire(ReentrantLock lock) {
+        if (!lock.tryLock()) {
+            this.contended.increment();
+            lock.lock();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountImportResult;
+import com.db.awmd.challenge.domain.AccountImportSummary;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Creates accounts from newline delimited JSON, one Account per line, read incrementally
+ *
+ * Lines are parsed and validated one at a time and the valid accounts are created in chunks, so memory use depends
+ * on the chunk size and not on the size of the import. Rejected lines are reported to the listener as soon as their
+ * chunk is created, with the reason: invalid JSON, failed validation, duplicate id or any error of the repository.
+ */
+@Component
+public class AccountsImporter {
+
+    /**
+     * Receives the rejected lines while the import runs
+     */
+    public interface Listener {
+
+        void rejected(AccountImportResult result) throws IOException;
+    }
+
+    private final AccountsRepository accountsRepository;
+
+    private final ObjectReader accountReader;
+
+    private final Validator validator;
+
+    private final int chunkSize;
+
+    private final int maxLineLength;
+
+    public AccountsImporter(AccountsRepository accountsRepository, ObjectMapper objectMapper, Validator validator,
+                            @Value("${accounts.import.chunk-size:1000}") int chunkSize,
+                            @Value("${accounts.import.max-line-length:4096}") int maxLineLength) {
+        if (chunkSize <= 0 || maxLineLength <= 0) {
+            throw new IllegalArgumentException("Import chunk size and max line length must be greater than 0");
+        }
+        this.accountsRepository = accountsRepository;
+        this.accountReader = objectMapper.readerFor(Account.class);
+        this.validator = validator;
+        this.chunkSize = chunkSize;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Imports the accounts of every line of the input, blank lines are skipped
+     *
+     * @param input
+     * @param listener
+     * @return Number of accounts created and of lines rejected
+     * @throws IOException reading the input or thrown by the listener
+     */
+    public AccountImportSummary importAccounts(Reader input, Listener listener) throws IOException {
+        Reader lines = input instanceof BufferedReader ? input : new BufferedReader(input);
+        List<Account> chunk = new ArrayList<>(chunkSize);
+        long[] chunkLines = new long[chunkSize];
+        long created = 0;
+        long rejected = 0;
+        StringBuilder line = new StringBuilder();
+        long lineNumber = 0;
+
+        int read = 0;
+        while (read >= 0) {
+            line.setLength(0);
+            boolean tooLong = false;
+            while ((read = lines.read()) >= 0 && read != '\n') {
+                if (line.length() < maxLineLength) {
+                    line.append((char) read);
+                } else {
+                    tooLong = true;
+                }
+            }
+            lineNumber++;
+            if (tooLong) {
+                listener.rejected(new AccountImportResult(lineNumber, null,
+                        "Line longer than " + maxLineLength + " characters"));
+                rejected++;
+                continue;
+            }
+            if (line.toString().trim().isEmpty()) {
+                continue;
+            }
+
+            String error;
+            Account account = null;
+            try {
+                account = accountReader.readValue(line.toString());
+                error = this.validate(account);
+            } catch (JsonProcessingException e) {
+                error = "Invalid account: " + e.getOriginalMessage();
+            }
+            if (error != null) {
+                listener.rejected(new AccountImportResult(lineNumber, account == null ? null : account.getAccountId(),
+                        error));
+                rejected++;
+                continue;
+            }
+
+            chunkLines[chunk.size()] = lineNumber;
+            chunk.add(account);
+            if (chunk.size() == chunkSize) {
+                int failed = this.create(chunk, chunkLines, listener);
+                created += chunk.size() - failed;
+                rejected += failed;
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            int failed = this.create(chunk, chunkLines, listener);
+            created += chunk.size() - failed;
+            rejected += failed;
+        }
+        return new AccountImportSummary(created, rejected);
+    }
+
+    /**
+     * @return Number of accounts of the chunk that could not be created
+     */
+    private int create(List<Account> chunk, long[] chunkLines, Listener listener) throws IOException {
+        List<String> errors = accountsRepository.createAccounts(chunk);
+        int failed = 0;
+        for (int i = 0; i < chunk.size(); i++) {
+            if (errors.get(i) != null) {
+                listener.rejected(new AccountImportResult(chunkLines[i], chunk.get(i).getAccountId(), errors.get(i)));
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return Validation errors of the account joined, or null if it is valid
+     */
+    private String validate(Account account) {
+        if (account == null) {
+            return "An account must be provided";
+        }
+        Set<ConstraintViolation<Account>> violations = validator.validate(account);
+        if (violations.isEmpty()) {
+            return null;
+        }
+        return violations.stream()
+                .map(violation -> violation.getPropertyPath() + ": " + violation.getMessage())
+                .sorted()
+                .collect(Collectors.joining(", "));
+    }
+}
@@ -1,25 +1,60 @@
 package com.db.awmd.challenge.service;
 
 import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountLookupResult;
+import com.db.awmd.challenge.domain.BatchTransferResult;
 import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.ledger.TransferLedger;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import com.db.awmd.challenge.metrics.TransferMetrics.Stage;
 import com.db.awmd.challenge.repository.AccountsRepository;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @AllArgsConstructor
 @Service
 public class AccountsService {
 
+    /**
+     * Largest number of transfers accepted in one batch
+     */
+    public static final int MAX_BATCH_SIZE = 10_000;
+
+    /**
+     * Largest number of accounts read by one lookup
+     */
+    public static final int MAX_LOOKUP_SIZE = 100_000;
+
     @Getter
     private final AccountsRepository accountsRepository;
 
-    private final NotificationService notificationService;
+    private final NotificationDispatcher notificationDispatcher;
+
+    private final TransferMetrics transferMetrics;
+
+    private final TransferLedger transferLedger;
+
+    /**
+     * Runs the transfers of transferAsync whose accounts were resolved on a repository thread, as repositories may
+     * not be called back from their own threads and decorators apply transfers synchronously
+     */
+    private final Executor resolvedTransfers = newResolvedTransfersPool();
 
 //    NOTE: With Lombok, @AllArgsConstructor can be used to generate the constructor and inject the dependency
 //    @Autowired
@@ -35,31 +70,245 @@ public class AccountsService {
         return this.accountsRepository.getAccount(accountId);
     }
 
+    /**
+     * @return Epoch of the account versions, read it before the accounts whose versions it goes with
+     */
+    public long getVersionEpoch() {
+        return this.accountsRepository.getVersionEpoch();
+    }
+
+    /**
+     * @param accountId
+     * @return Future completed with the account, or with null if it does not exist
+     */
+    public CompletableFuture<Account> getAccountAsync(String accountId) {
+        return this.accountsRepository.getAccountAsync(accountId);
+    }
+
+    /**
+     * Reads several accounts with one repository operation, from one consistent view when the repository supports it
+     *
+     * @param accountIds
+     * @return Accounts found in request order and the ids that do not exist
+     */
+    public AccountLookupResult getAccounts(List<String> accountIds) {
+        if (accountIds == null || accountIds.isEmpty() || accountIds.size() > MAX_LOOKUP_SIZE) {
+            throw new IllegalArgumentException("A lookup must have between 1 and " + MAX_LOOKUP_SIZE + " account ids");
+        }
+        if (accountIds.contains(null)) {
+            throw new IllegalArgumentException("Account ids must be provided");
+        }
+        List<Account> read = this.accountsRepository.getAccounts(accountIds);
+        List<Account> accounts = new ArrayList<>(read.size());
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < read.size(); i++) {
+            if (read.get(i) == null) {
+                missing.add(accountIds.get(i));
+            } else {
+                accounts.add(read.get(i));
+            }
+        }
+        return new AccountLookupResult(accounts, missing);
+    }
+
     /**
      * Performs the transfer if it's a valid one
      *
      * @param transfer
      */
     public void transfer(final Transfer transfer) {
-        List<String> errors = this.validateTransfer(transfer);
+        long start = System.nanoTime();
+        int[] handles = new int[2];
+        List<String> errors = this.validateTransfer(transfer, handles);
+        long validated = this.transferMetrics.record(Stage.VALIDATE, start);
 
         if (errors.isEmpty()) {
-            // Perform the transfer
-            this.accountsRepository.transfer(transfer);
+            // Perform the transfer on the accounts resolved by the validation, without looking them up again
+            try {
+                this.accountsRepository.transfer(handles[0], handles[1], transfer);
+            } catch (NotEnoughBalanceException e) {
+                this.transferMetrics.notEnoughBalance();
+                throw e;
+            }
+            this.transferLedger.record(transfer);
+            long transferred = this.transferMetrics.record(Stage.REPOSITORY, validated);
             // Notify account holders
             this.notifyTransfer(transfer);
+            this.transferMetrics.record(Stage.NOTIFY, transferred);
         } else {
+            this.transferMetrics.validationFailure();
+            throw new IllegalArgumentException("Invalid transfer: " + errors);
+        }
+    }
+
+    /**
+     * Performs the transfer if it's a valid one without waiting for the repository to apply it
+     *
+     * Errors in the transfer itself are thrown on the calling thread. The accounts are looked up with resolveAsync,
+     * so accounts that do not exist complete the returned future exceptionally with IllegalArgumentException, like
+     * errors applying the transfer. Account holders are notified once the transfer has been applied, on the thread
+     * that completed it as dispatchAsync does not block, and the future completes once the notifications are queued.
+     * Accounts resolved on a repository thread, by the sharded repository, are transferred from a small pool instead:
+     * a decorator over it applies the transfer synchronously, which the partition threads must not wait for.
+     *
+     * @param transfer
+     * @return Future completed when the transfer has been applied
+     */
+    public CompletableFuture<Void> transferAsync(final Transfer transfer) {
+        long start = System.nanoTime();
+        if (transfer == null) {
+            throw new IllegalArgumentException("A transfer should be provided for validation");
+        }
+        List<String> errors = new ArrayList<>();
+        this.validateTransferFields(transfer, errors);
+        if (!errors.isEmpty()) {
+            this.transferMetrics.validationFailure();
             throw new IllegalArgumentException("Invalid transfer: " + errors);
         }
+
+        long[] validated = new long[1];
+        CompletableFuture<Transfer> resolved = this.accountsRepository.resolveAsync(transfer.getSourceAccountId())
+                .thenCombine(this.accountsRepository.resolveAsync(transfer.getDestinationAccountId()),
+                        (source, destination) -> {
+                            this.validateAccounts(source, destination, errors);
+                            validated[0] = this.transferMetrics.record(Stage.VALIDATE, start);
+                            if (!errors.isEmpty()) {
+                                this.transferMetrics.validationFailure();
+                                throw new IllegalArgumentException("Invalid transfer: " + errors);
+                            }
+                            return transfer;
+                        });
+        // Accounts are resolved on the calling thread unless the repository looks them up on its own threads
+        CompletableFuture<Void> transferred = resolved.isDone()
+                ? resolved.thenCompose(this.accountsRepository::transferAsync)
+                : resolved.thenComposeAsync(this.accountsRepository::transferAsync, this.resolvedTransfers);
+        return transferred
+                .whenComplete((applied, error) -> {
+                    if (error == null) {
+                        this.transferLedger.record(transfer);
+                        this.transferMetrics.record(Stage.REPOSITORY, validated[0]);
+                    } else if (error instanceof NotEnoughBalanceException
+                            || error.getCause() instanceof NotEnoughBalanceException) {
+                        this.transferMetrics.notEnoughBalance();
+                    }
+                })
+                .thenCompose(applied -> {
+                    long notifying = System.nanoTime();
+                    return this.notificationDispatcher.dispatchAsync(transfer)
+                            .thenRun(() -> this.transferMetrics.record(Stage.NOTIFY, notifying));
+                });
+    }
+
+    /**
+     * Validates and performs a batch of transfers
+     *
+     * Transfers are validated in one pass and the valid ones are handed to the repository together, which checks
+     * balances and applies them. In an all-or-nothing batch a single invalid or failing transfer aborts all the others.
+     * Account holders are notified of the applied transfers.
+     *
+     * @param transfers
+     * @param allOrNothing
+     * @return One result per transfer, in request order
+     */
+    public BatchTransferResult transferBatch(final List<Transfer> transfers, boolean allOrNothing) {
+        if (transfers == null || transfers.isEmpty() || transfers.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("A batch must have between 1 and " + MAX_BATCH_SIZE + " transfers");
+        }
+        long start = System.nanoTime();
+        TransferResult[] results = new TransferResult[transfers.size()];
+        List<Transfer> valid = new ArrayList<>(transfers.size());
+        for (int i = 0; i < results.length; i++) {
+            Transfer transfer = transfers.get(i);
+            List<String> errors = new ArrayList<>();
+            if (transfer == null || transfer.getSourceAccountId() == null || transfer.getDestinationAccountId() == null
+                    || transfer.getAmount() == null) {
+                errors.add("Origin, destination and amount must be provided");
+            } else {
+                this.validateTransferFields(transfer, errors);
+            }
+            if (errors.isEmpty()) {
+                valid.add(transfer);
+            } else {
+                this.transferMetrics.validationFailure();
+                results[i] = TransferResult.failed(TransferResult.Status.INVALID, "Invalid transfer: " + errors);
+            }
+        }
+        long validated = this.transferMetrics.record(Stage.VALIDATE, start);
+
+        if (allOrNothing && valid.size() < results.length) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = TransferResult.aborted();
+                }
+            }
+            return BatchTransferResult.of(Arrays.asList(results));
+        }
+
+        List<TransferResult> applied = valid.isEmpty() ? new ArrayList<>()
+                : this.accountsRepository.transferBatch(valid, allOrNothing);
+        long transferred = this.transferMetrics.record(Stage.REPOSITORY, validated);
+
+        int next = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                TransferResult result = applied.get(next++);
+                results[i] = result;
+                if (result.isApplied()) {
+                    this.transferLedger.record(transfers.get(i));
+                    this.notifyTransfer(transfers.get(i));
+                } else if (result.getStatus() == TransferResult.Status.NOT_ENOUGH_BALANCE) {
+                    this.transferMetrics.notEnoughBalance();
+                }
+            }
+        }
+        this.transferMetrics.record(Stage.NOTIFY, transferred);
+        return BatchTransferResult.of(Arrays.asList(results));
+    }
+
+    /**
+     * Visits the transfers of an account recorded in the ledger, newest first
+     *
+     * @param accountId
+     * @param cursor Cursor returned by the previous page, or -1 for the first page
+     * @param limit Maximum number of transfers to visit
+     * @param visitor
+     * @return Cursor of the next page, or -1 if there are no more transfers
+     * @throws IOException thrown by the visitor
+     */
+    public long visitTransfers(String accountId, long cursor, int limit, TransferLedger.EntryVisitor visitor)
+            throws IOException {
+        return this.transferLedger.visit(accountId, cursor, limit, visitor);
+    }
+
+    /**
+     * @param accountId
+     * @param cursor
+     * @throws IllegalArgumentException if the cursor was not returned for the account
+     * @throws UnsupportedOperationException if the ledger is disabled, on cluster nodes
+     */
+    public void checkTransfersCursor(String accountId, long cursor) {
+        this.transferLedger.checkCursor(accountId, cursor);
+    }
+
+    /**
+     * Visits the balances of every account as of one point in time, see AccountsRepository.exportAccounts
+     *
+     * @param visitor
+     * @throws UnsupportedOperationException if the repository does not support consistent exports
+     * @throws IOException thrown by the visitor
+     */
+    public void exportAccounts(AccountsRepository.AccountVisitor visitor) throws IOException {
+        this.accountsRepository.exportAccounts(visitor);
     }
 
     /**
      * Check a transfer object against provided business rules
      *
      * @param transfer
+     * @param handles Receives the handles the repository resolved for the source and the destination account
      * @return List of validation issues found
      */
-    private List<String> validateTransfer(final Transfer transfer) {
+    private List<String> validateTransfer(final Transfer transfer, final int[] handles) {
         if (transfer == null) {
             throw new IllegalArgumentException("A transfer should be provided for validation");
         }
@@ -67,10 +316,35 @@ public class AccountsService {
         List<String> errors = new ArrayList<>();
 
         // Transfer from/to an account that does not exist
-        if (this.accountsRepository.getAccount(transfer.getSourceAccountId()) == null ||
-                this.accountsRepository.getAccount(transfer.getDestinationAccountId()) == null) {
+        handles[0] = this.accountsRepository.resolve(transfer.getSourceAccountId());
+        handles[1] = this.accountsRepository.resolve(transfer.getDestinationAccountId());
+        this.validateAccounts(handles[0], handles[1], errors);
+        this.validateTransferFields(transfer, errors);
+        // Transfer from an account with not enough balance: This validation should be performed thread safe in DAO layer
+
+        return errors;
+    }
+
+    /**
+     * Checks that both accounts of a transfer exist
+     *
+     * @param source Handle resolved for the source account
+     * @param destination Handle resolved for the destination account
+     * @param errors List the validation issues found are added to
+     */
+    private void validateAccounts(final int source, final int destination, final List<String> errors) {
+        if (source == AccountsRepository.NO_ACCOUNT || destination == AccountsRepository.NO_ACCOUNT) {
             errors.add("Origin and/or destination account does not exists");
         }
+    }
+
+    /**
+     * Checks the rules that only depend on the transfer itself
+     *
+     * @param transfer
+     * @param errors List the validation issues found are added to
+     */
+    private void validateTransferFields(final Transfer transfer, final List<String> errors) {
         // Transfer a negative amount or zero (this should be already checked through bean validation at controller level)
         if (transfer.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
             errors.add("Transfer amount must be greater than 0");
@@ -79,21 +353,31 @@ public class AccountsService {
         if (transfer.getSourceAccountId().equals(transfer.getDestinationAccountId())) {
             errors.add("Origin and destination account cannot be equal");
         }
-        // Transfer from an account with not enough balance: This validation should be performed thread safe in DAO layer
+    }
 
-        return errors;
+    /**
+     * Daemon threads that time out when idle, so services that never resolve accounts on repository threads keep none
+     */
+    private static Executor newResolvedTransfersPool() {
+        AtomicInteger threads = new AtomicInteger();
+        int size = 2 * Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "resolved-transfer-" + threads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     /**
-     * Notifies source and destination account about a transfer using NotificationService
+     * Queues the notifications to source and destination account about a transfer, they are sent by the
+     * NotificationDispatcher workers
      *
      * @param transfer
      */
     private void notifyTransfer(final Transfer transfer) {
-        Account sourceAccount = this.accountsRepository.getAccount(transfer.getSourceAccountId());
-        Account destinationAccount = this.accountsRepository.getAccount(transfer.getSourceAccountId());
-
-        notificationService.notifyAboutTransfer(sourceAccount, String.format("%f send to %s", transfer.getAmount(), destinationAccount.getAccountId()));
-        notificationService.notifyAboutTransfer(destinationAccount, String.format("%f received from %s", transfer.getAmount(), sourceAccount.getAccountId()));
+        this.notificationDispatcher.dispatch(transfer);
     }
 }
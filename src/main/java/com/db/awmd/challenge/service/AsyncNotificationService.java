@@ -0,0 +1,27 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.Account;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * NotificationService whose backend sends notifications without holding the calling thread, e.g. an HTTP client
+ * with a callback API
+ *
+ * NotificationDispatcher workers start every notification of a batch through it and then wait for all of them,
+ * instead of sending them one after the other.
+ */
+public interface AsyncNotificationService extends NotificationService {
+
+    /**
+     * @param account
+     * @param transferDescription
+     * @return Future completed once the notification has been sent, exceptionally if it could not be
+     */
+    CompletableFuture<Void> notifyAboutTransferAsync(Account account, String transferDescription);
+
+    @Override
+    default void notifyAboutTransfer(Account account, String transferDescription) {
+        this.notifyAboutTransferAsync(account, transferDescription).join();
+    }
+}
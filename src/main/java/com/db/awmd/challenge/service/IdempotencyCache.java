@@ -0,0 +1,153 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.exception.IdempotencyKeyReusedException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the result of requests sent with an idempotency key, so that retries get the same result instead of
+ * running the request again
+ *
+ * The first request with a key runs and its result is stored. Duplicates that arrive while it is still running wait
+ * for it, and later ones get the stored result. A request that fails with an exception stores nothing, so the next
+ * duplicate runs it again. A key sent with a different request is refused.
+ *
+ * Keys are kept for ttl and at most maxKeys of them, the oldest ones are evicted first. As every key lives for the
+ * same time, insertion order is also expiry order, so a single FIFO queue drives both bounds and eviction is done by
+ * the requests adding keys, without a cleaner thread. Keys whose request is still running are never evicted, so a
+ * duplicate cannot run it a second time; they are left in the queue until a later eviction finds them completed.
+ *
+ * Requests are compared with equals, so callers normalise the values that have several equal representations, such
+ * as the scale of amounts.
+ */
+@Component
+public class IdempotencyCache {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries in insertion order, may still hold entries already removed from the map
+     */
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+
+    private final int maxKeys;
+
+    private final long ttlNanos;
+
+    private final LongAdder replayed = new LongAdder();
+
+    public IdempotencyCache(@Value("${accounts.idempotency.max-keys:1000000}") int maxKeys,
+                            @Value("${accounts.idempotency.ttl-seconds:3600}") long ttlSeconds) {
+        if (maxKeys <= 0 || ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Idempotency max keys and ttl must be greater than 0");
+        }
+        this.maxKeys = maxKeys;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Runs the action once per key and returns its stored result to the duplicates
+     *
+     * @param key
+     * @param request Request sent with the key, duplicates must send an equal one
+     * @param action
+     * @return Result of the first execution with the key
+     * @throws IdempotencyKeyReusedException if the key was sent with a different request
+     */
+    public <T> T execute(String key, Object request, Supplier<T> action) {
+        while (true) {
+            long now = System.nanoTime();
+            Entry entry = new Entry(key, request, now + ttlNanos);
+            Entry existing = entries.putIfAbsent(key, entry);
+            if (existing == null) {
+                order.add(entry);
+                this.evict(now);
+                return this.run(entry, action);
+            }
+            if (existing.expiresAt - now <= 0) {
+                entries.remove(key, existing);
+                continue;
+            }
+            if (!existing.request.equals(request)) {
+                throw new IdempotencyKeyReusedException("Idempotency key " + key
+                        + " has already been used with a different request");
+            }
+            try {
+                @SuppressWarnings("unchecked")
+                T result = (T) existing.result.join();
+                replayed.increment();
+                return result;
+            } catch (CompletionException e) {
+                // The first execution failed without a result, try to run it again
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Number of requests answered with a stored result
+     */
+    public long getReplayedCount() {
+        return replayed.sum();
+    }
+
+    private <T> T run(Entry entry, Supplier<T> action) {
+        T result;
+        try {
+            result = action.get();
+        } catch (RuntimeException | Error e) {
+            entries.remove(entry.key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        entry.result.complete(result);
+        return result;
+    }
+
+    /**
+     * Removes the oldest completed entries while they have expired or there are too many, skipping running ones
+     */
+    private void evict(long now) {
+        Iterator<Entry> oldest = order.iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (entry.expiresAt - now > 0 && entries.size() <= maxKeys) {
+                return;
+            }
+            if (entry.result.isDone() && order.remove(entry)) {
+                entries.remove(entry.key, entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final String key;
+
+        private final Object request;
+
+        private final long expiresAt;
+
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        private Entry(String key, Object request, long expiresAt) {
+            this.key = key;
+            this.request = request;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
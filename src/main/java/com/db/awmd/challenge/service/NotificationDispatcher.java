@@ -0,0 +1,409 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.metrics.NotificationQueueReport;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends transfer notifications from a pool of worker threads, so transfers do not wait for the notification backend
+ *
+ * Transfers are put on a bounded queue and workers take them in batches. The messages of a batch are grouped per
+ * account, and when a digest window is configured workers wait for the window to collect a burst and send one digest
+ * per account instead of one notification per transfer. When the queue is full the overflow policy applies: block the
+ * caller, drop the notification or spill it to a file that workers replay once the queue drains. Callers that must not
+ * block use dispatchAsync, with which the BLOCK policy keeps the transfer waiting without a thread until the workers
+ * make room. At most max-waiting transfers wait that way, past that their notifications are dropped: the transfers are
+ * applied already and holding them would only move the unbounded queue to the callers.
+ *
+ * With an AsyncNotificationService workers start all the notifications of a batch at once and wait for them
+ * together, other services are called one notification after the other.
+ *
+ * Notifications of the same account are sent in order within a batch, but batches handled by different workers can
+ * overtake each other.
+ */
+@Component
+@Slf4j
+public class NotificationDispatcher implements AutoCloseable {
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SPILL
+    }
+
+    private static final long IDLE_POLL_MS = 100;
+
+    private final NotificationService notificationService;
+
+    /**
+     * Same as notificationService when it is asynchronous, null otherwise
+     */
+    private final AsyncNotificationService asyncNotificationService;
+
+    private final AccountsRepository accountsRepository;
+
+    private final int capacity;
+
+    private final BlockingQueue<Transfer> queue;
+
+    /**
+     * Transfers dispatched asynchronously while the queue was full, in the order they came
+     */
+    private final Queue<WaitingTransfer> waiting = new ConcurrentLinkedQueue<>();
+
+    private final int maxWaiting;
+
+    /**
+     * Size of waiting, counted apart as the size of the queue is not constant time
+     */
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    private final int batchSize;
+
+    private final long digestWindowNanos;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final NotificationSpill spill;
+
+    private final Thread[] workers;
+
+    private volatile boolean running = true;
+
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder spilled = new LongAdder();
+
+    public NotificationDispatcher(NotificationService notificationService, AccountsRepository accountsRepository,
+                                  int capacity, int workers, int batchSize, long digestWindowMs, String overflowPolicy,
+                                  String spillDirectory) {
+        this(notificationService, accountsRepository, capacity, capacity, workers, batchSize, digestWindowMs,
+                overflowPolicy, spillDirectory);
+    }
+
+    @Autowired
+    public NotificationDispatcher(NotificationService notificationService, AccountsRepository accountsRepository,
+                                  @Value("${accounts.notifications.capacity:10000}") int capacity,
+                                  @Value("${accounts.notifications.max-waiting:10000}") int maxWaiting,
+                                  @Value("${accounts.notifications.workers:2}") int workers,
+                                  @Value("${accounts.notifications.batch-size:100}") int batchSize,
+                                  @Value("${accounts.notifications.digest-window-ms:0}") long digestWindowMs,
+                                  @Value("${accounts.notifications.overflow:block}") String overflowPolicy,
+                                  @Value("${accounts.notifications.spill-directory:notifications}") String spillDirectory) {
+        if (capacity <= 0 || workers <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Notification capacity, workers and batch size must be greater than 0");
+        }
+        if (maxWaiting < 0) {
+            throw new IllegalArgumentException("Notification max waiting must not be negative");
+        }
+        this.maxWaiting = maxWaiting;
+        this.notificationService = notificationService;
+        this.asyncNotificationService = notificationService instanceof AsyncNotificationService
+                ? (AsyncNotificationService) notificationService
+                : null;
+        this.accountsRepository = accountsRepository;
+        this.capacity = capacity;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.digestWindowNanos = TimeUnit.MILLISECONDS.toNanos(digestWindowMs);
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase(Locale.ROOT));
+        this.spill = this.overflowPolicy == OverflowPolicy.SPILL ? new NotificationSpill(Paths.get(spillDirectory)) : null;
+
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Thread(this::work, "notification-worker-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the notifications of a transfer to both account holders
+     *
+     * Only blocks when the queue is full and the overflow policy is BLOCK.
+     *
+     * @param transfer
+     */
+    public void dispatch(Transfer transfer) {
+        if (queue.offer(transfer)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(transfer);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                }
+                break;
+            case SPILL:
+                try {
+                    spill.append(transfer);
+                    spilled.increment();
+                } catch (UncheckedIOException e) {
+                    log.error("Dropping notification of transfer {}", transfer, e);
+                    dropped.increment();
+                }
+                break;
+            default:
+                dropped.increment();
+                break;
+        }
+    }
+
+    /**
+     * Queues the notifications of a transfer to both account holders without blocking the caller
+     *
+     * When the queue is full and the overflow policy is BLOCK the transfer waits until the workers make room, ahead
+     * of the transfers dispatched after it, and the future completes once it is queued. When max-waiting transfers
+     * are waiting already its notification is dropped. With the other policies it completes at once.
+     *
+     * @param transfer
+     * @return Future completed once the transfer has been queued, dropped or spilled
+     */
+    public CompletableFuture<Void> dispatchAsync(Transfer transfer) {
+        if (overflowPolicy != OverflowPolicy.BLOCK) {
+            this.dispatch(transfer);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (waiting.isEmpty() && queue.offer(transfer)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (waitingCount.incrementAndGet() > maxWaiting) {
+            waitingCount.decrementAndGet();
+            dropped.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        WaitingTransfer waitingTransfer = new WaitingTransfer(transfer);
+        waiting.add(waitingTransfer);
+        // The workers may have made room before it was added
+        this.queueWaiting();
+        return waitingTransfer.queued;
+    }
+
+    public NotificationQueueReport report() {
+        return new NotificationQueueReport(capacity, queue.size(), maxDepth.intValue(), waitingCount.get(), sent.sum(),
+                failed.sum(), dropped.sum(), spilled.sum());
+    }
+
+    /**
+     * Stops the workers once the queued notifications have been sent
+     */
+    @PreDestroy
+    @Override
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (WaitingTransfer left = waiting.poll(); left != null; left = waiting.poll()) {
+            waitingCount.decrementAndGet();
+            dropped.increment();
+            left.queued.complete(null);
+        }
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    private void work() {
+        List<Transfer> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Transfer first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    replaySpill(batch);
+                    continue;
+                }
+                batch.add(first);
+                if (digestWindowNanos > 0) {
+                    collectBurst(batch);
+                } else {
+                    queue.drainTo(batch, batchSize - 1);
+                }
+                if (!waiting.isEmpty()) {
+                    this.queueWaiting();
+                }
+                maxDepth.accumulate(batch.size() + queue.size());
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Unexpected error sending notifications", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Moves the transfers waiting for room into the queue, in order, and completes their futures outside of the lock
+     */
+    private void queueWaiting() {
+        List<WaitingTransfer> queued = new ArrayList<>();
+        synchronized (waiting) {
+            for (WaitingTransfer next = waiting.peek(); next != null && queue.offer(next.transfer);
+                 next = waiting.peek()) {
+                queued.add(waiting.poll());
+                waitingCount.decrementAndGet();
+            }
+        }
+        for (WaitingTransfer waitingTransfer : queued) {
+            waitingTransfer.queued.complete(null);
+        }
+    }
+
+    /**
+     * Waits for the digest window after the first transfer to collect the rest of the burst
+     */
+    private void collectBurst(List<Transfer> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + digestWindowNanos;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || batch.size() >= batchSize) {
+                break;
+            }
+            Transfer next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Sends the spilled transfers in batches once there is nothing in the queue
+     */
+    private void replaySpill(List<Transfer> batch) {
+        if (spill == null) {
+            return;
+        }
+        spill.replay(transfer -> {
+            batch.add(transfer);
+            if (batch.size() == batchSize) {
+                send(batch);
+                batch.clear();
+            }
+        });
+        send(batch);
+        batch.clear();
+    }
+
+    /**
+     * Groups the messages of the batch per account and sends them, as a digest when configured
+     */
+    private void send(List<Transfer> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Map<String, List<String>> messages = new LinkedHashMap<>();
+        for (Transfer transfer : batch) {
+            String amount = transfer.getAmount().toPlainString();
+            messages.computeIfAbsent(transfer.getSourceAccountId(), accountId -> new ArrayList<>(2))
+                    .add(amount + " send to " + transfer.getDestinationAccountId());
+            messages.computeIfAbsent(transfer.getDestinationAccountId(), accountId -> new ArrayList<>(2))
+                    .add(amount + " received from " + transfer.getSourceAccountId());
+        }
+        List<CompletableFuture<Void>> sending = new ArrayList<>();
+        messages.forEach((accountId, accountMessages) -> {
+            Account account = accountsRepository.getAccount(accountId);
+            if (account == null) {
+                log.debug("Account {} no longer exists, not notifying {}", accountId, accountMessages);
+            } else if (digestWindowNanos > 0 && accountMessages.size() > 1) {
+                notify(account, accountMessages.size() + " transfers: " + String.join("; ", accountMessages),
+                        sending);
+            } else {
+                accountMessages.forEach(message -> notify(account, message, sending));
+            }
+        });
+        if (!sending.isEmpty()) {
+            CompletableFuture.allOf(sending.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    /**
+     * Sends a notification, or starts sending it with an asynchronous service
+     *
+     * @param sending Receives the future of a notification started, completed normally once it is counted
+     */
+    private void notify(Account account, String description, List<CompletableFuture<Void>> sending) {
+        if (asyncNotificationService == null) {
+            try {
+                notificationService.notifyAboutTransfer(account, description);
+                sent.increment();
+            } catch (RuntimeException e) {
+                notifyFailed(account, description, e);
+            }
+            return;
+        }
+        CompletableFuture<Void> notified;
+        try {
+            notified = asyncNotificationService.notifyAboutTransferAsync(account, description);
+        } catch (RuntimeException e) {
+            notifyFailed(account, description, e);
+            return;
+        }
+        sending.add(notified.handle((ignored, e) -> {
+            if (e == null) {
+                sent.increment();
+            } else {
+                notifyFailed(account, description, e);
+            }
+            return null;
+        }));
+    }
+
+    private void notifyFailed(Account account, String description, Throwable e) {
+        failed.increment();
+        log.error("Error notifying owner of {}: {}", account.getAccountId(), description, e);
+    }
+
+    /**
+     * Transfer dispatched asynchronously and waiting for room in the queue
+     */
+    private static final class WaitingTransfer {
+
+        private final Transfer transfer;
+
+        private final CompletableFuture<Void> queued = new CompletableFuture<>();
+
+        WaitingTransfer(Transfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.journal.JournalEvent;
+import com.db.awmd.challenge.journal.JournalRecords;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * File holding the transfers whose notifications did not fit in the dispatcher queue
+ *
+ * Transfers are appended with the journal record format. To replay them the file is moved aside, so producers keep
+ * appending to a new one while the old one is read. The file is not synced: spilling bounds the memory used by a slow
+ * notification backend, it does not make notifications durable. Anything left by a previous run is replayed.
+ */
+@Slf4j
+class NotificationSpill implements AutoCloseable {
+
+    private final Path file;
+
+    private final Path replayFile;
+
+    /**
+     * Only one replay at a time
+     */
+    private final Object replayLock = new Object();
+
+    /**
+     * Guarded by this
+     */
+    private FileChannel channel;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+    private final CRC32 checksum = new CRC32();
+
+    NotificationSpill(Path directory) {
+        this.file = directory.resolve("notifications.spill");
+        this.replayFile = directory.resolve("notifications.replay");
+        try {
+            Files.createDirectories(directory);
+            this.channel = open(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open notification spill file " + file, e);
+        }
+    }
+
+    synchronized void append(Transfer transfer) {
+        buffer.clear();
+        buffer = JournalRecords.write(buffer, JournalEvent.transfer(transfer), checksum);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot spill notification to " + file, e);
+        }
+    }
+
+    /**
+     * Passes the spilled transfers to the consumer, oldest first, and removes them
+     *
+     * @param consumer
+     * @return Number of transfers replayed
+     */
+    int replay(Consumer<Transfer> consumer) {
+        synchronized (replayLock) {
+            try {
+                if (!Files.exists(replayFile)) {
+                    synchronized (this) {
+                        if (channel.size() == 0) {
+                            return 0;
+                        }
+                        channel.close();
+                        Files.move(file, replayFile, StandardCopyOption.ATOMIC_MOVE);
+                        channel = open(file);
+                    }
+                }
+                int[] count = new int[1];
+                try (FileChannel replay = FileChannel.open(replayFile, StandardOpenOption.READ)) {
+                    JournalRecords.read(replay, event -> {
+                        count[0]++;
+                        consumer.accept(Transfer.builder()
+                                .sourceAccountId(event.getAccountId())
+                                .destinationAccountId(event.getDestinationAccountId())
+                                .amount(event.getAmount())
+                                .build());
+                    });
+                }
+                Files.delete(replayFile);
+                return count[0];
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot replay notification spill file " + file, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing notification spill file {}", file, e);
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -1,18 +1,43 @@
 package com.db.awmd.challenge.web;
 
+import com.db.awmd.challenge.admission.TransferAdmission;
 import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountImportSummary;
+import com.db.awmd.challenge.domain.BatchTransferResult;
 import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.IdempotencyKeyReusedException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.TooManyRequestsException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.service.AccountsImporter;
 import com.db.awmd.challenge.service.AccountsService;
+import com.db.awmd.challenge.service.IdempotencyCache;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
 
 @AllArgsConstructor
 @RestController
@@ -20,8 +45,30 @@ import javax.validation.Valid;
 @Slf4j
 public class AccountsController {
 
+    /**
+     * Response of every transfer applied, shared as idempotent requests keep it for as long as their key
+     */
+    private static final ResponseEntity<Object> TRANSFERRED = ResponseEntity.ok().build();
+
+    /**
+     * Largest page of transfers returned by one request
+     */
+    private static final int MAX_TRANSFERS_PAGE = 10_000;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    private static final String CSV = "text/csv";
+
     private final AccountsService accountsService;
 
+    private final IdempotencyCache idempotencyCache;
+
+    private final AccountsImporter accountsImporter;
+
+    private final TransferAdmission transferAdmission;
+
 //    NOTE: With Lombok, @AllArgsConstructor can be used to generate the constructor and inject the dependency
 //    @Autowired
 //    public AccountsController(AccountsService accountsService) {
@@ -34,37 +81,354 @@ public class AccountsController {
 
         try {
             this.accountsService.createAccount(account);
-        } catch (DuplicateAccountIdException daie) {
-            return new ResponseEntity<>(daie.getMessage(), HttpStatus.BAD_REQUEST);
+        } catch (DuplicateAccountIdException | IllegalArgumentException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
         }
 
         return new ResponseEntity<>(HttpStatus.CREATED);
     }
 
+    /**
+     * Endpoint to create accounts in bulk from newline delimited JSON, one account per line
+     *
+     * The body is read and the accounts created while it is received. The response is newline delimited JSON too:
+     * one line for every rejected account, written as soon as it is known, and a last line with the totals.
+     *
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @PostMapping(path = "/import", consumes = NDJSON)
+    public void importAccounts(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        log.info("Importing accounts");
+
+        response.setContentType(NDJSON);
+        try (Reader input = new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8);
+             JsonGenerator json = JSON.createGenerator(response.getOutputStream())) {
+            json.setRootValueSeparator(new SerializedString("\n"));
+            AccountImportSummary summary = this.accountsImporter.importAccounts(input, rejected -> {
+                json.writeStartObject();
+                json.writeNumberField("line", rejected.getLine());
+                if (rejected.getAccountId() != null) {
+                    json.writeStringField("accountId", rejected.getAccountId());
+                }
+                json.writeStringField("error", rejected.getError());
+                json.writeEndObject();
+            });
+            json.writeStartObject();
+            json.writeNumberField("created", summary.getCreated());
+            json.writeNumberField("rejected", summary.getRejected());
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+        log.info("Accounts imported");
+    }
+
+    /**
+     * Endpoint to read several accounts with one request, all of them from one consistent view so that no transfer
+     * between them is seen half applied
+     *
+     * @param accountIds
+     * @return HttpStatus.OK with the accounts found in request order and the ids that do not exist
+     *         HttpStatus.BAD_REQUEST if there are no ids, too many of them or null ones
+     */
+    @PostMapping(path = "/lookup", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Object> lookupAccounts(@RequestBody List<String> accountIds) {
+        log.info("Looking up {} accounts", accountIds.size());
+
+        try {
+            return ResponseEntity.ok(this.accountsService.getAccounts(accountIds));
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Endpoint to download the balances of every account as of one point in time, while transfers keep running
+     *
+     * The accounts are written to the response as they are read, as newline delimited JSON or as CSV with a header
+     * line. The balances add up to the total held by all the accounts at the time the export started.
+     *
+     * @param format ndjson or csv
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping(path = "/export")
+    public void exportAccounts(@RequestParam(defaultValue = "ndjson") String format,
+                               HttpServletResponse response) throws IOException {
+        log.info("Exporting accounts as {}", format);
+
+        if ("csv".equals(format)) {
+            response.setContentType(CSV);
+            Writer csv = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(),
+                    StandardCharsets.UTF_8));
+            csv.write("accountId,balance\n");
+            boolean exported = this.export(response, (accountId, balance) -> {
+                csv.write(csvField(accountId));
+                csv.write(',');
+                csv.write(balance.toPlainString());
+                csv.write('\n');
+            });
+            if (!exported) {
+                return;
+            }
+            csv.close();
+        } else if ("ndjson".equals(format)) {
+            response.setContentType(NDJSON);
+            JsonGenerator json = JSON.createGenerator(response.getOutputStream());
+            json.setRootValueSeparator(new SerializedString("\n"));
+            boolean exported = this.export(response, (accountId, balance) -> {
+                json.writeStartObject();
+                json.writeStringField("accountId", accountId);
+                json.writeNumberField("balance", balance);
+                json.writeEndObject();
+            });
+            if (!exported) {
+                return;
+            }
+            json.writeRaw('\n');
+            json.close();
+        } else {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Unknown export format " + format);
+            return;
+        }
+        log.info("Accounts exported");
+    }
+
+    /**
+     * Endpoint to read an account
+     *
+     * Accounts of repositories that track versions are sent with an ETag made of their version and its epoch, as
+     * versions start again after the accounts are cleared or the repository restarts. A request whose If-None-Match
+     * has the current one is answered with HttpStatus.NOT_MODIFIED and no body, so polling clients only get the
+     * account serialized again once it has changed.
+     *
+     * @param accountId
+     * @param request
+     * @return The account, nothing if it does not exist or null if it has not been modified
+     */
     @GetMapping(path = "/{accountId}")
-    public Account getAccount(@PathVariable String accountId) {
+    public ResponseEntity<Account> getAccount(@PathVariable String accountId, WebRequest request) {
         log.info("Retrieving account for id {}", accountId);
-        return this.accountsService.getAccount(accountId);
+
+        long versionEpoch = this.accountsService.getVersionEpoch();
+        Account account = this.accountsService.getAccount(accountId);
+        if (account == null || account.getVersion() == 0) {
+            return ResponseEntity.ok(account);
+        }
+        String eTag = eTagOf(versionEpoch, account);
+        if (matchesAnyETag(request.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        if (request.checkNotModified(eTag)) {
+            return null;
+        }
+        return ResponseEntity.ok().eTag(eTag).body(account);
+    }
+
+    /**
+     * Endpoint to page through the transfers of an account, newest first
+     *
+     * The page is written to the response while the ledger is walked, without building it in memory. The response
+     * has the transfers and, if there are older ones, the cursor to pass to get the next page. Cluster nodes keep no
+     * history and answer HttpStatus.NOT_IMPLEMENTED.
+     *
+     * @param accountId
+     * @param cursor Cursor returned with the previous page, none for the newest transfers
+     * @param limit Maximum number of transfers in the page
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping(path = "/{accountId}/transfers")
+    public void getTransfers(@PathVariable String accountId,
+                             @RequestParam(required = false) String cursor,
+                             @RequestParam(defaultValue = "100") int limit,
+                             HttpServletResponse response) throws IOException {
+        log.info("Retrieving transfers for id {}", accountId);
+
+        if (this.accountsService.getAccount(accountId) == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value(), "Account " + accountId + " does not exist");
+            return;
+        }
+        if (limit <= 0 || limit > MAX_TRANSFERS_PAGE) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(),
+                    "The limit must be between 1 and " + MAX_TRANSFERS_PAGE);
+            return;
+        }
+        long from;
+        try {
+            from = cursor == null ? -1 : Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Invalid cursor " + cursor);
+            return;
+        }
+        // Checks the cursor before anything is written, so an invalid one can still get an error status
+        try {
+            this.accountsService.checkTransfersCursor(accountId, from);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+            return;
+        } catch (UnsupportedOperationException e) {
+            response.sendError(HttpStatus.NOT_IMPLEMENTED.value(), e.getMessage());
+            return;
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator json = JSON.createGenerator(response.getOutputStream())) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("transfers");
+            long next = this.accountsService.visitTransfers(accountId, from, limit,
+                    (sequence, timestamp, source, destination, amount) -> {
+                        json.writeStartObject();
+                        json.writeStringField("sourceAccountId", source);
+                        json.writeStringField("destinationAccountId", destination);
+                        json.writeNumberField("amount", amount);
+                        json.writeStringField("timestamp", Instant.ofEpochMilli(timestamp).toString());
+                        json.writeEndObject();
+                    });
+            json.writeEndArray();
+            if (next >= 0) {
+                json.writeStringField("next", Long.toString(next));
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Runs the export, answering HttpStatus.NOT_IMPLEMENTED if the repository does not support it. The export is
+     * refused before visiting any account, so the writers have not flushed anything and the error can still be sent
+     *
+     * @return false if the export was refused, the caller must then drop its writers without closing them
+     */
+    private boolean export(HttpServletResponse response, AccountsRepository.AccountVisitor visitor)
+            throws IOException {
+        try {
+            this.accountsService.exportAccounts(visitor);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            response.sendError(HttpStatus.NOT_IMPLEMENTED.value(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Quotes a CSV field if it has a separator, a quote or a line break
+     */
+    private static String csvField(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
     }
 
     /**
      * Endpoint to transfer an amount between accounts
-     * Operation not idempotent, so using POST verb
+     * Operation not idempotent, so using POST verb. Clients can send an Idempotency-Key header to retry it safely:
+     * repeating a request with the same key returns the response of the first one without transferring again.
+     * Transfers are admitted by TransferAdmissionFilter and the bucket of their source account first, the ones refused
+     * are answered at once without running. Retries of a transfer already applied get its stored response without
+     * taking from the bucket
      *
      * @param transfer
+     * @param idempotencyKey Optional key identifying the transfer across retries
      * @return HttpStatus.ACCEPTED if the transfer has been processed
      *         HttpStatus.BAD_REQUEST if the transfer is not valid
+     *         HttpStatus.UNPROCESSABLE_ENTITY if the idempotency key was already used for another transfer
+     *         HttpStatus.TOO_MANY_REQUESTS with a Retry-After header if admission control refused the transfer
      */
     @PostMapping(path = "/transfer", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Object> transfer(@RequestBody @Valid final Transfer transfer) {
+    public ResponseEntity<Object> transfer(@RequestBody @Valid final Transfer transfer,
+                                           @RequestHeader(name = "Idempotency-Key", required = false)
+                                           final String idempotencyKey) {
       log.info("Transferring between accounts {}", transfer);
 
+      try {
+          if (idempotencyKey == null) {
+              this.transferAdmission.checkRate(transfer.getSourceAccountId());
+              return this.doTransfer(transfer);
+          }
+          // The same amount sent with another scale is the same transfer
+          Transfer request = Transfer.builder()
+                  .sourceAccountId(transfer.getSourceAccountId())
+                  .destinationAccountId(transfer.getDestinationAccountId())
+                  .amount(transfer.getAmount().stripTrailingZeros())
+                  .build();
+          return this.idempotencyCache.execute(idempotencyKey, request, () -> {
+              this.transferAdmission.checkRate(transfer.getSourceAccountId());
+              return this.doTransfer(transfer);
+          });
+      } catch (IdempotencyKeyReusedException e) {
+          return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+      } catch (TooManyRequestsException e) {
+          return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                  .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                  .body(e.getMessage());
+      }
+    }
+
+    private ResponseEntity<Object> doTransfer(final Transfer transfer) {
       try {
           this.accountsService.transfer(transfer);
-      } catch (IllegalArgumentException | NotEnoughBalanceException e) {
+      } catch (IllegalArgumentException | NotEnoughBalanceException | BalanceOverflowException e) {
           return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
       }
 
-      return ResponseEntity.ok().build();
+      return TRANSFERRED;
+    }
+
+    /**
+     * Endpoint to apply a batch of transfers with one request
+     *
+     * @param transfers
+     * @param mode all-or-nothing (default) applies every transfer or none of them, best-effort applies the valid ones
+     * @return HttpStatus.OK with the result of every transfer, in request order
+     *         HttpStatus.BAD_REQUEST if the batch or the mode is not valid, or an all-or-nothing batch was not applied
+     *         HttpStatus.NOT_IMPLEMENTED if the repository cannot apply the batch all-or-nothing
+     */
+    @PostMapping(path = "/transfers/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Object> transferBatch(@RequestBody final List<Transfer> transfers,
+                                                @RequestParam(defaultValue = "all-or-nothing") String mode) {
+        log.info("Transferring batch of {} transfers ({})", transfers.size(), mode);
+
+        boolean allOrNothing;
+        if ("all-or-nothing".equals(mode)) {
+            allOrNothing = true;
+        } else if ("best-effort".equals(mode)) {
+            allOrNothing = false;
+        } else {
+            return new ResponseEntity<>("Unknown batch mode " + mode, HttpStatus.BAD_REQUEST);
+        }
+
+        BatchTransferResult result;
+        try {
+            result = this.accountsService.transferBatch(transfers, allOrNothing);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+        } catch (UnsupportedOperationException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.NOT_IMPLEMENTED);
+        }
+
+        if (allOrNothing && result.getRejected() > 0) {
+            return new ResponseEntity<>(result, HttpStatus.BAD_REQUEST);
+        }
+        return ResponseEntity.ok(result);
+    }
+
+    /**
+     * @return Strong ETag of the version of an account
+     */
+    static String eTagOf(long versionEpoch, Account account) {
+        return "\"" + Long.toHexString(versionEpoch) + "-" + account.getVersion() + "\"";
+    }
+
+    /**
+     * If-None-Match: * matches any version of an existing account, which checkNotModified of this Spring version
+     * does not handle
+     */
+    static boolean matchesAnyETag(String ifNoneMatch) {
+        return ifNoneMatch != null && ifNoneMatch.trim().equals("*");
     }
 }
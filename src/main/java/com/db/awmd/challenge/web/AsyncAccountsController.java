@@ -0,0 +1,118 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.TooManyRequestsException;
+import com.db.awmd.challenge.service.AccountsService;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.Valid;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking variant of the account reads and transfers of AccountsController
+ *
+ * Handlers return a CompletableFuture, so Spring MVC starts servlet async processing: the request thread goes back to
+ * the Tomcat pool as soon as the handler returns and the response is written once the future completes, whichever
+ * thread completes it. A transfer waiting for the journal to sync, for a partition thread of the sharded repository or
+ * for room in a full notification queue holds its connection but no thread, so the requests in progress are bounded
+ * by the admission limit rather than by max-threads: TransferAdmissionFilter holds the slot of a transfer until its
+ * response has been written. Idempotency keys are only supported by the blocking endpoint.
+ */
+@AllArgsConstructor
+@RestController
+@RequestMapping("/v1/async/accounts")
+@Slf4j
+public class AsyncAccountsController {
+
+    private static final ResponseEntity<Object> TRANSFERRED = ResponseEntity.ok().build();
+
+    private final AccountsService accountsService;
+
+    private final TransferAdmission transferAdmission;
+
+    /**
+     * Endpoint to read an account, with the same ETag as AccountsController
+     *
+     * The If-None-Match of the request is checked by Spring MVC with WebRequest.checkNotModified when it writes the
+     * response, on the async dispatch, like for the blocking endpoint.
+     *
+     * @param accountId
+     * @param ifNoneMatch
+     * @return The account, nothing if it does not exist or HttpStatus.NOT_MODIFIED if it has not been modified
+     */
+    @GetMapping(path = "/{accountId}")
+    public CompletableFuture<ResponseEntity<Account>> getAccount(@PathVariable String accountId,
+                                                                 @RequestHeader(value = HttpHeaders.IF_NONE_MATCH,
+                                                                         required = false) String ifNoneMatch) {
+        log.info("Retrieving account for id {}", accountId);
+
+        long versionEpoch = this.accountsService.getVersionEpoch();
+        return this.accountsService.getAccountAsync(accountId).thenApply(account -> {
+            if (account == null || account.getVersion() == 0) {
+                return ResponseEntity.ok(account);
+            }
+            String eTag = AccountsController.eTagOf(versionEpoch, account);
+            if (AccountsController.matchesAnyETag(ifNoneMatch)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+            }
+            return ResponseEntity.ok().eTag(eTag).body(account);
+        });
+    }
+
+    /**
+     * Endpoint to transfer an amount between accounts, answered once the transfer has been applied and its
+     * notifications queued
+     *
+     * @param transfer
+     * @return HttpStatus.OK if the transfer has been processed
+     *         HttpStatus.BAD_REQUEST if the transfer is not valid
+     *         HttpStatus.TOO_MANY_REQUESTS if the source account is over its rate
+     */
+    @PostMapping(path = "/transfer", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<Object>> transfer(@RequestBody @Valid final Transfer transfer) {
+        log.info("Transferring between accounts {}", transfer);
+
+        CompletableFuture<Void> transferred;
+        try {
+            this.transferAdmission.checkRate(transfer.getSourceAccountId());
+            transferred = this.accountsService.transferAsync(transfer);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST));
+        } catch (TooManyRequestsException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(e.getMessage()));
+        }
+        return transferred.handle((applied, error) -> {
+            if (error == null) {
+                return TRANSFERRED;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause()
+                    : error;
+            if (cause instanceof IllegalArgumentException || cause instanceof NotEnoughBalanceException
+                    || cause instanceof BalanceOverflowException) {
+                return new ResponseEntity<>(cause.getMessage(), HttpStatus.BAD_REQUEST);
+            }
+            // Handled by Spring MVC like an exception thrown by a blocking handler
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+    }
+}
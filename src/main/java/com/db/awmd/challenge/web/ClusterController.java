@@ -0,0 +1,106 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.cluster.ClusterAccountsRepository;
+import com.db.awmd.challenge.cluster.ClusterClient;
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.service.IdempotencyCache;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.math.BigDecimal;
+
+/**
+ * Endpoints the nodes of a cluster call on each other, they only ever touch the accounts of this node
+ *
+ * Errors of the accounts are answered with HttpStatus.BAD_REQUEST, the message as body and the name of the exception
+ * in the Cluster-Error header for ClusterClient to throw it again. Withdrawals and deposits run once per escrow id.
+ * These endpoints trust their caller and must only be reachable by the other nodes.
+ */
+@RestController
+@RequestMapping(ClusterClient.PATH)
+@ConditionalOnProperty(prefix = "accounts.cluster", name = "enabled", havingValue = "true")
+public class ClusterController {
+
+    private final AccountsRepository local;
+
+    private final IdempotencyCache idempotencyCache;
+
+    public ClusterController(AccountsRepository accountsRepository, IdempotencyCache idempotencyCache) {
+        if (!(accountsRepository instanceof ClusterAccountsRepository)) {
+            throw new IllegalStateException("Cluster endpoints need the cluster repository, found "
+                    + accountsRepository.getClass().getSimpleName());
+        }
+        this.local = ((ClusterAccountsRepository) accountsRepository).getLocal();
+        this.idempotencyCache = idempotencyCache;
+    }
+
+    @GetMapping(path = "/accounts/{accountId}")
+    public ResponseEntity<Account> getAccount(@PathVariable String accountId) {
+        Account account = local.getAccount(accountId);
+        return account == null ? new ResponseEntity<>(HttpStatus.NOT_FOUND) : ResponseEntity.ok(account);
+    }
+
+    @PostMapping(path = "/accounts")
+    public ResponseEntity<Object> createAccount(@RequestBody Account account) {
+        return this.apply(() -> local.createAccount(account));
+    }
+
+    @PostMapping(path = "/transfers")
+    public ResponseEntity<Object> transfer(@RequestBody Transfer transfer) {
+        return this.apply(() -> local.transfer(transfer));
+    }
+
+    @PostMapping(path = "/accounts/{accountId}/withdraw")
+    public ResponseEntity<Object> withdraw(@PathVariable String accountId, @RequestBody BigDecimal amount,
+                                           @RequestHeader(ClusterClient.ESCROW_HEADER) String escrowId) {
+        return this.apply(() -> idempotencyCache.execute("withdraw:" + escrowId,
+                accountId + " " + amount.stripTrailingZeros().toPlainString(),
+                () -> {
+                    local.withdraw(accountId, amount);
+                    return Boolean.TRUE;
+                }));
+    }
+
+    @PostMapping(path = "/accounts/{accountId}/deposit")
+    public ResponseEntity<Object> deposit(@PathVariable String accountId, @RequestBody BigDecimal amount,
+                                          @RequestHeader(ClusterClient.ESCROW_HEADER) String escrowId) {
+        return this.apply(() -> idempotencyCache.execute("deposit:" + escrowId,
+                accountId + " " + amount.stripTrailingZeros().toPlainString(),
+                () -> {
+                    local.deposit(accountId, amount);
+                    return Boolean.TRUE;
+                }));
+    }
+
+    @DeleteMapping(path = "/accounts")
+    public ResponseEntity<Object> clearAccounts() {
+        local.clearAccounts();
+        return ResponseEntity.ok().build();
+    }
+
+    private ResponseEntity<Object> apply(Runnable operation) {
+        try {
+            operation.run();
+        } catch (IllegalArgumentException | NotEnoughBalanceException | BalanceOverflowException
+                | DuplicateAccountIdException | UnsupportedOperationException e) {
+            return ResponseEntity.badRequest()
+                    .header(ClusterClient.ERROR_HEADER, e.getClass().getSimpleName())
+                    .body(e.getMessage());
+        }
+        return ResponseEntity.ok().build();
+    }
+}
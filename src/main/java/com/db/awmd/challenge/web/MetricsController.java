@@ -0,0 +1,92 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.metrics.AccountCacheMetrics;
+import com.db.awmd.challenge.metrics.AccountCacheReport;
+import com.db.awmd.challenge.metrics.AdmissionReport;
+import com.db.awmd.challenge.metrics.NotificationQueueReport;
+import com.db.awmd.challenge.metrics.ReplicationReport;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import com.db.awmd.challenge.metrics.TransferMetricsReport;
+import com.db.awmd.challenge.replication.ReplicatedAccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.service.NotificationDispatcher;
+import lombok.AllArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@AllArgsConstructor
+@RestController
+@RequestMapping("/v1/metrics")
+public class MetricsController {
+
+    private final TransferMetrics transferMetrics;
+
+    private final AccountsRepository accountsRepository;
+
+    private final NotificationDispatcher notificationDispatcher;
+
+    private final AccountCacheMetrics accountCacheMetrics;
+
+    private final TransferAdmission transferAdmission;
+
+    /**
+     * Endpoint exposing the latency percentiles of every transfer stage and the rejection and contention counters
+     *
+     * @return Metrics since startup
+     */
+    @GetMapping(path = "/transfers")
+    public TransferMetricsReport transfers() {
+        return this.transferMetrics.report(this.accountsRepository.getContentionCount());
+    }
+
+    /**
+     * Endpoint exposing the depth of the notification queue and what happened to the notifications
+     *
+     * @return Current depth and counters since startup
+     */
+    @GetMapping(path = "/notifications")
+    public NotificationQueueReport notifications() {
+        return this.notificationDispatcher.report();
+    }
+
+    /**
+     * Endpoint exposing the hit rate, evictions and load latency of the accounts kept in memory by the tiered
+     * repository
+     *
+     * @return Counters since startup, all 0 with the other repositories
+     */
+    @GetMapping(path = "/cache")
+    public AccountCacheReport cache() {
+        return this.accountCacheMetrics.report();
+    }
+
+    /**
+     * Endpoint exposing the concurrency limit of the transfer endpoint, the transfers it refused and the latency of
+     * the ones it admitted
+     *
+     * @return Current limit and counters since startup
+     */
+    @GetMapping(path = "/admission")
+    public AdmissionReport admission() {
+        return this.transferAdmission.report();
+    }
+
+    /**
+     * Endpoint exposing the replication role of this node and how far behind the primary its followers, or this
+     * follower, are
+     *
+     * @return HttpStatus.OK with the current state
+     *         HttpStatus.NOT_FOUND if replication is not enabled
+     */
+    @GetMapping(path = "/replication")
+    public ResponseEntity<ReplicationReport> replication() {
+        if (!(this.accountsRepository instanceof ReplicatedAccountsRepository)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(((ReplicatedAccountsRepository) this.accountsRepository).report());
+    }
+}
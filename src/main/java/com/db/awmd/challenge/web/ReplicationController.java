@@ -0,0 +1,53 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.metrics.ReplicationReport;
+import com.db.awmd.challenge.replication.ReplicatedAccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Endpoints to manage the replication role of this node
+ */
+@RestController
+@RequestMapping("/v1/replication")
+@ConditionalOnProperty(prefix = "accounts.replication", name = "enabled", havingValue = "true")
+@Slf4j
+public class ReplicationController {
+
+    private final ReplicatedAccountsRepository repository;
+
+    public ReplicationController(AccountsRepository accountsRepository) {
+        if (!(accountsRepository instanceof ReplicatedAccountsRepository)) {
+            throw new IllegalStateException("Replication endpoints need the replicated repository, found "
+                    + accountsRepository.getClass().getSimpleName());
+        }
+        this.repository = (ReplicatedAccountsRepository) accountsRepository;
+    }
+
+    /**
+     * Endpoint to fail over to this follower once its primary is gone: it stops following and accepts changes
+     *
+     * Nothing stops the old primary from accepting changes too if it is still running, fencing it is up to the
+     * operator.
+     *
+     * @return HttpStatus.OK with the replication state as a primary
+     *         HttpStatus.CONFLICT if this node is a primary already
+     */
+    @PostMapping(path = "/promote")
+    public ResponseEntity<Object> promote() {
+        log.info("Promoting to primary");
+
+        try {
+            this.repository.promote();
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.CONFLICT);
+        }
+        return ResponseEntity.<Object>ok(this.repository.report());
+    }
+}
@@ -0,0 +1,114 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.exception.TooManyRequestsException;
+import lombok.AllArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Takes a slot of the TransferAdmission limit for every transfer before Spring MVC reads its body
+ *
+ * Refusing a transfer here costs no parsing, validation or handler lookup, so under overload the server answers the
+ * transfers it cannot run at a fraction of the cost of the ones it runs. The slot is held until the response has been
+ * written, so the latency the limit adapts to is the whole time the request takes on its thread. A transfer of
+ * AsyncAccountsController holds it until its async processing completes, so the limit also bounds the requests waiting
+ * without a thread, each keeping the buffers of its Tomcat processor. A transfer the controller answered with
+ * HttpStatus.TOO_MANY_REQUESTS was refused by the bucket of its source account and gives its slot back without
+ * feeding its latency to the limit.
+ */
+@AllArgsConstructor
+@Component
+public class TransferAdmissionFilter extends OncePerRequestFilter {
+
+    private static final String TRANSFER_PATH = "/v1/accounts/transfer";
+
+    private static final String ASYNC_TRANSFER_PATH = "/v1/async/accounts/transfer";
+
+    private final TransferAdmission transferAdmission;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!"POST".equals(request.getMethod())) {
+            return true;
+        }
+        String uri = request.getRequestURI();
+        return !(request.getContextPath() + TRANSFER_PATH).equals(uri)
+                && !(request.getContextPath() + ASYNC_TRANSFER_PATH).equals(uri);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        TransferAdmission.Permit permit;
+        try {
+            permit = transferAdmission.acquire();
+        } catch (TooManyRequestsException e) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.getWriter().write(e.getMessage());
+            return;
+        }
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new PermitRelease(permit));
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                release(permit, response);
+            }
+        }
+    }
+
+    private static void release(TransferAdmission.Permit permit, HttpServletResponse response) {
+        if (response.getStatus() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+            permit.closeRefused();
+        } else {
+            permit.close();
+        }
+    }
+
+    /**
+     * Gives the slot back once the async processing has completed, after a timeout or an error too
+     */
+    @AllArgsConstructor
+    private static final class PermitRelease implements AsyncListener {
+
+        private final TransferAdmission.Permit permit;
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release(permit, (HttpServletResponse) event.getAsyncContext().getResponse());
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // Followed by onComplete
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // Followed by onComplete
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Not restarted by Spring MVC
+        }
+    }
+}
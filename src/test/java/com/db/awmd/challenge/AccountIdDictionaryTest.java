@@ -0,0 +1,128 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.repository.AccountIdDictionary;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the open addressing dictionary of account ids
+ */
+public class AccountIdDictionaryTest {
+
+    private AccountIdDictionary dictionary;
+
+    @Before
+    public void prepare() {
+        dictionary = new AccountIdDictionary();
+    }
+
+    @Test
+    public void addAndFind() {
+        assertThat(dictionary.add("Id-0")).isEqualTo(0);
+        assertThat(dictionary.add("Id-1")).isEqualTo(1);
+        assertThat(dictionary.add("Id-0")).isEqualTo(AccountIdDictionary.NONE);
+
+        assertThat(dictionary.find("Id-1")).isEqualTo(1);
+        assertThat(dictionary.find("Id-2")).isEqualTo(AccountIdDictionary.NONE);
+        assertThat(dictionary.idOf(1)).isEqualTo("Id-1");
+        assertThat(dictionary.size()).isEqualTo(2);
+
+        dictionary.clear();
+        assertThat(dictionary.find("Id-1")).isEqualTo(AccountIdDictionary.NONE);
+        assertThat(dictionary.add("Id-1")).isEqualTo(0);
+    }
+
+    /**
+     * Grows the table and the id pages several times, including ids with the same hash
+     */
+    @Test
+    public void manyIds() {
+        for (int i = 0; i < 200_000; i++) {
+            assertThat(dictionary.add("Id-" + i)).isEqualTo(i);
+        }
+        // "Aa" and "BB" have the same hash code
+        int colliding = dictionary.add("Aa");
+        assertThat(dictionary.add("BB")).isEqualTo(colliding + 1);
+
+        for (int i = 0; i < 200_000; i++) {
+            assertThat(dictionary.find("Id-" + i)).isEqualTo(i);
+        }
+        assertThat(dictionary.find("Aa")).isEqualTo(colliding);
+        assertThat(dictionary.find("BB")).isEqualTo(colliding + 1);
+        assertThat(dictionary.idOf(150_000)).isEqualTo("Id-150000");
+    }
+
+    /**
+     * Readers running while ids are added find every id added before they looked for it
+     */
+    @Test
+    public void concurrentFind() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    dictionary.add("Id-" + i);
+                }
+            });
+            Future<?> reader = executor.submit(() -> {
+                while (!writer.isDone()) {
+                    int added = dictionary.size();
+                    for (int i = Math.max(0, added - 100); i < added; i++) {
+                        assertThat(dictionary.find("Id-" + i)).isEqualTo(i);
+                        assertThat(dictionary.idOf(i)).isEqualTo("Id-" + i);
+                    }
+                }
+                return null;
+            });
+            writer.get();
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Readers running while the dictionary is cleared get NONE or a handle of the id, never an error
+     */
+    @Test
+    public void concurrentFindAndClear() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int round = 0; round < 200; round++) {
+                    for (int i = 0; i < 2_000; i++) {
+                        dictionary.add("Id-" + i);
+                    }
+                    dictionary.clear();
+                }
+            });
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                readers.add(executor.submit(() -> {
+                    while (!writer.isDone()) {
+                        for (int i = 0; i < 2_000; i += 7) {
+                            int handle = dictionary.find("Id-" + i);
+                            assertThat(handle).isIn(AccountIdDictionary.NONE, i);
+                            assertThat(dictionary.idOf(i)).isIn(null, "Id-" + i);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            writer.get();
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
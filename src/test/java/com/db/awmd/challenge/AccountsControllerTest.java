@@ -1,8 +1,15 @@
 package com.db.awmd.challenge;
 
+import com.db.awmd.challenge.admission.TransferAdmission;
 import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.ledger.TransferLedger;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+import com.db.awmd.challenge.service.AccountsImporter;
 import com.db.awmd.challenge.service.AccountsService;
+import com.db.awmd.challenge.service.IdempotencyCache;
+import com.db.awmd.challenge.web.AccountsController;
+import com.db.awmd.challenge.web.TransferAdmissionFilter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,14 +25,22 @@ import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.context.WebApplicationContext;
 
 import java.math.BigDecimal;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
 
 @RunWith(SpringRunner.class)
@@ -38,6 +53,15 @@ public class AccountsControllerTest {
     @Autowired
     private AccountsService accountsService;
 
+    @Autowired
+    private TransferLedger transferLedger;
+
+    @Autowired
+    private TransferAdmissionFilter transferAdmissionFilter;
+
+    @Autowired
+    private AccountsImporter accountsImporter;
+
     @Autowired
     private WebApplicationContext webApplicationContext;
 
@@ -50,10 +74,11 @@ public class AccountsControllerTest {
 
     @Before
     public void prepareMockMvc() {
-        this.mockMvc = webAppContextSetup(this.webApplicationContext).build();
+        this.mockMvc = webAppContextSetup(this.webApplicationContext).addFilters(this.transferAdmissionFilter).build();
 
         // Reset the existing accounts before each test.
         accountsService.getAccountsRepository().clearAccounts();
+        transferLedger.clear();
 
         // Accounts for transfer tests
         accountsService.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
@@ -70,6 +95,73 @@ public class AccountsControllerTest {
         assertThat(account.getBalance()).isEqualByComparingTo("1000");
     }
 
+    /**
+     * Check that accounts are imported from newline delimited JSON and that rejected lines are reported
+     *
+     * @throws Exception
+     */
+    @Test
+    public void importAccounts() throws Exception {
+        String response = this.mockMvc.perform(post("/v1/accounts/import")
+                        .contentType("application/x-ndjson")
+                        .content("{\"accountId\":\"Id-1\",\"balance\":10}\n"
+                                + "{\"accountId\":\"" + SOURCE_ACCOUNT + "\",\"balance\":10}\n"
+                                + "{\"accountId\":\"Id-2\",\"balance\":20}\n"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = response.split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(MAPPER.readTree(lines[0]).get("line").asInt()).isEqualTo(2);
+        assertThat(MAPPER.readTree(lines[0]).get("accountId").asText()).isEqualTo(SOURCE_ACCOUNT);
+        assertThat(MAPPER.readTree(lines[1]).get("created").asInt()).isEqualTo(2);
+        assertThat(MAPPER.readTree(lines[1]).get("rejected").asInt()).isEqualTo(1);
+        assertThat(accountsService.getAccount("Id-2").getBalance()).isEqualByComparingTo("20");
+    }
+
+    @Test
+    public void lookupAccounts() throws Exception {
+        this.mockMvc.perform(post("/v1/accounts/lookup").contentType(MediaType.APPLICATION_JSON)
+                .content("[\"" + DESTINATION_ACCOUNT + "\",\"Id-missing\",\"" + SOURCE_ACCOUNT + "\"]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.accounts.length()").value(2))
+                .andExpect(jsonPath("$.accounts[0].accountId").value(DESTINATION_ACCOUNT))
+                .andExpect(jsonPath("$.accounts[1].accountId").value(SOURCE_ACCOUNT))
+                .andExpect(jsonPath("$.accounts[1].balance").value(100))
+                .andExpect(jsonPath("$.missing[0]").value("Id-missing"));
+
+        this.mockMvc.perform(post("/v1/accounts/lookup").contentType(MediaType.APPLICATION_JSON).content("[]"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void exportAccounts() throws Exception {
+        // Only the striped repository takes consistent exports, the others answer 501
+        assumeTrue(accountsService.getAccountsRepository() instanceof AccountsRepositoryStriped);
+        this.mockMvc.perform(post("/v1/accounts").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"accountId\":\"Id,\\\"1\\\"\",\"balance\":12.50}")).andExpect(status().isCreated());
+
+        String ndjson = this.mockMvc.perform(get("/v1/accounts/export"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = ndjson.split("\n");
+        assertThat(lines).hasSize(3);
+        BigDecimal total = BigDecimal.ZERO;
+        for (String line : lines) {
+            total = total.add(MAPPER.readTree(line).get("balance").decimalValue());
+        }
+        assertThat(total).isEqualByComparingTo("212.50");
+
+        this.mockMvc.perform(get("/v1/accounts/export").param("format", "csv"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("accountId,balance\n")))
+                .andExpect(content().string(containsString(SOURCE_ACCOUNT + ",100\n")))
+                .andExpect(content().string(containsString("\"Id,\"\"1\"\"\",12.50\n")));
+
+        this.mockMvc.perform(get("/v1/accounts/export").param("format", "xml"))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void createDuplicateAccount() throws Exception {
         this.mockMvc.perform(post("/v1/accounts").contentType(MediaType.APPLICATION_JSON)
@@ -120,6 +212,41 @@ public class AccountsControllerTest {
                         content().string("{\"accountId\":\"" + uniqueAccountId + "\",\"balance\":123.45}"));
     }
 
+    /**
+     * A poll with the ETag of the current version gets 304 without a body, until a transfer changes the account
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getAccountNotModified() throws Exception {
+        // Only repositories tracking versions send ETags
+        assumeTrue(accountsService.getAccount(SOURCE_ACCOUNT).getVersion() > 0);
+
+        String eTag = this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", notNullValue()))
+                .andReturn().getResponse().getHeader("ETag");
+
+        this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT).header("If-None-Match", eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", eTag))
+                .andExpect(content().string(""));
+        this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT).header("If-None-Match", "*"))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        accountsService.transfer(Transfer.builder()
+                .sourceAccountId(SOURCE_ACCOUNT)
+                .destinationAccountId(DESTINATION_ACCOUNT)
+                .amount(new BigDecimal("1"))
+                .build());
+        this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT).header("If-None-Match", eTag))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", not(eTag)))
+                .andExpect(jsonPath("$.balance").value(99))
+                .andExpect(jsonPath("$.version").doesNotExist());
+    }
+
     /**
      * Test transfer is done successfully according to provided business rules
      *
@@ -257,4 +384,224 @@ public class AccountsControllerTest {
                 .andExpect(status().isBadRequest())
                 .andExpect(content().string(containsString("Origin and destination account cannot be equal")));
     }
+
+    /**
+     * Check that a transfer retried with the same Idempotency-Key is only applied once, and that the key cannot be
+     * used for another transfer
+     *
+     * @throws Exception
+     */
+    @Test
+    public void transferIdempotencyKey() throws Exception {
+        String key = UUID.randomUUID().toString();
+        Transfer transfer = Transfer.builder()
+                .sourceAccountId(SOURCE_ACCOUNT)
+                .destinationAccountId(DESTINATION_ACCOUNT)
+                .amount(new BigDecimal("30"))
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            this.mockMvc.perform(post("/v1/accounts/transfer")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .header("Idempotency-Key", key)
+                            .content(MAPPER.writeValueAsString(transfer)))
+                    .andExpect(status().isOk());
+        }
+        // The same amount with another scale is the same transfer
+        this.mockMvc.perform(post("/v1/accounts/transfer")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .header("Idempotency-Key", key)
+                        .content("{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + DESTINATION_ACCOUNT + "\",\"amount\":30.00}"))
+                .andExpect(status().isOk());
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("70");
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("130");
+
+        this.mockMvc.perform(post("/v1/accounts/transfer")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .header("Idempotency-Key", key)
+                        .content("{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + DESTINATION_ACCOUNT + "\",\"amount\":31}"))
+                .andExpect(status().isUnprocessableEntity());
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("70");
+    }
+
+    /**
+     * Check that retries of an applied transfer get its response even once the source account is over its rate
+     *
+     * @throws Exception
+     */
+    @Test
+    public void transferIdempotencyKeyRetryOverRate() throws Exception {
+        TransferAdmission admission = new TransferAdmission(true, 64, 4, 1000, 10_000, 0.9, 0.001, 1, 100);
+        MockMvc limited = standaloneSetup(new AccountsController(accountsService, new IdempotencyCache(10, 60),
+                accountsImporter, admission)).build();
+        String key = UUID.randomUUID().toString();
+        Transfer transfer = Transfer.builder()
+                .sourceAccountId(SOURCE_ACCOUNT)
+                .destinationAccountId(DESTINATION_ACCOUNT)
+                .amount(new BigDecimal("30"))
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            limited.perform(post("/v1/accounts/transfer")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .header("Idempotency-Key", key)
+                            .content(MAPPER.writeValueAsString(transfer)))
+                    .andExpect(status().isOk());
+        }
+        limited.perform(post("/v1/accounts/transfer")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .header("Idempotency-Key", UUID.randomUUID().toString())
+                        .content(MAPPER.writeValueAsString(transfer)))
+                .andExpect(status().isTooManyRequests());
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("70");
+    }
+
+    /**
+     * Check that the transfers of an account are paged newest first with a cursor
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getTransfers() throws Exception {
+        for (int amount = 1; amount <= 3; amount++) {
+            accountsService.transfer(Transfer.builder()
+                    .sourceAccountId(SOURCE_ACCOUNT)
+                    .destinationAccountId(DESTINATION_ACCOUNT)
+                    .amount(new BigDecimal(amount))
+                    .build());
+        }
+
+        String page = this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT + "/transfers?limit=2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.transfers.length()").value(2))
+                .andExpect(jsonPath("$.transfers[0].amount").value(3))
+                .andExpect(jsonPath("$.transfers[0].sourceAccountId").value(SOURCE_ACCOUNT))
+                .andExpect(jsonPath("$.transfers[1].amount").value(2))
+                .andReturn().getResponse().getContentAsString();
+        String next = MAPPER.readTree(page).get("next").asText();
+
+        this.mockMvc.perform(get("/v1/accounts/" + DESTINATION_ACCOUNT + "/transfers?limit=2&cursor=" + next))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.transfers.length()").value(1))
+                .andExpect(jsonPath("$.transfers[0].amount").value(1))
+                .andExpect(jsonPath("$.next").doesNotExist());
+
+        this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT + "/transfers?cursor=99"))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(get("/v1/accounts/Id-unknown/transfers"))
+                .andExpect(status().isNotFound());
+    }
+
+    /**
+     * Check that a best effort batch applies the valid transfers and returns the result of each one
+     *
+     * @throws Exception
+     */
+    @Test
+    public void transferBatchBestEffort() throws Exception {
+        this.mockMvc.perform(post("/v1/accounts/transfers/batch?mode=best-effort")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + DESTINATION_ACCOUNT + "\",\"amount\":30},"
+                                + "{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + SOURCE_ACCOUNT + "\",\"amount\":30},"
+                                + "{\"sourceAccountId\":\"" + DESTINATION_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + SOURCE_ACCOUNT + "\",\"amount\":500}]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.applied").value(1))
+                .andExpect(jsonPath("$.rejected").value(2))
+                .andExpect(jsonPath("$.results[0].status").value("APPLIED"))
+                .andExpect(jsonPath("$.results[1].status").value("INVALID"))
+                .andExpect(jsonPath("$.results[2].status").value("NOT_ENOUGH_BALANCE"));
+
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("70");
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("130");
+    }
+
+    /**
+     * Check that an all-or-nothing batch with an invalid transfer is not applied at all
+     *
+     * @throws Exception
+     */
+    @Test
+    public void transferBatchAllOrNothing() throws Exception {
+        this.mockMvc.perform(post("/v1/accounts/transfers/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + DESTINATION_ACCOUNT + "\",\"amount\":30},"
+                                + "{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                                + DESTINATION_ACCOUNT + "\",\"amount\":-1}]"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.applied").value(0))
+                .andExpect(jsonPath("$.results[0].status").value("ABORTED"))
+                .andExpect(jsonPath("$.results[1].status").value("INVALID"));
+
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("100");
+    }
+
+    /**
+     * Check that the stages of a transfer are timed and exposed by the metrics endpoint
+     *
+     * @throws Exception
+     */
+    @Test
+    public void transferMetrics() throws Exception {
+        this.mockMvc.perform(post("/v1/accounts/transfer")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(MAPPER.writeValueAsString(
+                                Transfer.builder()
+                                        .sourceAccountId(SOURCE_ACCOUNT)
+                                        .destinationAccountId(DESTINATION_ACCOUNT)
+                                        .amount(new BigDecimal("500"))
+                                        .build())))
+                .andExpect(status().isBadRequest());
+
+        this.mockMvc.perform(get("/v1/metrics/transfers"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.stages.PARSE.count", greaterThanOrEqualTo(1)))
+                .andExpect(jsonPath("$.stages.VALIDATE.count", greaterThanOrEqualTo(1)))
+                .andExpect(jsonPath("$.stages.REPOSITORY.p99").isNumber())
+                .andExpect(jsonPath("$.notEnoughBalance", greaterThanOrEqualTo(1)))
+                .andExpect(jsonPath("$.contention").isNumber());
+    }
+
+    /**
+     * Check that the account cache counters are exposed, they only move with the tiered repository
+     */
+    @Test
+    public void cacheMetrics() throws Exception {
+        this.mockMvc.perform(get("/v1/accounts/" + SOURCE_ACCOUNT)).andExpect(status().isOk());
+
+        this.mockMvc.perform(get("/v1/metrics/cache"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.hits").isNumber())
+                .andExpect(jsonPath("$.hitRate").isNumber())
+                .andExpect(jsonPath("$.evictions").isNumber())
+                .andExpect(jsonPath("$.load.p99").isNumber());
+    }
+
+    /**
+     * Check that the transfers admitted are counted with their latency and the current concurrency limit
+     */
+    @Test
+    public void admissionMetrics() throws Exception {
+        this.mockMvc.perform(post("/v1/accounts/transfer")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(MAPPER.writeValueAsString(
+                                Transfer.builder()
+                                        .sourceAccountId(SOURCE_ACCOUNT)
+                                        .destinationAccountId(DESTINATION_ACCOUNT)
+                                        .amount(new BigDecimal("1"))
+                                        .build())))
+                .andExpect(status().isOk());
+
+        this.mockMvc.perform(get("/v1/metrics/admission"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.limit", greaterThanOrEqualTo(1)))
+                .andExpect(jsonPath("$.admitted", greaterThanOrEqualTo(1)))
+                .andExpect(jsonPath("$.shedByLimit").isNumber())
+                .andExpect(jsonPath("$.latency.count", greaterThanOrEqualTo(1)));
+    }
 }
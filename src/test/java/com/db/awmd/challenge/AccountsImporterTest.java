@@ -0,0 +1,48 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.AccountImportResult;
+import com.db.awmd.challenge.domain.AccountImportSummary;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+import com.db.awmd.challenge.service.AccountsImporter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import javax.validation.Validation;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AccountsImporterTest {
+
+    private final AccountsRepositoryStriped accountsRepository = new AccountsRepositoryStriped(16);
+
+    /**
+     * Accounts are created in chunks and every rejected line is reported with its number and reason
+     */
+    @Test
+    public void importAccounts() throws Exception {
+        AccountsImporter importer = new AccountsImporter(accountsRepository, new ObjectMapper(),
+                Validation.buildDefaultValidatorFactory().getValidator(), 2, 100);
+        String input = "{\"accountId\":\"Id-1\",\"balance\":100}\n"
+                + "{\"accountId\":\"Id-2\",\"balance\":200}\r\n"
+                + "\n"
+                + "{\"accountId\":\"Id-1\",\"balance\":300}\n"
+                + "{\"accountId\":\"Id-3\",\"balance\":-1}\n"
+                + "not json\n"
+                + "{\"accountId\":\"" + new String(new char[200]).replace('\0', 'x') + "\",\"balance\":1}\n"
+                + "{\"accountId\":\"Id-4\",\"balance\":400}";
+
+        List<AccountImportResult> rejected = new ArrayList<>();
+        AccountImportSummary summary = importer.importAccounts(new StringReader(input), rejected::add);
+
+        assertThat(summary).isEqualTo(new AccountImportSummary(3, 4));
+        assertThat(rejected).extracting(AccountImportResult::getLine).containsExactly(5L, 6L, 7L, 4L);
+        assertThat(rejected.get(0).getError()).isEqualTo("balance: Initial balance must be positive.");
+        assertThat(rejected.get(1).getAccountId()).isNull();
+        assertThat(rejected.get(3).getError()).isEqualTo("Account id Id-1 already exists!");
+        assertThat(accountsRepository.getAccount("Id-1").getBalance()).isEqualByComparingTo("100");
+        assertThat(accountsRepository.getAccount("Id-4").getBalance()).isEqualByComparingTo("400");
+    }
+}
@@ -2,6 +2,7 @@ package com.db.awmd.challenge;
 
 import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
 import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
 import com.google.testing.threadtester.*;
 import org.junit.Test;
@@ -10,6 +11,8 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -63,4 +66,39 @@ public class AccountsRepositoryInMemoryTest {
     public void testTransfer() {
         new AnnotatedTestRunner().runTests(this.getClass(), AccountsRepositoryInMemory.class);
     }
+
+    @Test
+    public void failedBatchIsRefundedAfterItsDestinationIsDrained() {
+        AccountsRepositoryInMemory repository = new AccountsRepositoryInMemory() {
+            @Override
+            public void transfer(Transfer transfer) {
+                super.transfer(transfer);
+                if (transfer.getDestinationAccountId().equals("B")) {
+                    // A concurrent request takes the amount out of the destination before the batch fails
+                    super.transfer(AccountsRepositoryInMemoryTest.transfer("B", "C", "50"));
+                }
+            }
+        };
+        repository.createAccount(new Account("A", new BigDecimal("100")));
+        repository.createAccount(new Account("B", BigDecimal.ZERO));
+        repository.createAccount(new Account("C", BigDecimal.ZERO));
+
+        List<TransferResult> results = repository.transferBatch(Arrays.asList(
+                transfer("A", "B", "50"),
+                transfer("A", "C", "1000")), true);
+
+        assertThat(results).extracting("status")
+                .containsExactly(TransferResult.Status.ABORTED, TransferResult.Status.NOT_ENOUGH_BALANCE);
+        assertThat(repository.getAccount("A").getBalance()).isEqualByComparingTo("100");
+        assertThat(repository.getAccount("B").getBalance()).isEqualByComparingTo("-50");
+        assertThat(repository.getAccount("C").getBalance()).isEqualByComparingTo("50");
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
 }
@@ -0,0 +1,104 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepositoryMapped;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the memory-mapped repository, including reopening the file
+ */
+public class AccountsRepositoryMappedTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    private AccountsRepositoryMapped accountsRepositoryMapped;
+
+    @Before
+    public void prepare() {
+        path = folder.getRoot().toPath().resolve("accounts.dat");
+        accountsRepositoryMapped = new AccountsRepositoryMapped(path, 0, 2, 16);
+
+        accountsRepositoryMapped.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        accountsRepositoryMapped.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+    }
+
+    @After
+    public void close() {
+        accountsRepositoryMapped.close();
+    }
+
+    @Test
+    public void transfer() {
+        accountsRepositoryMapped.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "50.5"));
+
+        assertThat(accountsRepositoryMapped.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("49.5");
+        assertThat(accountsRepositoryMapped.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("150.5");
+    }
+
+    @Test(expected = NotEnoughBalanceException.class)
+    public void transferNotEnoughBalance() {
+        accountsRepositoryMapped.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "100.01"));
+    }
+
+    @Test(expected = DuplicateAccountIdException.class)
+    public void createDuplicateAccount() {
+        accountsRepositoryMapped.createAccount(new Account(SOURCE_ACCOUNT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createAccountIdTooLong() {
+        accountsRepositoryMapped.createAccount(new Account(new String(new char[AccountsRepositoryMapped.MAX_ID_BYTES + 1])
+                .replace('\0', 'x')));
+    }
+
+    /**
+     * Balances and accounts are found again after the file is closed and reopened
+     */
+    @Test
+    public void reopen() {
+        accountsRepositoryMapped.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "25"));
+        for (int i = 0; i < 70_000; i++) {
+            accountsRepositoryMapped.createAccount(new Account("Id-" + i, new BigDecimal(i)));
+        }
+        accountsRepositoryMapped.close();
+
+        accountsRepositoryMapped = new AccountsRepositoryMapped(path, 0, 2, 16);
+
+        assertThat(accountsRepositoryMapped.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("75");
+        assertThat(accountsRepositoryMapped.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("125");
+        assertThat(accountsRepositoryMapped.getAccount("Id-69999").getBalance()).isEqualByComparingTo("69999");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reopenWithOtherScale() {
+        accountsRepositoryMapped.close();
+
+        accountsRepositoryMapped = new AccountsRepositoryMapped(path, 0, 4, 16);
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,142 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepositoryOptimistic;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Concurrency tests for the optimistic repository: conflicting transfers are retried until they commit and money is
+ * conserved
+ */
+public class AccountsRepositoryOptimisticTest {
+
+    private static final int ACCOUNTS = 8;
+
+    private static final int THREADS = 8;
+
+    private static final int TRANSFERS_PER_THREAD = 5000;
+
+    private AccountsRepositoryOptimistic accountsRepositoryOptimistic;
+
+    @Before
+    public void prepare() {
+        accountsRepositoryOptimistic = new AccountsRepositoryOptimistic();
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accountsRepositoryOptimistic.createAccount(new Account("Id-" + i, new BigDecimal("1000")));
+        }
+    }
+
+    @Test
+    public void transfer() {
+        accountsRepositoryOptimistic.transfer(transfer("Id-0", "Id-1", "250"));
+
+        assertThat(accountsRepositoryOptimistic.getAccount("Id-0").getBalance()).isEqualByComparingTo("750");
+        assertThat(accountsRepositoryOptimistic.getAccount("Id-1").getBalance()).isEqualByComparingTo("1250");
+    }
+
+    @Test(expected = NotEnoughBalanceException.class)
+    public void transferNotEnoughBalance() {
+        accountsRepositoryOptimistic.transfer(transfer("Id-0", "Id-1", "1000.01"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transferNotExistingAccount() {
+        accountsRepositoryOptimistic.transfer(transfer("Id-0", "nonExistingAccount", "1"));
+    }
+
+    /**
+     * Returned accounts are copies, so changing them does not change the stored balance
+     */
+    @Test
+    public void getAccountReturnsCopy() {
+        accountsRepositoryOptimistic.getAccount("Id-0").setBalance(BigDecimal.ZERO);
+
+        assertThat(accountsRepositoryOptimistic.getAccount("Id-0").getBalance()).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * Every committed transfer creates new snapshots of both accounts with the next version
+     */
+    @Test
+    public void transferCreatesNewVersions() {
+        AccountsRepositoryOptimistic.Snapshot before = accountsRepositoryOptimistic.getSnapshot("Id-0");
+        accountsRepositoryOptimistic.transfer(transfer("Id-0", "Id-1", "250"));
+        accountsRepositoryOptimistic.transfer(transfer("Id-2", "Id-0", "50"));
+
+        assertThat(before.getBalance()).isEqualByComparingTo("1000");
+        assertThat(before.getVersion()).isEqualTo(0);
+        assertThat(accountsRepositoryOptimistic.getSnapshot("Id-0").getBalance()).isEqualByComparingTo("800");
+        assertThat(accountsRepositoryOptimistic.getSnapshot("Id-0").getVersion()).isEqualTo(2);
+        assertThat(accountsRepositoryOptimistic.getSnapshot("Id-1").getVersion()).isEqualTo(1);
+    }
+
+    /**
+     * Many threads transfer in both directions between all accounts. No thread may block forever and the total
+     * balance must be the same at the end
+     */
+    @Test
+    public void concurrentOpposingTransfers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                    String source = "Id-" + ((i + offset) % ACCOUNTS);
+                    String destination = "Id-" + ((i + offset + 1 + offset % 3) % ACCOUNTS);
+                    if (offset % 2 == 1) {
+                        String swap = source;
+                        source = destination;
+                        destination = swap;
+                    }
+                    try {
+                        accountsRepositoryOptimistic.transfer(transfer(source, destination, "7"));
+                    } catch (NotEnoughBalanceException e) {
+                        // Expected from time to time, the balance must still be conserved
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Account account = accountsRepositoryOptimistic.getAccount("Id-" + i);
+            assertThat(account.getBalance()).isGreaterThanOrEqualTo(BigDecimal.ZERO);
+            total = total.add(account.getBalance());
+        }
+        assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,169 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.BalanceOverflowException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepositoryPrimitive;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the repository storing balances as long minor units
+ */
+public class AccountsRepositoryPrimitiveTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    private AccountsRepositoryPrimitive accountsRepositoryPrimitive;
+
+    @Before
+    public void prepare() {
+        accountsRepositoryPrimitive = new AccountsRepositoryPrimitive(2, 16);
+
+        accountsRepositoryPrimitive.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100.50")));
+        accountsRepositoryPrimitive.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+    }
+
+    @Test
+    public void transfer() {
+        accountsRepositoryPrimitive.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "50.25"));
+
+        assertThat(accountsRepositoryPrimitive.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("50.25");
+        assertThat(accountsRepositoryPrimitive.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("150.25");
+    }
+
+    /**
+     * Slots resolved before the accounts were cleared are not applied to the accounts that took them since
+     */
+    @Test
+    public void transferStaleSlots() {
+        int source = accountsRepositoryPrimitive.resolve(SOURCE_ACCOUNT);
+        int destination = accountsRepositoryPrimitive.resolve(DESTINATION_ACCOUNT);
+        accountsRepositoryPrimitive.clearAccounts();
+        accountsRepositoryPrimitive.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("10")));
+        accountsRepositoryPrimitive.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("10")));
+
+        accountsRepositoryPrimitive.transfer(source, destination, transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "1"));
+
+        assertThat(accountsRepositoryPrimitive.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("9");
+        assertThat(accountsRepositoryPrimitive.getAccount(DESTINATION_ACCOUNT).getBalance())
+                .isEqualByComparingTo("11");
+    }
+
+    /**
+     * Amounts with fewer decimals than the scale, or with trailing zeros beyond it, are converted exactly
+     */
+    @Test
+    public void transferOtherScales() {
+        accountsRepositoryPrimitive.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "0.5"));
+        accountsRepositoryPrimitive.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "1.2500"));
+
+        assertThat(accountsRepositoryPrimitive.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("98.75");
+        assertThat(accountsRepositoryPrimitive.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("101.75");
+    }
+
+    @Test
+    public void getAccounts() {
+        List<Account> accounts = accountsRepositoryPrimitive.getAccounts(
+                Arrays.asList(DESTINATION_ACCOUNT, "Id-missing", SOURCE_ACCOUNT));
+
+        assertThat(accounts).hasSize(3);
+        assertThat(accounts.get(0).getBalance()).isEqualByComparingTo("100");
+        assertThat(accounts.get(1)).isNull();
+        assertThat(accounts.get(2).getAccountId()).isEqualTo(SOURCE_ACCOUNT);
+        assertThat(accounts.get(2).getBalance()).isEqualByComparingTo("100.50");
+    }
+
+    @Test(expected = DuplicateAccountIdException.class)
+    public void createDuplicateAccount() {
+        accountsRepositoryPrimitive.createAccount(new Account(SOURCE_ACCOUNT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createAccountTooManyDecimals() {
+        accountsRepositoryPrimitive.createAccount(new Account("Id-123", new BigDecimal("1.001")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transferTooManyDecimals() {
+        accountsRepositoryPrimitive.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "0.001"));
+    }
+
+    @Test(expected = NotEnoughBalanceException.class)
+    public void transferNotEnoughBalance() {
+        accountsRepositoryPrimitive.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "100.51"));
+    }
+
+    /**
+     * A credit that does not fit in a long is rejected and neither balance changes
+     */
+    @Test
+    public void transferOverflow() {
+        accountsRepositoryPrimitive.createAccount(new Account("rich", new BigDecimal(Long.MAX_VALUE).movePointLeft(2)));
+
+        try {
+            accountsRepositoryPrimitive.transfer(transfer(SOURCE_ACCOUNT, "rich", "1"));
+        } catch (BalanceOverflowException e) {
+            assertThat(accountsRepositoryPrimitive.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("100.50");
+            return;
+        }
+        throw new AssertionError("Should have failed with a balance overflow");
+    }
+
+    /**
+     * Accounts spread over several pages keep their balances
+     */
+    @Test
+    public void manyAccounts() {
+        for (int i = 0; i < 70_000; i++) {
+            accountsRepositoryPrimitive.createAccount(new Account("Id-" + i, BigDecimal.ONE));
+        }
+        accountsRepositoryPrimitive.transfer(transfer("Id-0", "Id-69999", "1"));
+
+        assertThat(accountsRepositoryPrimitive.getAccount("Id-0").getBalance()).isEqualByComparingTo("0");
+        assertThat(accountsRepositoryPrimitive.getAccount("Id-69999").getBalance()).isEqualByComparingTo("2");
+    }
+
+    /**
+     * Transfers between resolved slots must not allocate once the code is warm
+     */
+    @Test
+    public void slotTransferDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int source = accountsRepositoryPrimitive.slotOf(SOURCE_ACCOUNT);
+        int destination = accountsRepositoryPrimitive.slotOf(DESTINATION_ACCOUNT);
+
+        for (int i = 0; i < 100_000; i++) {
+            accountsRepositoryPrimitive.transfer(source, destination, 1);
+            accountsRepositoryPrimitive.transfer(destination, source, 1);
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100_000; i++) {
+            accountsRepositoryPrimitive.transfer(source, destination, 1);
+            accountsRepositoryPrimitive.transfer(destination, source, 1);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        // Tolerates the measurement itself, far below one object per transfer
+        assertThat(allocated).isLessThan(10_000);
+        assertThat(accountsRepositoryPrimitive.getBalance(source)).isEqualTo(10050);
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,253 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepositorySharded;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the single writer partitioned repository, including transfers across partitions
+ */
+public class AccountsRepositoryShardedTest {
+
+    private static final int ACCOUNTS = 16;
+
+    private AccountsRepositorySharded accountsRepositorySharded;
+
+    @Before
+    public void prepare() {
+        // Small ring so that producers have to wait for the partition threads
+        accountsRepositorySharded = new AccountsRepositorySharded(4, 8);
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accountsRepositorySharded.createAccount(new Account("Id-" + i, new BigDecimal("1000")));
+        }
+    }
+
+    @After
+    public void close() {
+        accountsRepositorySharded.close();
+    }
+
+    @Test(expected = DuplicateAccountIdException.class)
+    public void createDuplicateAccount() {
+        accountsRepositorySharded.createAccount(new Account("Id-0"));
+    }
+
+    @Test
+    public void transfer() {
+        accountsRepositorySharded.transfer(transfer("Id-0", "Id-1", "250"));
+
+        assertThat(accountsRepositorySharded.getAccount("Id-0").getBalance()).isEqualByComparingTo("750");
+        assertThat(accountsRepositorySharded.getAccount("Id-1").getBalance()).isEqualByComparingTo("1250");
+    }
+
+    @Test(expected = NotEnoughBalanceException.class)
+    public void transferNotEnoughBalance() {
+        accountsRepositorySharded.transfer(transfer("Id-0", "Id-1", "1000.01"));
+    }
+
+    @Test
+    public void transferAsyncNotEnoughBalance() {
+        try {
+            accountsRepositorySharded.transferAsync(transfer("Id-0", "Id-1", "1000.01")).join();
+            fail("Should have failed when transferring more than the balance");
+        } catch (CompletionException e) {
+            assertThat(e.getCause()).isInstanceOf(NotEnoughBalanceException.class);
+        }
+        assertThat(accountsRepositorySharded.getAccount("Id-0").getBalance()).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * The destination is in another partition and does not exist, so nothing is taken from the source
+     */
+    @Test
+    public void transferToNotExistingAccount() {
+        try {
+            accountsRepositorySharded.transfer(transfer("Id-0", "nonExistingAccount", "100"));
+            fail("Should have failed when transferring to a not existing account");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("nonExistingAccount");
+        }
+        assertThat(accountsRepositorySharded.getAccount("Id-0").getBalance()).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * Accounts are resolved on their owner thread without waiting for it
+     */
+    @Test
+    public void resolveAsync() {
+        assertThat(accountsRepositorySharded.resolveAsync("Id-0").join()).isEqualTo(AccountsRepository.UNRESOLVED);
+        assertThat(accountsRepositorySharded.resolveAsync("nonExistingAccount").join())
+                .isEqualTo(AccountsRepository.NO_ACCOUNT);
+    }
+
+    /**
+     * Submits transfers between every pair of accounts without waiting, then checks nothing was lost
+     */
+    @Test
+    public void concurrentTransfersConserveBalance() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < ACCOUNTS; i++) {
+                for (int j = 0; j < ACCOUNTS; j++) {
+                    if (i != j) {
+                        futures.add(accountsRepositorySharded.transferAsync(
+                                transfer("Id-" + i, "Id-" + j, "3")).exceptionally(e -> null));
+                    }
+                }
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            total = total.add(accountsRepositorySharded.getAccount("Id-" + i).getBalance());
+        }
+        assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+    }
+
+    /**
+     * Reads every account while transfers across partitions run, the total never moves
+     */
+    @Test
+    public void readsDuringTransfersConserveBalance() throws InterruptedException {
+        List<String> accountIds = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accountIds.add("Id-" + i);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread transfers = new Thread(() -> {
+            Random random = new Random(7);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            while (running.get()) {
+                int source = random.nextInt(ACCOUNTS);
+                int destination = (source + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                futures.add(accountsRepositorySharded.transferAsync(
+                        transfer("Id-" + source, "Id-" + destination, "7")).exceptionally(e -> null));
+                if (futures.size() == 64) {
+                    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+                    futures.clear();
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        });
+        transfers.start();
+        try {
+            for (int read = 0; read < 2000; read++) {
+                BigDecimal total = BigDecimal.ZERO;
+                for (Account account : accountsRepositorySharded.getAccounts(accountIds)) {
+                    total = total.add(account.getBalance());
+                }
+                assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+            }
+        } finally {
+            running.set(false);
+            transfers.join();
+        }
+    }
+
+    /**
+     * Reads over three or more partitions from several threads while transfers across partitions run: the rendezvous
+     * of a read and of a transfer sharing partitions must not wait for each other
+     */
+    @Test(timeout = 60_000)
+    public void readsOverManyPartitionsDuringTransfers() throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread transfers = new Thread(() -> {
+            Random random = new Random(11);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            while (running.get()) {
+                int source = random.nextInt(ACCOUNTS);
+                int destination = (source + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                futures.add(accountsRepositorySharded.transferAsync(
+                        transfer("Id-" + source, "Id-" + destination, "7")).exceptionally(e -> null));
+                if (futures.size() == 64) {
+                    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+                    futures.clear();
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        });
+        transfers.start();
+        ExecutorService readers = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> reads = new ArrayList<>();
+            for (int reader = 0; reader < 3; reader++) {
+                int seed = reader;
+                reads.add(readers.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int read = 0; read < 3000; read++) {
+                        List<String> accountIds = new ArrayList<>();
+                        for (int i = random.nextInt(ACCOUNTS); accountIds.size() < 6; i = (i + 1) % ACCOUNTS) {
+                            accountIds.add("Id-" + i);
+                        }
+                        assertThat(accountsRepositorySharded.getAccounts(accountIds)).hasSize(6);
+                    }
+                }));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        } finally {
+            readers.shutdownNow();
+            running.set(false);
+            transfers.join();
+        }
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            total = total.add(accountsRepositorySharded.getAccount("Id-" + i).getBalance());
+        }
+        assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+    }
+
+    @Test
+    public void failedBatchIsUndone() {
+        List<TransferResult> results = accountsRepositorySharded.transferBatch(Arrays.asList(
+                transfer("Id-0", "Id-1", "600"),
+                transfer("Id-1", "Id-2", "1600"),
+                transfer("Id-0", "Id-3", "600")), true);
+
+        assertThat(results).extracting("status").containsExactly(TransferResult.Status.ABORTED,
+                TransferResult.Status.ABORTED, TransferResult.Status.NOT_ENOUGH_BALANCE);
+        for (int i = 0; i < 4; i++) {
+            assertThat(accountsRepositorySharded.getAccount("Id-" + i).getBalance()).isEqualByComparingTo("1000");
+        }
+    }
+
+    @Test
+    public void clearAccounts() {
+        accountsRepositorySharded.clearAccounts();
+
+        assertThat(accountsRepositorySharded.getAccount("Id-0")).isNull();
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,406 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Concurrency tests for the striped lock repository: opposing transfers must not deadlock and money is conserved
+ */
+public class AccountsRepositoryStripedTest {
+
+    private static final int ACCOUNTS = 8;
+
+    private static final int THREADS = 8;
+
+    private static final int TRANSFERS_PER_THREAD = 5000;
+
+    private AccountsRepositoryStriped accountsRepositoryStriped;
+
+    @Before
+    public void prepare() {
+        // Few stripes so that many accounts share a stripe
+        accountsRepositoryStriped = new AccountsRepositoryStriped(2);
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accountsRepositoryStriped.createAccount(new Account("Id-" + i, new BigDecimal("1000")));
+        }
+    }
+
+    @Test
+    public void transfer() {
+        accountsRepositoryStriped.transfer(transfer("Id-0", "Id-1", "250"));
+
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance()).isEqualByComparingTo("750");
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("1250");
+    }
+
+    @Test(expected = NotEnoughBalanceException.class)
+    public void transferNotEnoughBalance() {
+        accountsRepositoryStriped.transfer(transfer("Id-0", "Id-1", "1000.01"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transferNotExistingAccount() {
+        accountsRepositoryStriped.transfer(transfer("Id-0", "nonExistingAccount", "1"));
+    }
+
+    /**
+     * Handles resolved before the accounts were cleared are not applied to the accounts that took them since, and
+     * fail like an unknown account once it is gone
+     */
+    @Test
+    public void transferStaleHandles() {
+        int source = accountsRepositoryStriped.resolve("Id-0");
+        int destination = accountsRepositoryStriped.resolve("Id-1");
+        accountsRepositoryStriped.clearAccounts();
+        accountsRepositoryStriped.createAccount(new Account("Id-1", new BigDecimal("10")));
+        accountsRepositoryStriped.createAccount(new Account("Id-0", new BigDecimal("10")));
+
+        accountsRepositoryStriped.transfer(source, destination, transfer("Id-0", "Id-1", "1"));
+
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance()).isEqualByComparingTo("9");
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("11");
+        accountsRepositoryStriped.clearAccounts();
+        assertThatThrownBy(() -> accountsRepositoryStriped.transfer(source, destination, transfer("Id-0", "Id-1", "1")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Returned accounts are copies, so changing them does not change the stored balance
+     */
+    @Test
+    public void getAccountReturnsCopy() {
+        accountsRepositoryStriped.getAccount("Id-0").setBalance(BigDecimal.ZERO);
+
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance()).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * Many threads transfer in both directions between all accounts. No thread may block forever and the total
+     * balance must be the same at the end
+     */
+    @Test
+    public void concurrentOpposingTransfers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                    String source = "Id-" + ((i + offset) % ACCOUNTS);
+                    String destination = "Id-" + ((i + offset + 1 + offset % 3) % ACCOUNTS);
+                    if (offset % 2 == 1) {
+                        String swap = source;
+                        source = destination;
+                        destination = swap;
+                    }
+                    try {
+                        accountsRepositoryStriped.transfer(transfer(source, destination, "7"));
+                    } catch (NotEnoughBalanceException e) {
+                        // Expected from time to time, the balance must still be conserved
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Account account = accountsRepositoryStriped.getAccount("Id-" + i);
+            assertThat(account.getBalance()).isGreaterThanOrEqualTo(BigDecimal.ZERO);
+            total = total.add(account.getBalance());
+        }
+        assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+    }
+
+    /**
+     * Every change of the balance moves the account to a new version, reads do not
+     */
+    @Test
+    public void versions() {
+        accountsRepositoryStriped.makeHot("Id-1");
+        long source = accountsRepositoryStriped.getAccount("Id-0").getVersion();
+        long destination = accountsRepositoryStriped.getAccount("Id-1").getVersion();
+        assertThat(source).isGreaterThan(0);
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getVersion()).isEqualTo(destination);
+
+        accountsRepositoryStriped.transfer(transfer("Id-0", "Id-1", "250"));
+
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getVersion()).isGreaterThan(source);
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getVersion()).isGreaterThan(destination);
+        destination = accountsRepositoryStriped.getAccount("Id-1").getVersion();
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getVersion()).isEqualTo(destination);
+    }
+
+    /**
+     * Credits to a hot account go to its cells, reads and debits see them
+     */
+    @Test
+    public void hotAccount() {
+        accountsRepositoryStriped.makeHot("Id-1");
+        accountsRepositoryStriped.transfer(transfer("Id-0", "Id-1", "250"));
+        accountsRepositoryStriped.transfer(transfer("Id-2", "Id-1", "250"));
+
+        assertThat(accountsRepositoryStriped.isHot("Id-1")).isTrue();
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("1500");
+        accountsRepositoryStriped.transfer(transfer("Id-1", "Id-3", "1500"));
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("0");
+        assertThat(accountsRepositoryStriped.getAccount("Id-3").getBalance()).isEqualByComparingTo("2500");
+    }
+
+    /**
+     * Many threads credit and debit a hot account. Money is conserved and the account is never overdrawn
+     */
+    @Test
+    public void concurrentHotAccountTransfers() throws Exception {
+        accountsRepositoryStriped.makeHot("Id-0");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final String other = "Id-" + (1 + t % (ACCOUNTS - 1));
+            final boolean debits = t % 2 == 0;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                    try {
+                        if (debits) {
+                            accountsRepositoryStriped.transfer(transfer("Id-0", other, "11"));
+                        } else {
+                            accountsRepositoryStriped.transfer(transfer(other, "Id-0", "7"));
+                        }
+                    } catch (NotEnoughBalanceException e) {
+                        // Expected from time to time, the balance must still be conserved
+                    }
+                    assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance())
+                            .isGreaterThanOrEqualTo(BigDecimal.ZERO);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Account account = accountsRepositoryStriped.getAccount("Id-" + i);
+            assertThat(account.getBalance()).isGreaterThanOrEqualTo(BigDecimal.ZERO);
+            total = total.add(account.getBalance());
+        }
+        assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+    }
+
+    /**
+     * Reads of a set of accounts never see a transfer between them half applied, even on hot accounts
+     */
+    @Test
+    public void concurrentGetAccounts() throws Exception {
+        accountsRepositoryStriped.makeHot("Id-0");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<?>> futures = new ArrayList<>();
+        List<String> accountIds = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accountIds.add("Id-" + i);
+        }
+
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    try {
+                        int source = random.nextInt(ACCOUNTS);
+                        int destination = (source + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        accountsRepositoryStriped.transfer(transfer("Id-" + source, "Id-" + destination, "13"));
+                    } catch (NotEnoughBalanceException e) {
+                        // Expected from time to time
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (int lookup = 0; lookup < 10_000; lookup++) {
+                BigDecimal total = BigDecimal.ZERO;
+                for (Account account : accountsRepositoryStriped.getAccounts(accountIds)) {
+                    total = total.add(account.getBalance());
+                }
+                assertThat(total).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    /**
+     * Changes made while an export runs, including new accounts and hot credits, are not seen by it
+     */
+    @Test
+    public void exportSeesBalancesWhenStarted() throws Exception {
+        accountsRepositoryStriped.makeHot("Id-1");
+        accountsRepositoryStriped.transfer(transfer("Id-0", "Id-1", "100"));
+        Map<String, BigDecimal> exported = new HashMap<>();
+
+        accountsRepositoryStriped.exportAccounts((accountId, balance) -> {
+            if (exported.isEmpty()) {
+                accountsRepositoryStriped.transfer(transfer("Id-1", "Id-2", "1100"));
+                accountsRepositoryStriped.transfer(transfer("Id-3", "Id-1", "500"));
+                accountsRepositoryStriped.createAccount(new Account("Id-new", new BigDecimal("1000")));
+            }
+            exported.put(accountId, balance);
+        });
+
+        assertThat(exported).hasSize(ACCOUNTS);
+        assertThat(exported.get("Id-0")).isEqualByComparingTo("900");
+        assertThat(exported.get("Id-1")).isEqualByComparingTo("1100");
+        assertThat(exported.get("Id-2")).isEqualByComparingTo("1000");
+        assertThat(exported.get("Id-3")).isEqualByComparingTo("1000");
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("500");
+    }
+
+    /**
+     * Exports taken while transfers run always add up to the total held by the accounts
+     */
+    @Test
+    public void concurrentExports() throws Exception {
+        accountsRepositoryStriped.makeHot("Id-0");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    try {
+                        int source = random.nextInt(ACCOUNTS);
+                        int destination = (source + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        accountsRepositoryStriped.transfer(transfer("Id-" + source, "Id-" + destination, "13"));
+                    } catch (NotEnoughBalanceException e) {
+                        // Expected from time to time
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (int export = 0; export < 50; export++) {
+                BigDecimal[] total = {BigDecimal.ZERO};
+                int[] accounts = {0};
+                accountsRepositoryStriped.exportAccounts((accountId, balance) -> {
+                    // Give the transfers time to change the accounts not visited yet
+                    Thread.yield();
+                    total[0] = total[0].add(balance);
+                    accounts[0]++;
+                });
+                assertThat(accounts[0]).isEqualTo(ACCOUNTS);
+                assertThat(total[0]).isEqualByComparingTo(new BigDecimal(1000 * ACCOUNTS));
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    /**
+     * Best effort batches apply the transfers in order and skip the ones the source cannot pay at that point
+     */
+    @Test
+    public void transferBatchBestEffort() {
+        List<TransferResult> results = accountsRepositoryStriped.transferBatch(Arrays.asList(
+                transfer("Id-0", "Id-1", "1500"),
+                transfer("Id-1", "Id-0", "600"),
+                transfer("Id-0", "Id-1", "1500"),
+                transfer("Id-0", "nonExistingAccount", "1")), false);
+
+        assertThat(results).extracting(TransferResult::getStatus).containsExactly(
+                TransferResult.Status.NOT_ENOUGH_BALANCE,
+                TransferResult.Status.APPLIED,
+                TransferResult.Status.APPLIED,
+                TransferResult.Status.REJECTED);
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance()).isEqualByComparingTo("100");
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("1900");
+    }
+
+    /**
+     * All-or-nothing batches are settled on net positions, the first transfer alone would not be covered
+     */
+    @Test
+    public void transferBatchAllOrNothingNetting() {
+        List<TransferResult> results = accountsRepositoryStriped.transferBatch(Arrays.asList(
+                transfer("Id-0", "Id-1", "1500"),
+                transfer("Id-1", "Id-0", "600"),
+                transfer("Id-2", "Id-3", "10")), true);
+
+        assertThat(results).extracting(TransferResult::getStatus).containsOnly(TransferResult.Status.APPLIED);
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance()).isEqualByComparingTo("100");
+        assertThat(accountsRepositoryStriped.getAccount("Id-1").getBalance()).isEqualByComparingTo("1900");
+        assertThat(accountsRepositoryStriped.getAccount("Id-3").getBalance()).isEqualByComparingTo("1010");
+    }
+
+    @Test
+    public void transferBatchAllOrNothingAborted() {
+        List<TransferResult> results = accountsRepositoryStriped.transferBatch(Arrays.asList(
+                transfer("Id-2", "Id-3", "10"),
+                transfer("Id-0", "Id-1", "1500")), true);
+
+        assertThat(results).extracting(TransferResult::getStatus).containsExactly(
+                TransferResult.Status.ABORTED,
+                TransferResult.Status.NOT_ENOUGH_BALANCE);
+        assertThat(accountsRepositoryStriped.getAccount("Id-0").getBalance()).isEqualByComparingTo("1000");
+        assertThat(accountsRepositoryStriped.getAccount("Id-3").getBalance()).isEqualByComparingTo("1000");
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,216 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.metrics.AccountCacheMetrics;
+import com.db.awmd.challenge.metrics.AccountCacheReport;
+import com.db.awmd.challenge.repository.AccountsRepositoryTiered;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the tiered repository with a working set much smaller than the accounts, including reopening the file
+ */
+public class AccountsRepositoryTieredTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    private static final int MAX_RESIDENT = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    private AccountCacheMetrics metrics;
+
+    private AccountsRepositoryTiered accountsRepositoryTiered;
+
+    @Before
+    public void prepare() {
+        path = folder.getRoot().toPath().resolve("accounts-tiered.dat");
+        metrics = new AccountCacheMetrics();
+        accountsRepositoryTiered = new AccountsRepositoryTiered(path, MAX_RESIDENT, 16, 2, 16, metrics);
+
+        accountsRepositoryTiered.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        accountsRepositoryTiered.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+    }
+
+    @After
+    public void close() {
+        accountsRepositoryTiered.close();
+    }
+
+    @Test
+    public void transfer() {
+        accountsRepositoryTiered.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "50.5"));
+
+        assertThat(accountsRepositoryTiered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("49.5");
+        assertThat(accountsRepositoryTiered.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("150.5");
+    }
+
+    @Test(expected = NotEnoughBalanceException.class)
+    public void transferNotEnoughBalance() {
+        accountsRepositoryTiered.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "100.01"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transferToMissingAccount() {
+        accountsRepositoryTiered.transfer(transfer(SOURCE_ACCOUNT, "missing", "1"));
+    }
+
+    /**
+     * An account that has been evicted is still found by the duplicate check
+     */
+    @Test(expected = DuplicateAccountIdException.class)
+    public void createDuplicateOfEvictedAccount() {
+        createAccounts(10 * MAX_RESIDENT);
+
+        accountsRepositoryTiered.createAccount(new Account(SOURCE_ACCOUNT));
+    }
+
+    /**
+     * Accounts are evicted past the working set and loaded back with the balances they had
+     */
+    @Test
+    public void evictAndLoad() {
+        createAccounts(10 * MAX_RESIDENT);
+        accountsRepositoryTiered.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "25"));
+        createAccounts(10 * MAX_RESIDENT, 20 * MAX_RESIDENT);
+
+        assertThat(accountsRepositoryTiered.getResidentCount()).isLessThanOrEqualTo(MAX_RESIDENT);
+        assertThat(accountsRepositoryTiered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("75");
+        assertThat(accountsRepositoryTiered.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("125");
+        for (int i = 0; i < 20 * MAX_RESIDENT; i++) {
+            assertThat(accountsRepositoryTiered.getAccount("Id-" + i).getBalance()).isEqualByComparingTo(
+                    BigDecimal.valueOf(i));
+        }
+        assertThat(accountsRepositoryTiered.getAccount("missing")).isNull();
+        // The last account read is still in memory
+        assertThat(accountsRepositoryTiered.getAccount("Id-" + (20 * MAX_RESIDENT - 1))).isNotNull();
+
+        AccountCacheReport report = metrics.report();
+        assertThat(report.getEvictions()).isGreaterThan(20 * MAX_RESIDENT - MAX_RESIDENT);
+        assertThat(report.getMisses()).isGreaterThan(0);
+        assertThat(report.getHits()).isGreaterThan(0);
+        assertThat(report.getLoad().getCount()).isEqualTo(report.getMisses());
+    }
+
+    /**
+     * Transfers between random accounts of a set larger than the working set neither create nor lose money while
+     * the accounts are loaded and evicted under them
+     */
+    @Test
+    public void concurrentTransfersWhileEvicting() throws Exception {
+        int accounts = 4 * MAX_RESIDENT;
+        for (int i = 0; i < accounts; i++) {
+            accountsRepositoryTiered.createAccount(new Account("Id-" + i, new BigDecimal("1000")));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20_000; i++) {
+                        int source = random.nextInt(accounts);
+                        int destination = (source + 1 + random.nextInt(accounts - 1)) % accounts;
+                        try {
+                            accountsRepositoryTiered.transfer(transfer("Id-" + source, "Id-" + destination,
+                                    String.valueOf(1 + random.nextInt(50))));
+                        } catch (NotEnoughBalanceException e) {
+                            // Expected from time to time
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < accounts; i++) {
+            total = total.add(accountsRepositoryTiered.getAccount("Id-" + i).getBalance());
+        }
+        assertThat(total).isEqualByComparingTo(BigDecimal.valueOf(1000L * accounts));
+        assertThat(metrics.report().getWriteBacks()).isGreaterThan(0);
+    }
+
+    /**
+     * Balances written back and the ones still in memory are found again after the repository is closed and
+     * reopened, with the store rebuilt several times in between
+     */
+    @Test
+    public void reopen() {
+        accountsRepositoryTiered.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "25"));
+        createAccounts(50 * MAX_RESIDENT);
+        accountsRepositoryTiered.close();
+
+        accountsRepositoryTiered = new AccountsRepositoryTiered(path, MAX_RESIDENT, 16, 2, 16, metrics);
+
+        assertThat(accountsRepositoryTiered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("75");
+        assertThat(accountsRepositoryTiered.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("125");
+        for (int i = 0; i < 50 * MAX_RESIDENT; i++) {
+            assertThat(accountsRepositoryTiered.getAccount("Id-" + i).getBalance()).isEqualByComparingTo(
+                    BigDecimal.valueOf(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reopenWithOtherScale() {
+        accountsRepositoryTiered.close();
+
+        accountsRepositoryTiered = new AccountsRepositoryTiered(path, MAX_RESIDENT, 16, 4, 16, metrics);
+    }
+
+    @Test
+    public void clearAccounts() {
+        createAccounts(10 * MAX_RESIDENT);
+
+        accountsRepositoryTiered.clearAccounts();
+
+        assertThat(accountsRepositoryTiered.getAccount(SOURCE_ACCOUNT)).isNull();
+        assertThat(accountsRepositoryTiered.getAccount("Id-0")).isNull();
+        accountsRepositoryTiered.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("10")));
+        assertThat(accountsRepositoryTiered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("10");
+    }
+
+    private void createAccounts(int count) {
+        createAccounts(0, count);
+    }
+
+    private void createAccounts(int from, int to) {
+        for (int i = from; i < to; i++) {
+            accountsRepositoryTiered.createAccount(new Account("Id-" + i, BigDecimal.valueOf(i)));
+        }
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
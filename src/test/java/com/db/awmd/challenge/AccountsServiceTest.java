@@ -17,6 +17,7 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.math.BigDecimal;
+import java.util.concurrent.CompletionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
@@ -95,7 +96,45 @@ public class AccountsServiceTest {
         assertThat(destinationAccount.getAccountId()).isEqualTo(DESTINATION_ACCOUNT);
         assertThat(destinationAccount.getBalance()).isEqualByComparingTo("150");
 
-        Mockito.verify(notificationService, Mockito.times(2)).notifyAboutTransfer(Mockito.anyObject(), Mockito.anyString());
+        // Notifications are sent asynchronously by the dispatcher workers
+        Mockito.verify(notificationService, Mockito.timeout(1000).times(2)).notifyAboutTransfer(Mockito.anyObject(), Mockito.anyString());
+    }
+
+    /**
+     * Test asynchronous transfer is applied and notified once the returned future completes
+     */
+    @Test
+    public void transferAsync() {
+        this.accountsService.transferAsync(Transfer.builder()
+                                        .sourceAccountId(SOURCE_ACCOUNT)
+                                        .destinationAccountId(DESTINATION_ACCOUNT)
+                                        .amount(new BigDecimal("50"))
+                                        .build()).join();
+
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("50");
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("150");
+
+        // Notifications are sent asynchronously by the dispatcher workers
+        Mockito.verify(notificationService, Mockito.timeout(1000).times(2)).notifyAboutTransfer(Mockito.anyObject(), Mockito.anyString());
+    }
+
+    /**
+     * Test asynchronous transfer from an account that does not exist completes exceptionally, the lookup is part of
+     * the future
+     */
+    @Test
+    public void transferAsyncNotExistingAccount() {
+        try {
+            this.accountsService.transferAsync(Transfer.builder()
+                                            .sourceAccountId("nonExistingSourceAccount")
+                                            .destinationAccountId(DESTINATION_ACCOUNT)
+                                            .amount(new BigDecimal("50"))
+                                            .build()).join();
+            fail("Should have failed when transferring from a not existing account");
+        } catch (CompletionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("100");
     }
 
     /**
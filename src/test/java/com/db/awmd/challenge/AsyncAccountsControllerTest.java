@@ -0,0 +1,171 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.service.AccountsService;
+import com.db.awmd.challenge.web.TransferAdmissionFilter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assume.assumeTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@WebAppConfiguration
+public class AsyncAccountsControllerTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    private MockMvc mockMvc;
+
+    @Autowired
+    private AccountsService accountsService;
+
+    @Autowired
+    private TransferAdmission transferAdmission;
+
+    @Autowired
+    private TransferAdmissionFilter transferAdmissionFilter;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Before
+    public void prepareMockMvc() {
+        this.mockMvc = webAppContextSetup(this.webApplicationContext).addFilters(this.transferAdmissionFilter).build();
+
+        accountsService.getAccountsRepository().clearAccounts();
+        accountsService.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        accountsService.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+    }
+
+    @Test
+    public void getAccount() throws Exception {
+        this.mockMvc.perform(asyncDispatch(started(get("/v1/async/accounts/" + SOURCE_ACCOUNT))))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"accountId\":\"" + SOURCE_ACCOUNT + "\",\"balance\":100}"));
+    }
+
+    /**
+     * If-None-Match is checked like on the blocking endpoint, weak validators and lists of ETags included
+     */
+    @Test
+    public void getAccountNotModified() throws Exception {
+        // Only repositories tracking versions send ETags
+        assumeTrue(accountsService.getAccount(SOURCE_ACCOUNT).getVersion() > 0);
+
+        String eTag = this.mockMvc.perform(asyncDispatch(started(get("/v1/async/accounts/" + SOURCE_ACCOUNT))))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        for (String ifNoneMatch : new String[]{eTag, "W/" + eTag, "\"other\", " + eTag, "*"}) {
+            this.mockMvc.perform(asyncDispatch(started(get("/v1/async/accounts/" + SOURCE_ACCOUNT)
+                    .header("If-None-Match", ifNoneMatch))))
+                    .andExpect(status().isNotModified())
+                    .andExpect(header().string("ETag", eTag))
+                    .andExpect(content().string(""));
+        }
+        this.mockMvc.perform(asyncDispatch(started(get("/v1/async/accounts/" + SOURCE_ACCOUNT)
+                .header("If-None-Match", "\"other\""))))
+                .andExpect(status().isOk());
+    }
+
+    /**
+     * Versions start again once the accounts are cleared, the ETag of the new account is still a different one
+     */
+    @Test
+    public void getAccountAfterClear() throws Exception {
+        assumeTrue(accountsService.getAccount(SOURCE_ACCOUNT).getVersion() > 0);
+
+        String eTag = this.mockMvc.perform(asyncDispatch(started(get("/v1/async/accounts/" + SOURCE_ACCOUNT))))
+                .andReturn().getResponse().getHeader("ETag");
+        accountsService.getAccountsRepository().clearAccounts();
+        accountsService.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("5")));
+
+        this.mockMvc.perform(asyncDispatch(started(get("/v1/async/accounts/" + SOURCE_ACCOUNT)
+                .header("If-None-Match", eTag))))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", not(eTag)))
+                .andExpect(content().string("{\"accountId\":\"" + SOURCE_ACCOUNT + "\",\"balance\":5}"));
+    }
+
+    @Test
+    public void transfer() throws Exception {
+        this.mockMvc.perform(asyncDispatch(started(transfer("30"))))
+                .andExpect(status().isOk());
+
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("70");
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("130");
+    }
+
+    /**
+     * A balance check failing after the request thread was released is answered like on the blocking endpoint
+     */
+    @Test
+    public void transferNotEnoughBalance() throws Exception {
+        this.mockMvc.perform(asyncDispatch(started(transfer("100.01"))))
+                .andExpect(status().isBadRequest());
+
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("100");
+    }
+
+    /**
+     * The admission slot of a transfer is held after the request thread has been released, until the response is
+     * complete
+     */
+    @Test
+    public void transferHoldsAdmissionUntilComplete() throws Exception {
+        int inFlight = transferAdmission.report().getInFlight();
+
+        MvcResult result = started(transfer("30"));
+        assertThat(transferAdmission.report().getInFlight()).isEqualTo(inFlight + 1);
+
+        result.getRequest().getAsyncContext().complete();
+        assertThat(transferAdmission.report().getInFlight()).isEqualTo(inFlight);
+    }
+
+    @Test
+    public void transferUnknownAccount() throws Exception {
+        this.mockMvc.perform(asyncDispatch(started(post("/v1/async/accounts/transfer")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sourceAccountId\":\"unknown\",\"destinationAccountId\":\"" + DESTINATION_ACCOUNT
+                                + "\",\"amount\":1}"))))
+                .andExpect(status().isBadRequest());
+    }
+
+    private MvcResult started(RequestBuilder builder) throws Exception {
+        return this.mockMvc.perform(builder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+    }
+
+    private static RequestBuilder transfer(String amount) {
+        return post("/v1/async/accounts/transfer")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"sourceAccountId\":\"" + SOURCE_ACCOUNT + "\",\"destinationAccountId\":\""
+                        + DESTINATION_ACCOUNT + "\",\"amount\":" + amount + "}");
+    }
+}
@@ -0,0 +1,145 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.ingress.BinaryTransferServer;
+import com.db.awmd.challenge.ingress.TransferFrames;
+import com.db.awmd.challenge.service.AccountsService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the binary ingress over local TCP sockets, with buffers holding the acks of fewer transfers than the
+ * tests pipeline
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "accounts.ingress.enabled=true",
+        "accounts.ingress.port=0",
+        "accounts.ingress.threads=2",
+        "accounts.ingress.buffer-bytes=" + TransferFrames.MAX_REQUEST_SIZE})
+public class BinaryTransferServerTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    @Autowired
+    private AccountsService accountsService;
+
+    @Autowired
+    private BinaryTransferServer server;
+
+    @Before
+    public void createAccounts() {
+        accountsService.getAccountsRepository().clearAccounts();
+        accountsService.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("10")));
+        accountsService.createAccount(new Account(DESTINATION_ACCOUNT, BigDecimal.ZERO));
+    }
+
+    /**
+     * Transfers sent without waiting, in pieces that split frames, are all applied and acknowledged in order
+     */
+    @Test
+    public void pipelinedTransfers() throws IOException {
+        int transfers = 1000;
+        ByteBuffer frames = ByteBuffer.allocate(transfers * 64 + 128);
+        for (int i = 0; i < transfers; i++) {
+            TransferFrames.putTransfer(frames, i, SOURCE_ACCOUNT, DESTINATION_ACCOUNT, new BigDecimal("0.01"));
+        }
+        TransferFrames.putTransfer(frames, transfers, SOURCE_ACCOUNT, DESTINATION_ACCOUNT, new BigDecimal("1"));
+        TransferFrames.putTransfer(frames, transfers + 1, SOURCE_ACCOUNT, "unknown", new BigDecimal("1"));
+
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            Random random = new Random(7);
+            for (int sent = 0; sent < frames.position(); ) {
+                int length = Math.min(1 + random.nextInt(100), frames.position() - sent);
+                out.write(frames.array(), sent, length);
+                sent += length;
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < transfers; i++) {
+                assertThat(in.readLong()).isEqualTo(i);
+                assertThat(in.readByte()).isEqualTo(TransferFrames.TRANSFERRED);
+            }
+            assertThat(in.readLong()).isEqualTo(transfers);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.NOT_ENOUGH_BALANCE);
+            assertThat(in.readLong()).isEqualTo(transfers + 1);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.INVALID);
+        }
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("0");
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("10");
+    }
+
+    /**
+     * A malformed frame closes the connection after the transfers before it have been acknowledged, other
+     * connections are still served
+     */
+    @Test
+    public void malformedFrameClosesConnection() throws IOException {
+        ByteBuffer frames = ByteBuffer.allocate(256);
+        TransferFrames.putTransfer(frames, 1, SOURCE_ACCOUNT, DESTINATION_ACCOUNT, BigDecimal.ONE);
+        frames.putInt(3);
+
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.getOutputStream().write(frames.array(), 0, frames.position());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertThat(in.readLong()).isEqualTo(1);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.TRANSFERRED);
+            assertThat(in.read()).isEqualTo(-1);
+        }
+
+        frames.clear();
+        TransferFrames.putTransfer(frames, 2, SOURCE_ACCOUNT, DESTINATION_ACCOUNT, BigDecimal.ONE);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.getOutputStream().write(frames.array(), 0, frames.position());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertThat(in.readLong()).isEqualTo(2);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.TRANSFERRED);
+        }
+        assertThat(accountsService.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("2");
+    }
+
+    /**
+     * Transfers over the rate of their source account are refused with their own status, the others still applied
+     */
+    @Test
+    public void transfersOverRate() throws IOException {
+        TransferAdmission admission = new TransferAdmission(true, 64, 4, 1000, 10_000, 0.9, 0.001, 1, 100);
+        ByteBuffer frames = ByteBuffer.allocate(256);
+        TransferFrames.putTransfer(frames, 1, SOURCE_ACCOUNT, DESTINATION_ACCOUNT, BigDecimal.ONE);
+        TransferFrames.putTransfer(frames, 2, SOURCE_ACCOUNT, DESTINATION_ACCOUNT, BigDecimal.ONE);
+        TransferFrames.putTransfer(frames, 3, DESTINATION_ACCOUNT, SOURCE_ACCOUNT, BigDecimal.ONE);
+
+        try (BinaryTransferServer limited = new BinaryTransferServer(accountsService, admission, 0, 1,
+                TransferFrames.MAX_REQUEST_SIZE);
+             Socket socket = new Socket("localhost", limited.getPort())) {
+            socket.getOutputStream().write(frames.array(), 0, frames.position());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertThat(in.readLong()).isEqualTo(1);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.TRANSFERRED);
+            assertThat(in.readLong()).isEqualTo(2);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.TOO_MANY_REQUESTS);
+            assertThat(in.readLong()).isEqualTo(3);
+            assertThat(in.readByte()).isEqualTo(TransferFrames.TRANSFERRED);
+        }
+        assertThat(accountsService.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("10");
+    }
+}
@@ -0,0 +1,262 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.cluster.ClusterAccountsRepository;
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for a cluster of two nodes running in this JVM, each one on its own port and reached over HTTP
+ */
+public class ClusterTest {
+
+    private static final int ACCOUNTS = 100;
+
+    private final TestRestTemplate http = new TestRestTemplate();
+
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+
+    private final List<String> urls = new ArrayList<>();
+
+    private final List<Integer> ports = new ArrayList<>();
+
+    @Before
+    public void startNodes() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            ports.add(freePort());
+            urls.add("http://localhost:" + ports.get(i));
+        }
+        for (int i = 0; i < ports.size(); i++) {
+            nodes.add(startNode(i));
+        }
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertThat(http.postForEntity(urls.get(i % 2) + "/v1/accounts",
+                    new Account("Id-" + i, new BigDecimal("1000")), String.class).getStatusCode())
+                    .isEqualTo(HttpStatus.CREATED);
+        }
+    }
+
+    @After
+    public void stopNodes() {
+        nodes.forEach(ConfigurableApplicationContext::close);
+    }
+
+    /**
+     * Accounts are spread over both nodes and can be read from either of them
+     */
+    @Test
+    public void accountsArePartitioned() {
+        for (int node = 0; node < 2; node++) {
+            AccountsRepository local = cluster(node).getLocal();
+            long owned = 0;
+            for (int i = 0; i < ACCOUNTS; i++) {
+                if (local.getAccount("Id-" + i) != null) {
+                    owned++;
+                }
+            }
+            assertThat(owned).isBetween(1L, ACCOUNTS - 1L);
+        }
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertThat(balance(0, "Id-" + i)).isEqualByComparingTo("1000");
+            assertThat(balance(1, "Id-" + i)).isEqualByComparingTo("1000");
+        }
+        assertThat(http.postForEntity(urls.get(1) + "/v1/accounts", new Account("Id-0"), String.class)
+                .getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * A transfer between accounts of different nodes is applied on both, whichever node receives it
+     */
+    @Test
+    public void transferAcrossNodes() {
+        String[] accounts = accountsOnDifferentNodes();
+
+        assertThat(transfer(1, accounts[0], accounts[1], "250").getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(transfer(0, accounts[1], accounts[0], "50").getStatusCode()).isEqualTo(HttpStatus.OK);
+
+        assertThat(balance(0, accounts[0])).isEqualByComparingTo("800");
+        assertThat(balance(1, accounts[1])).isEqualByComparingTo("1200");
+        assertThat(cluster(0).getEscrowCount() + cluster(1).getEscrowCount()).isEqualTo(2);
+        // No node sees every transfer of an account, so none of them has a history to serve
+        assertThat(http.getForEntity(urls.get(0) + "/v1/accounts/" + accounts[0] + "/transfers", String.class)
+                .getStatusCode()).isEqualTo(HttpStatus.NOT_IMPLEMENTED);
+    }
+
+    /**
+     * Failed escrows leave both accounts as they were: a source without enough balance is not debited, and an
+     * amount refused by the destination is given back to the source
+     */
+    @Test
+    public void failedTransferAcrossNodes() {
+        String[] accounts = accountsOnDifferentNodes();
+        String missing = missingAccountOwnedBy(cluster(0).ownerOf(accounts[1]));
+
+        ResponseEntity<String> notEnough = transfer(0, accounts[0], accounts[1], "1000.01");
+        ResponseEntity<String> refused = transfer(0, accounts[0], missing, "10");
+
+        assertThat(notEnough.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(notEnough.getBody()).contains("has not enough balance");
+        assertThat(refused.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(refused.getBody()).contains("does not exist");
+        assertThat(balance(1, accounts[0])).isEqualByComparingTo("1000");
+        assertThat(balance(1, accounts[1])).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * Concurrent transfers between random accounts through both nodes neither create nor lose money
+     */
+    @Test
+    public void concurrentTransfers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int node = t % 2;
+                long seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 200; i++) {
+                        int source = random.nextInt(ACCOUNTS);
+                        int destination = (source + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        transfer(node, "Id-" + source, "Id-" + destination, String.valueOf(1 + random.nextInt(500)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            total = total.add(balance(i % 2, "Id-" + i));
+        }
+        assertThat(total).isEqualByComparingTo(BigDecimal.valueOf(1000L * ACCOUNTS));
+        assertThat(cluster(0).getUnresolvedEscrowCount() + cluster(1).getUnresolvedEscrowCount()).isZero();
+    }
+
+    /**
+     * When the destination node is down after the withdrawal the transfer fails and the escrow is left in doubt
+     * until the node answers again, here without the destination account, so the source is refunded
+     */
+    @Test
+    public void destinationNodeDown() {
+        String[] accounts = accountsOnDifferentNodes();
+        int sourceNode = urls.indexOf(cluster(0).ownerOf(accounts[0]));
+        int destinationNode = 1 - sourceNode;
+        nodes.get(destinationNode).close();
+
+        ResponseEntity<String> response = transfer(sourceNode, accounts[0], accounts[1], "10");
+
+        assertThat(response.getStatusCode().is5xxServerError()).isTrue();
+        assertThat(cluster(sourceNode).getUnresolvedEscrowCount()).isEqualTo(1);
+        assertThat(cluster(sourceNode).getLocal().getAccount(accounts[0]).getBalance()).isEqualByComparingTo("990");
+
+        cluster(sourceNode).resolveEscrows();
+        assertThat(cluster(sourceNode).getUnresolvedEscrowCount()).isEqualTo(1);
+
+        nodes.set(destinationNode, startNode(destinationNode));
+        cluster(sourceNode).resolveEscrows();
+
+        assertThat(cluster(sourceNode).getUnresolvedEscrowCount()).isZero();
+        assertThat(balance(sourceNode, accounts[0])).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * An escrow in doubt is deposited once the destination node answers again with the destination account
+     */
+    @Test
+    public void destinationNodeBackAfterTransfer() {
+        String[] accounts = accountsOnDifferentNodes();
+        int sourceNode = urls.indexOf(cluster(0).ownerOf(accounts[0]));
+        int destinationNode = 1 - sourceNode;
+        nodes.get(destinationNode).close();
+
+        assertThat(transfer(sourceNode, accounts[0], accounts[1], "10").getStatusCode().is5xxServerError()).isTrue();
+
+        nodes.set(destinationNode, startNode(destinationNode));
+        cluster(destinationNode).getLocal().createAccount(new Account(accounts[1], new BigDecimal("1000")));
+        cluster(sourceNode).resolveEscrows();
+
+        assertThat(cluster(sourceNode).getUnresolvedEscrowCount()).isZero();
+        assertThat(balance(sourceNode, accounts[0])).isEqualByComparingTo("990");
+        assertThat(balance(sourceNode, accounts[1])).isEqualByComparingTo("1010");
+    }
+
+    private ConfigurableApplicationContext startNode(int node) {
+        // Command line arguments, so they win over the repository type the build may set for other tests. Escrows
+        // in doubt are only resolved when the tests ask for it
+        return new SpringApplicationBuilder(DevChallengeApplication.class).run(
+                "--server.port=" + ports.get(node),
+                "--accounts.repository.type=striped",
+                "--accounts.cluster.enabled=true",
+                "--accounts.cluster.nodes=" + String.join(",", urls),
+                "--accounts.cluster.self=" + urls.get(node),
+                "--accounts.cluster.timeout-ms=1000",
+                "--accounts.cluster.attempts=2",
+                "--accounts.cluster.resolve-interval-ms=0");
+    }
+
+    private String[] accountsOnDifferentNodes() {
+        ClusterAccountsRepository cluster = cluster(0);
+        for (int i = 1; i < ACCOUNTS; i++) {
+            if (!cluster.ownerOf("Id-0").equals(cluster.ownerOf("Id-" + i))) {
+                return new String[]{"Id-0", "Id-" + i};
+            }
+        }
+        throw new AssertionError("All the accounts are on one node");
+    }
+
+    private String missingAccountOwnedBy(String node) {
+        for (int i = 0; ; i++) {
+            if (cluster(0).ownerOf("Missing-" + i).equals(node)) {
+                return "Missing-" + i;
+            }
+        }
+    }
+
+    private ClusterAccountsRepository cluster(int node) {
+        return nodes.get(node).getBean(ClusterAccountsRepository.class);
+    }
+
+    private BigDecimal balance(int node, String accountId) {
+        return http.getForObject(urls.get(node) + "/v1/accounts/" + accountId, Account.class).getBalance();
+    }
+
+    private ResponseEntity<String> transfer(int node, String source, String destination, String amount) {
+        return http.postForEntity(urls.get(node) + "/v1/accounts/transfer", Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build(), String.class);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
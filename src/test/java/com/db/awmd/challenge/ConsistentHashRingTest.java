@@ -0,0 +1,66 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.cluster.ConsistentHashRing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the assignment of accounts to cluster nodes
+ */
+public class ConsistentHashRingTest {
+
+    private static final int ACCOUNTS = 100_000;
+
+    /**
+     * Every node gets a fair share of the accounts
+     */
+    @Test
+    public void balanced() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), 128);
+
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            owned.merge(ring.ownerOf("Id-" + i), 1, Integer::sum);
+        }
+
+        assertThat(owned).containsOnlyKeys("a", "b", "c", "d");
+        for (int count : owned.values()) {
+            assertThat(count).isBetween(ACCOUNTS / 4 * 8 / 10, ACCOUNTS / 4 * 12 / 10);
+        }
+    }
+
+    /**
+     * Adding a node only moves accounts to it, about its share of them
+     */
+    @Test
+    public void addingANodeMovesItsShareOnly() {
+        ConsistentHashRing three = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 128);
+        ConsistentHashRing four = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), 128);
+
+        int moved = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String before = three.ownerOf("Id-" + i);
+            String after = four.ownerOf("Id-" + i);
+            if (!before.equals(after)) {
+                assertThat(after).isEqualTo("d");
+                moved++;
+            }
+        }
+        assertThat(moved).isBetween(ACCOUNTS / 4 * 8 / 10, ACCOUNTS / 4 * 12 / 10);
+    }
+
+    @Test
+    public void sameRingOnEveryNode() {
+        ConsistentHashRing first = new ConsistentHashRing(Arrays.asList("a", "b"), 16);
+        ConsistentHashRing second = new ConsistentHashRing(Arrays.asList("a", "b"), 16);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(first.ownerOf("Id-" + i)).isEqualTo(second.ownerOf("Id-" + i));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.exception.IdempotencyKeyReusedException;
+import com.db.awmd.challenge.service.IdempotencyCache;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IdempotencyCacheTest {
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    @Test
+    public void duplicateReturnsStoredResult() {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+
+        assertThat(cache.execute("key", "request", executions::incrementAndGet)).isEqualTo(1);
+        assertThat(cache.execute("key", "request", executions::incrementAndGet)).isEqualTo(1);
+        assertThat(cache.execute("other", "request", executions::incrementAndGet)).isEqualTo(2);
+        assertThat(cache.getReplayedCount()).isEqualTo(1);
+    }
+
+    @Test(expected = IdempotencyKeyReusedException.class)
+    public void keyReusedWithDifferentRequest() {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+
+        cache.execute("key", "request", executions::incrementAndGet);
+        cache.execute("key", "another request", executions::incrementAndGet);
+    }
+
+    /**
+     * A failed execution stores nothing, so a retry runs again
+     */
+    @Test
+    public void failureIsNotStored() {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+
+        try {
+            cache.execute("key", "request", () -> {
+                throw new IllegalStateException("Failed");
+            });
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertThat(cache.execute("key", "request", executions::incrementAndGet)).isEqualTo(1);
+    }
+
+    /**
+     * The oldest keys are evicted once there are more than the maximum
+     */
+    @Test
+    public void boundedSize() {
+        IdempotencyCache cache = new IdempotencyCache(100, 60);
+
+        for (int i = 0; i < 10_000; i++) {
+            cache.execute("key-" + i, "request", executions::incrementAndGet);
+        }
+
+        assertThat(cache.size()).isEqualTo(100);
+        assertThat(cache.execute("key-9999", "request", executions::incrementAndGet)).isEqualTo(10_000);
+        assertThat(cache.execute("key-0", "request", executions::incrementAndGet)).isEqualTo(10_001);
+    }
+
+    /**
+     * A key whose request is still running is kept past the maximum, so a duplicate waits for it instead of running it
+     * again
+     */
+    @Test
+    public void runningKeysAreNotEvicted() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(2, 60);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        Future<Integer> first = executor.submit(() -> cache.execute("key", "request", () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return executions.incrementAndGet();
+        }));
+        assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 10; i++) {
+            cache.execute("key-" + i, "request", () -> 0);
+        }
+        assertThat(cache.size()).isEqualTo(2);
+        Future<Integer> duplicate = executor.submit(() -> cache.execute("key", "request",
+                executions::incrementAndGet));
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(duplicate.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(executions.get()).isEqualTo(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Duplicates arriving while the first execution runs wait for its result
+     */
+    @Test
+    public void concurrentDuplicatesWaitForFirstExecution() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        Future<Integer> first = executor.submit(() -> cache.execute("key", "request", () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return executions.incrementAndGet();
+        }));
+        assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        Future<Integer> second = executor.submit(() -> cache.execute("key", "request", executions::incrementAndGet));
+        Future<Integer> third = executor.submit(() -> cache.execute("key", "request", executions::incrementAndGet));
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(third.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(executions.get()).isEqualTo(1);
+        executor.shutdown();
+    }
+}
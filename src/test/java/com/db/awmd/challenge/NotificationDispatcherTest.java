@@ -0,0 +1,245 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.metrics.NotificationQueueReport;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+import com.db.awmd.challenge.service.AsyncNotificationService;
+import com.db.awmd.challenge.service.NotificationDispatcher;
+import com.db.awmd.challenge.service.NotificationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the asynchronous notification dispatcher: digests and overflow policies
+ */
+public class NotificationDispatcherTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AccountsRepositoryStriped accountsRepository;
+
+    private final List<String> notifications = new CopyOnWriteArrayList<>();
+
+    /**
+     * Released to let a blocked notification service go on
+     */
+    private final CountDownLatch backend = new CountDownLatch(1);
+
+    private NotificationDispatcher notificationDispatcher;
+
+    @Before
+    public void prepare() {
+        accountsRepository = new AccountsRepositoryStriped(16);
+        accountsRepository.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("1000")));
+        accountsRepository.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("1000")));
+    }
+
+    @After
+    public void close() {
+        backend.countDown();
+        notificationDispatcher.close();
+    }
+
+    @Test
+    public void notifyBothAccounts() {
+        notificationDispatcher = dispatcher(recording(), 10, 0, "block");
+
+        notificationDispatcher.dispatch(transfer("50"));
+        notificationDispatcher.close();
+
+        assertThat(notifications).containsExactlyInAnyOrder(
+                SOURCE_ACCOUNT + ": 50 send to " + DESTINATION_ACCOUNT,
+                DESTINATION_ACCOUNT + ": 50 received from " + SOURCE_ACCOUNT);
+        assertThat(notificationDispatcher.report().getSent()).isEqualTo(2);
+    }
+
+    /**
+     * A burst within the digest window is sent as one notification per account
+     */
+    @Test
+    public void digest() {
+        notificationDispatcher = dispatcher(recording(), 100, 200, "block");
+
+        for (int i = 1; i <= 5; i++) {
+            notificationDispatcher.dispatch(transfer(String.valueOf(i)));
+        }
+        notificationDispatcher.close();
+
+        assertThat(notifications).containsExactlyInAnyOrder(
+                SOURCE_ACCOUNT + ": 5 transfers: 1 send to " + DESTINATION_ACCOUNT + "; 2 send to " + DESTINATION_ACCOUNT
+                        + "; 3 send to " + DESTINATION_ACCOUNT + "; 4 send to " + DESTINATION_ACCOUNT + "; 5 send to "
+                        + DESTINATION_ACCOUNT,
+                DESTINATION_ACCOUNT + ": 5 transfers: 1 received from " + SOURCE_ACCOUNT + "; 2 received from "
+                        + SOURCE_ACCOUNT + "; 3 received from " + SOURCE_ACCOUNT + "; 4 received from " + SOURCE_ACCOUNT
+                        + "; 5 received from " + SOURCE_ACCOUNT);
+    }
+
+    @Test
+    public void dropWhenFull() throws Exception {
+        notificationDispatcher = dispatcher(blocking(), 2, 0, "drop");
+
+        // The worker takes the first transfer and blocks in the backend, the next two fill the queue
+        notificationDispatcher.dispatch(transfer("1"));
+        waitUntilQueueIsEmpty();
+        for (int i = 0; i < 5; i++) {
+            notificationDispatcher.dispatch(transfer("2"));
+        }
+
+        NotificationQueueReport report = notificationDispatcher.report();
+        assertThat(report.getDepth()).isEqualTo(2);
+        assertThat(report.getDropped()).isEqualTo(3);
+    }
+
+    /**
+     * Transfers that do not fit in the queue are written to disk and notified once the queue drains
+     */
+    @Test
+    public void spillWhenFull() throws Exception {
+        notificationDispatcher = dispatcher(blocking(), 2, 0, "spill");
+
+        notificationDispatcher.dispatch(transfer("1"));
+        waitUntilQueueIsEmpty();
+        for (int i = 0; i < 5; i++) {
+            notificationDispatcher.dispatch(transfer("2"));
+        }
+        assertThat(notificationDispatcher.report().getSpilled()).isEqualTo(3);
+
+        backend.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (notificationDispatcher.report().getSent() < 12 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(notificationDispatcher.report().getSent()).isEqualTo(12);
+        assertThat(notificationDispatcher.report().getDropped()).isEqualTo(0);
+    }
+
+    /**
+     * With the BLOCK policy a transfer dispatched asynchronously into a full queue waits without blocking the caller
+     * and its future completes once the workers have made room
+     */
+    @Test
+    public void dispatchAsyncWaitsForRoom() throws Exception {
+        notificationDispatcher = dispatcher(blocking(), 2, 0, "block");
+
+        notificationDispatcher.dispatch(transfer("1"));
+        waitUntilQueueIsEmpty();
+        notificationDispatcher.dispatchAsync(transfer("2"));
+        notificationDispatcher.dispatchAsync(transfer("3"));
+        CompletableFuture<Void> queued = notificationDispatcher.dispatchAsync(transfer("4"));
+
+        assertThat(queued.isDone()).isFalse();
+        backend.countDown();
+        queued.get(5, TimeUnit.SECONDS);
+        notificationDispatcher.close();
+        assertThat(notificationDispatcher.report().getSent()).isEqualTo(8);
+        assertThat(notificationDispatcher.report().getDropped()).isEqualTo(0);
+    }
+
+    /**
+     * Once max-waiting transfers wait for room in a full queue, the notifications of the next ones are dropped and
+     * their futures complete at once, the waiting ones are still notified
+     */
+    @Test
+    public void dispatchAsyncBoundsWaiting() throws Exception {
+        notificationDispatcher = new NotificationDispatcher(blocking(), accountsRepository, 1, 2, 1, 100, 0, "block",
+                folder.getRoot().getPath());
+
+        notificationDispatcher.dispatch(transfer("1"));
+        waitUntilQueueIsEmpty();
+        notificationDispatcher.dispatchAsync(transfer("2"));
+        CompletableFuture<Void> first = notificationDispatcher.dispatchAsync(transfer("3"));
+        CompletableFuture<Void> second = notificationDispatcher.dispatchAsync(transfer("4"));
+        CompletableFuture<Void> over = notificationDispatcher.dispatchAsync(transfer("5"));
+
+        assertThat(first.isDone()).isFalse();
+        assertThat(second.isDone()).isFalse();
+        assertThat(over.isDone()).isTrue();
+        NotificationQueueReport report = notificationDispatcher.report();
+        assertThat(report.getWaiting()).isEqualTo(2);
+        assertThat(report.getDropped()).isEqualTo(1);
+
+        backend.countDown();
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+        notificationDispatcher.close();
+        assertThat(notificationDispatcher.report().getWaiting()).isEqualTo(0);
+        assertThat(notificationDispatcher.report().getSent()).isEqualTo(8);
+        assertThat(notificationDispatcher.report().getDropped()).isEqualTo(1);
+    }
+
+    /**
+     * The notifications of a batch, here the digests of both accounts, are all started on an asynchronous service
+     * before any of them completes
+     */
+    @Test(timeout = 5000)
+    public void asyncServiceSendsBatchAtOnce() {
+        List<CompletableFuture<Void>> started = new CopyOnWriteArrayList<>();
+        AsyncNotificationService asyncService = (account, transferDescription) -> {
+            CompletableFuture<Void> sending = new CompletableFuture<>();
+            started.add(sending);
+            if (started.size() == 2) {
+                started.forEach(future -> future.complete(null));
+            }
+            return sending;
+        };
+        notificationDispatcher = dispatcher(asyncService, 10, 200, "block");
+
+        notificationDispatcher.dispatch(transfer("1"));
+        notificationDispatcher.dispatch(transfer("2"));
+        notificationDispatcher.close();
+
+        assertThat(started).hasSize(2);
+        assertThat(notificationDispatcher.report().getSent()).isEqualTo(2);
+    }
+
+    private NotificationDispatcher dispatcher(NotificationService notificationService, int capacity,
+                                              long digestWindowMs, String overflow) {
+        return new NotificationDispatcher(notificationService, accountsRepository, capacity, 1, 100, digestWindowMs,
+                overflow, folder.getRoot().getPath());
+    }
+
+    private NotificationService recording() {
+        return (account, transferDescription) -> notifications.add(account.getAccountId() + ": " + transferDescription);
+    }
+
+    private NotificationService blocking() {
+        return (account, transferDescription) -> {
+            try {
+                backend.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private void waitUntilQueueIsEmpty() throws InterruptedException {
+        while (notificationDispatcher.report().getDepth() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static Transfer transfer(String amount) {
+        return Transfer.builder()
+                .sourceAccountId(SOURCE_ACCOUNT)
+                .destinationAccountId(DESTINATION_ACCOUNT)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,300 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.ReadOnlyReplicaException;
+import com.db.awmd.challenge.metrics.ReplicationReport;
+import com.db.awmd.challenge.replication.ReplicatedAccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for a primary and its followers streaming over local TCP sockets in this JVM
+ */
+public class ReplicationTest {
+
+    private static final int ACCOUNTS = 100;
+
+    private final List<ReplicatedAccountsRepository> nodes = new ArrayList<>();
+
+    private ReplicatedAccountsRepository primary;
+
+    @Before
+    public void startPrimary() {
+        primary = node(ReplicatedAccountsRepository.primary(new AccountsRepositoryStriped(16), 16, 0, 1 << 16));
+        for (int i = 0; i < ACCOUNTS; i++) {
+            primary.createAccount(new Account("Id-" + i, new BigDecimal("1000")));
+        }
+    }
+
+    @After
+    public void stopNodes() throws Exception {
+        for (ReplicatedAccountsRepository node : nodes) {
+            node.close();
+        }
+    }
+
+    /**
+     * A follower connecting late gets the accounts already created and then the changes made after it connected
+     */
+    @Test
+    public void followerCatchesUp() {
+        primary.transfer(transfer("Id-0", "Id-1", "100"));
+        ReplicatedAccountsRepository follower = follow(primary);
+
+        primary.transfer(transfer("Id-1", "Id-2", "50.5"));
+        primary.createAccount(new Account("Id-late", new BigDecimal("7")));
+        awaitCaughtUp(follower, primary);
+
+        assertThat(follower.getAccount("Id-0").getBalance()).isEqualByComparingTo("900");
+        assertThat(follower.getAccount("Id-1").getBalance()).isEqualByComparingTo("1049.5");
+        assertThat(follower.getAccount("Id-2").getBalance()).isEqualByComparingTo("1050.5");
+        assertThat(follower.getAccount("Id-late").getBalance()).isEqualByComparingTo("7");
+        ReplicationReport.FollowerLag lag = primary.report().getFollowers().get(0);
+        assertThat(lag.getSequence()).isEqualTo(primary.report().getSequence());
+        assertThat(lag.getLagBytes()).isZero();
+        assertThat(follower.report().isConnected()).isTrue();
+    }
+
+    @Test(expected = ReadOnlyReplicaException.class)
+    public void followerRejectsChanges() {
+        follow(primary).transfer(transfer("Id-0", "Id-1", "1"));
+    }
+
+    /**
+     * Concurrent transfers between random accounts, many of them failing their balance check, leave every follower
+     * with the balances of the primary
+     */
+    @Test
+    public void concurrentTransfersAreReplicatedInOrder() throws Exception {
+        List<ReplicatedAccountsRepository> followers = new ArrayList<>();
+        followers.add(follow(primary));
+        followers.add(follow(primary));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 5_000; i++) {
+                        int source = random.nextInt(ACCOUNTS);
+                        int destination = (source + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        try {
+                            primary.transfer(transfer("Id-" + source, "Id-" + destination,
+                                    String.valueOf(1 + random.nextInt(1000))));
+                        } catch (NotEnoughBalanceException e) {
+                            // Expected from time to time
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (ReplicatedAccountsRepository follower : followers) {
+            awaitCaughtUp(follower, primary);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                assertThat(follower.getAccount("Id-" + i).getBalance()).isEqualByComparingTo(
+                        primary.getAccount("Id-" + i).getBalance());
+            }
+            assertThat(follower.report().getResyncs()).isZero();
+        }
+    }
+
+    /**
+     * An all-or-nothing batch settled on net positions, whose transfers are not possible one at a time, reaches the
+     * follower without a resynchronisation
+     */
+    @Test
+    public void nettedBatchIsReplicated() {
+        primary.createAccount(new Account("Empty-A", BigDecimal.ZERO));
+        primary.createAccount(new Account("Empty-B", BigDecimal.ZERO));
+        ReplicatedAccountsRepository follower = follow(primary);
+        awaitCaughtUp(follower, primary);
+
+        List<TransferResult> results = primary.transferBatch(Arrays.asList(
+                transfer("Empty-A", "Empty-B", "50"),
+                transfer("Empty-B", "Empty-A", "50"),
+                transfer("Empty-B", "Id-0", "30"),
+                transfer("Id-1", "Empty-B", "30")), true);
+        assertThat(results).extracting("applied").containsOnly(true);
+        awaitCaughtUp(follower, primary);
+
+        assertThat(follower.report().getResyncs()).isZero();
+        for (String accountId : Arrays.asList("Empty-A", "Empty-B", "Id-0", "Id-1")) {
+            assertThat(follower.getAccount(accountId).getBalance()).isEqualByComparingTo(
+                    primary.getAccount(accountId).getBalance());
+        }
+        assertThat(follower.getAccount("Id-0").getBalance()).isEqualByComparingTo("1030");
+    }
+
+    /**
+     * A follower that falls a whole buffer behind is dropped and converges again once it has reconnected
+     */
+    @Test
+    public void slowFollowerResynchronises() {
+        ReplicatedAccountsRepository smallBuffer = node(ReplicatedAccountsRepository.primary(
+                new AccountsRepositoryStriped(16), 16, 0, 4));
+        for (int i = 0; i < ACCOUNTS; i++) {
+            smallBuffer.createAccount(new Account("Id-" + i, new BigDecimal("1000")));
+        }
+        ReplicatedAccountsRepository follower = follow(smallBuffer);
+        awaitCaughtUp(follower, smallBuffer);
+
+        for (int i = 0; i < 10_000; i++) {
+            smallBuffer.transfer(transfer("Id-" + (i % ACCOUNTS), "Id-" + ((i + 1) % ACCOUNTS), "1"));
+        }
+        smallBuffer.transfer(transfer("Id-0", "Id-1", "500"));
+        awaitCaughtUp(follower, smallBuffer);
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertThat(follower.getAccount("Id-" + i).getBalance()).isEqualByComparingTo(
+                    smallBuffer.getAccount("Id-" + i).getBalance());
+        }
+    }
+
+    /**
+     * Once the primary is gone a follower is promoted, accepts changes and streams them to a follower of its own
+     */
+    @Test
+    public void failover() throws Exception {
+        ReplicatedAccountsRepository follower = follow(primary);
+        primary.transfer(transfer("Id-0", "Id-1", "10"));
+        awaitCaughtUp(follower, primary);
+        primary.close();
+
+        follower.promote();
+        follower.transfer(transfer("Id-1", "Id-2", "5"));
+        ReplicatedAccountsRepository second = follow(follower);
+        awaitCaughtUp(second, follower);
+
+        assertThat(follower.isPrimary()).isTrue();
+        assertThat(second.getAccount("Id-0").getBalance()).isEqualByComparingTo("990");
+        assertThat(second.getAccount("Id-1").getBalance()).isEqualByComparingTo("1005");
+        assertThat(second.getAccount("Id-2").getBalance()).isEqualByComparingTo("1005");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void promotePrimary() {
+        primary.promote();
+    }
+
+    /**
+     * Two application nodes: the follower serves reads, answers changes with 503 until it is promoted and exposes
+     * its lag
+     */
+    @Test
+    public void followerNode() throws IOException {
+        TestRestTemplate http = new TestRestTemplate();
+        int[] ports = {freePort(), freePort(), freePort()};
+        String primaryUrl = "http://localhost:" + ports[0];
+        String followerUrl = "http://localhost:" + ports[1];
+        List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+        try {
+            contexts.add(new SpringApplicationBuilder(DevChallengeApplication.class).run(
+                    "--server.port=" + ports[0],
+                    "--accounts.repository.type=striped",
+                    "--accounts.replication.enabled=true",
+                    "--accounts.replication.role=primary",
+                    "--accounts.replication.port=" + ports[2]));
+            contexts.add(new SpringApplicationBuilder(DevChallengeApplication.class).run(
+                    "--server.port=" + ports[1],
+                    "--accounts.repository.type=striped",
+                    "--accounts.replication.enabled=true",
+                    "--accounts.replication.role=follower",
+                    "--accounts.replication.primary=localhost:" + ports[2],
+                    "--accounts.replication.port=0",
+                    "--accounts.replication.retry-ms=100"));
+
+            assertThat(http.postForEntity(primaryUrl + "/v1/accounts", new Account("Id-0", new BigDecimal("10")),
+                    String.class).getStatusCode()).isEqualTo(HttpStatus.CREATED);
+            assertThat(http.postForEntity(followerUrl + "/v1/accounts", new Account("Id-1"), String.class)
+                    .getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+            await(() -> http.getForEntity(followerUrl + "/v1/accounts/Id-0", String.class).getStatusCode()
+                    == HttpStatus.OK);
+            assertThat(http.getForObject(followerUrl + "/v1/metrics/replication", ReplicationReport.class)
+                    .getRole()).isEqualTo("follower");
+
+            assertThat(http.postForEntity(followerUrl + "/v1/replication/promote", null, String.class)
+                    .getStatusCode()).isEqualTo(HttpStatus.OK);
+            assertThat(http.postForEntity(followerUrl + "/v1/accounts", new Account("Id-1"), String.class)
+                    .getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        } finally {
+            contexts.forEach(ConfigurableApplicationContext::close);
+        }
+    }
+
+    private ReplicatedAccountsRepository follow(ReplicatedAccountsRepository of) {
+        return node(ReplicatedAccountsRepository.follower(new AccountsRepositoryStriped(16), 16, 0, 1024,
+                "localhost", of.getReplicationPort(), 50));
+    }
+
+    private ReplicatedAccountsRepository node(ReplicatedAccountsRepository node) {
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Waits for the follower to apply every change of the primary and acknowledge all the bytes sent to it
+     */
+    private static void awaitCaughtUp(ReplicatedAccountsRepository follower, ReplicatedAccountsRepository of) {
+        await(() -> follower.report().getSequence() == of.report().getSequence()
+                && of.report().getFollowers().stream().allMatch(lag -> lag.getLagBytes() == 0));
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime() - deadline).as("timed out").isNegative();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.admission.AdaptiveConcurrencyLimit;
+import com.db.awmd.challenge.admission.TokenBuckets;
+import com.db.awmd.challenge.admission.TransferAdmission;
+import com.db.awmd.challenge.exception.TooManyRequestsException;
+import com.db.awmd.challenge.metrics.AdmissionReport;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class TransferAdmissionTest {
+
+    private static final long FAST = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test
+    public void limitRefusesBeyondLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10, 10_000, 0.5);
+
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isFalse();
+        assertThat(limit.getInFlight()).isEqualTo(2);
+    }
+
+    /**
+     * Slow samples halve the limit down to its minimum, fast samples with the limit in use raise it up to its maximum
+     */
+    @Test
+    public void limitAdaptsToLatency() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 2, 10, 10_000, 0.5);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(limit.tryAcquire()).isTrue();
+            limit.release(SLOW);
+        }
+        assertThat(limit.getLimit()).isEqualTo(2);
+
+        for (int i = 0; i < 20; i++) {
+            int acquired = 0;
+            while (limit.tryAcquire()) {
+                acquired++;
+            }
+            for (int j = 0; j < acquired; j++) {
+                limit.release(FAST);
+            }
+        }
+        assertThat(limit.getLimit()).isEqualTo(10);
+        assertThat(limit.getInFlight()).isZero();
+    }
+
+    /**
+     * Fast samples while the limit is mostly unused do not raise it, it only grows while it is what holds back
+     */
+    @Test
+    public void limitDoesNotGrowWhenIdle() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 2, 100, 10_000, 0.5);
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(limit.tryAcquire()).isTrue();
+            limit.release(FAST);
+        }
+
+        assertThat(limit.getLimit()).isEqualTo(8);
+    }
+
+    @Test
+    public void bucketsAllowBurstThenRate() throws InterruptedException {
+        TokenBuckets buckets = new TokenBuckets(1, 3, 100);
+
+        assertThat(buckets.tryTake("a")).isZero();
+        assertThat(buckets.tryTake("a")).isZero();
+        assertThat(buckets.tryTake("a")).isZero();
+        assertThat(buckets.tryTake("a")).isBetween(1L, TimeUnit.SECONDS.toNanos(1));
+        assertThat(buckets.tryTake("b")).isZero();
+    }
+
+    @Test
+    public void bucketsRefill() throws InterruptedException {
+        TokenBuckets buckets = new TokenBuckets(100, 1, 100);
+        assertThat(buckets.tryTake("a")).isZero();
+        long wait = buckets.tryTake("a");
+        assertThat(wait).isGreaterThan(0);
+
+        TimeUnit.NANOSECONDS.sleep(wait);
+
+        assertThat(buckets.tryTake("a")).isZero();
+    }
+
+    /**
+     * Past the maximum number of buckets the full ones are dropped, the ones still limiting a key are kept
+     */
+    @Test
+    public void bucketsAreBounded() throws InterruptedException {
+        TokenBuckets buckets = new TokenBuckets(10, 1, 10);
+        for (int i = 0; i < 10; i++) {
+            buckets.tryTake("Id-" + i);
+        }
+        TimeUnit.MILLISECONDS.sleep(150);
+
+        buckets.tryTake("Id-0");
+        buckets.tryTake("Id-new");
+
+        assertThat(buckets.size()).isEqualTo(2);
+        assertThat(buckets.tryTake("Id-0")).isGreaterThan(0);
+        assertThat(buckets.tryTake("Id-new")).isGreaterThan(0);
+    }
+
+    /**
+     * Refusals carry a Retry-After in whole seconds and are counted apart from the transfers admitted
+     */
+    @Test
+    public void admission() {
+        TransferAdmission admission = new TransferAdmission(true, 1, 1, 1, 10_000, 0.9, 0.5, 1, 100);
+
+        TransferAdmission.Permit permit = admission.acquire();
+        admission.checkRate("a");
+        Throwable limited = catchThrowable(admission::acquire);
+        permit.close();
+        TransferAdmission.Permit next = admission.acquire();
+        Throwable rated = catchThrowable(() -> admission.checkRate("a"));
+        admission.checkRate("b");
+        next.close();
+
+        assertThat(limited).isInstanceOf(TooManyRequestsException.class);
+        assertThat(((TooManyRequestsException) limited).getRetryAfterSeconds()).isEqualTo(1);
+        assertThat(rated).isInstanceOf(TooManyRequestsException.class);
+        assertThat(((TooManyRequestsException) rated).getRetryAfterSeconds()).isEqualTo(2);
+        AdmissionReport report = admission.report();
+        assertThat(report.getAdmitted()).isEqualTo(2);
+        assertThat(report.getShedByLimit()).isEqualTo(1);
+        assertThat(report.getShedByRate()).isEqualTo(1);
+        assertThat(report.getLatency().getCount()).isEqualTo(2);
+        assertThat(report.getInFlight()).isZero();
+    }
+
+    /**
+     * A transfer refused by the bucket of its account gives its slot back without a latency sample for the limit
+     */
+    @Test
+    public void refusedPermitLeavesLimit() {
+        // A threshold no permit of the test reaches, so closing one can only raise the limit
+        TransferAdmission admission = new TransferAdmission(true, 2, 1, 10, 10_000_000, 0.9, 0.5, 1, 100);
+
+        TransferAdmission.Permit permit = admission.acquire();
+        admission.checkRate("a");
+        TransferAdmission.Permit refused = admission.acquire();
+        assertThat(catchThrowable(() -> admission.checkRate("a"))).isInstanceOf(TooManyRequestsException.class);
+        refused.closeRefused();
+        refused.close();
+
+        AdmissionReport report = admission.report();
+        assertThat(report.getLimit()).isEqualTo(2);
+        assertThat(report.getInFlight()).isEqualTo(1);
+        assertThat(report.getLatency().getCount()).isZero();
+        permit.close();
+        assertThat(admission.report().getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void disabled() {
+        TransferAdmission admission = new TransferAdmission(false, 1, 1, 1, 10_000, 0.9, 0.5, 1, 100);
+
+        admission.acquire();
+        admission.acquire();
+        admission.checkRate("a");
+        admission.checkRate("a");
+
+        assertThat(admission.report().getAdmitted()).isZero();
+    }
+}
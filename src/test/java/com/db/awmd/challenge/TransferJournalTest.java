@@ -0,0 +1,409 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.journal.JournalEvent;
+import com.db.awmd.challenge.journal.JournalReplay;
+import com.db.awmd.challenge.journal.JournalingAccountsRepository;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.ledger.TransferLedger;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.repository.AccountsRepositorySharded;
+import com.db.awmd.challenge.repository.AccountsRepositoryStriped;
+import com.db.awmd.challenge.service.AccountsService;
+import com.db.awmd.challenge.service.NotificationDispatcher;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the write-ahead journal: group commit, recovery, torn tails and snapshots
+ */
+public class TransferJournalTest {
+
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
+    private static final String DESTINATION_ACCOUNT = "destinationAccount";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void prepare() {
+        path = folder.getRoot().toPath().resolve("journal");
+    }
+
+    /**
+     * Changes made through the journaling repository are found again by a new repository after a restart
+     */
+    @Test
+    public void recoverRepository() throws Exception {
+        JournalingAccountsRepository repository = open(new JournalReplay());
+        repository.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        repository.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+        repository.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "30.5"));
+        repository.transferAsync(transfer(DESTINATION_ACCOUNT, SOURCE_ACCOUNT, "0.5")).join();
+        try {
+            repository.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "1000"));
+        } catch (NotEnoughBalanceException e) {
+            // Rejected transfers are not journaled
+        }
+        repository.close();
+
+        JournalReplay replay = new JournalReplay();
+        JournalingAccountsRepository recovered = open(replay);
+        replay.applyTo(recovered.getDelegate());
+
+        assertThat(recovered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("70");
+        assertThat(recovered.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("130");
+        recovered.close();
+    }
+
+    /**
+     * Transfers that depend on each other, moving one balance around a ring of accounts and into accounts created
+     * meanwhile by other threads, are journaled in an order that replays one event at a time without failing a
+     * balance check, so any prefix left by a crash is a state that was reached
+     */
+    @Test
+    public void journalOrderFollowsDependencies() throws Exception {
+        int accounts = 8;
+        int threads = 4;
+        // Yields once a change is applied, so that other threads run between changes and their journal records
+        AccountsRepositoryStriped delegate = new AccountsRepositoryStriped(16) {
+            @Override
+            public void createAccount(Account account) {
+                super.createAccount(account);
+                Thread.yield();
+            }
+
+            @Override
+            public void transfer(Transfer transfer) {
+                super.transfer(transfer);
+                Thread.yield();
+            }
+        };
+        JournalingAccountsRepository repository = new JournalingAccountsRepository(delegate,
+                new TransferJournal(path, 64, 100, event -> { }));
+        for (int i = 0; i < accounts; i++) {
+            repository.createAccount(new Account("Id-" + i, i == 0 ? new BigDecimal("1000") : BigDecimal.ZERO));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(thread);
+                for (int i = 0; i < 5000; i++) {
+                    int source = random.nextInt(accounts);
+                    String destination = random.nextInt(4) == 0
+                            ? "New-" + random.nextInt(100)
+                            : "Id-" + (source + 1) % accounts;
+                    try {
+                        if (i % 50 == 0 && (i / 50) % threads == thread) {
+                            repository.createAccount(new Account("New-" + (i / 50), BigDecimal.ZERO));
+                        }
+                        repository.transfer(transfer("Id-" + source, destination, "1000"));
+                    } catch (NotEnoughBalanceException | IllegalArgumentException e) {
+                        // Source already emptied by another thread or destination not created yet
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        repository.close();
+
+        List<JournalEvent> events = new ArrayList<>();
+        new TransferJournal(path, 16, 0, events::add).close();
+        AccountsRepositoryStriped replayed = new AccountsRepositoryStriped(16);
+        for (JournalEvent event : events) {
+            if (event.getType() == JournalEvent.Type.CREATE_ACCOUNT) {
+                replayed.createAccount(new Account(event.getAccountId(), event.getAmount()));
+            } else {
+                replayed.transfer(transfer(event.getAccountId(), event.getDestinationAccountId(),
+                        event.getAmount().toPlainString()));
+            }
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < accounts; i++) {
+            total = total.add(replayed.getAccount("Id-" + i).getBalance());
+        }
+        for (int i = 0; i < 100; i++) {
+            Account created = replayed.getAccount("New-" + i);
+            total = total.add(created == null ? BigDecimal.ZERO : created.getBalance());
+        }
+        assertThat(total).isEqualByComparingTo("1000");
+    }
+
+    /**
+     * A transfer journaled without the creation of its account cannot be recovered and fails the replay
+     */
+    @Test(expected = IllegalStateException.class)
+    public void transferOfUnknownAccountFailsReplay() {
+        JournalReplay replay = new JournalReplay();
+        replay.accept(JournalEvent.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100"))));
+        replay.accept(JournalEvent.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "10")));
+
+        replay.forEachAccount(account -> { });
+    }
+
+    /**
+     * The applied transfers of a batch are journaled as net amounts and recovered
+     */
+    @Test
+    public void recoverBatch() throws Exception {
+        JournalingAccountsRepository repository = open(new JournalReplay());
+        repository.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        repository.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+        repository.transferBatch(Arrays.asList(
+                transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "80"),
+                transfer(DESTINATION_ACCOUNT, SOURCE_ACCOUNT, "30"),
+                transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "1000")), false);
+        repository.close();
+
+        List<JournalEvent> events = new ArrayList<>();
+        new TransferJournal(path, 16, 0, events::add).close();
+        JournalReplay replay = new JournalReplay();
+        events.forEach(replay);
+        JournalingAccountsRepository recovered = open(new JournalReplay());
+        replay.applyTo(recovered.getDelegate());
+
+        // Two account creations and the net transfer
+        assertThat(events).hasSize(3);
+        assertThat(recovered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("50");
+        assertThat(recovered.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("150");
+        recovered.close();
+    }
+
+    /**
+     * Concurrent appends are all acknowledged and recovered, whatever the batches they were synced in
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        TransferJournal journal = new TransferJournal(path, 16, 1000, event -> { });
+        List<CompletableFuture<Void>> synced = new ArrayList<>();
+        journal.append(JournalEvent.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("1000")))).join();
+        journal.append(JournalEvent.createAccount(new Account(DESTINATION_ACCOUNT, BigDecimal.ZERO))).join();
+        for (int i = 0; i < 500; i++) {
+            synced.add(journal.append(JournalEvent.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "1"))));
+        }
+        CompletableFuture.allOf(synced.toArray(new CompletableFuture<?>[0])).join();
+        journal.close();
+
+        JournalReplay replay = new JournalReplay();
+        new TransferJournal(path, 16, 0, replay).close();
+        List<Account> accounts = new ArrayList<>();
+        replay.forEachAccount(accounts::add);
+
+        assertThat(accounts).containsExactly(
+                new Account(SOURCE_ACCOUNT, new BigDecimal("500")),
+                new Account(DESTINATION_ACCOUNT, new BigDecimal("500")));
+    }
+
+    /**
+     * A record only partially written before a crash is ignored and removed
+     */
+    @Test
+    public void truncateTornTail() throws Exception {
+        TransferJournal journal = new TransferJournal(path, 16, 0, event -> { });
+        journal.append(JournalEvent.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")))).join();
+        journal.close();
+        Path segment = segments().get(0);
+        long validSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 0}));
+        }
+
+        List<JournalEvent> events = new ArrayList<>();
+        journal = new TransferJournal(path, 16, 0, events::add);
+        journal.close();
+
+        assertThat(events).hasSize(1);
+        assertThat(Files.size(segment)).isEqualTo(validSize);
+    }
+
+    /**
+     * After a snapshot only the snapshot and the segments written after it are needed to recover
+     */
+    @Test
+    public void snapshot() throws Exception {
+        JournalingAccountsRepository repository = open(new JournalReplay());
+        repository.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        repository.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+        repository.createAccount(new Account("Id-123", new BigDecimal("100")));
+        repository.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "10"));
+
+        assertThat(repository.getJournal().snapshot()).isEqualTo(3);
+
+        repository.transfer(transfer(DESTINATION_ACCOUNT, "Id-123", "20"));
+        repository.close();
+
+        // The segments folded into the snapshot are gone, only the one written after it is left
+        assertThat(segments()).hasSize(1);
+        try (Stream<Path> files = Files.list(path)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".snap")).count()).isEqualTo(1);
+        }
+
+        JournalReplay replay = new JournalReplay();
+        JournalingAccountsRepository recovered = open(replay);
+        replay.applyTo(recovered.getDelegate());
+
+        assertThat(recovered.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("90");
+        assertThat(recovered.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("90");
+        assertThat(recovered.getAccount("Id-123").getBalance()).isEqualByComparingTo("120");
+        recovered.close();
+    }
+
+    /**
+     * A snapshot exported while transfers run replaces exactly the segments it rolled, so nothing is lost or counted
+     * twice on recovery
+     */
+    @Test
+    public void snapshotDuringTransfers() throws Exception {
+        // Yields once a transfer is applied, so that snapshots run between transfers and their journal records
+        AccountsRepositoryStriped delegate = new AccountsRepositoryStriped(16) {
+            @Override
+            public void transfer(Transfer transfer) {
+                super.transfer(transfer);
+                Thread.yield();
+            }
+        };
+        JournalingAccountsRepository repository = new JournalingAccountsRepository(delegate,
+                new TransferJournal(path, 64, 100, event -> { }));
+        int accounts = 8;
+        for (int i = 0; i < accounts; i++) {
+            repository.createAccount(new Account("Id-" + i, new BigDecimal("100")));
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> transfers = executor.submit(() -> {
+            Random random = new Random(7);
+            for (int i = 0; i < 5000; i++) {
+                int source = random.nextInt(accounts);
+                try {
+                    repository.transfer(transfer("Id-" + source, "Id-" + (source + 1) % accounts, "1"));
+                } catch (NotEnoughBalanceException e) {
+                    // Skipped like any refused transfer
+                }
+            }
+        });
+        while (!transfers.isDone()) {
+            assertThat(repository.getJournal().snapshot()).isEqualTo(accounts);
+        }
+        transfers.get();
+        executor.shutdown();
+        List<BigDecimal> balances = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            balances.add(repository.getAccount("Id-" + i).getBalance());
+        }
+        repository.close();
+
+        JournalReplay replay = new JournalReplay();
+        JournalingAccountsRepository recovered = open(replay);
+        replay.applyTo(recovered.getDelegate());
+        for (int i = 0; i < accounts; i++) {
+            assertThat(recovered.getAccount("Id-" + i).getBalance()).isEqualByComparingTo(balances.get(i));
+        }
+        recovered.close();
+    }
+
+    /**
+     * Repositories without a consistent export get their snapshots compacted from the journal
+     */
+    @Test
+    public void snapshotWithoutExport() throws Exception {
+        JournalingAccountsRepository repository = new JournalingAccountsRepository(new AccountsRepositoryInMemory(),
+                new TransferJournal(path, 64, 100, event -> { }));
+        repository.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("100")));
+        repository.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("100")));
+        repository.transfer(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "10"));
+
+        assertThat(repository.getJournal().snapshot()).isEqualTo(2);
+        repository.close();
+
+        JournalReplay replay = new JournalReplay();
+        new TransferJournal(path, 16, 0, replay).close();
+        List<Account> recovered = new ArrayList<>();
+        replay.forEachAccount(recovered::add);
+        assertThat(recovered).containsExactlyInAnyOrder(
+                new Account(SOURCE_ACCOUNT, new BigDecimal("90")),
+                new Account(DESTINATION_ACCOUNT, new BigDecimal("110")));
+    }
+
+    /**
+     * Asynchronous transfers through the service over a journaled sharded repository: the accounts are resolved on
+     * partition threads, which must not be the ones applying the transfer through the journal
+     */
+    @Test
+    public void transferAsyncOverSharded() throws Exception {
+        AccountsRepositorySharded sharded = new AccountsRepositorySharded(2, 8);
+        JournalingAccountsRepository repository = new JournalingAccountsRepository(sharded,
+                new TransferJournal(path, 64, 100, event -> { }));
+        NotificationDispatcher notificationDispatcher = new NotificationDispatcher((account, description) -> { },
+                repository, 1000, 1, 100, 0, "block", folder.getRoot().getPath());
+        AccountsService accountsService = new AccountsService(repository, notificationDispatcher,
+                new TransferMetrics(), new TransferLedger(1000));
+        repository.createAccount(new Account(SOURCE_ACCOUNT, new BigDecimal("200")));
+        repository.createAccount(new Account(DESTINATION_ACCOUNT, new BigDecimal("0")));
+
+        List<CompletableFuture<Void>> transferred = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            transferred.add(accountsService.transferAsync(transfer(SOURCE_ACCOUNT, DESTINATION_ACCOUNT, "1")));
+        }
+        CompletableFuture.allOf(transferred.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        assertThat(repository.getAccount(SOURCE_ACCOUNT).getBalance()).isEqualByComparingTo("0");
+        assertThat(repository.getAccount(DESTINATION_ACCOUNT).getBalance()).isEqualByComparingTo("200");
+        notificationDispatcher.close();
+        repository.close();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("journal-"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private JournalingAccountsRepository open(JournalReplay replay) {
+        return new JournalingAccountsRepository(new AccountsRepositoryStriped(16),
+                new TransferJournal(path, 64, 100, replay));
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,138 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Transfer;
+import com.db.awmd.challenge.ledger.TransferLedger;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransferLedgerTest {
+
+    private final TransferLedger transferLedger = new TransferLedger(1_000_000);
+
+    /**
+     * Pages of an account are returned newest first and only hold the transfers of the account
+     */
+    @Test
+    public void pages() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            transferLedger.record(transfer("Id-0", "Id-1", Integer.toString(i)));
+            transferLedger.record(transfer("Id-2", "Id-3", "100"));
+            transferLedger.record(transfer("Id-1", "Id-0", "0.0" + i));
+        }
+
+        List<String> amounts = new ArrayList<>();
+        long next = transferLedger.visit("Id-0", -1, 4, (sequence, timestamp, source, destination, amount) ->
+                amounts.add(source + ">" + destination + ":" + amount.toPlainString()));
+        assertThat(amounts).containsExactly("Id-1>Id-0:0.05", "Id-0>Id-1:5", "Id-1>Id-0:0.04", "Id-0>Id-1:4");
+
+        amounts.clear();
+        next = transferLedger.visit("Id-0", next, 100, (sequence, timestamp, source, destination, amount) ->
+                amounts.add(amount.toPlainString()));
+        assertThat(amounts).containsExactly("0.03", "3", "0.02", "2", "0.01", "1");
+        assertThat(next).isEqualTo(-1);
+        assertThat(count("Id-3", 100)).isEqualTo(5);
+        assertThat(count("Id-4", 100)).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cursorOfAnotherAccount() throws Exception {
+        transferLedger.record(transfer("Id-0", "Id-1", "1"));
+        transferLedger.record(transfer("Id-2", "Id-3", "1"));
+
+        transferLedger.visit("Id-0", 1, 10, (sequence, timestamp, source, destination, amount) -> { });
+    }
+
+    @Test
+    public void largeAmount() throws Exception {
+        BigDecimal large = new BigDecimal("123456789012345678901234567890.123");
+        transferLedger.record(Transfer.builder().sourceAccountId("Id-0").destinationAccountId("Id-1")
+                .amount(large).build());
+
+        List<BigDecimal> amounts = new ArrayList<>();
+        transferLedger.visit("Id-1", -1, 10, (sequence, timestamp, source, destination, amount) -> amounts.add(amount));
+        assertThat(amounts).containsExactly(large);
+    }
+
+    /**
+     * Once the ledger is full the oldest chunks are released and the history of an account ends there
+     */
+    @Test
+    public void retention() throws Exception {
+        TransferLedger small = new TransferLedger(1);
+        for (int i = 0; i < 200_000; i++) {
+            small.record(transfer("Id-0", "Id-1", "1"));
+        }
+
+        assertThat(small.size()).isEqualTo(200_000);
+        assertThat(small.retained()).isLessThan(200_000);
+        long visited = small.visit("Id-0", -1, 1_000_000, (sequence, timestamp, source, destination, amount) -> { });
+        assertThat(visited).isEqualTo(-1);
+        int[] count = new int[1];
+        small.visit("Id-0", -1, 1_000_000, (sequence, timestamp, source, destination, amount) -> count[0]++);
+        assertThat((long) count[0]).isEqualTo(small.retained());
+    }
+
+    /**
+     * Transfers recorded from several threads at once, some of them with accounts new to the ledger, are all in the
+     * history of both of their accounts
+     */
+    @Test
+    public void concurrentRecords() throws Exception {
+        int threads = 4;
+        int records = 50_000;
+        Map<String, LongAdder> expected = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> recorders = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            int recorder = thread;
+            recorders.add(executor.submit(() -> {
+                for (int i = 0; i < records; i++) {
+                    String source = "Id-" + i % 8;
+                    String destination = i % 1000 == 0 ? "New-" + recorder + "-" + i : "Id-" + (i + 1) % 8;
+                    transferLedger.record(transfer(source, destination, "1"));
+                    expected.computeIfAbsent(source, account -> new LongAdder()).increment();
+                    expected.computeIfAbsent(destination, account -> new LongAdder()).increment();
+                }
+            }));
+        }
+        while (!recorders.stream().allMatch(Future::isDone)) {
+            count("Id-0", 100);
+        }
+        for (Future<?> recorder : recorders) {
+            recorder.get();
+        }
+        executor.shutdown();
+
+        assertThat(transferLedger.size()).isEqualTo(threads * records);
+        for (Map.Entry<String, LongAdder> account : expected.entrySet()) {
+            assertThat((long) count(account.getKey(), Integer.MAX_VALUE)).as(account.getKey())
+                    .isEqualTo(account.getValue().sum());
+        }
+    }
+
+    private int count(String accountId, int limit) throws IOException {
+        int[] count = new int[1];
+        transferLedger.visit(accountId, -1, limit, (sequence, timestamp, source, destination, amount) -> count[0]++);
+        return count[0];
+    }
+
+    private static Transfer transfer(String source, String destination, String amount) {
+        return Transfer.builder()
+                .sourceAccountId(source)
+                .destinationAccountId(destination)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
@@ -0,0 +1,55 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.metrics.StageLatency;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import com.db.awmd.challenge.metrics.TransferMetricsReport;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Tests for the transfer stage histograms and counters
+ */
+public class TransferMetricsTest {
+
+    @Test
+    public void percentiles() {
+        TransferMetrics transferMetrics = new TransferMetrics();
+        for (int i = 1; i <= 1000; i++) {
+            transferMetrics.recordNanos(TransferMetrics.Stage.REPOSITORY, TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        StageLatency latency = transferMetrics.report(0).getStages().get(TransferMetrics.Stage.REPOSITORY);
+
+        assertThat(latency.getCount()).isEqualTo(1000);
+        // Histograms keep 2 significant digits
+        assertThat(latency.getP50()).isCloseTo(500, within(5.0));
+        assertThat(latency.getP99()).isCloseTo(990, within(10.0));
+        assertThat(latency.getMax()).isCloseTo(1000, within(10.0));
+    }
+
+    /**
+     * Reading the metrics does not lose what was recorded before
+     */
+    @Test
+    public void totalsAcrossReports() {
+        TransferMetrics transferMetrics = new TransferMetrics();
+        transferMetrics.record(TransferMetrics.Stage.VALIDATE, System.nanoTime());
+        transferMetrics.report(0);
+        transferMetrics.record(TransferMetrics.Stage.VALIDATE, System.nanoTime());
+        transferMetrics.notEnoughBalance();
+        transferMetrics.validationFailure();
+        transferMetrics.validationFailure();
+
+        TransferMetricsReport report = transferMetrics.report(7);
+
+        assertThat(report.getStages().get(TransferMetrics.Stage.VALIDATE).getCount()).isEqualTo(2);
+        assertThat(report.getStages().get(TransferMetrics.Stage.NOTIFY).getCount()).isEqualTo(0);
+        assertThat(report.getNotEnoughBalance()).isEqualTo(1);
+        assertThat(report.getValidationFailures()).isEqualTo(2);
+        assertThat(report.getContention()).isEqualTo(7);
+    }
+}